@@ -72,26 +72,23 @@ public class AgentLauncher {
                     classLoader,
                     adviceWeaverClass.getMethod("methodOnBegin",
                             int.class,
-                            ClassLoader.class,
-                            String.class,
-                            String.class,
-                            String.class,
+                            int.class,
                             Object.class,
                             Object[].class),
                     adviceWeaverClass.getMethod("methodOnReturnEnd",
+                            Object.class,
                             Object.class),
                     adviceWeaverClass.getMethod("methodOnThrowingEnd",
-                            Throwable.class),
+                            Throwable.class,
+                            Object.class),
                     adviceWeaverClass.getMethod("methodOnInvokeBeforeTracing",
                             int.class,
-                            String.class,
-                            String.class,
-                            String.class),
+                            int.class),
                     adviceWeaverClass.getMethod("methodOnInvokeAfterTracing",
                             int.class,
-                            String.class,
-                            String.class,
-                            String.class),
+                            int.class),
+                    adviceWeaverClass.getMethod("methodOnCapture",
+                            int.class),
                     AgentLauncher.class.getMethod("resetGreysClassLoader")
             );
         }
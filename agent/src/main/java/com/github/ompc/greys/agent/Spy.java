@@ -1,6 +1,7 @@
 package com.github.ompc.greys.agent;
 
 import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * 间谍类<br/>
@@ -16,6 +17,21 @@ public class Spy {
     public static volatile Method ON_THROWS_METHOD;
     public static volatile Method BEFORE_INVOKING_METHOD;
     public static volatile Method AFTER_INVOKING_METHOD;
+    public static volatile Method ON_CAPTURE_METHOD;
+
+    /**
+     * 通知开关,下标为通知ID<br/>
+     * 织入的代码在调用任何钩子之前都会先检查这里,关闭的通知只需要一次读取和一次跳转<br/>
+     * 数组发布后不会再被修改,开关变化时由Greys整体替换
+     */
+    public static volatile boolean[] ADVICE_SWITCHES = new boolean[0];
+
+    /**
+     * 内联计数器,下标为计数槽位<br/>
+     * 织入的代码在方法结束时直接取出槽位,按Greys中InlineCounters的布局累加计数;
+     * 数组发布后不会再被修改,分配槽位时由Greys整体替换
+     */
+    public static volatile AtomicLongArray[] INLINE_COUNTERS = new AtomicLongArray[0];
 
     /**
      * 代理重设方法
@@ -32,12 +48,14 @@ public class Spy {
             Method onReturnMethod,
             Method onThrowsMethod,
             Method beforeInvokingMethod,
-            Method afterInvokingMethod) {
+            Method afterInvokingMethod,
+            Method onCaptureMethod) {
         ON_BEFORE_METHOD = onBeforeMethod;
         ON_RETURN_METHOD = onReturnMethod;
         ON_THROWS_METHOD = onThrowsMethod;
         BEFORE_INVOKING_METHOD = beforeInvokingMethod;
         AFTER_INVOKING_METHOD = afterInvokingMethod;
+        ON_CAPTURE_METHOD = onCaptureMethod;
     }
 
     /*
@@ -51,12 +69,14 @@ public class Spy {
             Method onThrowsMethod,
             Method beforeInvokingMethod,
             Method afterInvokingMethod,
+            Method onCaptureMethod,
             Method agentResetMethod) {
         ON_BEFORE_METHOD = onBeforeMethod;
         ON_RETURN_METHOD = onReturnMethod;
         ON_THROWS_METHOD = onThrowsMethod;
         BEFORE_INVOKING_METHOD = beforeInvokingMethod;
         AFTER_INVOKING_METHOD = afterInvokingMethod;
+        ON_CAPTURE_METHOD = onCaptureMethod;
         AGENT_RESET_METHOD = agentResetMethod;
     }
 
@@ -67,7 +87,10 @@ public class Spy {
         ON_THROWS_METHOD = null;
         BEFORE_INVOKING_METHOD = null;
         AFTER_INVOKING_METHOD = null;
+        ON_CAPTURE_METHOD = null;
         AGENT_RESET_METHOD = null;
+        ADVICE_SWITCHES = new boolean[0];
+        // INLINE_COUNTERS不清除,开关关闭前已经进入的方法在结束时仍然会累加计数
     }
 
 }
@@ -0,0 +1,81 @@
+package com.github.ompc.greys.agent;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+
+/**
+ * 间谍链接器<br/>
+ * 为织入代码中的invokedynamic指令提供引导方法,将通知钩子直接链接成MethodHandle,
+ * 省去Method.invoke()的反射开销和参数数组的装箱,让JIT有机会内联整个通知调用<br/>
+ * 只有JDK7+才会用到这个类,所以不能让{@link Spy}直接引用它
+ * Created by oldmanpushcart@gmail.com on 15/11/14.
+ */
+public class SpyLinker {
+
+    // -- invokedynamic的调用名,与Spy中的钩子一一对应 --
+    public static final String ON_BEFORE = "onBefore";
+    public static final String ON_RETURN = "onReturn";
+    public static final String ON_THROWS = "onThrows";
+    public static final String BEFORE_INVOKING = "beforeInvoking";
+    public static final String AFTER_INVOKING = "afterInvoking";
+    public static final String ON_CAPTURE = "onCapture";
+
+    /**
+     * invokedynamic引导方法
+     *
+     * @param lookup 调用方的lookup
+     * @param name   调用名
+     * @param type   调用点类型
+     * @return 调用点
+     * @throws Throwable 链接失败
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type) throws Throwable {
+        final Method hook = getHook(name);
+
+        // 间谍尚未初始化或已被清理,则链接成空操作,不能影响目标方法执行
+        if (null == hook) {
+            return new ConstantCallSite(nop(type));
+        }
+
+        return new ConstantCallSite(MethodHandles.publicLookup().unreflect(hook).asType(type));
+    }
+
+    /*
+     * 根据调用名找到对应的钩子
+     */
+    private static Method getHook(String name) {
+        if (ON_BEFORE.equals(name)) {
+            return Spy.ON_BEFORE_METHOD;
+        } else if (ON_RETURN.equals(name)) {
+            return Spy.ON_RETURN_METHOD;
+        } else if (ON_THROWS.equals(name)) {
+            return Spy.ON_THROWS_METHOD;
+        } else if (BEFORE_INVOKING.equals(name)) {
+            return Spy.BEFORE_INVOKING_METHOD;
+        } else if (AFTER_INVOKING.equals(name)) {
+            return Spy.AFTER_INVOKING_METHOD;
+        } else if (ON_CAPTURE.equals(name)) {
+            return Spy.ON_CAPTURE_METHOD;
+        } else {
+            throw new IllegalArgumentException("illegal name=" + name);
+        }
+    }
+
+    /*
+     * 构造空操作的MethodHandle
+     */
+    private static MethodHandle nop(MethodType type) throws NoSuchMethodException, IllegalAccessException {
+        final MethodHandle nop = type.returnType() == void.class
+                ? MethodHandles.lookup().findStatic(SpyLinker.class, "nop", MethodType.methodType(void.class))
+                : MethodHandles.constant(type.returnType(), null);
+        return MethodHandles.dropArguments(nop, 0, type.parameterList());
+    }
+
+    private static void nop() {
+    }
+
+}
@@ -1,5 +1,6 @@
 package com.github.ompc.greys.core;
 
+import com.github.ompc.greys.core.advisor.Arguments;
 import com.github.ompc.greys.core.util.GaMethod;
 
 /**
@@ -11,10 +12,12 @@ public final class Advice {
     public final Class<?> clazz;
     public final GaMethod method;
     public final Object target;
-    public final Object[] params;
     public final Object returnObj;
     public final Throwable throwExp;
 
+    // 调用参数,第一次读取时才装箱
+    private final Arguments params;
+
     public final static int ACCESS_BEFORE = 1;
     public final static int ACCESS_AFTER_RETUNING = 1 << 1;
     public final static int ACCESS_AFTER_THROWING = 1 << 2;
@@ -44,7 +47,7 @@ public final class Advice {
             Class<?> clazz,
             GaMethod method,
             Object target,
-            Object[] params,
+            Arguments params,
             Object returnObj,
             Throwable throwExp,
             int access) {
@@ -62,6 +65,19 @@ public final class Advice {
 //        playIndex = PlayIndexHolder.getInstance().get();
     }
 
+    /**
+     * 获取调用参数<br/>
+     * 织入的代码通过参数槽位传递参数时,参数在这里才会装箱;
+     * 参数槽位在通知结束后会被复用,若需要在通知之外使用参数,必须在通知期间先获取一次
+     *
+     * @return 调用参数
+     */
+    public Object[] getParams() {
+        return null == params
+                ? null
+                : params.toArray();
+    }
+
     /**
      * 构建Before通知点
      */
@@ -70,7 +86,7 @@ public final class Advice {
             Class<?> clazz,
             GaMethod method,
             Object target,
-            Object[] params) {
+            Arguments params) {
         return new Advice(
                 loader,
                 clazz,
@@ -91,7 +107,7 @@ public final class Advice {
             Class<?> clazz,
             GaMethod method,
             Object target,
-            Object[] params,
+            Arguments params,
             Object returnObj) {
         return new Advice(
                 loader,
@@ -113,7 +129,7 @@ public final class Advice {
             Class<?> clazz,
             GaMethod method,
             Object target,
-            Object[] params,
+            Arguments params,
             Throwable throwExp) {
         return new Advice(
                 loader,
@@ -49,6 +49,18 @@ public class GlobalOptions {
     )
     public static volatile boolean isBatchReTransform = true;
 
+    /**
+     * 是否支持并行编织<br/>
+     * 这个开关打开后，reTransform之前会先在线程池中并行完成字节码编织，已经增强过的类从缓存编织，首次增强的类从类文件编织；
+     * transform时只有编织所用的原始字节码和JVM交出的完全一致才直接返回编织好的字节码，否则仍在transform中编织
+     */
+    @Option(level = 1,
+            name = "parallel-weaving",
+            summary = "Option to weave classes in parallel before reTransform",
+            description = "This option enables the matched classes to be woven in parallel before reTransform, from the cached bytes if they have been woven before, or from the class file otherwise. The transformer returns the precomputed bytes only when the bytes they were woven from are identical to the bytes given by the JVM, otherwise it weaves the class itself."
+    )
+    public static volatile boolean isParallelWeaving = true;
+
     /**
      * 是否支持json格式化输出<br/>
      * 这个开关打开后，使用json格式输出目标对象，配合-x参数使用
@@ -70,6 +82,17 @@ public class GlobalOptions {
     )
     public static volatile boolean isDebugForAsm = false;
 
+    /**
+     * 是否使用invokedynamic链接通知<br/>
+     * 这个开关打开后，JDK7+的JVM上版本号不低于51的类将通过MethodHandle调用通知，否则退回到反射调用
+     */
+    @Option(level = 1,
+            name = "invoke-dynamic",
+            summary = "Option to link advice by invokedynamic",
+            description = "This option enables the enhanced classes(version 51+) to call the advice through MethodHandle linked by invokedynamic instead of reflection."
+    )
+    public static volatile boolean isInvokeDynamic = true;
+
     @Option(
             level = 1,
             name = "ptrace-class-matcher-lru-capacity",
@@ -95,6 +118,90 @@ public class GlobalOptions {
     )
     public static volatile int sessionWriteQueueCapacity = 2048;
 
+    /**
+     * 保留的空闲探针个数<br/>
+     * 命令结束后织入的代码只是关闭了通知开关,相同条件的命令可以直接复用;超出这个个数的空闲探针会被移除
+     */
+    @Option(
+            level = 1,
+            name = "warm-probe-capacity",
+            summary = "Option to keep idle probes woven for reuse",
+            description = "This option limits how many idle probes stay woven after their commands finish, the least recently used ones beyond it are removed."
+    )
+    public static volatile int warmProbeCapacity = 4;
+
+    /**
+     * 每个方法保留的监控周期数<br/>
+     * 监控历史在会话结束后仍然保留,可以通过monitor --history查询
+     */
+    @Option(
+            level = 1,
+            name = "monitor-history-capacity",
+            summary = "Option to keep the last cycles of monitor for --history",
+            description = "This option limits how many cycles of monitor statistics are kept for each method, it takes effect on methods monitored afterwards."
+    )
+    public static volatile int monitorHistoryCapacity = 120;
+
+    /**
+     * 是否编译条件表达式<br/>
+     * 常用的简单条件表达式会被编译成字节码执行,编译不了的仍然由OGNL解释执行
+     */
+    @Option(
+            level = 1,
+            name = "express-compile",
+            summary = "Option to compile simple condition expressions into bytecode",
+            description = "This option enables simple condition expressions, such as params[0].length==1 or returnObj==null, to be compiled into bytecode instead of being interpreted by OGNL, the others are always interpreted."
+    )
+    public static volatile boolean isExpressCompile = true;
+
+    /**
+     * 是否将条件下沉到被增强的方法中<br/>
+     * 条件表达式中只涉及参数和常量的比较会直接织入方法入口,只对之后增强的命令生效
+     */
+    @Option(
+            level = 1,
+            name = "condition-lowering",
+            summary = "Option to weave simple parameter conditions into the enhanced methods",
+            description = "This option enables the parameter-only parts of a condition, such as params[0]==12345 or params[2].length>1000, to be woven into the entry of the enhanced methods, so the calls that do not match will never reach the advice. It takes effect on the next enhancement."
+    )
+    public static volatile boolean isConditionLowering = true;
+
+    /**
+     * 表达式求值的耗时预算(微秒)<br/>
+     * 命令在业务线程上求值表达式的P99耗时超过预算后,改为采样求值或者直接停止命令;为0时不限制
+     */
+    @Option(
+            level = 1,
+            name = "express-budget",
+            summary = "Option to limit the p99 time of expression evaluation in microseconds",
+            description = "This option limits the p99 time that watch, tt, stack, trace and ptrace spend evaluating expressions on the invoking thread, over it the command evaluates only 1 of every 128 invocations, or stops if express-budget-stop is set. 0 means no limit. It takes effect on the next command."
+    )
+    public static volatile int expressBudgetMicros = 1000;
+
+    /**
+     * 表达式求值超出预算时是否直接停止命令<br/>
+     * 默认改为采样求值
+     */
+    @Option(
+            level = 1,
+            name = "express-budget-stop",
+            summary = "Option to stop the command instead of sampling when the express-budget is exceeded",
+            description = "This option makes the command stop as soon as the p99 of expression evaluation exceeds express-budget, instead of falling back to sampled evaluation."
+    )
+    public static volatile boolean isExpressBudgetStop = false;
+
+    /**
+     * 异步通知的队列容量<br/>
+     * 命令以--async执行时,业务线程只把通知放入队列,队列满时直接丢弃
+     */
+    @Option(
+            level = 1,
+            name = "async-advice-capacity",
+            summary = "Option to limit the queue of advice events for commands with --async",
+            description = "This option limits how many advice events can wait for the session worker thread when a command runs with --async, the events beyond it are dropped and counted. It is rounded up to a power of 2 and takes effect on the next command."
+    )
+    public static volatile int asyncAdviceCapacity = 4096;
+
     /**
      * 选项
      */
@@ -0,0 +1,132 @@
+package com.github.ompc.greys.core;
+
+/**
+ * 方法的监控历史<br/>
+ * 每个统计周期一行,所有行按字段平铺在一个long[]中组成环,写满后覆盖最老的一行;
+ * 同时按周期的调用速率维护1/5/15分钟的指数加权移动平均,和系统的load average一样
+ * Created by oldmanpushcart@gmail.com on 15/11/27.
+ */
+public final class MonitorHistory {
+
+    // -- 每一行的字段,耗时单位为纳秒,没有采集到的值为-1 --
+
+    public static final int FIELD_TIMESTAMP = 0;
+    public static final int FIELD_CYCLE_MILLIS = 1;
+    public static final int FIELD_TOTAL = 2;
+    public static final int FIELD_SUCCESS = 3;
+    public static final int FIELD_FAILED = 4;
+    public static final int FIELD_COST = 5;
+    public static final int FIELD_MIN_COST = 6;
+    public static final int FIELD_MAX_COST = 7;
+    public static final int FIELD_P50 = 8;
+    public static final int FIELD_P90 = 9;
+    public static final int FIELD_P99 = 10;
+    public static final int FIELD_P999 = 11;
+
+    // -- 线程资源使用的累计值,没有记录时为-1 --
+
+    public static final int FIELD_CPU_NANOS = 12;
+    public static final int FIELD_ALLOCATED_BYTES = 13;
+    public static final int FIELD_BLOCKED_MILLIS = 14;
+    public static final int FIELD_WAITED_MILLIS = 15;
+
+    /**
+     * 每一行的字段数
+     */
+    public static final int FIELDS = 16;
+
+    // 移动平均的窗口(秒)
+    private static final double[] EWMA_WINDOWS = {60d, 300d, 900d};
+
+    // 类名
+    public final String className;
+
+    // 方法名
+    public final String methodName;
+
+    // 方法描述
+    public final String methodDesc;
+
+    // 环
+    private final long[] ring;
+
+    // 最多保留的行数
+    private final int capacity;
+
+    // 下一行写入的位置
+    private int next;
+
+    // 当前保留的行数
+    private int size;
+
+    // 调用速率(次/秒)的移动平均
+    private final double[] ewmaRates = new double[EWMA_WINDOWS.length];
+
+    /**
+     * 监控历史构建器
+     *
+     * @param className  类名
+     * @param methodName 方法名
+     * @param methodDesc 方法描述
+     * @param capacity   最多保留的周期数
+     */
+    public MonitorHistory(String className, String methodName, String methodDesc, int capacity) {
+        this.className = className;
+        this.methodName = methodName;
+        this.methodDesc = methodDesc;
+        this.capacity = Math.max(1, capacity);
+        this.ring = new long[this.capacity * FIELDS];
+    }
+
+    /**
+     * 追加一个周期
+     *
+     * @param row 周期数据,按FIELD_*排列
+     */
+    public synchronized void append(long[] row) {
+
+        System.arraycopy(row, 0, ring, next * FIELDS, FIELDS);
+        next = (next + 1) % capacity;
+        size = Math.min(size + 1, capacity);
+
+        final double seconds = row[FIELD_CYCLE_MILLIS] / 1000d;
+        if (seconds <= 0) {
+            return;
+        }
+        final double rate = row[FIELD_TOTAL] / seconds;
+        for (int index = 0; index < EWMA_WINDOWS.length; index++) {
+            if (size == 1) {
+                ewmaRates[index] = rate;
+            } else {
+                final double alpha = 1d - Math.exp(-seconds / EWMA_WINDOWS[index]);
+                ewmaRates[index] += alpha * (rate - ewmaRates[index]);
+            }
+        }
+    }
+
+    /**
+     * 获取最近的若干个周期
+     *
+     * @param limit 最多返回的周期数,不大于0时返回全部
+     * @return 周期数据,从老到新排列
+     */
+    public synchronized long[][] rows(int limit) {
+        final int count = limit > 0 ? Math.min(limit, size) : size;
+        final long[][] rows = new long[count][FIELDS];
+        for (int index = 0; index < count; index++) {
+            final int position = (next - count + index + capacity) % capacity;
+            System.arraycopy(ring, position * FIELDS, rows[index], 0, FIELDS);
+        }
+        return rows;
+    }
+
+    /**
+     * 获取调用速率的1/5/15分钟移动平均
+     *
+     * @return 次/秒
+     */
+    public synchronized double[] getEwmaRates() {
+        return ewmaRates.clone();
+    }
+
+}
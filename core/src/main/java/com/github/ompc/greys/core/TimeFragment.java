@@ -1,5 +1,7 @@
 package com.github.ompc.greys.core;
 
+import com.github.ompc.greys.core.advisor.ThreadUsage;
+
 import java.util.Date;
 
 /**
@@ -20,12 +22,15 @@ public final class TimeFragment {
     // 记录时间戳
     public final Date gmtCreate;
 
-    // 片段耗时
-    public final long cost;
+    // 片段耗时(毫秒),精确到纳秒
+    public final double cost;
 
     // 片段堆栈
     public final String stack;
 
+    // 线程资源使用,没有记录时为null
+    public final ThreadUsage threadUsage;
+
     /**
      * 时间片段构建器
      *
@@ -33,16 +38,18 @@ public final class TimeFragment {
      * @param processId 时间片段执行过程ID
      * @param advice    时间片段所包含得通知上下文
      * @param gmtCreate 时间片段创建时间
-     * @param cost      时间片段执行耗时
+     * @param cost      时间片段执行耗时(毫秒)
      * @param stack     时间片段触发堆栈
+     * @param threadUsage 时间片段的线程资源使用,没有记录时为null
      */
-    public TimeFragment(int id, int processId, Advice advice, Date gmtCreate, long cost, String stack) {
+    public TimeFragment(int id, int processId, Advice advice, Date gmtCreate, double cost, String stack, ThreadUsage threadUsage) {
         this.id = id;
         this.processId = processId;
         this.advice = advice;
         this.gmtCreate = gmtCreate;
         this.cost = cost;
         this.stack = stack;
+        this.threadUsage = threadUsage;
     }
 
 }
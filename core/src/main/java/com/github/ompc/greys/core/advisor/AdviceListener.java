@@ -6,6 +6,68 @@ package com.github.ompc.greys.core.advisor;
  */
 public interface AdviceListener {
 
+    // -- 监听器所需的通知能力,编织器只会织入声明过的钩子和参数 --
+
+    /**
+     * 前置通知
+     */
+    int CAPABILITY_BEFORE = 1;
+
+    /**
+     * 返回通知
+     */
+    int CAPABILITY_AFTER_RETURNING = 1 << 1;
+
+    /**
+     * 异常通知
+     */
+    int CAPABILITY_AFTER_THROWING = 1 << 2;
+
+    /**
+     * 目标类实例,未声明时通知中的target为null
+     */
+    int CAPABILITY_TARGET = 1 << 3;
+
+    /**
+     * 参数列表,未声明时通知中的args为null
+     */
+    int CAPABILITY_PARAMS = 1 << 4;
+
+    /**
+     * 返回结果,未声明时通知中的returnObject为null
+     */
+    int CAPABILITY_RETURN_OBJECT = 1 << 5;
+
+    /**
+     * 内联计数<br/>
+     * 不织入任何钩子,由织入的代码直接累加调用次数和耗时,参考{@link InlineCounters}。
+     * 声明了内联计数时其他能力都会被忽略
+     */
+    int CAPABILITY_INLINE_COUNTING = 1 << 6;
+
+    /**
+     * 结束通知(返回或异常)
+     */
+    int CAPABILITY_AFTER_FINISHING = CAPABILITY_AFTER_RETURNING | CAPABILITY_AFTER_THROWING;
+
+    /**
+     * 通知中的所有值
+     */
+    int CAPABILITY_ALL_VALUES = CAPABILITY_TARGET | CAPABILITY_PARAMS | CAPABILITY_RETURN_OBJECT;
+
+    /**
+     * 全部能力
+     */
+    int CAPABILITY_ALL = CAPABILITY_BEFORE | CAPABILITY_AFTER_FINISHING | CAPABILITY_ALL_VALUES;
+
+    /**
+     * 获取监听器所需的通知能力<br/>
+     * 由CAPABILITY_*组合而成,在编织时决定织入哪些钩子、加载哪些值
+     *
+     * @return 通知能力
+     */
+    int getCapabilities();
+
     /**
      * 监听器创建<br/>
      * 监听器被注册时触发
@@ -21,54 +83,45 @@ public interface AdviceListener {
     /**
      * 前置通知
      *
-     * @param loader     类加载器
-     * @param className  类名
-     * @param methodName 方法名
-     * @param methodDesc 方法描述
+     * @param method     被织入的方法
      * @param target     目标类实例
      *                   若目标为静态方法,则为null
-     * @param args       参数列表
+     * @param args       参数列表,只在回调期间有效
      * @throws Throwable 通知过程出错
      */
     void before(
-            ClassLoader loader, String className, String methodName, String methodDesc,
-            Object target, Object[] args) throws Throwable;
+            WovenMethod method,
+            Object target, Arguments args) throws Throwable;
 
     /**
      * 返回通知
      *
-     * @param loader       类加载器
-     * @param className    类名
-     * @param methodName   方法名
-     * @param methodDesc   方法描述
+     * @param method       被织入的方法
      * @param target       目标类实例
      *                     若目标为静态方法,则为null
-     * @param args         参数列表
+     * @param args         参数列表,只在回调期间有效
      * @param returnObject 返回结果
      *                     若为无返回值方法(void),则为null
      * @throws Throwable 通知过程出错
      */
     void afterReturning(
-            ClassLoader loader, String className, String methodName, String methodDesc,
-            Object target, Object[] args,
+            WovenMethod method,
+            Object target, Arguments args,
             Object returnObject) throws Throwable;
 
     /**
      * 异常通知
      *
-     * @param loader     类加载器
-     * @param className  类名
-     * @param methodName 方法名
-     * @param methodDesc 方法描述
+     * @param method     被织入的方法
      * @param target     目标类实例
      *                   若目标为静态方法,则为null
-     * @param args       参数列表
+     * @param args       参数列表,只在回调期间有效
      * @param throwable  目标异常
      * @throws Throwable 通知过程出错
      */
     void afterThrowing(
-            ClassLoader loader, String className, String methodName, String methodDesc,
-            Object target, Object[] args,
+            WovenMethod method,
+            Object target, Arguments args,
             Throwable throwable) throws Throwable;
 
 }
@@ -0,0 +1,127 @@
+package com.github.ompc.greys.core.advisor;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 通知采样器<br/>
+ * 在高频调用的方法上只通知被采中的调用,采样决定在Begin的最前面做出,
+ * 没有被采中的调用不会装箱参数、构建通知,也不会执行任何表达式<br/>
+ * 支持两种采样方式,可以同时使用:
+ * <ul>
+ * <li>1-in-N:每个线程每N次调用采中一次,计数器在线程内,无需同步</li>
+ * <li>限速:每秒最多采中R次,超出配额后只需读一次计数即可放弃</li>
+ * </ul>
+ * 对于调用跟踪,一次没有被采中的调用,其内部的方法调用跟踪也会一并被放弃
+ * Created by oldmanpushcart@gmail.com on 15/11/22.
+ */
+public class AdviceSampler {
+
+    // 限速的时间窗口:1秒
+    private static final long WINDOW_NANOS = 1000L * 1000L * 1000L;
+
+    // 1-in-N
+    private final int sample;
+
+    // 每秒最多采中的次数
+    private final int rate;
+
+    // 线程内的计数
+    // [0]:距上次采中的调用次数;[1]:正处于没有被采中的调用中的深度
+    private final ThreadLocal<int[]> countersRef = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[2];
+        }
+    };
+
+    // 当前时间窗口
+    private volatile long window = Long.MIN_VALUE;
+
+    // 当前时间窗口内已采中的次数
+    private final AtomicInteger permits = new AtomicInteger();
+
+    private AdviceSampler(int sample, int rate) {
+        this.sample = sample;
+        this.rate = rate;
+    }
+
+    /**
+     * 构建采样器
+     *
+     * @param sample 1-in-N,为空或不大于1时不按比例采样
+     * @param rate   每秒最多采中的次数,为空或不大于0时不限速
+     * @return 采样器,无需采样时为null
+     */
+    public static AdviceSampler newInstance(Integer sample, Integer rate) {
+        final int s = null == sample ? 1 : sample;
+        final int r = null == rate ? 0 : rate;
+        if (s <= 1 && r <= 0) {
+            return null;
+        }
+        return new AdviceSampler(s, r);
+    }
+
+    /**
+     * 本次调用是否被采中
+     *
+     * @return true:采中 / false:放弃
+     */
+    boolean isSampled() {
+
+        if (sample > 1) {
+            final int[] counters = countersRef.get();
+            if (++counters[0] < sample) {
+                return false;
+            }
+            counters[0] = 0;
+        }
+
+        return rate <= 0
+                || acquirePermit();
+    }
+
+    /*
+     * 在当前时间窗口内申请一次配额
+     */
+    private boolean acquirePermit() {
+
+        final long now = System.nanoTime() / WINDOW_NANOS;
+        if (now != window) {
+            synchronized (this) {
+                if (now != window) {
+                    permits.set(0);
+                    window = now;
+                }
+            }
+        }
+
+        // 配额用完后只读不写,避免所有线程争抢同一个计数器
+        return permits.get() < rate
+                && permits.incrementAndGet() <= rate;
+    }
+
+    /*
+     * 进入一次没有被采中的调用
+     */
+    void mute() {
+        countersRef.get()[1]++;
+    }
+
+    /*
+     * 离开一次没有被采中的调用
+     */
+    void unMute() {
+        final int[] counters = countersRef.get();
+        if (counters[1] > 0) {
+            counters[1]--;
+        }
+    }
+
+    /*
+     * 当前线程是否处于没有被采中的调用中
+     */
+    boolean isMuted() {
+        return countersRef.get()[1] > 0;
+    }
+
+}
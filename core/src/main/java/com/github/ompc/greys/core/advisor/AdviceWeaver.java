@@ -4,10 +4,8 @@ import com.github.ompc.greys.core.util.AsmCodeLock;
 import com.github.ompc.greys.core.util.CodeLock;
 import com.github.ompc.greys.core.util.LogUtil;
 import com.github.ompc.greys.core.util.Matcher;
+import com.github.ompc.greys.core.util.StripedAdder;
 import com.github.ompc.greys.core.util.affect.EnhancerAffect;
-import com.github.ompc.greys.core.util.collection.GaStack;
-import com.github.ompc.greys.core.util.collection.ThreadUnsafeFixGaStack;
-import com.github.ompc.greys.core.util.collection.ThreadUnsafeGaStack;
 import org.apache.commons.lang3.StringUtils;
 import org.objectweb.asm.*;
 import org.objectweb.asm.commons.AdviceAdapter;
@@ -15,13 +13,23 @@ import org.objectweb.asm.commons.JSRInlinerAdapter;
 import org.objectweb.asm.commons.Method;
 import org.slf4j.Logger;
 
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import static com.github.ompc.greys.core.GlobalOptions.isDebugForAsm;
+import static com.github.ompc.greys.core.GlobalOptions.isInvokeDynamic;
+import static com.github.ompc.greys.core.advisor.AdviceListener.*;
 import static com.github.ompc.greys.core.util.GaCheckUtils.isEquals;
-import static com.github.ompc.greys.core.util.GaStringUtils.tranClassName;
-import static java.lang.Thread.currentThread;
+import static java.lang.String.format;
+import static java.lang.System.arraycopy;
+import static org.apache.commons.lang3.reflect.FieldUtils.getField;
 
 
 /**
@@ -45,8 +53,21 @@ class TracingAsmCodeLock extends AsmCodeLock {
 /**
  * 通知编织者<br/>
  * <p/>
- * <h2>线程帧栈与执行帧栈</h2>
- * 编织者在执行通知的时候有两个重要的栈:线程帧栈(threadFrameStack),执行帧栈(frameStack)
+ * <h2>执行帧</h2>
+ * 每次方法调用开始时由{@link #methodOnBegin(int, int, Object, Object[])}创建一个执行帧,
+ * 保护通知器、方法、目标对象和参数等执行现场。执行帧由织入的代码保存在方法的本地变量中,
+ * 方法结束时再交还给{@link #methodOnReturnEnd(Object, Object)}或{@link #methodOnThrowingEnd(Throwable, Object)},
+ * 所以不需要再按线程维护一个帧栈
+ * <p/>
+ * <h2>参数槽位</h2>
+ * 通过invokedynamic链接的类,织入的代码会先通过{@link #methodOnCapture(int)}申请一个线程内复用的参数槽位,
+ * 原始类型参数按位写入long[],引用类型参数直接写入槽位,再把槽位当作参数交给Begin。
+ * 参数只有在被读取时才会装箱,参考{@link Arguments}
+ * <p/>
+ * <h2>耗时</h2>
+ * 方法耗时由编织者统一用{@link System#nanoTime()}测量:前置通知完成后开始计时,结束通知开始前停止计时,
+ * 所以通知自身的开销不会计入。同一线程上通知自身的开销会被累计下来,嵌套方法上的通知开销也会从外层方法的耗时中扣除。
+ * 结束通知中可以通过{@link #getCostNanos()}获取,通知自身的开销按会话单独汇总,参考{@link #sumOverheadThenReset(int)}
  * <p/>
  * Created by oldmanpushcart@gmail.com on 15/5/17.
  */
@@ -54,72 +75,233 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
 
     private final static Logger logger = LogUtil.getLogger();
 
-    // 线程帧栈堆栈大小
-    private final static int FRAME_STACK_SIZE = 7;
+    // 当前JVM是否支持invokedynamic(JDK7+)
+    private final static boolean IS_JVM_SUPPORT_INVOKE_DYNAMIC = isClassExist("java.lang.invoke.MethodHandle");
 
     // 通知监听器集合
-    private final static Map<Integer/*ADVICE_ID*/, AdviceListener> advices
-            = new ConcurrentHashMap<Integer, AdviceListener>();
+    private final static Map<Integer/*ADVICE_ID*/, Registration> advices
+            = new ConcurrentHashMap<Integer, Registration>();
+
+    // 会话锁与织入通知ID的绑定关系
+    // 会话锁每执行一条命令都会变化,织入代码中的通知ID由探针分配
+    private final static Map<Integer/*LOCK*/, Integer/*ADVICE_ID*/> bindings
+            = new ConcurrentHashMap<Integer, Integer>();
+
+    // 通知ID中开关下标所占的位数
+    private static final int ADVICE_INDEX_BITS = 16;
+    private static final int ADVICE_INDEX_MASK = (1 << ADVICE_INDEX_BITS) - 1;
+
+    // 开关下标的分配代数,同一个下标每被重新分配一次代数加一
+    private static final int ADVICE_GENERATION_MASK = (1 << (31 - ADVICE_INDEX_BITS)) - 1;
+
+    // 通知开关,下标为通知ID的低位
+    // 写时复制,每次变化都生成新数组并发布到所有的间谍中
+    private static volatile boolean[] adviceSwitches = new boolean[0];
+
+    // 回收的通知ID,通知ID由探针独立分配,与会话锁无关,开关数组只会增长到同时存在的探针个数
+    // 重新分配时开关下标不变、代数加一,回收之前已经进入的旧代码仍然传递旧的通知ID,
+    // 开关虽然是打开的,但按旧的通知ID找不到任何监听器,不会通知到新的会话
+    private static final Deque<Integer> freeAdviceIds = new ArrayDeque<Integer>();
 
-    // 线程帧封装
-    private static final Map<Thread, GaStack<GaStack<Object>>> threadBoundContexts
-            = new ConcurrentHashMap<Thread, GaStack<GaStack<Object>>>();
+    // 探针已经回收,但仍被会话占用的通知ID,会话注销后再回收
+    private static final Set<Integer> retiredAdviceIds = new HashSet<Integer>();
 
-    // 防止自己递归调用
-    private static final ThreadLocal<Boolean> isSelfCallRef = new ThreadLocal<Boolean>() {
+    // 下一个未分配过的开关下标
+    private static int nextAdviceIndex = 0;
+
+    // 已经派遣出去的间谍
+    private final static Set<Class<?>> spyClasses
+            = Collections.newSetFromMap(new WeakHashMap<Class<?>, Boolean>());
+
+    // 线程现场
+    // 防重入标记和参数槽位放在一起,每次通知只需要一次ThreadLocal.get()
+    private static final ThreadLocal<ThreadState> threadStateRef = new ThreadLocal<ThreadState>() {
 
         @Override
-        protected Boolean initialValue() {
-            return false;
+        protected ThreadState initialValue() {
+            return new ThreadState();
         }
 
     };
 
+    /**
+     * 线程现场
+     */
+    private static class ThreadState {
+
+        // 防止自己递归调用
+        private boolean isSelfCall;
+
+        // 参数槽位
+        private final ArgumentSlots slots = new ArgumentSlots();
+
+        // 当前线程上通知自身累计的开销(纳秒)
+        private long overheadNanos;
+
+        // 正在结束的方法耗时(纳秒),只在结束通知期间有效
+        private long costNanos = -1;
+
+    }
+
+    /**
+     * 注册的监听器
+     */
+    private static class Registration {
+
+        private final AdviceListener listener;
+
+        // 采样器,不采样时为null
+        private final AdviceSampler sampler;
+
+        // 通知自身的开销,[调用次数, 开销纳秒]
+        private final StripedAdder overhead = new StripedAdder(2);
+
+        private Registration(AdviceListener listener, AdviceSampler sampler) {
+            this.listener = listener;
+            this.sampler = sampler;
+        }
+
+        /*
+         * 记录一次调用的通知开销
+         */
+        private void overhead(long nanos) {
+            overhead.add(0, 1);
+            overhead.add(1, nanos);
+        }
+
+    }
+
+    /**
+     * 执行帧<br/>
+     * 保护Begin时的执行现场,对织入的代码而言只是一个不透明的对象
+     */
+    private static class Frame {
+
+        private final Registration registration;
+        private final AdviceListener listener;
+        private final WovenMethod method;
+        private final Object target;
+        private final Arguments args;
+
+        // 参数槽位所在的深度,没有使用参数槽位时为-1
+        private final int slotsDepth;
+
+        // 前置通知完成的时间
+        private long startNanos;
+
+        // 前置通知完成时线程上累计的通知开销
+        private long startOverheadNanos;
+
+        // 前置通知的开销
+        private long beforeOverheadNanos;
+
+        private Frame(Registration registration, WovenMethod method, Object target, Arguments args, int slotsDepth) {
+            this.registration = registration;
+            this.listener = registration.listener;
+            this.method = method;
+            this.target = target;
+            this.args = args;
+            this.slotsDepth = slotsDepth;
+        }
+
+    }
+
+
+    /**
+     * 申请参数槽位<br/>
+     * 用于编织通知器,外部不会直接调用
+     *
+     * @param size 参数个数
+     * @return 参数槽位,[0]为原始类型参数的long[],[1+i]为第i个引用类型参数
+     */
+    public static Object[] methodOnCapture(int size) {
+        return threadStateRef.get().slots.acquire(size);
+    }
 
     /**
      * 方法开始<br/>
      * 用于编织通知器,外部不会直接调用
      *
-     * @param loader     类加载器
-     * @param adviceId   通知ID
-     * @param className  类名
-     * @param methodName 方法名
-     * @param methodDesc 方法描述
-     * @param target     返回结果
-     *                   若为无返回值方法(void),则为null
-     * @param args       参数列表
-     */
-    public static void methodOnBegin(
-            int adviceId,
-            ClassLoader loader, String className, String methodName, String methodDesc,
+     * @param adviceId 通知ID
+     * @param methodId 方法ID,编织时由{@link MethodRegistry}分配
+     * @param target   目标类实例
+     *                 若目标为静态方法,则为null
+     * @param args     参数列表,或{@link #methodOnCapture(int)}申请的参数槽位
+     * @return 执行帧,由织入的代码保存并在方法结束时交还;若无需通知则为null
+     */
+    public static Object methodOnBegin(
+            int adviceId, int methodId,
             Object target, Object[] args) {
 
-        if (isSelfCallRef.get()) {
-            return;
-        } else {
-            isSelfCallRef.set(true);
+        final long enterNanos = System.nanoTime();
+        final ThreadState state = threadStateRef.get();
+        final int slotsDepth = state.slots.claim(args);
+
+        final Registration registration = advices.get(adviceId);
+        if (null == registration
+                || state.isSelfCall) {
+            state.slots.release(slotsDepth);
+            return null;
+        }
+
+        // 恢复之前已经进入的旧版本方法传递的是旧的方法ID,下标可能已经分配给了其他方法
+        final WovenMethod method = MethodRegistry.get(methodId);
+        if (null == method) {
+            state.slots.release(slotsDepth);
+            return null;
         }
 
+        // 采样,没有被采中的调用到此为止
+        final AdviceListener listener = registration.listener;
+        final AdviceSampler sampler = registration.sampler;
+        final boolean isFinishing = (listener.getCapabilities() & CAPABILITY_AFTER_FINISHING) != 0;
+        if (null != sampler
+                && !isSampled(sampler, listener, isFinishing)) {
+            state.slots.release(slotsDepth);
+
+            // 调用跟踪需要在方法结束前放弃内部的跟踪,采样器本身作为执行帧交还给End
+            if (listener instanceof InvokeTraceable
+                    && isFinishing) {
+                sampler.mute();
+                return sampler;
+            }
+            return null;
+        }
+
+        state.isSelfCall = true;
         try {
-            // 构建执行帧栈,保护当前的执行现场
-            final GaStack<Object> frameStack = new ThreadUnsafeFixGaStack<Object>(FRAME_STACK_SIZE);
-            frameStack.push(loader);
-            frameStack.push(className);
-            frameStack.push(methodName);
-            frameStack.push(methodDesc);
-            frameStack.push(target);
-            frameStack.push(args);
-
-            final AdviceListener listener = getListener(adviceId);
-            frameStack.push(listener);
-
-            // 获取通知器并做前置通知
-            before(listener, loader, className, methodName, methodDesc, target, args);
-
-            // 保护当前执行帧栈,压入线程帧栈
-            threadFrameStackPush(frameStack);
+            final Arguments arguments = slotsDepth < 0
+                    ? new Arguments(method, args, null)
+                    : new Arguments(method, null, args);
+
+            // 构建执行帧,保护当前的执行现场
+            // 没有结束通知时织入的代码会直接丢弃执行帧,参数槽位需要在这里归还
+            final Frame frame = new Frame(registration, method, target, arguments, isFinishing ? slotsDepth : -1);
+
+            // 前置通知
+            try {
+                before(listener, method, target, arguments);
+            } finally {
+                if (!isFinishing) {
+                    arguments.expire();
+                    state.slots.release(slotsDepth);
+                }
+            }
+
+            // 尽量靠近原方法的开始计时
+            final long startNanos = System.nanoTime();
+            final long overheadNanos = startNanos - enterNanos;
+            state.overheadNanos += overheadNanos;
+            if (isFinishing) {
+                frame.startNanos = startNanos;
+                frame.startOverheadNanos = state.overheadNanos;
+                frame.beforeOverheadNanos = overheadNanos;
+            } else {
+                registration.overhead(overheadNanos);
+            }
+            return frame;
         } finally {
-            isSelfCallRef.set(false);
+            state.isSelfCall = false;
         }
 
     }
@@ -131,9 +313,10 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
      *
      * @param returnObject 返回对象
      *                     若目标为静态方法,则为null
+     * @param frame        Begin时返回的执行帧
      */
-    public static void methodOnReturnEnd(Object returnObject) {
-        methodOnEnd(false, returnObject);
+    public static void methodOnReturnEnd(Object returnObject, Object frame) {
+        methodOnEnd(false, returnObject, frame);
     }
 
     /**
@@ -141,9 +324,10 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
      * 用于编织通知器,外部不会直接调用
      *
      * @param throwable 抛出异常
+     * @param frame     Begin时返回的执行帧
      */
-    public static void methodOnThrowingEnd(Throwable throwable) {
-        methodOnEnd(true, throwable);
+    public static void methodOnThrowingEnd(Throwable throwable, Object frame) {
+        methodOnEnd(true, throwable, frame);
     }
 
     /**
@@ -151,58 +335,163 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
      *
      * @param isThrowing        标记正常返回结束还是抛出异常结束
      * @param returnOrThrowable 正常返回或者抛出异常对象
+     * @param frameObject       Begin时返回的执行帧
      */
-    private static void methodOnEnd(boolean isThrowing, Object returnOrThrowable) {
+    private static void methodOnEnd(boolean isThrowing, Object returnOrThrowable, Object frameObject) {
+
+        // 尽量靠近原方法的结束停止计时
+        final long endNanos = System.nanoTime();
+
+        // Begin时没有建立执行帧,说明无需通知
+        if (null == frameObject) {
+            return;
+        }
 
-        if (isSelfCallRef.get()) {
+        // 没有被采中的调用
+        if (frameObject instanceof AdviceSampler) {
+            ((AdviceSampler) frameObject).unMute();
+            return;
+        }
+
+        // 恢复Begin所保护的现场
+        final Frame frame = (Frame) frameObject;
+
+        final ThreadState state = threadStateRef.get();
+        if (state.isSelfCall) {
+            releaseSlots(state, frame);
             return;
         } else {
-            isSelfCallRef.set(true);
+            state.isSelfCall = true;
         }
 
+        // 扣除方法执行期间嵌套方法上的通知开销
+        state.costNanos = Math.max(0, endNanos - frame.startNanos - (state.overheadNanos - frame.startOverheadNanos));
+
         try {
-            // 弹射线程帧栈,恢复Begin所保护的执行帧栈
-            final GaStack<Object> frameStack = threadFrameStackPop();
-
-            // 弹射执行帧栈,恢复Begin所保护的现场
-            final AdviceListener listener = (AdviceListener) frameStack.pop();
-            final Object[] args = (Object[]) frameStack.pop();
-            final Object target = frameStack.pop();
-            final String methodDesc = (String) frameStack.pop();
-            final String methodName = (String) frameStack.pop();
-            final String className = (String) frameStack.pop();
-            final ClassLoader loader = (ClassLoader) frameStack.pop();
 
             // 异常通知
             if (isThrowing) {
-                afterThrowing(listener, loader, className, methodName, methodDesc, target, args, (Throwable) returnOrThrowable);
+                afterThrowing(frame.listener, frame.method, frame.target, frame.args, (Throwable) returnOrThrowable);
             }
 
             // 返回通知
             else {
-                afterReturning(listener, loader, className, methodName, methodDesc, target, args, returnOrThrowable);
+                afterReturning(frame.listener, frame.method, frame.target, frame.args, returnOrThrowable);
             }
         } finally {
-            isSelfCallRef.set(false);
+            releaseSlots(state, frame);
+            state.costNanos = -1;
+            state.isSelfCall = false;
+
+            final long afterOverheadNanos = System.nanoTime() - endNanos;
+            state.overheadNanos += afterOverheadNanos;
+            frame.registration.overhead(frame.beforeOverheadNanos + afterOverheadNanos);
         }
 
     }
 
+    /**
+     * 获取当前线程正在结束的方法耗时<br/>
+     * 只在结束通知中有效,从前置通知完成开始,到结束通知开始为止,并且扣除了期间嵌套方法上的通知开销
+     *
+     * @return 耗时(纳秒),不在结束通知中时为-1
+     */
+    public static long getCostNanos() {
+        return threadStateRef.get().costNanos;
+    }
+
+    /**
+     * 在当前线程上回放前置通知<br/>
+     * 用于异步处理通知的线程,回放期间视为通知自身的调用,监听器里调用到的被增强方法不会再触发通知
+     *
+     * @param listener 通知监听器
+     * @param method   被织入的方法
+     * @param target   目标类实例
+     * @param args     参数列表
+     */
+    static void replayBefore(AdviceListener listener,
+                             WovenMethod method,
+                             Object target, Arguments args) {
+        final ThreadState state = threadStateRef.get();
+        state.isSelfCall = true;
+        try {
+            before(listener, method, target, args);
+        } finally {
+            state.isSelfCall = false;
+        }
+    }
+
+    /**
+     * 在当前线程上回放结束通知<br/>
+     * 回放期间{@link #getCostNanos()}返回在业务线程上测得的耗时
+     *
+     * @param listener          通知监听器
+     * @param isThrowing        标记正常返回结束还是抛出异常结束
+     * @param method            被织入的方法
+     * @param target            目标类实例
+     * @param args              参数列表
+     * @param returnOrThrowable 正常返回或者抛出异常对象
+     * @param costNanos         业务线程上测得的耗时(纳秒)
+     */
+    static void replayAfter(AdviceListener listener, boolean isThrowing,
+                            WovenMethod method,
+                            Object target, Arguments args,
+                            Object returnOrThrowable, long costNanos) {
+        final ThreadState state = threadStateRef.get();
+        state.isSelfCall = true;
+        state.costNanos = costNanos;
+        try {
+            if (isThrowing) {
+                afterThrowing(listener, method, target, args, (Throwable) returnOrThrowable);
+            } else {
+                afterReturning(listener, method, target, args, returnOrThrowable);
+            }
+        } finally {
+            state.costNanos = -1;
+            state.isSelfCall = false;
+        }
+    }
+
+    /**
+     * 汇总会话上通知自身的开销,并清零<br/>
+     * 开销包括前置通知和结束通知(含监听器)的执行时间,但不包括织入代码本身的几条指令
+     *
+     * @param lock 会话锁
+     * @return [调用次数, 开销纳秒],会话没有注册监听器时为null
+     */
+    public static long[] sumOverheadThenReset(int lock) {
+        final Registration registration = advices.get(toAdviceId(lock));
+        return null == registration
+                ? null
+                : registration.overhead.sumThenReset();
+    }
+
+    /*
+     * 方法结束,归还参数槽位
+     */
+    private static void releaseSlots(ThreadState state, Frame frame) {
+        if (frame.slotsDepth >= 0) {
+            frame.args.expire();
+            state.slots.release(frame.slotsDepth);
+        }
+    }
+
     /**
      * 方法内部调用开始
      *
-     * @param adviceId 通知ID
-     * @param owner    调用类名
-     * @param name     调用方法名
-     * @param desc     调用方法描述
+     * @param adviceId     通知ID
+     * @param invokeSiteId 调用点ID
      */
-    public static void methodOnInvokeBeforeTracing(int adviceId, String owner, String name, String desc) {
-        final InvokeTraceable listener = (InvokeTraceable) getListener(adviceId);
+    public static void methodOnInvokeBeforeTracing(int adviceId, int invokeSiteId) {
+        final InvokeTraceable listener = (InvokeTraceable) getTracingListener(adviceId);
         if (null != listener) {
+            final long enterNanos = System.nanoTime();
             try {
-                listener.invokeBeforeTracing(owner, name, desc);
+                listener.invokeBeforeTracing(InvokeSiteRegistry.get(invokeSiteId));
             } catch (Throwable t) {
                 logger.warn("advice before tracing failed.", t);
+            } finally {
+                threadStateRef.get().overheadNanos += System.nanoTime() - enterNanos;
             }
         }
     }
@@ -210,84 +499,276 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
     /**
      * 方法内部调用结束(正常返回)
      *
-     * @param adviceId 通知ID
-     * @param owner    调用类名
-     * @param name     调用方法名
-     * @param desc     调用方法描述
+     * @param adviceId     通知ID
+     * @param invokeSiteId 调用点ID
      */
-    public static void methodOnInvokeAfterTracing(int adviceId, String owner, String name, String desc) {
-        final InvokeTraceable listener = (InvokeTraceable) getListener(adviceId);
+    public static void methodOnInvokeAfterTracing(int adviceId, int invokeSiteId) {
+        final InvokeTraceable listener = (InvokeTraceable) getTracingListener(adviceId);
         if (null != listener) {
+            final long enterNanos = System.nanoTime();
             try {
-                listener.invokeAfterTracing(owner, name, desc);
+                listener.invokeAfterTracing(InvokeSiteRegistry.get(invokeSiteId));
             } catch (Throwable t) {
                 logger.warn("advice after tracing failed.", t);
+            } finally {
+                threadStateRef.get().overheadNanos += System.nanoTime() - enterNanos;
             }
         }
     }
 
 
     /*
-     * 线程帧栈压栈<br/>
-     * 将当前执行帧栈压入线程栈
+     * 调用跟踪的监听器,处于没有被采中的调用中时为null
+     */
+    private static AdviceListener getTracingListener(int adviceId) {
+        final Registration registration = advices.get(adviceId);
+        if (null == registration
+                || (null != registration.sampler && registration.sampler.isMuted())) {
+            return null;
+        }
+        return registration.listener;
+    }
+
+    /*
+     * 调用跟踪时,没有被采中的调用内部的调用也不再采样
      */
-    private static void threadFrameStackPush(GaStack<Object> frameStack) {
-        final Thread thread = currentThread();
-        GaStack<GaStack<Object>> threadFrameStack = threadBoundContexts.get(thread);
-        if (null == threadFrameStack) {
-            threadBoundContexts.put(thread, threadFrameStack = new ThreadUnsafeGaStack<GaStack<Object>>());
+    private static boolean isSampled(AdviceSampler sampler, AdviceListener listener, boolean isFinishing) {
+        if (listener instanceof InvokeTraceable
+                && isFinishing
+                && sampler.isMuted()) {
+            return false;
         }
-        threadFrameStack.push(frameStack);
+        return sampler.isSampled();
     }
 
-    private static GaStack<Object> threadFrameStackPop() {
-        return threadBoundContexts.get(currentThread()).pop();
+    private static boolean isClassExist(String className) {
+        try {
+            Class.forName(className);
+            return true;
+        } catch (ClassNotFoundException cnfe) {
+            return false;
+        }
     }
 
-    private static AdviceListener getListener(int adviceId) {
-        return advices.get(adviceId);
+    /**
+     * 当前JVM是否支持invokedynamic
+     *
+     * @return true:支持(JDK7+) / false:不支持
+     */
+    public static boolean isJvmSupportInvokeDynamic() {
+        return IS_JVM_SUPPORT_INVOKE_DYNAMIC;
     }
 
 
     /**
      * 注册监听器
      *
-     * @param adviceId 通知ID
+     * @param lock     会话锁
+     * @param listener 通知监听器
+     */
+    public static void reg(int lock, AdviceListener listener) {
+        reg(lock, listener, null);
+    }
+
+    /**
+     * 注册监听器
+     *
+     * @param lock     会话锁
      * @param listener 通知监听器
+     * @param sampler  采样器,为null时通知所有的调用
      */
-    public static void reg(int adviceId, AdviceListener listener) {
+    public static void reg(int lock, AdviceListener listener, AdviceSampler sampler) {
+
+        final int adviceId = toAdviceId(lock);
+        if (adviceId < 0) {
+            throw new IllegalStateException(format("lock[%d] is not bound to any probe.", lock));
+        }
 
         // 触发监听器创建
         listener.create();
 
         // 注册监听器
-        advices.put(adviceId, listener);
+        advices.put(adviceId, new Registration(listener, sampler));
+
+        // 打开通知开关
+        switchAdvice(adviceId, true);
     }
 
     /**
-     * 注销监听器
+     * 注销监听器<br/>
+     * 织入的代码仍然保留,只是关闭了通知开关
      *
-     * @param adviceId 通知ID
+     * @param lock 会话锁
      */
-    public static void unReg(int adviceId) {
+    public static void unReg(int lock) {
+
+        final Integer adviceId = bindings.remove(lock);
+        if (null == adviceId) {
+            return;
+        }
+
+        // 关闭通知开关
+        switchAdvice(adviceId, false);
 
         // 注销监听器
-        final AdviceListener listener = advices.remove(adviceId);
+        final Registration registration = advices.remove(adviceId);
+
+        // 探针已经在会话占用期间被回收
+        synchronized (freeAdviceIds) {
+            if (retiredAdviceIds.remove(adviceId)) {
+                freeAdviceIds.push(adviceId);
+            }
+        }
 
         // 触发监听器销毁
-        if (null != listener) {
-            listener.destroy();
+        if (null != registration) {
+            registration.listener.destroy();
+        }
+
+    }
+
+    /**
+     * 为新的探针分配通知ID<br/>
+     * 优先复用已经回收的开关下标,复用时代数加一
+     *
+     * @return 通知ID
+     */
+    static int allocateAdviceId() {
+        synchronized (freeAdviceIds) {
+            if (!freeAdviceIds.isEmpty()) {
+                final int freeAdviceId = freeAdviceIds.pop();
+                final int generation = ((freeAdviceId >>> ADVICE_INDEX_BITS) + 1) & ADVICE_GENERATION_MASK;
+                return (generation << ADVICE_INDEX_BITS) | toAdviceIndex(freeAdviceId);
+            }
+            if (nextAdviceIndex > ADVICE_INDEX_MASK) {
+                throw new IllegalStateException("too many probes, limit=" + (ADVICE_INDEX_MASK + 1));
+            }
+            return nextAdviceIndex++;
         }
+    }
+
+    /*
+     * 通知ID对应的开关下标
+     */
+    static int toAdviceIndex(int adviceId) {
+        return adviceId & ADVICE_INDEX_MASK;
+    }
 
+    /**
+     * 回收探针的通知ID<br/>
+     * 仍被会话占用时,等到会话注销后再回收
+     *
+     * @param adviceId 通知ID
+     */
+    static void retireAdviceId(int adviceId) {
+        synchronized (freeAdviceIds) {
+            if (isBound(adviceId)) {
+                retiredAdviceIds.add(adviceId);
+            } else {
+                freeAdviceIds.push(adviceId);
+            }
+        }
+    }
+
+    /**
+     * 将会话锁绑定到织入的通知ID上
+     *
+     * @param lock     会话锁
+     * @param adviceId 织入的通知ID
+     */
+    static void bind(int lock, int adviceId) {
+        bindings.put(lock, adviceId);
+    }
+
+    /**
+     * 织入的通知ID是否已经被会话所占用
+     *
+     * @param adviceId 织入的通知ID
+     * @return true:已被占用 / false:空闲
+     */
+    static boolean isBound(int adviceId) {
+        return bindings.containsValue(adviceId)
+                || advices.containsKey(adviceId);
+    }
+
+    /*
+     * 会话锁绑定的通知ID,没有绑定时为-1
+     */
+    static int toAdviceId(int lock) {
+        final Integer adviceId = bindings.get(lock);
+        return null == adviceId ? -1 : adviceId;
+    }
+
+    /**
+     * 登记间谍<br/>
+     * 间谍会立即收到当前的通知开关,后续开关变化时也会同步更新
+     *
+     * @param spyClass 间谍类
+     */
+    static synchronized void attachSpy(Class<?> spyClass) {
+        if (spyClasses.add(spyClass)) {
+            publishAdviceSwitches(spyClass, adviceSwitches);
+            publishInlineCounters(spyClass, InlineCounters.getCounters());
+        }
+    }
+
+    /**
+     * 发布扩容后的内联计数器到所有的间谍中
+     *
+     * @param counters 内联计数器
+     */
+    static synchronized void publishInlineCounters(AtomicLongArray[] counters) {
+        for (Class<?> spyClass : spyClasses) {
+            publishInlineCounters(spyClass, counters);
+        }
+    }
+
+    private static void publishInlineCounters(Class<?> spyClass, AtomicLongArray[] counters) {
+        try {
+            getField(spyClass, "INLINE_COUNTERS").set(null, counters);
+        } catch (Throwable t) {
+            logger.warn("publish inline counters to {} failed.", spyClass, t);
+        }
+    }
+
+    /*
+     * 设置通知开关
+     */
+    private static synchronized void switchAdvice(int adviceId, boolean isOn) {
+
+        final int index = toAdviceIndex(adviceId);
+        final boolean[] current = adviceSwitches;
+        if (index < current.length
+                && current[index] == isOn) {
+            return;
+        }
+
+        final boolean[] switches = new boolean[Math.max(current.length, index + 1)];
+        arraycopy(current, 0, switches, 0, current.length);
+        switches[index] = isOn;
+        adviceSwitches = switches;
+
+        for (Class<?> spyClass : spyClasses) {
+            publishAdviceSwitches(spyClass, switches);
+        }
+
+    }
+
+    private static void publishAdviceSwitches(Class<?> spyClass, boolean[] switches) {
+        try {
+            getField(spyClass, "ADVICE_SWITCHES").set(null, switches);
+        } catch (Throwable t) {
+            logger.warn("publish advice switches to {} failed.", spyClass, t);
+        }
     }
 
     private static void before(AdviceListener listener,
-                               ClassLoader loader, String className, String methodName, String methodDesc,
-                               Object target, Object[] args) {
+                               WovenMethod method,
+                               Object target, Arguments args) {
 
         if (null != listener) {
             try {
-                listener.before(loader, className, methodName, methodDesc, target, args);
+                listener.before(method, target, args);
             } catch (Throwable t) {
                 logger.warn("advice before failed.", t);
             }
@@ -296,11 +777,11 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
     }
 
     private static void afterReturning(AdviceListener listener,
-                                       ClassLoader loader, String className, String methodName, String methodDesc,
-                                       Object target, Object[] args, Object returnObject) {
+                                       WovenMethod method,
+                                       Object target, Arguments args, Object returnObject) {
         if (null != listener) {
             try {
-                listener.afterReturning(loader, className, methodName, methodDesc, target, args, returnObject);
+                listener.afterReturning(method, target, args, returnObject);
             } catch (Throwable t) {
                 logger.warn("advice returning failed.", t);
             }
@@ -308,11 +789,11 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
     }
 
     private static void afterThrowing(AdviceListener listener,
-                                      ClassLoader loader, String className, String methodName, String methodDesc,
-                                      Object target, Object[] args, Throwable throwable) {
+                                      WovenMethod method,
+                                      Object target, Arguments args, Throwable throwable) {
         if (null != listener) {
             try {
-                listener.afterThrowing(loader, className, methodName, methodDesc, target, args, throwable);
+                listener.afterThrowing(method, target, args, throwable);
             } catch (Throwable t) {
                 logger.warn("advice throwing failed.", t);
             }
@@ -322,31 +803,87 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
 
     private final int adviceId;
     private final boolean isTracing;
-    private final String className;
+    private final InvokeSiteFilter invokeSiteFilter;
+    private final LoweredCondition condition;
+    private final int capabilities;
+    private final Class<?> targetClass;
     private final Matcher matcher;
     private final EnhancerAffect affect;
 
+    // 是否通过invokedynamic链接通知,在visit()时根据类版本决定
+    private boolean isLinkByInvokeDynamic;
+
 
     /**
      * 构建通知编织器
      *
-     * @param adviceId  通知ID
-     * @param isTracing 可跟踪方法调用
-     * @param className 类名称
-     * @param matcher   方法匹配
-     *                  只有匹配上的方法才会被织入通知器
-     * @param affect    影响计数
-     * @param cv        ClassVisitor for ASM
-     */
-    public AdviceWeaver(int adviceId, boolean isTracing, String className, Matcher matcher, EnhancerAffect affect, ClassVisitor cv) {
+     * @param adviceId     通知ID
+     * @param invokeSiteFilter 调用点过滤器,为null时不跟踪方法调用
+     * @param condition    下沉到方法入口的条件,为null时不过滤
+     * @param capabilities 监听器所需的通知能力,参考{@link AdviceListener#getCapabilities()}
+     * @param targetClass  被编织的类
+     * @param matcher     方法匹配
+     *                    只有匹配上的方法才会被织入通知器
+     * @param affect      影响计数
+     * @param cv          ClassVisitor for ASM
+     */
+    public AdviceWeaver(int adviceId, InvokeSiteFilter invokeSiteFilter, LoweredCondition condition, int capabilities, Class<?> targetClass, Matcher matcher, EnhancerAffect affect, ClassVisitor cv) {
         super(ASM5, cv);
         this.adviceId = adviceId;
-        this.isTracing = isTracing;
-        this.className = className;
+        this.isTracing = null != invokeSiteFilter;
+        this.invokeSiteFilter = invokeSiteFilter;
+        this.condition = condition;
+        this.capabilities = capabilities;
+        this.targetClass = targetClass;
         this.matcher = matcher;
         this.affect = affect;
     }
 
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+
+        // invokedynamic指令只允许出现在版本号51(JDK7)及以上的类中
+        // 低版本的类只能退回到反射调用的方式
+        isLinkByInvokeDynamic = isInvokeDynamic
+                && IS_JVM_SUPPORT_INVOKE_DYNAMIC
+                && (version & 0xFFFF) >= V1_7;
+
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    /**
+     * 是否声明了指定的通知能力
+     */
+    private boolean isCapable(int capability) {
+        return (capabilities & capability) == capability;
+    }
+
+    /**
+     * 是否内联计数<br/>
+     * 内联计数时不织入任何钩子
+     */
+    private boolean isInlineCounting() {
+        return isCapable(CAPABILITY_INLINE_COUNTING);
+    }
+
+    /**
+     * 是否需要织入结束通知<br/>
+     * 返回和异常两个钩子总是成对织入,保证监听器在任意一个出口都能结束当前调用
+     */
+    private boolean isFinishing() {
+        return !isInlineCounting()
+                && (capabilities & CAPABILITY_AFTER_FINISHING) != 0;
+    }
+
+    /**
+     * 是否需要织入前置通知<br/>
+     * 结束通知所需的执行帧由前置通知创建,所以声明了结束通知也需要织入前置通知
+     */
+    private boolean isBeginning() {
+        return !isInlineCounting()
+                && (isCapable(CAPABILITY_BEFORE) || isFinishing());
+    }
+
     /**
      * 是否抽象属性
      */
@@ -382,6 +919,17 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
         // 编织方法计数
         affect.mCnt(1);
 
+        // 分配方法ID,织入的代码只传递这个ID
+        final int methodId = MethodRegistry.register(targetClass, name, desc);
+
+        // 内联计数时分配计数槽位
+        final int counterSlot = isInlineCounting()
+                ? InlineCounters.register(adviceId, methodId)
+                : -1;
+        final int counterGeneration = isInlineCounting()
+                ? InlineCounters.getGeneration(counterSlot)
+                : 0;
+
         return new AdviceAdapter(ASM5, new JSRInlinerAdapter(mv, access, name, desc, signature, exceptions), access, name, desc) {
 
             // -- Lebel for try...catch block
@@ -400,18 +948,65 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
             private final Type ASM_TYPE_SPY = Type.getType("Lcom/github/ompc/greys/agent/Spy;");
             private final Type ASM_TYPE_OBJECT = Type.getType(Object.class);
             private final Type ASM_TYPE_OBJECT_ARRAY = Type.getType(Object[].class);
-            private final Type ASM_TYPE_CLASS = Type.getType(Class.class);
             private final Type ASM_TYPE_INTEGER = Type.getType(Integer.class);
-            private final Type ASM_TYPE_CLASS_LOADER = Type.getType(ClassLoader.class);
             private final Type ASM_TYPE_STRING = Type.getType(String.class);
             private final Type ASM_TYPE_THROWABLE = Type.getType(Throwable.class);
             private final Type ASM_TYPE_INT = Type.getType(int.class);
             private final Type ASM_TYPE_METHOD = Type.getType(java.lang.reflect.Method.class);
+            private final Type ASM_TYPE_BOOLEAN_ARRAY = Type.getType(boolean[].class);
+            private final Type ASM_TYPE_LONG_ARRAY = Type.getType(long[].class);
+            private final Type ASM_TYPE_FLOAT_BOX = Type.getType(Float.class);
+            private final Type ASM_TYPE_DOUBLE_BOX = Type.getType(Double.class);
+            private final Method ASM_METHOD_FLOAT_TO_RAW_INT_BITS = Method.getMethod("int floatToRawIntBits(float)");
+            private final Method ASM_METHOD_DOUBLE_TO_RAW_LONG_BITS = Method.getMethod("long doubleToRawLongBits(double)");
             private final Method ASM_METHOD_METHOD_INVOKE = Method.getMethod("Object invoke(Object,Object[])");
+            private final Type ASM_TYPE_SYSTEM = Type.getType(System.class);
+            private final Method ASM_METHOD_NANO_TIME = Method.getMethod("long nanoTime()");
+            private final Type ASM_TYPE_THREAD = Type.getType(Thread.class);
+            private final Method ASM_METHOD_CURRENT_THREAD = Method.getMethod("Thread currentThread()");
+            private final Method ASM_METHOD_GET_ID = Method.getMethod("long getId()");
+            private final Type ASM_TYPE_ATOMIC_LONG_ARRAY = Type.getType(AtomicLongArray.class);
+            private final Type ASM_TYPE_ATOMIC_LONG_ARRAY_ARRAY = Type.getType(AtomicLongArray[].class);
+            private final Method ASM_METHOD_ATOMIC_GET = Method.getMethod("long get(int)");
+            private final Method ASM_METHOD_ATOMIC_GET_AND_ADD = Method.getMethod("long getAndAdd(int,long)");
+
+            // -- invokedynamic所链接的通知方法,需要和Spy中的钩子签名保持一致 --
+            private final Method ASM_METHOD_ON_CAPTURE = Method.getMethod("Object[] onCapture(int)");
+            private final Method ASM_METHOD_ON_BEFORE = Method.getMethod("Object onBefore(int,int,Object,Object[])");
+            private final Method ASM_METHOD_ON_RETURN = Method.getMethod("void onReturn(Object,Object)");
+            private final Method ASM_METHOD_ON_THROWS = Method.getMethod("void onThrows(Throwable,Object)");
+            private final Method ASM_METHOD_BEFORE_INVOKING = Method.getMethod("void beforeInvoking(int,int)");
+            private final Method ASM_METHOD_AFTER_INVOKING = Method.getMethod("void afterInvoking(int,int)");
+            private final Handle ASM_HANDLE_SPY_LINKER_BOOTSTRAP = new Handle(
+                    H_INVOKESTATIC,
+                    "com/github/ompc/greys/agent/SpyLinker",
+                    "bootstrap",
+                    "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;"
+            );
 
             // 代码锁
             private final CodeLock codeLockForTracing = new TracingAsmCodeLock(this);
 
+            // 保存执行帧的本地变量,在onMethodEnter()时分配
+            private int frameLocal;
+
+            // 方法内下一条调用指令的序号
+            private int invokeSiteIndex;
+
+            // 内联计数时的本地变量:是否计数、开始时间、耗时、计数槽位和条带偏移
+            private int isCountingLocal;
+            private int startNanoLocal;
+            private int costLocal;
+            private int countersLocal;
+            private int stripeOffsetLocal;
+
+            // 参数类型
+            private final Type[] argumentTypes = Type.getArgumentTypes(desc);
+
+            // 保存参数槽位的本地变量,在onMethodEnter()时分配
+            private int slotsLocal;
+            private int primitivesLocal;
+
 
             private void _debug(final StringBuilder append, final String msg) {
 
@@ -491,30 +1086,138 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
             }
 
             /**
-             * 加载ClassLoader<br/>
-             * 这里分开静态方法中ClassLoader的获取以及普通方法中ClassLoader的获取
-             * 主要是性能上的考虑
+             * 检查通知开关,若通知已关闭则跳转到指定标签<br/>
+             * 开关数组的长度不足时同样视为关闭
+             * @param offLabel 通知关闭时的跳转标签
              */
-            private void loadClassLoader() {
+            private void ifAdviceSwitchOff(Label offLabel) {
+                final Label inRangeLabel = new Label();
+                getStatic(ASM_TYPE_SPY, "ADVICE_SWITCHES", ASM_TYPE_BOOLEAN_ARRAY);
+                dup();
+                arrayLength();
+                push(toAdviceIndex(adviceId));
+                ifICmp(GT, inRangeLabel);
+                pop();
+                goTo(offLabel);
+                mark(inRangeLabel);
+                push(toAdviceIndex(adviceId));
+                arrayLoad(Type.BOOLEAN_TYPE);
+                ifZCmp(EQ, offLabel);
+            }
 
-                if (this.isStaticMethod()) {
-                    visitLdcInsn(tranClassName(className));
-                    invokeStatic(ASM_TYPE_CLASS, Method.getMethod("Class forName(String)"));
-                    invokeVirtual(ASM_TYPE_CLASS, Method.getMethod("ClassLoader getClassLoader()"));
+            /**
+             * 检查下沉的条件,不满足时跳转到指定标签<br/>
+             * 只用到参数本身,不满足的调用既不会装箱参数也不会进入Spy
+             * @param falseLabel 条件不满足时的跳转标签
+             */
+            private void ifConditionFalse(Label falseLabel) {
+                if (null != condition) {
+                    condition.weave(this, argumentTypes, falseLabel);
+                }
+            }
 
-                } else {
-                    loadThis();
-                    invokeVirtual(ASM_TYPE_OBJECT, Method.getMethod("Class getClass()"));
-                    invokeVirtual(ASM_TYPE_CLASS, Method.getMethod("ClassLoader getClassLoader()"));
+            /**
+             * 通过invokedynamic调用通知方法<br/>
+             * 调用所需的参数已经按照方法签名依次压入了堆栈
+             * @param asmMethod 通知方法
+             */
+            private void invokeAdviceDynamic(Method asmMethod) {
+                invokeDynamic(asmMethod.getName(), asmMethod.getDescriptor(), ASM_HANDLE_SPY_LINKER_BOOTSTRAP);
+            }
+
+            /**
+             * 依次加载before通知参数
+             */
+            private void loadArgsForBefore() {
+                push(adviceId);
+                push(methodId);
+                loadTargetIfCapable();
+                loadArgArrayIfCapable();
+            }
+
+            /**
+             * 是否通过参数槽位传递参数<br/>
+             * 只有invokedynamic链接的方式才能避免装箱,反射调用本身就需要装箱
+             */
+            private boolean isCapturing() {
+                return isLinkByInvokeDynamic
+                        && isCapable(CAPABILITY_PARAMS)
+                        && argumentTypes.length > 0;
+            }
+
+            private boolean isPrimitive(Type type) {
+                return type.getSort() >= Type.BOOLEAN
+                        && type.getSort() <= Type.DOUBLE;
+            }
+
+            /**
+             * 将参数写入参数槽位<br/>
+             * 原始类型参数按位转换成long写入槽位[0],引用类型参数写入槽位[1+i];
+             * 申请不到槽位(钩子被链接成空操作)时参数为null
+             */
+            private void captureArgs() {
+
+                push(argumentTypes.length);
+                invokeAdviceDynamic(ASM_METHOD_ON_CAPTURE);
+                storeLocal(slotsLocal);
+
+                final Label capturedLabel = new Label();
+                loadLocal(slotsLocal);
+                ifNull(capturedLabel);
+
+                boolean hasPrimitive = false;
+                for (Type argumentType : argumentTypes) {
+                    hasPrimitive |= isPrimitive(argumentType);
+                }
+                if (hasPrimitive) {
+                    loadLocal(slotsLocal);
+                    push(0);
+                    arrayLoad(ASM_TYPE_OBJECT);
+                    checkCast(ASM_TYPE_LONG_ARRAY);
+                    storeLocal(primitivesLocal);
+                }
+
+                for (int index = 0; index < argumentTypes.length; index++) {
+                    final Type argumentType = argumentTypes[index];
+                    if (isPrimitive(argumentType)) {
+                        loadLocal(primitivesLocal);
+                        push(index);
+                        loadArg(index);
+                        switch (argumentType.getSort()) {
+                            case Type.LONG: {
+                                break;
+                            }
+                            case Type.DOUBLE: {
+                                invokeStatic(ASM_TYPE_DOUBLE_BOX, ASM_METHOD_DOUBLE_TO_RAW_LONG_BITS);
+                                break;
+                            }
+                            case Type.FLOAT: {
+                                invokeStatic(ASM_TYPE_FLOAT_BOX, ASM_METHOD_FLOAT_TO_RAW_INT_BITS);
+                                cast(Type.INT_TYPE, Type.LONG_TYPE);
+                                break;
+                            }
+                            default: {
+                                cast(Type.INT_TYPE, Type.LONG_TYPE);
+                                break;
+                            }
+                        }
+                        arrayStore(Type.LONG_TYPE);
+                    } else {
+                        loadLocal(slotsLocal);
+                        push(index + 1);
+                        loadArg(index);
+                        arrayStore(ASM_TYPE_OBJECT);
+                    }
                 }
 
+                mark(capturedLabel);
             }
 
             /**
              * 加载before通知参数数组
              */
             private void loadArrayForBefore() {
-                push(7);
+                push(4);
                 newArray(ASM_TYPE_OBJECT);
 
                 dup();
@@ -525,39 +1228,171 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
 
                 dup();
                 push(1);
-                loadClassLoader();
-                arrayStore(ASM_TYPE_CLASS_LOADER);
+                push(methodId);
+                box(ASM_TYPE_INT);
+                arrayStore(ASM_TYPE_INTEGER);
 
                 dup();
                 push(2);
-                push(className);
-                arrayStore(ASM_TYPE_STRING);
+                loadTargetIfCapable();
+                arrayStore(ASM_TYPE_OBJECT);
 
                 dup();
                 push(3);
-                push(name);
-                arrayStore(ASM_TYPE_STRING);
+                loadArgArrayIfCapable();
+                arrayStore(ASM_TYPE_OBJECT_ARRAY);
+            }
 
-                dup();
-                push(4);
-                push(desc);
-                arrayStore(ASM_TYPE_STRING);
 
-                dup();
-                push(5);
-                loadThisOrPushNullIfIsStatic();
-                arrayStore(ASM_TYPE_OBJECT);
+            /**
+             * 保存执行帧<br/>
+             * 没有结束通知时执行帧没有用处,直接丢弃
+             */
+            private void storeFrame() {
+                if (isFinishing()) {
+                    storeLocal(frameLocal);
+                } else {
+                    pop();
+                }
+            }
 
-                dup();
-                push(6);
-                loadArgArray();
-                arrayStore(ASM_TYPE_OBJECT_ARRAY);
+            /**
+             * 内联计数:记录开始时间<br/>
+             * 是否计数单独保存,nanoTime()本身可能为0
+             */
+            private void inlineCountingEnter() {
+
+                isCountingLocal = newLocal(Type.BOOLEAN_TYPE);
+                startNanoLocal = newLocal(Type.LONG_TYPE);
+                costLocal = newLocal(Type.LONG_TYPE);
+                countersLocal = newLocal(ASM_TYPE_ATOMIC_LONG_ARRAY);
+                stripeOffsetLocal = newLocal(Type.INT_TYPE);
+
+                codeLockForTracing.lock(new CodeLock.Block() {
+                    @Override
+                    public void code() {
+                        final Label skipLabel = new Label();
+                        push(false);
+                        storeLocal(isCountingLocal);
+                        push(0L);
+                        storeLocal(startNanoLocal);
+                        ifAdviceSwitchOff(skipLabel);
+                        push(true);
+                        storeLocal(isCountingLocal);
+                        invokeStatic(ASM_TYPE_SYSTEM, ASM_METHOD_NANO_TIME);
+                        storeLocal(startNanoLocal);
+                        mark(skipLabel);
+                    }
+                });
+
+                mark(beginLabel);
             }
 
+            /**
+             * 内联计数:累加次数和耗时<br/>
+             * 直接在方法中更新当前线程所在条带的计数,不调用Spy:
+             * <pre>
+             * cost = nanoTime() - start;
+             * counters = Spy.INLINE_COUNTERS;
+             * if (slot < counters.length && counters[slot].get(GENERATION) == generation) {
+             *     offset = HEADER_SIZE + (((int) currentThread().getId() & (STRIPES - 1)) << STRIPE_SHIFT);
+             *     counters[slot].getAndAdd(offset + field, 1);
+             *     counters[slot].getAndAdd(offset + FIELD_COST, cost);
+             * }
+             * </pre>
+             *
+             * @param field 成功或失败次数
+             */
+            private void inlineCountingExit(final int field) {
+                codeLockForTracing.lock(new CodeLock.Block() {
+                    @Override
+                    public void code() {
+
+                        final Label skipLabel = new Label();
+                        loadLocal(isCountingLocal);
+                        ifZCmp(EQ, skipLabel);
+
+                        // 尽量靠近原方法的结束计时
+                        invokeStatic(ASM_TYPE_SYSTEM, ASM_METHOD_NANO_TIME);
+                        loadLocal(startNanoLocal);
+                        math(SUB, Type.LONG_TYPE);
+                        storeLocal(costLocal);
+
+                        // 槽位不在数组中时放弃计数
+                        final Label inRangeLabel = new Label();
+                        getStatic(ASM_TYPE_SPY, "INLINE_COUNTERS", ASM_TYPE_ATOMIC_LONG_ARRAY_ARRAY);
+                        dup();
+                        arrayLength();
+                        push(counterSlot);
+                        ifICmp(GT, inRangeLabel);
+                        pop();
+                        goTo(skipLabel);
+                        mark(inRangeLabel);
+                        push(counterSlot);
+                        arrayLoad(ASM_TYPE_ATOMIC_LONG_ARRAY);
+                        storeLocal(countersLocal);
+
+                        // 槽位已经被回收并重新分配时放弃计数
+                        loadLocal(countersLocal);
+                        push(InlineCounters.GENERATION);
+                        invokeVirtual(ASM_TYPE_ATOMIC_LONG_ARRAY, ASM_METHOD_ATOMIC_GET);
+                        push((long) counterGeneration);
+                        ifCmp(Type.LONG_TYPE, NE, skipLabel);
+
+                        // 当前线程所在条带的偏移
+                        invokeStatic(ASM_TYPE_THREAD, ASM_METHOD_CURRENT_THREAD);
+                        invokeVirtual(ASM_TYPE_THREAD, ASM_METHOD_GET_ID);
+                        cast(Type.LONG_TYPE, Type.INT_TYPE);
+                        push(InlineCounters.STRIPES - 1);
+                        math(AND, Type.INT_TYPE);
+                        push(InlineCounters.STRIPE_SHIFT);
+                        math(SHL, Type.INT_TYPE);
+                        push(InlineCounters.HEADER_SIZE);
+                        math(ADD, Type.INT_TYPE);
+                        storeLocal(stripeOffsetLocal);
+
+                        loadLocal(countersLocal);
+                        loadLocal(stripeOffsetLocal);
+                        push(field);
+                        math(ADD, Type.INT_TYPE);
+                        push(1L);
+                        invokeVirtual(ASM_TYPE_ATOMIC_LONG_ARRAY, ASM_METHOD_ATOMIC_GET_AND_ADD);
+                        pop2();
+
+                        loadLocal(countersLocal);
+                        loadLocal(stripeOffsetLocal);
+                        push(InlineCounters.FIELD_COST);
+                        math(ADD, Type.INT_TYPE);
+                        loadLocal(costLocal);
+                        invokeVirtual(ASM_TYPE_ATOMIC_LONG_ARRAY, ASM_METHOD_ATOMIC_GET_AND_ADD);
+                        pop2();
+
+                        mark(skipLabel);
+                    }
+                });
+            }
 
             @Override
             protected void onMethodEnter() {
 
+                if (isInlineCounting()) {
+                    inlineCountingEnter();
+                    return;
+                }
+
+                if (!isBeginning()) {
+                    return;
+                }
+
+                if (isFinishing()) {
+                    frameLocal = newLocal(ASM_TYPE_OBJECT);
+                }
+
+                if (isCapturing()) {
+                    slotsLocal = newLocal(ASM_TYPE_OBJECT_ARRAY);
+                    primitivesLocal = newLocal(ASM_TYPE_LONG_ARRAY);
+                }
+
                 codeLockForTracing.lock(new CodeLock.Block() {
                     @Override
                     public void code() {
@@ -565,21 +1400,57 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
                         final StringBuilder append = new StringBuilder();
                         _debug(append, "debug:onMethodEnter()");
 
-                        // 加载before方法
-                        loadAdviceMethod(KEY_GREYS_ADVICE_BEFORE_METHOD);
-                        _debug(append, "loadAdviceMethod()");
+                        // 执行帧先置空,通知关闭时直接跳过
+                        final Label skipLabel = new Label();
+                        if (isFinishing()) {
+                            pushNull();
+                            storeLocal(frameLocal);
+                        }
+                        ifAdviceSwitchOff(skipLabel);
+                        ifConditionFalse(skipLabel);
 
-                        // 推入Method.invoke()的第一个参数
-                        pushNull();
+                        if (isLinkByInvokeDynamic) {
 
-                        // 方法参数
-                        loadArrayForBefore();
-                        _debug(append, "loadArrayForBefore()");
+                            // 参数写入参数槽位
+                            if (isCapturing()) {
+                                captureArgs();
+                                _debug(append, "captureArgs()");
+                            }
 
-                        // 调用方法
-                        invokeVirtual(ASM_TYPE_METHOD, ASM_METHOD_METHOD_INVOKE);
-                        pop();
-                        _debug(append, "invokeVirtual()");
+                            // 方法参数
+                            loadArgsForBefore();
+                            _debug(append, "loadArgsForBefore()");
+
+                            // 调用方法
+                            invokeAdviceDynamic(ASM_METHOD_ON_BEFORE);
+                            _debug(append, "invokeDynamic()");
+
+                            // 保存执行帧
+                            storeFrame();
+
+                        } else {
+
+                            // 加载before方法
+                            loadAdviceMethod(KEY_GREYS_ADVICE_BEFORE_METHOD);
+                            _debug(append, "loadAdviceMethod()");
+
+                            // 推入Method.invoke()的第一个参数
+                            pushNull();
+
+                            // 方法参数
+                            loadArrayForBefore();
+                            _debug(append, "loadArrayForBefore()");
+
+                            // 调用方法
+                            invokeVirtual(ASM_TYPE_METHOD, ASM_METHOD_METHOD_INVOKE);
+                            _debug(append, "invokeVirtual()");
+
+                            // 保存执行帧
+                            storeFrame();
+
+                        }
+
+                        mark(skipLabel);
 
                     }
                 });
@@ -595,7 +1466,7 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
             private void loadReturnArgs() {
                 dup2X1();
                 pop2();
-                push(1);
+                push(2);
                 newArray(ASM_TYPE_OBJECT);
                 dup();
                 dup2X1();
@@ -603,12 +1474,23 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
                 push(0);
                 swap();
                 arrayStore(ASM_TYPE_OBJECT);
+                dup();
+                push(1);
+                loadLocal(frameLocal);
+                arrayStore(ASM_TYPE_OBJECT);
             }
 
             @Override
             protected void onMethodExit(final int opcode) {
 
-                if (!isThrow(opcode)) {
+                if (isInlineCounting()
+                        && !isThrow(opcode)) {
+                    inlineCountingExit(InlineCounters.FIELD_SUCCESS);
+                    return;
+                }
+
+                if (isFinishing()
+                        && !isThrow(opcode)) {
                     codeLockForTracing.lock(new CodeLock.Block() {
                         @Override
                         public void code() {
@@ -616,24 +1498,39 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
                             final StringBuilder append = new StringBuilder();
                             _debug(append, "debug:onMethodExit()");
 
+                            // 没有执行帧说明Begin时通知已关闭
+                            final Label skipLabel = new Label();
+                            loadLocal(frameLocal);
+                            ifNull(skipLabel);
+
                             // 加载返回对象
                             loadReturn(opcode);
                             _debug(append, "loadReturn()");
 
-                            // 加载returning方法
-                            loadAdviceMethod(KEY_GREYS_ADVICE_RETURN_METHOD);
-                            _debug(append, "loadAdviceMethod()");
+                            if (isLinkByInvokeDynamic) {
+                                loadLocal(frameLocal);
+                                invokeAdviceDynamic(ASM_METHOD_ON_RETURN);
+                                _debug(append, "invokeDynamic()");
+                            } else {
 
-                            // 推入Method.invoke()的第一个参数
-                            pushNull();
+                                // 加载returning方法
+                                loadAdviceMethod(KEY_GREYS_ADVICE_RETURN_METHOD);
+                                _debug(append, "loadAdviceMethod()");
 
-                            // 加载return通知参数数组
-                            loadReturnArgs();
-                            _debug(append, "loadReturnArgs()");
+                                // 推入Method.invoke()的第一个参数
+                                pushNull();
 
-                            invokeVirtual(ASM_TYPE_METHOD, ASM_METHOD_METHOD_INVOKE);
-                            pop();
-                            _debug(append, "invokeVirtual()");
+                                // 加载return通知参数数组
+                                loadReturnArgs();
+                                _debug(append, "loadReturnArgs()");
+
+                                invokeVirtual(ASM_TYPE_METHOD, ASM_METHOD_METHOD_INVOKE);
+                                pop();
+                                _debug(append, "invokeVirtual()");
+
+                            }
+
+                            mark(skipLabel);
 
                         }
                     });
@@ -648,7 +1545,7 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
             private void loadThrowArgs() {
                 dup2X1();
                 pop2();
-                push(1);
+                push(2);
                 newArray(ASM_TYPE_OBJECT);
                 dup();
                 dup2X1();
@@ -656,11 +1553,29 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
                 push(0);
                 swap();
                 arrayStore(ASM_TYPE_THROWABLE);
+                dup();
+                push(1);
+                loadLocal(frameLocal);
+                arrayStore(ASM_TYPE_OBJECT);
             }
 
             @Override
             public void visitMaxs(int maxStack, int maxLocals) {
 
+                if (isInlineCounting()) {
+                    mark(endLabel);
+                    catchException(beginLabel, endLabel, ASM_TYPE_THROWABLE);
+                    inlineCountingExit(InlineCounters.FIELD_FAILED);
+                    throwException();
+                    super.visitMaxs(maxStack, maxLocals);
+                    return;
+                }
+
+                if (!isFinishing()) {
+                    super.visitMaxs(maxStack, maxLocals);
+                    return;
+                }
+
                 mark(endLabel);
                 catchException(beginLabel, endLabel, ASM_TYPE_THROWABLE);
 
@@ -671,25 +1586,40 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
                         final StringBuilder append = new StringBuilder();
                         _debug(append, "debug:catchException()");
 
+                        // 没有执行帧说明Begin时通知已关闭
+                        final Label skipLabel = new Label();
+                        loadLocal(frameLocal);
+                        ifNull(skipLabel);
+
                         // 加载异常
                         loadThrow();
                         _debug(append, "loadAdviceMethod()");
 
-                        // 加载throwing方法
-                        loadAdviceMethod(KEY_GREYS_ADVICE_THROWS_METHOD);
-                        _debug(append, "loadAdviceMethod()");
+                        if (isLinkByInvokeDynamic) {
+                            loadLocal(frameLocal);
+                            invokeAdviceDynamic(ASM_METHOD_ON_THROWS);
+                            _debug(append, "invokeDynamic()");
+                        } else {
 
-                        // 推入Method.invoke()的第一个参数
-                        pushNull();
+                            // 加载throwing方法
+                            loadAdviceMethod(KEY_GREYS_ADVICE_THROWS_METHOD);
+                            _debug(append, "loadAdviceMethod()");
 
-                        // 加载throw通知参数数组
-                        loadThrowArgs();
-                        _debug(append, "loadThrowArgs()");
+                            // 推入Method.invoke()的第一个参数
+                            pushNull();
 
-                        // 调用方法
-                        invokeVirtual(ASM_TYPE_METHOD, ASM_METHOD_METHOD_INVOKE);
-                        pop();
-                        _debug(append, "invokeVirtual()");
+                            // 加载throw通知参数数组
+                            loadThrowArgs();
+                            _debug(append, "loadThrowArgs()");
+
+                            // 调用方法
+                            invokeVirtual(ASM_TYPE_METHOD, ASM_METHOD_METHOD_INVOKE);
+                            pop();
+                            _debug(append, "invokeVirtual()");
+
+                        }
+
+                        mark(skipLabel);
 
                     }
                 });
@@ -734,11 +1664,42 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
                 }
             }
 
+            /**
+             * 加载this/null,未声明需要目标类实例时总是推入null
+             */
+            private void loadTargetIfCapable() {
+                if (isCapable(CAPABILITY_TARGET)) {
+                    loadThisOrPushNullIfIsStatic();
+                } else {
+                    pushNull();
+                }
+            }
+
+            /**
+             * 加载参数数组,未声明需要参数时推入null,省去数组的创建和参数装箱
+             */
+            private void loadArgArrayIfCapable() {
+                if (isCapturing()) {
+                    loadLocal(slotsLocal);
+                } else if (isCapable(CAPABILITY_PARAMS)) {
+                    loadArgArray();
+                } else {
+                    pushNull();
+                }
+            }
+
             /**
              * 加载返回值
              * @param opcode 操作吗
              */
             private void loadReturn(int opcode) {
+
+                // 未声明需要返回结果时推入null,省去返回值的装箱
+                if (!isCapable(CAPABILITY_RETURN_OBJECT)) {
+                    pushNull();
+                    return;
+                }
+
                 switch (opcode) {
 
                     case RETURN: {
@@ -775,11 +1736,19 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
             }
 
 
+            /**
+             * 依次加载方法调用跟踪通知所需参数
+             */
+            private void loadArgsForInvokeTracing(int invokeSiteId) {
+                push(adviceId);
+                push(invokeSiteId);
+            }
+
             /**
              * 加载方法调用跟踪通知所需参数数组
              */
-            private void loadArrayForInvokeTracing(String owner, String name, String desc) {
-                push(4);
+            private void loadArrayForInvokeTracing(int invokeSiteId) {
+                push(2);
                 newArray(ASM_TYPE_OBJECT);
 
                 dup();
@@ -790,18 +1759,22 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
 
                 dup();
                 push(1);
-                push(owner);
-                arrayStore(ASM_TYPE_STRING);
-
-                dup();
-                push(2);
-                push(name);
-                arrayStore(ASM_TYPE_STRING);
+                push(invokeSiteId);
+                box(ASM_TYPE_INT);
+                arrayStore(ASM_TYPE_INTEGER);
+            }
 
-                dup();
-                push(3);
-                push(desc);
-                arrayStore(ASM_TYPE_STRING);
+            /**
+             * 为通过过滤的调用点分配调用点ID<br/>
+             * 方法内的每一条调用指令都会占用一个序号,这样过滤条件不同时同一个调用点仍然得到同一个ID
+             *
+             * @return 调用点ID,不需要跟踪时为-1
+             */
+            private int registerInvokeSite(String owner, String name, String desc) {
+                final int index = invokeSiteIndex++;
+                return invokeSiteFilter.isTracing(owner, name, desc)
+                        ? InvokeSiteRegistry.register(methodId, index, owner, name, desc)
+                        : -1;
             }
 
 
@@ -814,8 +1787,13 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
             @Override
             public void visitMethodInsn(int opcode, final String owner, final String name, final String desc, boolean itf) {
 
+                // 织入代码自身的调用不需要跟踪
+                final int invokeSiteId = isTracing && !codeLockForTracing.isLock()
+                        ? registerInvokeSite(owner, name, desc)
+                        : -1;
+
                 // 方法调用前通知
-                if (isTracing && !codeLockForTracing.isLock()) {
+                if (invokeSiteId >= 0) {
                     codeLockForTracing.lock(new CodeLock.Block() {
                         @Override
                         public void code() {
@@ -823,16 +1801,29 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
                             final StringBuilder append = new StringBuilder();
                             _debug(append, "debug:beforeInvoking()");
 
-                            loadAdviceMethod(KEY_GREYS_ADVICE_BEFORE_INVOKING_METHOD);
-                            _debug(append, "loadAdviceMethod()");
+                            final Label skipLabel = new Label();
+                            ifAdviceSwitchOff(skipLabel);
 
-                            pushNull();
-                            loadArrayForInvokeTracing(owner, name, desc);
-                            _debug(append, "loadArrayForInvokeTracing()");
+                            if (isLinkByInvokeDynamic) {
+                                loadArgsForInvokeTracing(invokeSiteId);
+                                invokeAdviceDynamic(ASM_METHOD_BEFORE_INVOKING);
+                                _debug(append, "invokeDynamic()");
+                            } else {
 
-                            invokeVirtual(ASM_TYPE_METHOD, ASM_METHOD_METHOD_INVOKE);
-                            pop();
-                            _debug(append, "invokeVirtual()");
+                                loadAdviceMethod(KEY_GREYS_ADVICE_BEFORE_INVOKING_METHOD);
+                                _debug(append, "loadAdviceMethod()");
+
+                                pushNull();
+                                loadArrayForInvokeTracing(invokeSiteId);
+                                _debug(append, "loadArrayForInvokeTracing()");
+
+                                invokeVirtual(ASM_TYPE_METHOD, ASM_METHOD_METHOD_INVOKE);
+                                pop();
+                                _debug(append, "invokeVirtual()");
+
+                            }
+
+                            mark(skipLabel);
 
                         }
                     });
@@ -842,7 +1833,7 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
                 super.visitMethodInsn(opcode, owner, name, desc, itf);
 
                 // 方法调用后通知
-                if (isTracing && !codeLockForTracing.isLock()) {
+                if (invokeSiteId >= 0) {
                     codeLockForTracing.lock(new CodeLock.Block() {
                         @Override
                         public void code() {
@@ -850,16 +1841,29 @@ public class AdviceWeaver extends ClassVisitor implements Opcodes {
                             final StringBuilder append = new StringBuilder();
                             _debug(append, "debug:afterInvoking()");
 
-                            loadAdviceMethod(KEY_GREYS_ADVICE_AFTER_INVOKING_METHOD);
-                            _debug(append, "loadAdviceMethod()");
+                            final Label skipLabel = new Label();
+                            ifAdviceSwitchOff(skipLabel);
 
-                            pushNull();
-                            loadArrayForInvokeTracing(owner, name, desc);
-                            _debug(append, "loadArrayForInvokeTracing()");
+                            if (isLinkByInvokeDynamic) {
+                                loadArgsForInvokeTracing(invokeSiteId);
+                                invokeAdviceDynamic(ASM_METHOD_AFTER_INVOKING);
+                                _debug(append, "invokeDynamic()");
+                            } else {
 
-                            invokeVirtual(ASM_TYPE_METHOD, ASM_METHOD_METHOD_INVOKE);
-                            pop();
-                            _debug(append, "invokeVirtual()");
+                                loadAdviceMethod(KEY_GREYS_ADVICE_AFTER_INVOKING_METHOD);
+                                _debug(append, "loadAdviceMethod()");
+
+                                pushNull();
+                                loadArrayForInvokeTracing(invokeSiteId);
+                                _debug(append, "loadArrayForInvokeTracing()");
+
+                                invokeVirtual(ASM_TYPE_METHOD, ASM_METHOD_METHOD_INVOKE);
+                                pop();
+                                _debug(append, "invokeVirtual()");
+
+                            }
+
+                            mark(skipLabel);
 
                         }
                     });
@@ -0,0 +1,95 @@
+package com.github.ompc.greys.core.advisor;
+
+import static java.lang.System.arraycopy;
+
+/**
+ * 线程内的参数槽位栈<br/>
+ * 每一层被织入的方法调用占用一个槽位,槽位按调用深度复用,方法结束时归还。
+ * 方法调用天然是后进先出的,所以只需要一个深度计数;归还时直接回到槽位所在的深度,
+ * 即使内层调用因为钩子被链接成空操作而没有归还,也不会让深度一直增长<br/>
+ * 非线程安全,只能由所属线程访问
+ * Created by oldmanpushcart@gmail.com on 15/11/18.
+ */
+class ArgumentSlots {
+
+    // 初始深度
+    private static final int INIT_DEPTH = 16;
+
+    // 按调用深度复用的槽位
+    private Object[][] slotsStack = new Object[INIT_DEPTH][];
+
+    // 当前深度
+    private int depth;
+
+    // 刚刚申请、尚未被Begin认领的槽位
+    private Object[] pending;
+
+    /**
+     * 申请槽位<br/>
+     * 由织入的代码在调用Begin之前调用,申请与认领之间不会有其他被织入的方法执行
+     *
+     * @param size 参数个数
+     * @return 槽位,[0]为原始类型参数的long[],[1+i]为第i个引用类型参数
+     */
+    Object[] acquire(int size) {
+
+        // 上一次申请的槽位没有被认领(Begin被链接成了空操作),直接复用
+        if (null != pending) {
+            release(depth - 1);
+        }
+
+        if (depth == slotsStack.length) {
+            final Object[][] newSlotsStack = new Object[depth * 2][];
+            arraycopy(slotsStack, 0, newSlotsStack, 0, depth);
+            slotsStack = newSlotsStack;
+        }
+
+        Object[] slots = slotsStack[depth];
+        if (null == slots
+                || slots.length < size + 1) {
+            slots = new Object[size + 1];
+            slots[0] = new long[size];
+            slotsStack[depth] = slots;
+        }
+
+        depth++;
+        return pending = slots;
+    }
+
+    /**
+     * 认领槽位
+     *
+     * @param args Begin收到的参数
+     * @return 槽位所在的深度,归还时使用;若参数是普通的参数数组则返回-1
+     */
+    int claim(Object[] args) {
+        if (null != args
+                && args == pending) {
+            pending = null;
+            return depth - 1;
+        }
+        return -1;
+    }
+
+    /**
+     * 归还槽位,连同更深的槽位一起归还<br/>
+     * 引用类型参数需要清理掉,不能因为槽位复用而阻止参数对象被回收
+     *
+     * @param slotsDepth 槽位所在的深度
+     */
+    void release(int slotsDepth) {
+        if (slotsDepth < 0
+                || slotsDepth >= depth) {
+            return;
+        }
+        for (int index = slotsDepth; index < depth; index++) {
+            final Object[] slots = slotsStack[index];
+            for (int slot = 1; slot < slots.length; slot++) {
+                slots[slot] = null;
+            }
+        }
+        depth = slotsDepth;
+        pending = null;
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.github.ompc.greys.core.advisor;
+
+import org.objectweb.asm.Type;
+
+/**
+ * 方法参数<br/>
+ * 织入的代码可以把参数直接写入线程内复用的参数槽位,原始类型按位写入long[],不装箱也不创建参数数组;
+ * 只有真正读取参数时才会按照方法描述装箱成数组,并且只装箱一次<br/>
+ * 参数槽位在方法结束后会被复用,所以需要在通知回调之外使用参数(例如时间碎片)时,
+ * 必须在回调期间先调用一次{@link #toArray()}
+ * Created by oldmanpushcart@gmail.com on 15/11/18.
+ */
+public class Arguments {
+
+    private final WovenMethod method;
+
+    // 已装箱的参数数组
+    private Object[] array;
+
+    // 参数槽位,[0]为原始类型参数的long[],[1+i]为第i个引用类型参数
+    // 装箱完成或槽位被回收后置为null
+    private Object[] slots;
+
+    Arguments(WovenMethod method, Object[] array, Object[] slots) {
+        this.method = method;
+        this.array = array;
+        this.slots = slots;
+    }
+
+    /**
+     * 包装已经装箱好的参数数组
+     *
+     * @param array 参数数组
+     * @return 方法参数
+     */
+    public static Arguments wrap(Object[] array) {
+        return new Arguments(null, array, null);
+    }
+
+    /**
+     * 获取参数数组<br/>
+     * 第一次调用时才从参数槽位中装箱
+     *
+     * @return 参数数组,未声明需要参数或参数槽位已被回收时为null
+     */
+    public Object[] toArray() {
+        if (null == array && null != slots) {
+            array = box(slots);
+            slots = null;
+        }
+        return array;
+    }
+
+    /*
+     * 参数槽位被回收
+     */
+    void expire() {
+        slots = null;
+    }
+
+    /*
+     * 按照方法描述将参数槽位装箱
+     */
+    private Object[] box(Object[] slots) {
+
+        final Type[] argumentTypes = method.getArgumentTypes();
+        final long[] primitives = (long[]) slots[0];
+        final Object[] array = new Object[argumentTypes.length];
+        for (int index = 0; index < array.length; index++) {
+            final long bits = primitives[index];
+            switch (argumentTypes[index].getSort()) {
+                case Type.BOOLEAN:
+                    array[index] = bits != 0;
+                    break;
+                case Type.CHAR:
+                    array[index] = (char) bits;
+                    break;
+                case Type.BYTE:
+                    array[index] = (byte) bits;
+                    break;
+                case Type.SHORT:
+                    array[index] = (short) bits;
+                    break;
+                case Type.INT:
+                    array[index] = (int) bits;
+                    break;
+                case Type.FLOAT:
+                    array[index] = Float.intBitsToFloat((int) bits);
+                    break;
+                case Type.LONG:
+                    array[index] = bits;
+                    break;
+                case Type.DOUBLE:
+                    array[index] = Double.longBitsToDouble(bits);
+                    break;
+                default:
+                    array[index] = slots[index + 1];
+                    break;
+            }
+        }
+        return array;
+    }
+
+}
@@ -0,0 +1,293 @@
+package com.github.ompc.greys.core.advisor;
+
+import com.github.ompc.greys.core.util.LogUtil;
+import com.github.ompc.greys.core.util.collection.MpscRingBuffer;
+import org.slf4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.lang.String.format;
+
+/**
+ * 异步通知监听器<br/>
+ * 业务线程上只把通知抓取成一个不可变的事件放入有界的环形队列,表达式求值、渲染等监听器逻辑都交给会话的
+ * {@link AsyncAdviceWorker}执行,业务线程上增加的耗时只剩下装箱参数和一次入队,只有队列由空变为非空时才需要唤醒工作线程。
+ * 队列满时直接丢弃事件,销毁时还没来得及处理的事件同样算作丢弃,丢弃的个数会通过{@link Alarm}告知会话<br/>
+ * 声明了结束通知的监听器在方法结束时才入队,工作线程按前置、结束的顺序一起回放,
+ * 保证监听器在线程内配对的上下文仍然成立;所以前置通知的输出会推迟到方法结束之后<br/>
+ * 事件只抓取引用,对象在工作线程处理之前被修改的话,看到的是修改后的状态;
+ * 依赖业务线程本身(调用栈、线程信息、调用跟踪)的监听器不能异步处理
+ * Created by oldmanpushcart@gmail.com on 15/12/3.
+ */
+public class AsyncAdviceListener implements AdviceListener {
+
+    /**
+     * 丢弃事件的告警
+     */
+    public interface Alarm {
+
+        /**
+         * 有事件被丢弃<br/>
+         * 在工作线程中回调,销毁时在销毁监听器的线程中回调
+         *
+         * @param message 告警信息
+         */
+        void alarm(String message);
+
+    }
+
+    // 工作线程每次最多连续回放的事件个数,避免一个监听器占满会话的工作线程
+    private static final int DRAIN_BATCH = 256;
+
+    // 丢弃事件的告警间隔:1秒
+    private static final long ALARM_INTERVAL_NANOS = 1000L * 1000L * 1000L;
+
+    // 销毁时等待正在进行的回放结束的时间(毫秒)
+    private static final long DESTROY_TIMEOUT_MILLIS = 3000L;
+
+    private final Logger logger = LogUtil.getLogger();
+
+    private final AdviceListener delegate;
+    private final MpscRingBuffer<Event> queue;
+    private final AsyncAdviceWorker worker;
+    private final Alarm alarm;
+
+    // 缓存被代理监听器的通知能力,避免每次通知都重新计算
+    private final int capabilities;
+    private final boolean isFinishing;
+
+    // 丢弃的事件个数
+    private final AtomicLong dropped = new AtomicLong();
+
+    // 消费队列的锁,工作线程回放和销毁时清空队列互斥,保证队列始终只有一个消费者
+    private final ReentrantLock consumeLock = new ReentrantLock();
+
+    // 以下状态只在持有消费锁时访问
+    private boolean isDestroyed;
+    private long lastAlarmNanos = System.nanoTime();
+    private long lastDropped;
+
+    /**
+     * 构建异步通知监听器
+     *
+     * @param delegate 被代理的监听器,只会在工作线程中回调
+     * @param capacity 队列容量
+     * @param worker   会话的工作线程
+     * @param alarm    丢弃事件的告警
+     */
+    public AsyncAdviceListener(AdviceListener delegate, int capacity, AsyncAdviceWorker worker, Alarm alarm) {
+        this.delegate = delegate;
+        this.queue = new MpscRingBuffer<Event>(capacity);
+        this.worker = worker;
+        this.alarm = alarm;
+        this.capabilities = delegate.getCapabilities();
+        this.isFinishing = (capabilities & CAPABILITY_AFTER_FINISHING) != 0;
+    }
+
+    /**
+     * 获取丢弃的事件个数
+     *
+     * @return 丢弃的事件个数
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public int getCapabilities() {
+        return capabilities;
+    }
+
+    @Override
+    public void create() {
+        delegate.create();
+        worker.attach(this);
+    }
+
+    /**
+     * 销毁监听器<br/>
+     * 等待正在进行的回放结束后清空队列,剩余的事件计入丢弃个数并告知会话
+     */
+    @Override
+    public void destroy() {
+        worker.detach(this);
+
+        boolean isLocked = false;
+        try {
+            isLocked = consumeLock.tryLock(DESTROY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (isLocked) {
+            try {
+                isDestroyed = true;
+                final int discarded = queue.clear();
+                final long total = dropped.addAndGet(discarded);
+                if (total > lastDropped) {
+                    alarm(format("%d advice events dropped (%d queued at destroy, %d in total).",
+                            total - lastDropped, discarded, total));
+                    lastDropped = total;
+                }
+            } finally {
+                consumeLock.unlock();
+            }
+        } else {
+            logger.warn("async advice replay did not finish in {}ms, queued events are left to gc.", DESTROY_TIMEOUT_MILLIS);
+        }
+
+        delegate.destroy();
+    }
+
+    @Override
+    public void before(WovenMethod method, Object target, Arguments args) throws Throwable {
+
+        // 声明了结束通知时在方法结束后一起入队
+        if (isFinishing) {
+            return;
+        }
+
+        offer(new Event(method, target, toArray(args), false, false, null, -1));
+    }
+
+    @Override
+    public void afterReturning(WovenMethod method, Object target, Arguments args, Object returnObject) throws Throwable {
+        offer(new Event(method, target, toArray(args), true, false, returnObject, AdviceWeaver.getCostNanos()));
+    }
+
+    @Override
+    public void afterThrowing(WovenMethod method, Object target, Arguments args, Throwable throwable) throws Throwable {
+        offer(new Event(method, target, toArray(args), true, true, throwable, AdviceWeaver.getCostNanos()));
+    }
+
+    /*
+     * 参数槽位在方法结束后会被复用,入队前必须先装箱
+     */
+    private static Object[] toArray(Arguments args) {
+        return null == args
+                ? null
+                : args.toArray();
+    }
+
+    /*
+     * 入队,队列由空变为非空时唤醒工作线程
+     */
+    private void offer(Event event) {
+        final int ahead = queue.offerAndGetAhead(event);
+        if (ahead < 0) {
+            dropped.incrementAndGet();
+        } else if (ahead == 0) {
+            worker.signal();
+        }
+    }
+
+    /*
+     * 在工作线程中回放一批事件
+     * 返回false时队列已经为空,之后入队的事件会唤醒工作线程
+     */
+    boolean drain() {
+        if (!consumeLock.tryLock()) {
+            return false;
+        }
+        try {
+            if (isDestroyed) {
+                return false;
+            }
+            for (int count = 0; count < DRAIN_BATCH; count++) {
+                final Event event = queue.poll();
+                if (null == event) {
+                    break;
+                }
+                replay(event);
+            }
+            return !queue.isEmpty();
+        } finally {
+            consumeLock.unlock();
+        }
+    }
+
+    /*
+     * 在工作线程中告知上次告警之后丢弃的事件个数,两次告警至少间隔ALARM_INTERVAL_NANOS
+     * 返回距离下次需要告警的时间,没有待告警的丢弃时为Long.MAX_VALUE
+     */
+    long alarmDropped(long now) {
+        if (!consumeLock.tryLock()) {
+            return Long.MAX_VALUE;
+        }
+        try {
+            final long total = dropped.get();
+            if (isDestroyed
+                    || total <= lastDropped) {
+                return Long.MAX_VALUE;
+            }
+            final long elapsed = now - lastAlarmNanos;
+            if (elapsed < ALARM_INTERVAL_NANOS) {
+                return ALARM_INTERVAL_NANOS - elapsed;
+            }
+            alarm(format("%d advice events dropped (%d in total), the async queue(capacity=%d) is full.",
+                    total - lastDropped, total, queue.capacity()));
+            lastDropped = total;
+            lastAlarmNanos = now;
+            return Long.MAX_VALUE;
+        } finally {
+            consumeLock.unlock();
+        }
+    }
+
+    private void alarm(String message) {
+        try {
+            alarm.alarm(message);
+        } catch (Throwable t) {
+            logger.warn("async advice alarm failed.", t);
+        }
+    }
+
+    /*
+     * 在工作线程上回放事件
+     */
+    private void replay(Event event) {
+        final Arguments args = Arguments.wrap(event.params);
+        if ((capabilities & CAPABILITY_BEFORE) != 0) {
+            AdviceWeaver.replayBefore(delegate, event.method, event.target, args);
+        }
+        if (event.isFinished) {
+            AdviceWeaver.replayAfter(delegate, event.isThrowing, event.method, event.target, args,
+                    event.returnOrThrowable, event.costNanos);
+        }
+    }
+
+    /**
+     * 通知事件<br/>
+     * 在业务线程上抓取,入队后不再修改
+     */
+    private static final class Event {
+
+        private final WovenMethod method;
+        private final Object target;
+        private final Object[] params;
+
+        // 方法是否已经结束,否则只有前置通知
+        private final boolean isFinished;
+        private final boolean isThrowing;
+        private final Object returnOrThrowable;
+
+        // 业务线程上测得的耗时(纳秒),只有前置通知时为-1
+        private final long costNanos;
+
+        private Event(WovenMethod method, Object target, Object[] params,
+                      boolean isFinished, boolean isThrowing, Object returnOrThrowable,
+                      long costNanos) {
+            this.method = method;
+            this.target = target;
+            this.params = params;
+            this.isFinished = isFinished;
+            this.isThrowing = isThrowing;
+            this.returnOrThrowable = returnOrThrowable;
+            this.costNanos = costNanos;
+        }
+
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.github.ompc.greys.core.advisor;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步通知的工作线程<br/>
+ * 每个会话一个,会话中所有异步监听器的事件都在这个线程上回放,不会每条命令新建一个线程。
+ * 线程在第一个监听器挂上来时才启动;所有队列都为空时一直休眠,
+ * 直到某个队列由空变为非空时被生产者唤醒,只有等待发出丢弃告警时才会定时醒来
+ * Created by oldmanpushcart@gmail.com on 15/12/3.
+ */
+public class AsyncAdviceWorker {
+
+    // 关闭时等待工作线程退出的时间(毫秒)
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 3000L;
+
+    private final String name;
+    private final CopyOnWriteArrayList<AsyncAdviceListener> listeners = new CopyOnWriteArrayList<AsyncAdviceListener>();
+
+    private volatile boolean isRunning = true;
+    private volatile Thread thread;
+
+    /**
+     * 构建工作线程,此时还不会启动
+     *
+     * @param name 线程名
+     */
+    public AsyncAdviceWorker(String name) {
+        this.name = name;
+    }
+
+    /*
+     * 挂上监听器,第一次挂上时启动线程
+     */
+    synchronized void attach(AsyncAdviceListener listener) {
+        if (!isRunning) {
+            throw new IllegalStateException(name + " was shutdown.");
+        }
+        listeners.add(listener);
+        if (null == thread) {
+            final Thread thread = new Thread(name) {
+                @Override
+                public void run() {
+                    work();
+                }
+            };
+            thread.setDaemon(true);
+            this.thread = thread;
+            thread.start();
+        }
+        signal();
+    }
+
+    /*
+     * 摘下监听器,之后不会再回放它的事件
+     */
+    void detach(AsyncAdviceListener listener) {
+        listeners.remove(listener);
+    }
+
+    /*
+     * 唤醒工作线程,由生产者在队列由空变为非空时调用
+     */
+    void signal() {
+        final Thread thread = this.thread;
+        if (null != thread) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * 关闭工作线程,会话销毁时调用<br/>
+     * 还挂着的监听器由各自的destroy()清理
+     */
+    public void shutdown() {
+        final Thread thread;
+        synchronized (this) {
+            isRunning = false;
+            thread = this.thread;
+        }
+        if (null == thread) {
+            return;
+        }
+        LockSupport.unpark(thread);
+        try {
+            thread.join(SHUTDOWN_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void work() {
+        while (isRunning) {
+
+            boolean isBusy = false;
+            long idleNanos = Long.MAX_VALUE;
+            for (AsyncAdviceListener listener : listeners) {
+                isBusy |= listener.drain();
+                idleNanos = Math.min(idleNanos, listener.alarmDropped(System.nanoTime()));
+            }
+
+            // 先判断所有队列都为空再休眠,判断之后写入的生产者会负责唤醒
+            if (isBusy) {
+                continue;
+            }
+            if (idleNanos == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, idleNanos);
+            }
+
+        }
+    }
+
+}
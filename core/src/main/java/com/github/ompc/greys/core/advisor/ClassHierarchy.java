@@ -0,0 +1,194 @@
+package com.github.ompc.greys.core.advisor;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+import static org.apache.commons.io.IOUtils.toByteArray;
+
+/**
+ * 类继承关系<br/>
+ * ClassWriter计算帧时需要求两个类的共同父类,直接Class.forName()会把类加载进JVM,不仅慢,
+ * 还会改变目标应用的类加载顺序。这里改为通过ClassReader从类文件中读取父类和接口,
+ * 只有在找不到类文件(例如动态生成的类)时才退回到Class.forName()<br/>
+ * 继承关系按ClassLoader缓存,ClassLoader被回收后缓存随之失效
+ * Created by oldmanpushcart@gmail.com on 15/11/20.
+ */
+class ClassHierarchy {
+
+    private static final String OBJECT_CLASS_NAME = "java/lang/Object";
+
+    // ClassLoader -> (类名 -> 类结构)
+    private static final Map<ClassLoader, Map<String, ClassMeta>> classMetasCache
+            = new WeakHashMap<ClassLoader, Map<String, ClassMeta>>();
+
+    /**
+     * 类结构
+     */
+    private static class ClassMeta {
+
+        private final boolean isInterface;
+        private final String superName;
+        private final String[] interfaces;
+
+        private ClassMeta(boolean isInterface, String superName, String[] interfaces) {
+            this.isInterface = isInterface;
+            this.superName = superName;
+            this.interfaces = interfaces;
+        }
+
+    }
+
+    /**
+     * 求两个类的共同父类
+     *
+     * @param loader 类所在的ClassLoader
+     * @param type1  类名(内部名称)
+     * @param type2  类名(内部名称)
+     * @return 共同父类的类名(内部名称)
+     */
+    static String getCommonSuperClass(ClassLoader loader, String type1, String type2) {
+
+        final Map<String, ClassMeta> classMetas = getClassMetas(loader);
+
+        if (isAssignableFrom(loader, classMetas, type1, type2)) {
+            return type1;
+        }
+        if (isAssignableFrom(loader, classMetas, type2, type1)) {
+            return type2;
+        }
+        if (getClassMeta(loader, classMetas, type1).isInterface
+                || getClassMeta(loader, classMetas, type2).isInterface) {
+            return OBJECT_CLASS_NAME;
+        }
+
+        // type2的所有父类
+        final Set<String> superNamesOfType2 = new HashSet<String>();
+        for (String name = type2; null != name; name = getClassMeta(loader, classMetas, name).superName) {
+            superNamesOfType2.add(name);
+        }
+
+        // 沿着type1的父类向上找到第一个共同的父类
+        for (String name = type1; null != name; name = getClassMeta(loader, classMetas, name).superName) {
+            if (superNamesOfType2.contains(name)) {
+                return name;
+            }
+        }
+        return OBJECT_CLASS_NAME;
+    }
+
+    /*
+     * to是否可以由from赋值,即from是否为to本身或to的子类/实现类
+     */
+    private static boolean isAssignableFrom(ClassLoader loader, Map<String, ClassMeta> classMetas, String to, String from) {
+
+        if (to.equals(OBJECT_CLASS_NAME)) {
+            return true;
+        }
+
+        final Set<String> visited = new HashSet<String>();
+        final LinkedList<String> queue = new LinkedList<String>();
+        queue.add(from);
+        while (!queue.isEmpty()) {
+            final String name = queue.removeFirst();
+            if (name.equals(to)) {
+                return true;
+            }
+            if (!visited.add(name)) {
+                continue;
+            }
+            final ClassMeta classMeta = getClassMeta(loader, classMetas, name);
+            if (null != classMeta.superName) {
+                queue.add(classMeta.superName);
+            }
+            queue.addAll(Arrays.asList(classMeta.interfaces));
+        }
+        return false;
+    }
+
+    private static Map<String, ClassMeta> getClassMetas(ClassLoader loader) {
+        synchronized (classMetasCache) {
+            Map<String, ClassMeta> classMetas = classMetasCache.get(loader);
+            if (null == classMetas) {
+                classMetasCache.put(loader, classMetas = new ConcurrentHashMap<String, ClassMeta>());
+            }
+            return classMetas;
+        }
+    }
+
+    private static ClassMeta getClassMeta(ClassLoader loader, Map<String, ClassMeta> classMetas, String name) {
+        ClassMeta classMeta = classMetas.get(name);
+        if (null == classMeta) {
+            classMeta = readClassMeta(loader, name);
+            classMetas.put(name, classMeta);
+        }
+        return classMeta;
+    }
+
+    /*
+     * 读取类结构,优先读类文件,找不到类文件时才加载类
+     */
+    private static ClassMeta readClassMeta(ClassLoader loader, String name) {
+
+        try {
+            final byte[] bytes = getClassFileBytes(loader, name);
+            if (null != bytes) {
+                final ClassReader cr = new ClassReader(bytes);
+                return new ClassMeta(
+                        (cr.getAccess() & Opcodes.ACC_INTERFACE) != 0,
+                        cr.getSuperName(),
+                        cr.getInterfaces()
+                );
+            }
+        } catch (Throwable t) {
+            // 类文件无法解析时退回到加载类
+        }
+
+        try {
+            final Class<?> clazz = Class.forName(name.replace('/', '.'), false, loader);
+            final Class<?> superClass = clazz.getSuperclass();
+            final Class<?>[] interfaceClasses = clazz.getInterfaces();
+            final String[] interfaces = new String[interfaceClasses.length];
+            for (int index = 0; index < interfaces.length; index++) {
+                interfaces[index] = interfaceClasses[index].getName().replace('.', '/');
+            }
+            return new ClassMeta(
+                    clazz.isInterface(),
+                    null == superClass ? null : superClass.getName().replace('.', '/'),
+                    interfaces
+            );
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+
+    }
+
+    /**
+     * 从ClassLoader中读取类文件
+     *
+     * @param loader ClassLoader,bootstrap时为null
+     * @param name   类名(内部名称)
+     * @return 类文件字节码,找不到类文件时为null
+     * @throws IOException 读取失败
+     */
+    static byte[] getClassFileBytes(ClassLoader loader, String name) throws IOException {
+        final String resourceName = name + ".class";
+        final InputStream is = null == loader
+                ? ClassLoader.getSystemResourceAsStream(resourceName)
+                : loader.getResourceAsStream(resourceName);
+        if (null == is) {
+            return null;
+        }
+        try {
+            return toByteArray(is);
+        } finally {
+            closeQuietly(is);
+        }
+    }
+
+}
@@ -2,7 +2,7 @@ package com.github.ompc.greys.core.advisor;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
 
 /**
  * 上下文
@@ -10,11 +10,14 @@ import static java.lang.System.currentTimeMillis;
  */
 public class Context {
 
-    // 上下文初始化时间
-    private final long initTimestamp = currentTimeMillis();
+    // 上下文初始化时间(纳秒)
+    private final long initNanos = nanoTime();
 
-    // 上下文从初始化到关闭所消耗的时间
-    private long cost;
+    // 上下文从初始化到关闭所消耗的时间(纳秒)
+    private long costNanos;
+
+    // 线程资源使用,只有标记过的上下文才会记录
+    private ThreadUsage threadUsage;
 
     // 上下文关闭标记
     private final AtomicBoolean isCloseRef = new AtomicBoolean(false);
@@ -22,10 +25,35 @@ public class Context {
     /**
      * 获取上下文从初始化到关闭所消耗的时间
      *
-     * @return 耗时
+     * @return 耗时(毫秒),精确到纳秒
+     */
+    public double getCost() {
+        return costNanos / 1000000d;
+    }
+
+    /**
+     * 获取上下文从初始化到关闭所消耗的时间
+     *
+     * @return 耗时(纳秒)
+     */
+    public long getCostNanos() {
+        return costNanos;
+    }
+
+    /**
+     * 开始记录线程资源使用,上下文关闭时结束
+     */
+    public void markThreadUsage() {
+        threadUsage = ThreadUsage.begin();
+    }
+
+    /**
+     * 获取上下文从初始化到关闭的线程资源使用
+     *
+     * @return 线程资源使用,没有标记时为null
      */
-    public long getCost() {
-        return cost;
+    public ThreadUsage getThreadUsage() {
+        return threadUsage;
     }
 
     /**
@@ -34,11 +62,26 @@ public class Context {
      * @return this
      */
     public Context close() {
+        return close(-1);
+    }
+
+    /**
+     * 关闭上下文
+     *
+     * @param costNanos 外部测量的耗时(纳秒),例如编织者在方法边界上测量的耗时;为负数时按上下文从初始化到关闭计算
+     * @return this
+     */
+    public Context close(long costNanos) {
         if (!isCloseRef.compareAndSet(false, true)) {
             throw new IllegalStateException("Context already closed.");
         }
 
-        cost = currentTimeMillis() - initTimestamp;
+        this.costNanos = costNanos >= 0
+                ? costNanos
+                : nanoTime() - initNanos;
+        if (null != threadUsage) {
+            threadUsage.end();
+        }
         return this;
     }
 
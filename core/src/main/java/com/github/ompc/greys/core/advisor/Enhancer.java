@@ -8,6 +8,7 @@ import com.github.ompc.greys.core.util.SearchUtils;
 import com.github.ompc.greys.core.util.affect.EnhancerAffect;
 import org.apache.commons.lang3.StringUtils;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.slf4j.Logger;
 
@@ -21,16 +22,20 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.security.ProtectionDomain;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.github.ompc.greys.core.util.GaCheckUtils.isEquals;
 import static com.github.ompc.greys.core.util.GaReflectUtils.defineClass;
 import static com.github.ompc.greys.core.util.GaReflectUtils.getVisibleMethods;
 import static java.lang.System.arraycopy;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.apache.commons.io.FileUtils.writeByteArrayToFile;
 import static org.apache.commons.io.IOUtils.toByteArray;
 import static org.apache.commons.lang3.reflect.FieldUtils.getField;
 import static org.apache.commons.lang3.reflect.MethodUtils.invokeStaticMethod;
 import static org.objectweb.asm.ClassReader.EXPAND_FRAMES;
+import static org.objectweb.asm.Opcodes.V1_6;
 import static org.objectweb.asm.ClassWriter.COMPUTE_FRAMES;
 import static org.objectweb.asm.ClassWriter.COMPUTE_MAXS;
 
@@ -43,33 +48,76 @@ public class Enhancer implements ClassFileTransformer {
 
     private static final Logger logger = LogUtil.getLogger();
 
-    private final int adviceId;
-    private final boolean isTracing;
+    private final Probe probe;
     private final Set<Class<?>> matchingClasses;
-    private final Matcher methodNameMatcher;
     private final EnhancerAffect affect;
 
+    // 类-预先编织好的字节码
+    private final Map<Class<?>, WovenClass> preWovenClasses;
+
+    // 实际使用了预先编织结果的类个数
+    private final AtomicInteger preWovenHits = new AtomicInteger();
+
     // 类-字节码缓存
-    private final static Map<Class<?>/*Class*/, byte[]/*bytes of Class*/> classBytesCache
-            = new WeakHashMap<Class<?>, byte[]>();
+    // 按探针分层,移除探针时只需要从原始字节码重新织入剩下的探针
+    private final static LayeredClassCache<Probe> classCache
+            = new LayeredClassCache<Probe>();
+
+    // 增强条件-探针
+    // 命令结束后织入的代码并不会被立即清除,只是关闭了通知开关,相同条件的增强可以直接复用
+    // 超出保留个数的空闲探针会被回收,参考shrink()
+    private final static Map<ProbeKey, Probe> probes
+            = new HashMap<ProbeKey, Probe>();
+
+    // 探针绑定序列,用于找出最久未被使用的空闲探针
+    private static long probeBindSequence = 0;
+
+    // 已经派遣过间谍的ClassLoader
+    // Greys重新加载后Enhancer也会被重新加载,间谍自然会被重新初始化
+    private final static Set<ClassLoader> spiedClassLoaders
+            = Collections.newSetFromMap(new WeakHashMap<ClassLoader, Boolean>());
+
+    // 编织线程池
+    // 线程空闲一段时间后自动退出,Greys重置后不会残留线程
+    private final static ExecutorService weavingExecutor;
+
+    static {
+        final int nThreads = Runtime.getRuntime().availableProcessors();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                nThreads, nThreads,
+                60, SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+
+                    private final AtomicInteger sequence = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread t = new Thread(r, "ga-enhancer-weaving-daemon-" + sequence.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+
+                }
+        );
+        executor.allowCoreThreadTimeOut(true);
+        weavingExecutor = executor;
+    }
 
     /**
-     * @param adviceId          通知编号
-     * @param isTracing         可跟踪方法调用
-     * @param matchingClasses   匹配中的类
-     * @param methodNameMatcher 方法名匹配
-     * @param affect            影响统计
+     * @param probe           探针
+     * @param matchingClasses 匹配中的类
+     * @param affect          影响统计
+     * @param preWovenClasses 预先编织好的类
      */
-    private Enhancer(int adviceId,
-                     boolean isTracing,
+    private Enhancer(Probe probe,
                      Set<Class<?>> matchingClasses,
-                     Matcher methodNameMatcher,
-                     EnhancerAffect affect) {
-        this.adviceId = adviceId;
-        this.isTracing = isTracing;
+                     EnhancerAffect affect,
+                     Map<Class<?>, WovenClass> preWovenClasses) {
+        this.probe = probe;
         this.matchingClasses = matchingClasses;
-        this.methodNameMatcher = methodNameMatcher;
         this.affect = affect;
+        this.preWovenClasses = preWovenClasses;
     }
 
 
@@ -86,17 +134,18 @@ public class Enhancer implements ClassFileTransformer {
     }
 
     /*
-     * 派遣间谍混入对方的classloader中
+     * 派遣间谍混入对方的classloader中<br/>
+     * 每个ClassLoader只需要派遣一次
      */
     private void spy(final ClassLoader targetClassLoader)
             throws IOException, NoSuchMethodException, IllegalAccessException, InvocationTargetException {
 
-        // 如果对方是bootstrap就算了
-        if (null == targetClassLoader) {
-            return;
+        synchronized (spiedClassLoaders) {
+            if (spiedClassLoaders.contains(targetClassLoader)) {
+                return;
+            }
         }
 
-
         // Enhancer类只可能从greysClassLoader中加载
         // 所以找他要ClassLoader是靠谱的
         final ClassLoader greysClassLoader = Enhancer.class.getClassLoader();
@@ -109,6 +158,15 @@ public class Enhancer implements ClassFileTransformer {
             return;
         }
 
+        // Greys自己看到的间谍同样需要同步通知开关
+        AdviceWeaver.attachSpy(spyClassFromGreysClassLoader);
+
+        // 如果对方是bootstrap就算了
+        if (null == targetClassLoader) {
+            markSpied(null);
+            return;
+        }
+
         // 从目标ClassLoader中尝试加载或定义ClassLoader
         Class<?> spyClassFromTargetClassLoader = null;
         try {
@@ -135,7 +193,7 @@ public class Enhancer implements ClassFileTransformer {
 
         // 无论从哪里取到spyClass，都需要重新初始化一次
         // 用以兼容重新加载的场景
-        // 当然，这样做会给渲染的过程带来一定的性能开销，不过能简化编码复杂度
+        // Greys重新加载后派遣记录也随之清空，所以每个ClassLoader只需要初始化一次
         finally {
 
             if (null != spyClassFromTargetClassLoader) {
@@ -148,12 +206,40 @@ public class Enhancer implements ClassFileTransformer {
                         getField(spyClassFromGreysClassLoader, "ON_RETURN_METHOD").get(null),
                         getField(spyClassFromGreysClassLoader, "ON_THROWS_METHOD").get(null),
                         getField(spyClassFromGreysClassLoader, "BEFORE_INVOKING_METHOD").get(null),
-                        getField(spyClassFromGreysClassLoader, "AFTER_INVOKING_METHOD").get(null)
+                        getField(spyClassFromGreysClassLoader, "AFTER_INVOKING_METHOD").get(null),
+                        getField(spyClassFromGreysClassLoader, "ON_CAPTURE_METHOD").get(null)
                 );
+
+                // 同步通知开关
+                AdviceWeaver.attachSpy(spyClassFromTargetClassLoader);
             }
 
         }
 
+        // 能支持invokedynamic的JVM上,织入的代码会通过间谍链接器来链接通知
+        // 所以间谍链接器也需要混入对方的classloader中
+        if (AdviceWeaver.isJvmSupportInvokeDynamic()) {
+            try {
+                targetClassLoader.loadClass(GaStringUtils.SPY_LINKER_CLASSNAME);
+            } catch (ClassNotFoundException cnfe) {
+                defineClass(
+                        targetClassLoader,
+                        GaStringUtils.SPY_LINKER_CLASSNAME,
+                        toByteArray(Enhancer.class.getResourceAsStream("/" + GaStringUtils.SPY_LINKER_CLASSNAME.replace('.', '/') + ".class"))
+                );
+            }
+        }
+
+        markSpied(targetClassLoader);
+    }
+
+    /*
+     * 记录已经派遣过间谍的ClassLoader
+     */
+    private static void markSpied(ClassLoader classLoader) {
+        synchronized (spiedClassLoaders) {
+            spiedClassLoaders.add(classLoader);
+        }
     }
 
     @Override
@@ -171,73 +257,46 @@ public class Enhancer implements ClassFileTransformer {
             return null;
         }
 
-        final ClassReader cr;
-
-        // 首先先检查是否在缓存中存在Class字节码
-        // 因为要支持多人协作,存在多人同时增强的情况
-        final byte[] byteOfClassInCache = classBytesCache.get(classBeingRedefined);
-        if (null != byteOfClassInCache) {
-            cr = new ClassReader(byteOfClassInCache);
-        }
-
-        // 如果没有命中缓存,则从原始字节码开始增强
-        else {
-            cr = new ClassReader(classfileBuffer);
-        }
+        try {
 
-        // 字节码增强
-        final ClassWriter cw = new ClassWriter(cr, COMPUTE_FRAMES | COMPUTE_MAXS) {
+            final byte[] enhanceClassByteArray;
+            final int mCnt;
 
-            /*
-             * 注意，为了自动计算帧的大小，有时必须计算两个类共同的父类。
-             * 缺省情况下，ClassWriter将会在getCommonSuperClass方法中计算这些，通过在加载这两个类进入虚拟机时，使用反射API来计算。
-             * 但是，如果你将要生成的几个类相互之间引用，这将会带来问题，因为引用的类可能还不存在。
-             * 在这种情况下，你可以重写getCommonSuperClass方法来解决这个问题。
-             *
-             * 通过重写 getCommonSuperClass() 方法，更正获取ClassLoader的方式，改成使用指定ClassLoader的方式进行。
-             * 规避了原有代码采用Object.class.getClassLoader()的方式
-             */
-            @Override
-            protected String getCommonSuperClass(String type1, String type2) {
-                Class<?> c, d;
-                try {
-                    c = Class.forName(type1.replace('/', '.'), false, inClassLoader);
-                    d = Class.forName(type2.replace('/', '.'), false, inClassLoader);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-                if (c.isAssignableFrom(d)) {
-                    return type1;
-                }
-                if (d.isAssignableFrom(c)) {
-                    return type2;
-                }
-                if (c.isInterface() || d.isInterface()) {
-                    return "java/lang/Object";
-                } else {
-                    do {
-                        c = c.getSuperclass();
-                    } while (!c.isAssignableFrom(d));
-                    return c.getName().replace('.', '/');
-                }
+            // 已经预先编织好的类直接使用
+            final WovenClass wovenClass = preWovenClasses.get(classBeingRedefined);
+            if (null != wovenClass
+                    && wovenClass.isMatch(classfileBuffer)) {
+                enhanceClassByteArray = wovenClass.bytes;
+                mCnt = wovenClass.mCnt;
+                preWovenHits.incrementAndGet();
             }
 
-        };
-
-        try {
-
-            // 生成增强字节码
-            cr.accept(new AdviceWeaver(adviceId, isTracing, cr.getClassName(), methodNameMatcher, affect, cw), EXPAND_FRAMES);
-            final byte[] enhanceClassByteArray = cw.toByteArray();
+            // 因为要支持多人协作,存在多人同时增强的情况,需要在类当前织入的层上继续增强
+            // 首次增强的类直接从JVM交出的原始字节码开始增强
+            else {
+                final EnhancerAffect classAffect = new EnhancerAffect();
+                enhanceClassByteArray = weave(
+                        probe,
+                        classBeingRedefined, inClassLoader,
+                        toCurrent(classBeingRedefined, inClassLoader, classfileBuffer),
+                        classAffect
+                );
+                mCnt = classAffect.mCnt();
+            }
 
             // 生成成功,推入缓存
-            classBytesCache.put(classBeingRedefined, enhanceClassByteArray);
+            // reTransform时JVM交出的总是类的原始字节码
+            classCache.append(classBeingRedefined, classfileBuffer, probe, enhanceClassByteArray);
 
             // dump the class
             dumpClassIfNecessary(className, enhanceClassByteArray, affect);
 
             // 成功计数
             affect.cCnt(1);
+            affect.mCnt(mCnt);
+
+            // 记录到探针中,下次相同条件的增强无需再次渲染
+            probe.woven(classBeingRedefined, mCnt);
 
             // 排遣间谍
             try {
@@ -255,6 +314,137 @@ public class Enhancer implements ClassFileTransformer {
         return null;
     }
 
+    /*
+     * 编织类字节码
+     */
+    private static byte[] weave(final Probe probe,
+                                final Class<?> clazz,
+                                final ClassLoader loader,
+                                final byte[] source,
+                                final EnhancerAffect classAffect) {
+
+        final ClassReader cr = new ClassReader(source);
+
+        // 版本号50(JDK6)以下的类不需要栈帧,只需要计算操作数栈和本地变量表的大小
+        final int major = cr.readUnsignedShort(6);
+        final int flags = major >= V1_6
+                ? COMPUTE_FRAMES | COMPUTE_MAXS
+                : COMPUTE_MAXS;
+
+        // 字节码增强
+        final ClassWriter cw = new ClassWriter(cr, flags) {
+
+            /*
+             * 注意，为了自动计算帧的大小，有时必须计算两个类共同的父类。
+             * 缺省情况下，ClassWriter将会在getCommonSuperClass方法中计算这些，通过在加载这两个类进入虚拟机时，使用反射API来计算。
+             * 但是，如果你将要生成的几个类相互之间引用，这将会带来问题，因为引用的类可能还不存在。
+             * 在这种情况下，你可以重写getCommonSuperClass方法来解决这个问题。
+             *
+             * 这里改为从类文件中读取继承关系，不会把类加载进目标ClassLoader
+             */
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                return ClassHierarchy.getCommonSuperClass(loader, type1, type2);
+            }
+
+        };
+
+        // 生成增强字节码
+        final ProbeKey key = probe.key;
+        cr.accept(new AdviceWeaver(probe.adviceId, key.invokeSiteFilter, key.condition, key.capabilities, clazz, key.methodNameMatcher, classAffect, cw), EXPAND_FRAMES);
+        return cw.toByteArray();
+    }
+
+    /*
+     * 类当前织入的字节码<br/>
+     * 类在缓存之后可能被其他途径修改过(调试器HotSwap、其他Agent的redefine或reTransform),此时JVM交出的原始字节码已经变化,
+     * 缓存中的层需要从新的原始字节码开始重新织入,否则会把旧的代码重新放回JVM
+     */
+    private static byte[] toCurrent(final Class<?> clazz,
+                                    final ClassLoader loader,
+                                    final byte[] classfileBuffer) {
+
+        final byte[] original = classCache.getOriginal(clazz);
+        if (null == original) {
+            return classfileBuffer;
+        }
+        if (Arrays.equals(original, classfileBuffer)) {
+            return classCache.getCurrent(clazz);
+        }
+
+        final List<Probe> layers = classCache.getLayers(clazz);
+        logger.info("class:{} was changed since woven, reweave {} layers.", clazz.getName(), layers.size());
+        classCache.reset(clazz, Collections.<Probe>emptyList(), null);
+        byte[] bytes = classfileBuffer;
+        for (Probe layer : layers) {
+            bytes = weave(layer, clazz, loader, bytes, new EnhancerAffect());
+            classCache.append(clazz, classfileBuffer, layer, bytes);
+        }
+        return bytes;
+    }
+
+    /*
+     * 在线程池中并行编织<br/>
+     * 缓存中已有字节码的类从缓存编织,原始字节码是JVM交出来的;
+     * 首次增强的类从ClassLoader中读取类文件编织,类文件不一定和JVM中正在运行的代码一致<br/>
+     * 编织结果都以所用的原始字节码为键,transform时只有和JVM交出的字节码完全一致才会使用,否则退回到transform中编织
+     */
+    private static Map<Class<?>, WovenClass> preWeave(final Probe probe,
+                                                      final Set<Class<?>> classes) {
+
+        final Map<Class<?>, Future<WovenClass>> futures = new LinkedHashMap<Class<?>, Future<WovenClass>>();
+        for (final Class<?> clazz : classes) {
+            final byte[] originalInCache = classCache.getOriginal(clazz);
+            final byte[] byteOfClassInCache = classCache.getCurrent(clazz);
+            futures.put(clazz, weavingExecutor.submit(new Callable<WovenClass>() {
+                @Override
+                public WovenClass call() throws Exception {
+
+                    final byte[] original;
+                    final byte[] source;
+                    if (null != originalInCache
+                            && null != byteOfClassInCache) {
+                        original = originalInCache;
+                        source = byteOfClassInCache;
+                    } else {
+                        original = source = ClassHierarchy.getClassFileBytes(clazz.getClassLoader(), clazz.getName().replace('.', '/'));
+                        if (null == source) {
+                            return null;
+                        }
+                    }
+
+                    final EnhancerAffect classAffect = new EnhancerAffect();
+                    final byte[] bytes = weave(
+                            probe,
+                            clazz, clazz.getClassLoader(),
+                            source,
+                            classAffect
+                    );
+                    return new WovenClass(bytes, classAffect.mCnt(), original);
+                }
+            }));
+        }
+
+        final Map<Class<?>, WovenClass> wovenClasses = new HashMap<Class<?>, WovenClass>();
+        for (Map.Entry<Class<?>, Future<WovenClass>> entry : futures.entrySet()) {
+            try {
+                final WovenClass wovenClass = entry.getValue().get();
+                if (null != wovenClass) {
+                    wovenClasses.put(entry.getKey(), wovenClass);
+                }
+            } catch (ExecutionException e) {
+                logger.debug("pre-weave {} failed, weave it in transform.", entry.getKey(), e.getCause());
+            } catch (InterruptedException e) {
+                for (Future<WovenClass> future : futures.values()) {
+                    future.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return wovenClasses;
+    }
+
     /*
      * dump class to file
      */
@@ -360,8 +550,10 @@ public class Enhancer implements ClassFileTransformer {
      * 对象增强
      *
      * @param inst              inst
-     * @param adviceId          通知ID
-     * @param isTracing         可跟踪方法调用
+     * @param lock              会话锁,绑定到探针的通知ID上
+     * @param invokeSiteFilter  调用点过滤器,为null时不跟踪方法调用
+     * @param condition         下沉到方法入口的条件,为null时不过滤
+     * @param capabilities      监听器所需的通知能力
      * @param classNameMatcher  类名匹配
      * @param methodNameMatcher 方法名匹配
      * @return 增强影响范围
@@ -369,8 +561,10 @@ public class Enhancer implements ClassFileTransformer {
      */
     public static synchronized EnhancerAffect enhance(
             final Instrumentation inst,
-            final int adviceId,
-            final boolean isTracing,
+            final int lock,
+            final InvokeSiteFilter invokeSiteFilter,
+            final LoweredCondition condition,
+            final int capabilities,
             final Matcher classNameMatcher,
             final Matcher methodNameMatcher) throws UnmodifiableClassException {
 
@@ -382,8 +576,17 @@ public class Enhancer implements ClassFileTransformer {
         // 过滤掉无法被增强的类
         filter(enhanceClassSet);
 
+        // 绑定探针,探针已经织入过的类无需再次增强
+        final Probe probe = bindProbe(lock, invokeSiteFilter, condition, capabilities, classNameMatcher, methodNameMatcher);
+        probe.filter(enhanceClassSet, affect);
+
+        // 预先并行编织,reTransform时只需要直接返回字节码
+        final Map<Class<?>, WovenClass> preWovenClasses = GlobalOptions.isParallelWeaving
+                ? preWeave(probe, enhanceClassSet)
+                : Collections.<Class<?>, WovenClass>emptyMap();
+
         // 构建增强器
-        final Enhancer enhancer = new Enhancer(adviceId, isTracing, enhanceClassSet, methodNameMatcher, affect);
+        final Enhancer enhancer = new Enhancer(probe, enhanceClassSet, affect, preWovenClasses);
         try {
             inst.addTransformer(enhancer, true);
 
@@ -421,6 +624,11 @@ public class Enhancer implements ClassFileTransformer {
             inst.removeTransformer(enhancer);
         }
 
+        if (!preWovenClasses.isEmpty()) {
+            logger.debug("pre-woven {} classes, {} of them matched the bytes from JVM.",
+                    preWovenClasses.size(), enhancer.preWovenHits.get());
+        }
+
         return affect;
     }
 
@@ -434,7 +642,8 @@ public class Enhancer implements ClassFileTransformer {
      */
     public static synchronized EnhancerAffect reset(final Instrumentation inst) throws UnmodifiableClassException {
 
-        final int size = classBytesCache.size();
+        final Set<Class<?>> classes = classCache.classes();
+        final int size = classes.size();
         final EnhancerAffect affect = new EnhancerAffect();
         final ClassFileTransformer resetClassFileTransformer = new ClassFileTransformer() {
             @Override
@@ -452,20 +661,278 @@ public class Enhancer implements ClassFileTransformer {
 
             inst.addTransformer(resetClassFileTransformer, true);
 
-            if (!classBytesCache.isEmpty()) {
+            if (!classes.isEmpty()) {
                 // 批量增强
                 final Class<?>[] classArray = new Class<?>[size];
-                arraycopy(classBytesCache.keySet().toArray(), 0, classArray, 0, size);
+                arraycopy(classes.toArray(), 0, classArray, 0, size);
                 inst.retransformClasses(classArray);
             }
 
         } finally {
             inst.removeTransformer(resetClassFileTransformer);
-            affect.cCnt(classBytesCache.size());
-            classBytesCache.clear();
+            affect.cCnt(size);
+            classCache.clear();
+            for (Class<?> clazz : classes) {
+                MethodRegistry.release(clazz);
+            }
+            for (Probe probe : probes.values()) {
+                InlineCounters.release(probe.adviceId);
+                AdviceWeaver.retireAdviceId(probe.adviceId);
+            }
+            probes.clear();
+        }
+
+        return affect;
+    }
+
+    /**
+     * 回收空闲探针<br/>
+     * 保留最近使用过的capacity个空闲探针以便复用,其余空闲探针从类中移除;
+     * 仍被会话使用的探针不受影响。只有被回收探针织入过的类才会被重新reTransform,
+     * 这些类从原始字节码开始依次重新织入剩下的探针
+     *
+     * @param inst     inst
+     * @param capacity 保留的空闲探针个数
+     * @return 增强影响范围
+     * @throws UnmodifiableClassException 重新织入失败
+     */
+    public static synchronized EnhancerAffect shrink(final Instrumentation inst, final int capacity) throws UnmodifiableClassException {
+
+        final EnhancerAffect affect = new EnhancerAffect();
+
+        // 空闲探针,按最近一次绑定由新到旧排列
+        final List<Probe> idleProbes = new ArrayList<Probe>();
+        for (Probe probe : probes.values()) {
+            if (!AdviceWeaver.isBound(probe.adviceId)) {
+                idleProbes.add(probe);
+            }
+        }
+        if (idleProbes.size() <= capacity) {
+            return affect;
+        }
+        Collections.sort(idleProbes, new Comparator<Probe>() {
+            @Override
+            public int compare(Probe o1, Probe o2) {
+                return o1.lastBound > o2.lastBound ? -1 : (o1.lastBound == o2.lastBound ? 0 : 1);
+            }
+        });
+
+        // 需要回收的探针,以及被这些探针织入过的类
+        final Set<Probe> retiredProbes = new HashSet<Probe>(idleProbes.subList(Math.max(capacity, 0), idleProbes.size()));
+        final Set<Class<?>> affectClassSet = new LinkedHashSet<Class<?>>();
+        for (Probe probe : retiredProbes) {
+            probes.remove(probe.key);
+            affectClassSet.addAll(probe.classes());
+            InlineCounters.release(probe.adviceId);
+            AdviceWeaver.retireAdviceId(probe.adviceId);
+        }
+
+        if (affectClassSet.isEmpty()) {
+            return affect;
+        }
+
+        final ClassFileTransformer shrinkClassFileTransformer = new ClassFileTransformer() {
+            @Override
+            public byte[] transform(
+                    ClassLoader loader,
+                    String className,
+                    Class<?> classBeingRedefined,
+                    ProtectionDomain protectionDomain,
+                    byte[] classfileBuffer) throws IllegalClassFormatException {
+
+                if (null == classBeingRedefined
+                        || !affectClassSet.contains(classBeingRedefined)) {
+                    return null;
+                }
+
+                // 剩下的层
+                final List<Probe> layers = classCache.getLayers(classBeingRedefined);
+                layers.removeAll(retiredProbes);
+
+                // 没有剩下的层,直接恢复原始字节码
+                if (layers.isEmpty()) {
+                    classCache.reset(classBeingRedefined, layers, null);
+                    MethodRegistry.release(classBeingRedefined);
+                    return null;
+                }
+
+                // 从原始字节码开始依次织入剩下的层
+                try {
+                    byte[] bytes = classfileBuffer;
+                    for (Probe layer : layers) {
+                        bytes = weave(layer, classBeingRedefined, loader, bytes, new EnhancerAffect());
+                    }
+                    classCache.reset(classBeingRedefined, layers, bytes);
+                    return bytes;
+                } catch (Throwable t) {
+                    logger.warn("shrink class:{} failed, restore to original.", className, t);
+                    classCache.reset(classBeingRedefined, Collections.<Probe>emptyList(), null);
+                    MethodRegistry.release(classBeingRedefined);
+                    for (Probe layer : layers) {
+                        layer.unWoven(classBeingRedefined);
+                    }
+                    return null;
+                }
+            }
+        };
+
+        try {
+            inst.addTransformer(shrinkClassFileTransformer, true);
+            final int size = affectClassSet.size();
+            final Class<?>[] classArray = new Class<?>[size];
+            arraycopy(affectClassSet.toArray(), 0, classArray, 0, size);
+            inst.retransformClasses(classArray);
+            affect.cCnt(size);
+        } finally {
+            inst.removeTransformer(shrinkClassFileTransformer);
         }
 
         return affect;
     }
 
+    /*
+     * 为会话绑定探针<br/>
+     * 相同增强条件的探针若处于空闲状态则直接复用,否则分配新的通知ID新建探针
+     */
+    private static Probe bindProbe(final int lock,
+                                   final InvokeSiteFilter invokeSiteFilter,
+                                   final LoweredCondition condition,
+                                   final int capabilities,
+                                   final Matcher classNameMatcher,
+                                   final Matcher methodNameMatcher) {
+        final ProbeKey key = new ProbeKey(invokeSiteFilter, condition, capabilities, classNameMatcher, methodNameMatcher);
+        Probe probe = probes.get(key);
+        if (null == probe
+                || AdviceWeaver.isBound(probe.adviceId)) {
+            probes.put(key, probe = new Probe(AdviceWeaver.allocateAdviceId(), key));
+        }
+        probe.lastBound = ++probeBindSequence;
+        AdviceWeaver.bind(lock, probe.adviceId);
+        return probe;
+    }
+
+    /**
+     * 探针增强条件
+     */
+    private static class ProbeKey {
+
+        private final InvokeSiteFilter invokeSiteFilter;
+        private final LoweredCondition condition;
+        private final int capabilities;
+        private final Matcher classNameMatcher;
+        private final Matcher methodNameMatcher;
+
+        private ProbeKey(InvokeSiteFilter invokeSiteFilter, LoweredCondition condition, int capabilities, Matcher classNameMatcher, Matcher methodNameMatcher) {
+            this.invokeSiteFilter = invokeSiteFilter;
+            this.condition = condition;
+            this.capabilities = capabilities;
+            this.classNameMatcher = classNameMatcher;
+            this.methodNameMatcher = methodNameMatcher;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ProbeKey
+                    && isEquals(invokeSiteFilter, ((ProbeKey) obj).invokeSiteFilter)
+                    && isEquals(condition, ((ProbeKey) obj).condition)
+                    && capabilities == ((ProbeKey) obj).capabilities
+                    && isEquals(classNameMatcher, ((ProbeKey) obj).classNameMatcher)
+                    && isEquals(methodNameMatcher, ((ProbeKey) obj).methodNameMatcher);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = null == invokeSiteFilter ? 0 : invokeSiteFilter.hashCode();
+            result = 31 * result + (null == condition ? 0 : condition.hashCode());
+            result = 31 * result + capabilities;
+            result = 31 * result + (null == classNameMatcher ? 0 : classNameMatcher.hashCode());
+            result = 31 * result + (null == methodNameMatcher ? 0 : methodNameMatcher.hashCode());
+            return result;
+        }
+    }
+
+    /**
+     * 预先编织好的类
+     */
+    private static class WovenClass {
+
+        private final byte[] bytes;
+        private final int mCnt;
+
+        // 编织所用的原始字节码,缓存中的原始字节码或者类文件
+        private final byte[] original;
+
+        private WovenClass(byte[] bytes, int mCnt, byte[] original) {
+            this.bytes = bytes;
+            this.mCnt = mCnt;
+            this.original = original;
+        }
+
+        /*
+         * 是否与JVM交出的原始字节码一致
+         */
+        boolean isMatch(byte[] classfileBuffer) {
+            return Arrays.equals(original, classfileBuffer);
+        }
+
+    }
+
+    /**
+     * 探针<br/>
+     * 同一个通知ID织入的类集合
+     */
+    private static class Probe {
+
+        private final int adviceId;
+        private final ProbeKey key;
+
+        // 最近一次被绑定的序列
+        private long lastBound;
+
+        // 已织入的类 -> 织入的方法数
+        private final Map<Class<?>, Integer> wovenClasses = new WeakHashMap<Class<?>, Integer>();
+
+        private Probe(int adviceId, ProbeKey key) {
+            this.adviceId = adviceId;
+            this.key = key;
+        }
+
+        /*
+         * 记录织入成功的类
+         */
+        synchronized void woven(Class<?> clazz, int mCnt) {
+            wovenClasses.put(clazz, mCnt);
+        }
+
+        /*
+         * 类已经恢复为原始字节码
+         */
+        synchronized void unWoven(Class<?> clazz) {
+            wovenClasses.remove(clazz);
+        }
+
+        /*
+         * 已织入的类
+         */
+        synchronized Set<Class<?>> classes() {
+            return new LinkedHashSet<Class<?>>(wovenClasses.keySet());
+        }
+
+        /*
+         * 过滤掉已经织入过的类,并将其计入影响范围
+         */
+        synchronized void filter(Set<Class<?>> classes, EnhancerAffect affect) {
+            final Iterator<Class<?>> it = classes.iterator();
+            while (it.hasNext()) {
+                final Integer mCnt = wovenClasses.get(it.next());
+                if (null != mCnt) {
+                    it.remove();
+                    affect.cCnt(1);
+                    affect.mCnt(mCnt);
+                }
+            }
+        }
+
+    }
+
 }
\ No newline at end of file
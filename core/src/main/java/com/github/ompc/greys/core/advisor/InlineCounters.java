@@ -0,0 +1,235 @@
+package com.github.ompc.greys.core.advisor;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 内联计数器<br/>
+ * 声明了{@link AdviceListener#CAPABILITY_INLINE_COUNTING}的监听器不会织入任何钩子,
+ * 织入的代码直接在方法前后调用System.nanoTime(),并从间谍的静态字段中取出计数槽位,把调用次数和耗时原子地累加到当前线程的条带上,
+ * 整个过程不调用间谍的任何方法,也没有反射调用和对象分配<br/>
+ * 每个被织入的方法在编织时分配一个计数槽位,槽位按线程ID分成若干条带,条带之间间隔128字节,
+ * 不论数组是否按缓存行对齐,不同条带的计数都不会落在同一个缓存行上;读取时再把所有条带加起来<br/>
+ * 回收的槽位重新分配时会换成新的计数数组并递增分配代数,恢复之前已经进入的方法结束时代数对不上,计数直接丢弃,
+ * 不会累加到新的方法上<br/>
+ * 计数器只增不减,读取方通过前后两次读数之差得到周期内的统计
+ * Created by oldmanpushcart@gmail.com on 15/11/24.
+ */
+public class InlineCounters {
+
+    // -- 计数槽位的布局,织入的代码直接按这个布局访问 --
+
+    /**
+     * 槽位头部:分配代数
+     */
+    static final int GENERATION = 0;
+
+    /**
+     * 槽位头部占用的long个数,填充到128字节
+     */
+    static final int HEADER_SIZE = 16;
+
+    /**
+     * 条带数,必须是2的幂
+     */
+    static final int STRIPES = 16;
+
+    /**
+     * 每个条带占用的long个数为1 << STRIPE_SHIFT,即128字节
+     */
+    static final int STRIPE_SHIFT = 4;
+
+    /**
+     * 条带内:成功次数
+     */
+    static final int FIELD_SUCCESS = 0;
+
+    /**
+     * 条带内:失败次数
+     */
+    static final int FIELD_FAILED = 1;
+
+    /**
+     * 条带内:累计耗时(纳秒)
+     */
+    static final int FIELD_COST = 2;
+
+    // 每个槽位占用的long个数
+    private static final int SLOT_SIZE = HEADER_SIZE + (STRIPES << STRIPE_SHIFT);
+
+    // 槽位 -> 计数
+    // 织入的代码通过间谍读取,数组发布后不再修改,分配槽位时整体替换并发布到所有的间谍中
+    private static volatile AtomicLongArray[] counters = new AtomicLongArray[0];
+
+    // 下一个未分配过的槽位
+    private static int nextSlot = 0;
+
+    // 下一个分配代数
+    private static int nextGeneration = 1;
+
+    // 被回收的槽位
+    private static final LinkedList<Integer> freeSlots = new LinkedList<Integer>();
+
+    // 通知ID -> (方法ID -> 槽位)
+    private static final Map<Integer, Map<Integer, Integer>> slotIndex
+            = new HashMap<Integer, Map<Integer, Integer>>();
+
+    /**
+     * 分配计数槽位<br/>
+     * 仅在编织时调用,同一个通知ID下的同一个方法多次编织时复用同一个槽位
+     *
+     * @param adviceId 通知ID
+     * @param methodId 方法ID
+     * @return 槽位
+     */
+    static synchronized int register(int adviceId, int methodId) {
+
+        Map<Integer, Integer> methodSlots = slotIndex.get(adviceId);
+        if (null == methodSlots) {
+            slotIndex.put(adviceId, methodSlots = new HashMap<Integer, Integer>());
+        }
+
+        final Integer exist = methodSlots.get(methodId);
+        if (null != exist) {
+            return exist;
+        }
+
+        final int slot = freeSlots.isEmpty()
+                ? nextSlot++
+                : freeSlots.removeFirst();
+
+        // 回收的槽位换成新的计数数组,旧代码仍然持有的数组不再被读取
+        final AtomicLongArray slotCounters = new AtomicLongArray(SLOT_SIZE);
+        slotCounters.set(GENERATION, nextGeneration++);
+
+        final AtomicLongArray[] current = counters;
+        final AtomicLongArray[] array = Arrays.copyOf(current, Math.max(current.length, slot + 1));
+        array[slot] = slotCounters;
+        counters = array;
+        AdviceWeaver.publishInlineCounters(array);
+
+        methodSlots.put(methodId, slot);
+        return slot;
+    }
+
+    /**
+     * 获取槽位当前的分配代数<br/>
+     * 织入的代码计数时会比对代数
+     *
+     * @param slot 槽位
+     * @return 分配代数
+     */
+    static int getGeneration(int slot) {
+        return (int) counters[slot].get(GENERATION);
+    }
+
+    /**
+     * 回收通知ID下所有的计数槽位<br/>
+     * 探针被移除后调用
+     *
+     * @param adviceId 通知ID
+     */
+    static synchronized void release(int adviceId) {
+        final Map<Integer, Integer> methodSlots = slotIndex.remove(adviceId);
+        if (null != methodSlots) {
+            freeSlots.addAll(methodSlots.values());
+        }
+    }
+
+    /**
+     * 获取所有的计数
+     *
+     * @return 槽位 -> 计数
+     */
+    static AtomicLongArray[] getCounters() {
+        return counters;
+    }
+
+    /**
+     * 读取会话的当前计数
+     *
+     * @param lock 会话锁
+     * @return 方法 -> 计数
+     */
+    public static Map<WovenMethod, Count> read(int lock) {
+
+        final Map<Integer, Integer> methodSlots;
+        synchronized (InlineCounters.class) {
+            final Map<Integer, Integer> exist = slotIndex.get(AdviceWeaver.toAdviceId(lock));
+            if (null == exist) {
+                return Collections.emptyMap();
+            }
+            methodSlots = new HashMap<Integer, Integer>(exist);
+        }
+
+        final AtomicLongArray[] array = counters;
+        final Map<WovenMethod, Count> counts = new LinkedHashMap<WovenMethod, Count>();
+        for (Map.Entry<Integer, Integer> entry : methodSlots.entrySet()) {
+            final WovenMethod method = MethodRegistry.get(entry.getKey());
+            if (null == method) {
+                continue;
+            }
+            final AtomicLongArray slotCounters = array[entry.getValue()];
+            long success = 0, failed = 0, cost = 0;
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                final int offset = HEADER_SIZE + (stripe << STRIPE_SHIFT);
+                success += slotCounters.get(offset + FIELD_SUCCESS);
+                failed += slotCounters.get(offset + FIELD_FAILED);
+                cost += slotCounters.get(offset + FIELD_COST);
+            }
+            counts.put(method, new Count(success, failed, cost));
+        }
+        return counts;
+    }
+
+    /**
+     * 方法计数
+     */
+    public static class Count {
+
+        private final long success;
+        private final long failed;
+        private final long cost;
+
+        Count(long success, long failed, long cost) {
+            this.success = success;
+            this.failed = failed;
+            this.cost = cost;
+        }
+
+        /**
+         * 成功次数
+         */
+        public long getSuccess() {
+            return success;
+        }
+
+        /**
+         * 失败次数
+         */
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * 累计耗时(纳秒)
+         */
+        public long getCost() {
+            return cost;
+        }
+
+        /**
+         * 与之前的计数相减,得到两次读数之间的计数
+         *
+         * @param before 之前的计数,为null时视为0
+         * @return 两次读数之间的计数
+         */
+        public Count minus(Count before) {
+            return null == before
+                    ? this
+                    : new Count(success - before.success, failed - before.failed, cost - before.cost);
+        }
+
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.github.ompc.greys.core.advisor;
+
+import static com.github.ompc.greys.core.util.GaStringUtils.tranClassName;
+
+/**
+ * 方法调用点<br/>
+ * 编织时由{@link InvokeSiteRegistry}为被跟踪方法内的每一个方法调用指令分配调用点ID,
+ * 织入的代码只需要传递这个ID,运行时通过数组下标即可找到调用点
+ * Created by oldmanpushcart@gmail.com on 15/11/23.
+ */
+public class InvokeSite {
+
+    private final int id;
+    private final int methodId;
+    private final String owner;
+    private final String name;
+    private final String desc;
+
+    // 展示用的名称,第一次渲染时才拼接
+    private String title;
+
+    InvokeSite(int id, int methodId, String owner, String name, String desc) {
+        this.id = id;
+        this.methodId = methodId;
+        this.owner = owner;
+        this.name = name;
+        this.desc = desc;
+    }
+
+    /**
+     * 获取调用点ID
+     *
+     * @return 调用点ID
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * 获取调用点所在的方法
+     *
+     * @return 调用点所在的方法
+     */
+    public WovenMethod getMethod() {
+        return MethodRegistry.get(methodId);
+    }
+
+    /**
+     * 获取被调用的类名(内部名称)
+     *
+     * @return 被调用的类名,如java/lang/String
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDesc() {
+        return desc;
+    }
+
+    @Override
+    public String toString() {
+        if (null == title) {
+            title = tranClassName(owner) + ":" + name + "()";
+        }
+        return title;
+    }
+
+}
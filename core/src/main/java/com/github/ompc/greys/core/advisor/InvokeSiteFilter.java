@@ -0,0 +1,107 @@
+package com.github.ompc.greys.core.advisor;
+
+import com.github.ompc.greys.core.util.Matcher;
+import org.objectweb.asm.Type;
+
+import static com.github.ompc.greys.core.util.GaCheckUtils.isEquals;
+import static com.github.ompc.greys.core.util.GaStringUtils.tranClassName;
+
+/**
+ * 方法调用点过滤器<br/>
+ * 编织时决定被跟踪方法内的哪些方法调用需要织入调用跟踪,没有通过过滤的调用点不会织入任何代码
+ * Created by oldmanpushcart@gmail.com on 15/11/23.
+ */
+public class InvokeSiteFilter {
+
+    /**
+     * 跟踪所有的调用点
+     */
+    public static final InvokeSiteFilter ALL = new InvokeSiteFilter(null, false, false);
+
+    // JDK的包前缀(内部名称)
+    private static final String[] JDK_PACKAGE_PREFIXES = {
+            "java/",
+            "javax/",
+            "sun/",
+            "com/sun/",
+            "jdk/"
+    };
+
+    // 被调用类名匹配,为null时不过滤
+    private final Matcher ownerMatcher;
+
+    // 是否跳过JDK中的方法调用
+    private final boolean isSkipJdk;
+
+    // 是否跳过getter/setter调用
+    private final boolean isSkipGetter;
+
+    /**
+     * 构建调用点过滤器
+     *
+     * @param ownerMatcher 被调用类名匹配,为null时不过滤
+     * @param isSkipJdk    是否跳过JDK中的方法调用
+     * @param isSkipGetter 是否跳过getter/setter调用
+     */
+    public InvokeSiteFilter(Matcher ownerMatcher, boolean isSkipJdk, boolean isSkipGetter) {
+        this.ownerMatcher = ownerMatcher;
+        this.isSkipJdk = isSkipJdk;
+        this.isSkipGetter = isSkipGetter;
+    }
+
+    /**
+     * 调用点是否需要被跟踪
+     *
+     * @param owner 被调用的类名(内部名称)
+     * @param name  被调用的方法名
+     * @param desc  被调用的方法描述
+     * @return true:需要跟踪 / false:跳过
+     */
+    public boolean isTracing(String owner, String name, String desc) {
+        return !(isSkipJdk && isJdk(owner))
+                && !(isSkipGetter && isGetter(name, desc))
+                && (null == ownerMatcher || ownerMatcher.matching(tranClassName(owner)));
+    }
+
+    private static boolean isJdk(String owner) {
+        for (String prefix : JDK_PACKAGE_PREFIXES) {
+            if (owner.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * getX()/isX()无参且有返回值;setX()只有一个参数且无返回值
+     */
+    private static boolean isGetter(String name, String desc) {
+        if ((name.length() > 3 && name.startsWith("get"))
+                || (name.length() > 2 && name.startsWith("is"))) {
+            return desc.startsWith("()")
+                    && !desc.endsWith(")V");
+        }
+        if (name.length() > 3 && name.startsWith("set")) {
+            return desc.endsWith(")V")
+                    && Type.getArgumentTypes(desc).length == 1;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof InvokeSiteFilter
+                && isSkipJdk == ((InvokeSiteFilter) obj).isSkipJdk
+                && isSkipGetter == ((InvokeSiteFilter) obj).isSkipGetter
+                && isEquals(ownerMatcher, ((InvokeSiteFilter) obj).ownerMatcher);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = isSkipJdk ? 1 : 0;
+        result = 31 * result + (isSkipGetter ? 1 : 0);
+        result = 31 * result + (null == ownerMatcher ? 0 : ownerMatcher.hashCode());
+        return result;
+    }
+
+}
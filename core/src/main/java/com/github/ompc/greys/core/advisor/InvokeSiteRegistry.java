@@ -0,0 +1,138 @@
+package com.github.ompc.greys.core.advisor;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.github.ompc.greys.core.util.GaCheckUtils.isEquals;
+import static java.lang.System.arraycopy;
+
+/**
+ * 方法调用点注册表<br/>
+ * 与{@link MethodRegistry}相同,编织时为每个被跟踪的调用点分配一个整型ID,
+ * 织入的代码不再需要传递类名、方法名和方法描述这三个字符串
+ * Created by oldmanpushcart@gmail.com on 15/11/23.
+ */
+public class InvokeSiteRegistry {
+
+    // 初始容量
+    private static final int INIT_CAPACITY = 4096;
+
+    // 调用点ID中下标所占的位数,最多同时跟踪约100万个调用点
+    private static final int INDEX_BITS = 20;
+    private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+
+    // 下标的分配代数所占的位数,同一个下标被重新分配2048次后代数才会重复
+    private static final int GENERATION_MASK = (1 << (31 - INDEX_BITS)) - 1;
+
+    // 下标 -> 调用点
+    // 运行时只读,数组扩容与元素写入都在锁内完成,并通过volatile写发布
+    // 回收的下标在重新分配之前仍然保留原来的调用点,恢复之前已经进入的方法还能找到它
+    private static volatile InvokeSite[] invokeSites = new InvokeSite[INIT_CAPACITY];
+
+    // 方法ID -> (方法内的调用序号 -> 调用点ID)
+    // 同一个方法多次编织时复用同一个ID
+    private static final Map<Integer, Map<Integer, Integer>> invokeSiteIdIndex
+            = new HashMap<Integer, Map<Integer, Integer>>();
+
+    // 回收的调用点ID,重新分配时下标不变、代数加一
+    private static final Deque<Integer> freeInvokeSiteIds = new ArrayDeque<Integer>();
+
+    // 下一个未分配过的下标
+    private static int nextIndex = 0;
+
+    /**
+     * 注册调用点<br/>
+     * 仅在编织时调用
+     *
+     * @param methodId 调用点所在方法的ID
+     * @param index    调用点在方法内的序号
+     * @param owner    被调用的类名(内部名称)
+     * @param name     被调用的方法名
+     * @param desc     被调用的方法描述
+     * @return 调用点ID
+     */
+    public static synchronized int register(int methodId, int index, String owner, String name, String desc) {
+
+        Map<Integer, Integer> invokeSiteIds = invokeSiteIdIndex.get(methodId);
+        if (null == invokeSiteIds) {
+            invokeSiteIdIndex.put(methodId, invokeSiteIds = new HashMap<Integer, Integer>());
+        }
+
+        final Integer existInvokeSiteId = invokeSiteIds.get(index);
+        if (null != existInvokeSiteId) {
+            final InvokeSite exist = invokeSites[existInvokeSiteId & INDEX_MASK];
+            if (isEquals(exist.getOwner(), owner)
+                    && isEquals(exist.getName(), name)
+                    && isEquals(exist.getDesc(), desc)) {
+                return existInvokeSiteId;
+            }
+
+            // 同一个序号上的调用指令变了,旧的调用点ID不再使用
+            freeInvokeSiteIds.push(existInvokeSiteId);
+        }
+
+        final int invokeSiteId;
+        if (!freeInvokeSiteIds.isEmpty()) {
+            final int freeInvokeSiteId = freeInvokeSiteIds.pop();
+            final int generation = ((freeInvokeSiteId >>> INDEX_BITS) + 1) & GENERATION_MASK;
+            invokeSiteId = (generation << INDEX_BITS) | (freeInvokeSiteId & INDEX_MASK);
+        } else if (nextIndex <= INDEX_MASK) {
+            invokeSiteId = nextIndex++;
+        } else {
+            throw new IllegalStateException("too many invoke sites, limit=" + (INDEX_MASK + 1));
+        }
+
+        final int arrayIndex = invokeSiteId & INDEX_MASK;
+        InvokeSite[] array = invokeSites;
+        if (arrayIndex >= array.length) {
+            final InvokeSite[] newArray = new InvokeSite[array.length * 2];
+            arraycopy(array, 0, newArray, 0, array.length);
+            array = newArray;
+        }
+        array[arrayIndex] = new InvokeSite(invokeSiteId, methodId, owner, name, desc);
+        invokeSiteIds.put(index, invokeSiteId);
+
+        // volatile写,发布新注册的调用点
+        invokeSites = array;
+        return invokeSiteId;
+    }
+
+    /**
+     * 释放方法内的所有调用点<br/>
+     * 方法ID被{@link MethodRegistry}回收时调用,回收这些调用点的ID
+     *
+     * @param methodId 调用点所在方法的ID
+     */
+    static synchronized void release(int methodId) {
+        final Map<Integer, Integer> invokeSiteIds = invokeSiteIdIndex.remove(methodId);
+        if (null == invokeSiteIds) {
+            return;
+        }
+        for (final int invokeSiteId : invokeSiteIds.values()) {
+            freeInvokeSiteIds.push(invokeSiteId);
+        }
+    }
+
+    /**
+     * 根据调用点ID获取调用点
+     *
+     * @param invokeSiteId 调用点ID
+     * @return 调用点,若ID不存在或已被重新分配则返回null
+     */
+    public static InvokeSite get(int invokeSiteId) {
+        if (invokeSiteId < 0) {
+            return null;
+        }
+        final InvokeSite[] array = invokeSites;
+        final int index = invokeSiteId & INDEX_MASK;
+        final InvokeSite site = index < array.length
+                ? array[index]
+                : null;
+        return null != site && site.getId() == invokeSiteId
+                ? site
+                : null;
+    }
+
+}
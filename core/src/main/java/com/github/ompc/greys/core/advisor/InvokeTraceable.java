@@ -7,30 +7,28 @@ package com.github.ompc.greys.core.advisor;
  */
 public interface InvokeTraceable {
 
+    /**
+     * 获取调用点过滤器<br/>
+     * 编织时只有通过过滤的调用点才会织入调用跟踪
+     *
+     * @return 调用点过滤器
+     */
+    InvokeSiteFilter getInvokeSiteFilter();
+
     /**
      * 调用之前跟踪
      *
-     * @param tracingClassName  调用类名
-     * @param tracingMethodName 调用方法名
-     * @param tracingMethodDesc 调用方法描述
+     * @param site 调用点
      * @throws Throwable 通知过程出错
      */
-    void invokeBeforeTracing(
-            String tracingClassName,
-            String tracingMethodName,
-            String tracingMethodDesc) throws Throwable;
+    void invokeBeforeTracing(InvokeSite site) throws Throwable;
 
     /**
      * 调用之后跟踪
      *
-     * @param tracingClassName  调用类名
-     * @param tracingMethodName 调用方法名
-     * @param tracingMethodDesc 调用方法描述
+     * @param site 调用点
      * @throws Throwable 通知过程出错
      */
-    void invokeAfterTracing(
-            String tracingClassName,
-            String tracingMethodName,
-            String tracingMethodDesc) throws Throwable;
+    void invokeAfterTracing(InvokeSite site) throws Throwable;
 
 }
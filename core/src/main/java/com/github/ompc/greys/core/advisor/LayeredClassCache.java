@@ -0,0 +1,127 @@
+package com.github.ompc.greys.core.advisor;
+
+import java.util.*;
+
+/**
+ * 分层的类字节码缓存<br/>
+ * 每个类保存原始字节码和依次织入的层,当前字节码就是原始字节码依次织入所有层的结果。
+ * 移除某一层时只需要从原始字节码开始重新织入剩下的层,其他层不受影响<br/>
+ * 线程安全
+ * Created by oldmanpushcart@gmail.com on 15/11/21.
+ *
+ * @param <L> 层
+ */
+class LayeredClassCache<L> {
+
+    /**
+     * 类的所有层
+     */
+    private static class Layers<L> {
+
+        // 原始字节码
+        private final byte[] original;
+
+        // 按织入顺序排列的层
+        private final List<L> layers = new ArrayList<L>();
+
+        // 当前字节码
+        private byte[] current;
+
+        private Layers(byte[] original) {
+            this.original = original;
+        }
+
+    }
+
+    private final Map<Class<?>, Layers<L>> cache = new WeakHashMap<Class<?>, Layers<L>>();
+
+    /**
+     * 获取类当前的字节码
+     *
+     * @param clazz 类
+     * @return 当前字节码,若类未被织入过则为null
+     */
+    synchronized byte[] getCurrent(Class<?> clazz) {
+        final Layers<L> layers = cache.get(clazz);
+        return null == layers
+                ? null
+                : layers.current;
+    }
+
+    /**
+     * 获取类的原始字节码
+     *
+     * @param clazz 类
+     * @return 原始字节码,若类未被织入过则为null
+     */
+    synchronized byte[] getOriginal(Class<?> clazz) {
+        final Layers<L> layers = cache.get(clazz);
+        return null == layers
+                ? null
+                : layers.original;
+    }
+
+    /**
+     * 获取类的所有层
+     *
+     * @param clazz 类
+     * @return 按织入顺序排列的层
+     */
+    synchronized List<L> getLayers(Class<?> clazz) {
+        final Layers<L> layers = cache.get(clazz);
+        return null == layers
+                ? Collections.<L>emptyList()
+                : new ArrayList<L>(layers.layers);
+    }
+
+    /**
+     * 在类的最上面织入一层
+     *
+     * @param clazz    类
+     * @param original 原始字节码,类已经被织入过时忽略
+     * @param layer    层
+     * @param current  织入后的字节码
+     */
+    synchronized void append(Class<?> clazz, byte[] original, L layer, byte[] current) {
+        Layers<L> layers = cache.get(clazz);
+        if (null == layers) {
+            cache.put(clazz, layers = new Layers<L>(original));
+        }
+        layers.layers.add(layer);
+        layers.current = current;
+    }
+
+    /**
+     * 重新设置类的层,移除层后重新织入时使用
+     *
+     * @param clazz   类
+     * @param layers  剩下的层,为空时移除整个类
+     * @param current 重新织入后的字节码
+     */
+    synchronized void reset(Class<?> clazz, List<L> layers, byte[] current) {
+        if (layers.isEmpty()) {
+            cache.remove(clazz);
+            return;
+        }
+        final Layers<L> exist = cache.get(clazz);
+        if (null != exist) {
+            exist.layers.clear();
+            exist.layers.addAll(layers);
+            exist.current = current;
+        }
+    }
+
+    /**
+     * 所有被织入过的类
+     *
+     * @return 类集合
+     */
+    synchronized Set<Class<?>> classes() {
+        return new LinkedHashSet<Class<?>>(cache.keySet());
+    }
+
+    synchronized void clear() {
+        cache.clear();
+    }
+
+}
@@ -0,0 +1,560 @@
+package com.github.ompc.greys.core.advisor;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.GeneratorAdapter;
+import org.objectweb.asm.commons.Method;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.objectweb.asm.commons.GeneratorAdapter.*;
+
+/**
+ * 下沉到被增强方法中的条件<br/>
+ * 从条件表达式顶层的&&中挑出只涉及参数和常量的比较,编织时直接织入到方法入口,
+ * 不满足的调用不会进入Spy,也不会装箱参数。支持的比较:
+ * <pre>
+ *     params[i] ==|!=|<|<=|>|>= 整数     参数为int/short/byte/long
+ *     params[i] ==|!= true|false        参数为boolean
+ *     params[i] ==|!= null              参数为引用类型
+ *     params[i].length OP 整数           参数为数组
+ *     params[i].length() OP 整数         参数为String
+ * </pre>
+ * 下沉的条件只是完整条件的必要条件,满足的调用仍然由监听器用完整的表达式再判断一次;
+ * 和方法参数类型对不上的比较在该方法上直接放弃下沉
+ * Created by oldmanpushcart@gmail.com on 15/12/1.
+ */
+public class LoweredCondition {
+
+    // 参数引用:params[i]、params[i].length、params[i].length()
+    private static final String PARAM = "params\\s*\\[\\s*(0|[1-9]\\d{0,8})\\s*\\](\\s*\\.\\s*length\\s*(\\(\\s*\\))?)?";
+
+    // 比较运算符
+    private static final String OPERATOR = "(==|!=|<=|>=|<|>)";
+
+    // 常量:整数、null、true、false
+    private static final String CONSTANT = "(-?(?:0|[1-9]\\d{0,18})[lL]?|null|true|false)";
+
+    private static final Pattern PARAM_FIRST = Pattern.compile("^\\s*" + PARAM + "\\s*" + OPERATOR + "\\s*" + CONSTANT + "\\s*$");
+    private static final Pattern CONSTANT_FIRST = Pattern.compile("^\\s*" + CONSTANT + "\\s*" + OPERATOR + "\\s*" + PARAM + "\\s*$");
+
+    private static final Type ASM_TYPE_STRING = Type.getType(String.class);
+    private static final Method ASM_METHOD_STRING_LENGTH = Method.getMethod("int length()");
+
+    // 比较的对象
+    private static final int KIND_VALUE = 0;
+    private static final int KIND_ARRAY_LENGTH = 1;
+    private static final int KIND_STRING_LENGTH = 2;
+
+    // 常量的类型
+    private static final int CONSTANT_INTEGRAL = 0;
+    private static final int CONSTANT_BOOLEAN = 1;
+    private static final int CONSTANT_NULL = 2;
+
+    private final List<Compare> compares;
+
+    private LoweredCondition(List<Compare> compares) {
+        this.compares = Collections.unmodifiableList(compares);
+    }
+
+    /**
+     * 从条件表达式中提取可以下沉的条件
+     *
+     * @param express 条件表达式
+     * @return 可以下沉的条件,没有可下沉的部分时返回null
+     */
+    public static LoweredCondition lower(String express) {
+        if (null == express) {
+            return null;
+        }
+        final List<Compare> compares = new ArrayList<Compare>();
+        collect(express, compares);
+        return compares.isEmpty()
+                ? null
+                : new LoweredCondition(compares);
+    }
+
+    /*
+     * 按顶层的&&拆分表达式,收集其中可以下沉的比较
+     */
+    private static void collect(String express, List<Compare> compares) {
+
+        final List<String> conjuncts = splitConjuncts(express);
+
+        // 顶层有其他优先级更低的运算符,整体无法拆分
+        if (null == conjuncts) {
+            return;
+        }
+
+        if (conjuncts.size() > 1) {
+            for (String conjunct : conjuncts) {
+                collect(conjunct, compares);
+            }
+            return;
+        }
+
+        final String conjunct = conjuncts.get(0).trim();
+        final String unwrapped = unwrap(conjunct);
+        if (null != unwrapped) {
+            collect(unwrapped, compares);
+            return;
+        }
+
+        final Compare compare = parseCompare(conjunct);
+        if (null != compare) {
+            compares.add(compare);
+        }
+
+    }
+
+    /*
+     * 按顶层的&&拆分,顶层出现||、?:、赋值、序列等运算符时返回null
+     */
+    private static List<String> splitConjuncts(String express) {
+        final List<String> conjuncts = new ArrayList<String>();
+        final int length = express.length();
+        int depth = 0;
+        int start = 0;
+        for (int index = 0; index < length; index++) {
+            final char c = express.charAt(index);
+            final char next = index + 1 < length ? express.charAt(index + 1) : 0;
+
+            // 跳过字符串和字符常量
+            if (c == '"' || c == '\'') {
+                index = skipQuoted(express, index);
+                if (index < 0) {
+                    return null;
+                }
+                continue;
+            }
+
+            if (c == '(' || c == '[' || c == '{') {
+                depth++;
+                continue;
+            }
+            if (c == ')' || c == ']' || c == '}') {
+                if (--depth < 0) {
+                    return null;
+                }
+                continue;
+            }
+            if (depth > 0) {
+                continue;
+            }
+
+            if (c == '&' && next == '&') {
+                conjuncts.add(express.substring(start, index));
+                start = ++index + 1;
+            } else if ((c == '|' && next == '|')
+                    || c == '?'
+                    || c == ','
+                    || c == ';') {
+                return null;
+            } else if (c == '=') {
+                if (next == '=') {
+                    index++;
+                } else {
+                    return null;
+                }
+            } else if ((c == '!' || c == '<' || c == '>') && next == '=') {
+                index++;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int end = index + 1;
+                while (end < length && Character.isJavaIdentifierPart(express.charAt(end))) {
+                    end++;
+                }
+                final String word = express.substring(index, end);
+                if ("or".equals(word)
+                        || "and".equals(word)) {
+                    return null;
+                }
+                index = end - 1;
+            }
+        }
+        if (depth != 0) {
+            return null;
+        }
+        conjuncts.add(express.substring(start));
+        return conjuncts;
+    }
+
+    /*
+     * 跳过引号中的内容,返回闭合引号的位置;没有闭合时返回-1
+     */
+    private static int skipQuoted(String express, int begin) {
+        final char quote = express.charAt(begin);
+        for (int index = begin + 1; index < express.length(); index++) {
+            final char c = express.charAt(index);
+            if (c == '\\') {
+                index++;
+            } else if (c == quote) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * 去掉包住整个表达式的括号,没有时返回null
+     */
+    private static String unwrap(String express) {
+        if (!express.startsWith("(")
+                || !express.endsWith(")")) {
+            return null;
+        }
+        int depth = 0;
+        for (int index = 0; index < express.length(); index++) {
+            final char c = express.charAt(index);
+            if (c == '"' || c == '\'') {
+                index = skipQuoted(express, index);
+                if (index < 0) {
+                    return null;
+                }
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')'
+                    && --depth == 0
+                    && index != express.length() - 1) {
+                // 第一个括号在中途就闭合了,例如(a)==(b)
+                return null;
+            }
+        }
+        return express.substring(1, express.length() - 1);
+    }
+
+    /*
+     * 解析单个比较,不支持时返回null
+     */
+    private static Compare parseCompare(String express) {
+
+        final Matcher paramFirst = PARAM_FIRST.matcher(express);
+        if (paramFirst.matches()) {
+            return newCompare(
+                    paramFirst.group(1), paramFirst.group(2), paramFirst.group(3),
+                    paramFirst.group(4),
+                    paramFirst.group(5)
+            );
+        }
+
+        final Matcher constantFirst = CONSTANT_FIRST.matcher(express);
+        if (constantFirst.matches()) {
+            return newCompare(
+                    constantFirst.group(3), constantFirst.group(4), constantFirst.group(5),
+                    reverse(constantFirst.group(2)),
+                    constantFirst.group(1)
+            );
+        }
+
+        return null;
+    }
+
+    /*
+     * 常量在左边时交换比较的方向
+     */
+    private static String reverse(String operator) {
+        if ("<".equals(operator)) {
+            return ">";
+        } else if (">".equals(operator)) {
+            return "<";
+        } else if ("<=".equals(operator)) {
+            return ">=";
+        } else if (">=".equals(operator)) {
+            return "<=";
+        } else {
+            return operator;
+        }
+    }
+
+    private static Compare newCompare(String index, String length, String invoke, String operator, String constant) {
+
+        final int kind = null == length
+                ? KIND_VALUE
+                : (null == invoke ? KIND_ARRAY_LENGTH : KIND_STRING_LENGTH);
+
+        final int mode;
+        if ("==".equals(operator)) {
+            mode = EQ;
+        } else if ("!=".equals(operator)) {
+            mode = NE;
+        } else if ("<".equals(operator)) {
+            mode = LT;
+        } else if ("<=".equals(operator)) {
+            mode = LE;
+        } else if (">".equals(operator)) {
+            mode = GT;
+        } else {
+            mode = GE;
+        }
+
+        final int constantType;
+        final long value;
+        if ("null".equals(constant)) {
+            constantType = CONSTANT_NULL;
+            value = 0;
+        } else if ("true".equals(constant)) {
+            constantType = CONSTANT_BOOLEAN;
+            value = 1;
+        } else if ("false".equals(constant)) {
+            constantType = CONSTANT_BOOLEAN;
+            value = 0;
+        } else {
+            constantType = CONSTANT_INTEGRAL;
+            final boolean isLong = constant.endsWith("l") || constant.endsWith("L");
+            final String digits = isLong ? constant.substring(0, constant.length() - 1) : constant;
+            try {
+                value = Long.parseLong(digits);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            // 和OGNL一样,不带L后缀的整数常量只能是int
+            if (!isLong
+                    && (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE)) {
+                return null;
+            }
+        }
+
+        // 只有整数才有大小之分
+        if (constantType != CONSTANT_INTEGRAL
+                && mode != EQ
+                && mode != NE) {
+            return null;
+        }
+
+        // 长度只能和整数比较
+        if (kind != KIND_VALUE
+                && constantType != CONSTANT_INTEGRAL) {
+            return null;
+        }
+
+        return new Compare(Integer.parseInt(index), kind, mode, constantType, value);
+    }
+
+    /**
+     * 织入条件判断<br/>
+     * 任意一个比较不满足时跳转到falseLabel,和参数类型对不上的比较不织入
+     *
+     * @param mv            方法编织器
+     * @param argumentTypes 方法的参数类型
+     * @param falseLabel    条件不满足时的跳转标签
+     */
+    public void weave(GeneratorAdapter mv, Type[] argumentTypes, Label falseLabel) {
+        for (Compare compare : compares) {
+            if (compare.isApplicable(argumentTypes)) {
+                compare.weave(mv, argumentTypes[compare.index], falseLabel);
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof LoweredCondition
+                && compares.equals(((LoweredCondition) obj).compares);
+    }
+
+    @Override
+    public int hashCode() {
+        return compares.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return compares.toString();
+    }
+
+    /**
+     * 参数和常量的比较
+     */
+    private static class Compare {
+
+        private final int index;
+        private final int kind;
+        private final int mode;
+        private final int constantType;
+        private final long value;
+
+        private Compare(int index, int kind, int mode, int constantType, long value) {
+            this.index = index;
+            this.kind = kind;
+            this.mode = mode;
+            this.constantType = constantType;
+            this.value = value;
+        }
+
+        /*
+         * 参数类型是否能够按OGNL的语义比较
+         */
+        boolean isApplicable(Type[] argumentTypes) {
+            if (index >= argumentTypes.length) {
+                return false;
+            }
+            final Type type = argumentTypes[index];
+            switch (kind) {
+                case KIND_ARRAY_LENGTH:
+                    return type.getSort() == Type.ARRAY;
+                case KIND_STRING_LENGTH:
+                    return type.equals(ASM_TYPE_STRING);
+                default:
+                    switch (constantType) {
+                        case CONSTANT_NULL:
+                            return type.getSort() == Type.OBJECT
+                                    || type.getSort() == Type.ARRAY;
+                        case CONSTANT_BOOLEAN:
+                            return type.getSort() == Type.BOOLEAN;
+                        default:
+                            return type.getSort() == Type.INT
+                                    || type.getSort() == Type.SHORT
+                                    || type.getSort() == Type.BYTE
+                                    || type.getSort() == Type.LONG;
+                    }
+            }
+        }
+
+        /*
+         * 比较不满足时跳转到falseLabel
+         */
+        void weave(GeneratorAdapter mv, Type type, Label falseLabel) {
+            switch (kind) {
+                case KIND_ARRAY_LENGTH: {
+                    // 和OGNL一样,数组为null时条件不成立
+                    mv.loadArg(index);
+                    mv.ifNull(falseLabel);
+                    mv.loadArg(index);
+                    mv.arrayLength();
+                    mv.cast(Type.INT_TYPE, Type.LONG_TYPE);
+                    mv.push(value);
+                    mv.ifCmp(Type.LONG_TYPE, negate(mode), falseLabel);
+                    break;
+                }
+                case KIND_STRING_LENGTH: {
+                    mv.loadArg(index);
+                    mv.ifNull(falseLabel);
+                    mv.loadArg(index);
+                    mv.invokeVirtual(ASM_TYPE_STRING, ASM_METHOD_STRING_LENGTH);
+                    mv.cast(Type.INT_TYPE, Type.LONG_TYPE);
+                    mv.push(value);
+                    mv.ifCmp(Type.LONG_TYPE, negate(mode), falseLabel);
+                    break;
+                }
+                default: {
+                    mv.loadArg(index);
+                    switch (constantType) {
+                        case CONSTANT_NULL: {
+                            if (mode == EQ) {
+                                mv.ifNonNull(falseLabel);
+                            } else {
+                                mv.ifNull(falseLabel);
+                            }
+                            break;
+                        }
+                        case CONSTANT_BOOLEAN: {
+                            mv.push((int) value);
+                            mv.ifICmp(negate(mode), falseLabel);
+                            break;
+                        }
+                        default: {
+                            if (type.getSort() != Type.LONG) {
+                                mv.cast(Type.INT_TYPE, Type.LONG_TYPE);
+                            }
+                            mv.push(value);
+                            mv.ifCmp(Type.LONG_TYPE, negate(mode), falseLabel);
+                            break;
+                        }
+                    }
+                    break;
+                }
+            }
+        }
+
+        /*
+         * 条件不满足时跳转,所以比较要取反
+         */
+        private static int negate(int mode) {
+            switch (mode) {
+                case EQ:
+                    return NE;
+                case NE:
+                    return EQ;
+                case LT:
+                    return GE;
+                case GE:
+                    return LT;
+                case GT:
+                    return LE;
+                default:
+                    return GT;
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Compare)) {
+                return false;
+            }
+            final Compare compare = (Compare) obj;
+            return index == compare.index
+                    && kind == compare.kind
+                    && mode == compare.mode
+                    && constantType == compare.constantType
+                    && value == compare.value;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = index;
+            result = 31 * result + kind;
+            result = 31 * result + mode;
+            result = 31 * result + constantType;
+            result = 31 * result + (int) (value ^ (value >>> 32));
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder("params[").append(index).append("]");
+            if (kind == KIND_ARRAY_LENGTH) {
+                sb.append(".length");
+            } else if (kind == KIND_STRING_LENGTH) {
+                sb.append(".length()");
+            }
+            switch (mode) {
+                case EQ:
+                    sb.append("==");
+                    break;
+                case NE:
+                    sb.append("!=");
+                    break;
+                case LT:
+                    sb.append("<");
+                    break;
+                case LE:
+                    sb.append("<=");
+                    break;
+                case GT:
+                    sb.append(">");
+                    break;
+                default:
+                    sb.append(">=");
+                    break;
+            }
+            switch (constantType) {
+                case CONSTANT_NULL:
+                    sb.append("null");
+                    break;
+                case CONSTANT_BOOLEAN:
+                    sb.append(value != 0);
+                    break;
+                default:
+                    sb.append(value);
+                    break;
+            }
+            return sb.toString();
+        }
+
+    }
+
+}
@@ -0,0 +1,163 @@
+package com.github.ompc.greys.core.advisor;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import static java.lang.System.arraycopy;
+
+/**
+ * 织入方法注册表<br/>
+ * 编织时为每个被织入的方法分配一个整型ID,织入的代码只需要传递这个ID,
+ * 运行时通过数组下标即可找到{@link WovenMethod}<br/>
+ * 类恢复为原始字节码或被卸载后,对应的下标会被回收,分配给之后编织的方法<br/>
+ * 方法ID的低位是数组下标,高位是下标的分配代数,下标每被重新分配一次代数加一;
+ * 恢复之前已经进入的旧版本方法仍然传递旧的方法ID,代数对不上时查找不到任何方法,不会被当成新分配的方法
+ * Created by oldmanpushcart@gmail.com on 15/11/15.
+ */
+public class MethodRegistry {
+
+    // 初始容量
+    private static final int INIT_CAPACITY = 1024;
+
+    // 方法ID中下标所占的位数,最多同时织入约100万个方法
+    private static final int INDEX_BITS = 20;
+    private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+
+    // 下标的分配代数所占的位数,同一个下标被重新分配2048次后代数才会重复
+    private static final int GENERATION_MASK = (1 << (31 - INDEX_BITS)) - 1;
+
+    // 下标 -> 织入方法
+    // 运行时只读,数组扩容与元素写入都在锁内完成,并通过volatile写发布
+    // 回收的下标在重新分配之前仍然保留原来的织入方法,恢复之前已经进入的方法结束时还能找到它
+    private static volatile WovenMethod[] wovenMethods = new WovenMethod[INIT_CAPACITY];
+
+    // 类 -> (方法名+方法描述 -> 方法ID)
+    // 同一个方法多次编织时复用同一个ID
+    private static final Map<Class<?>, Map<String, Integer>> methodIdIndex
+            = new WeakHashMap<Class<?>, Map<String, Integer>>();
+
+    // 被卸载的类
+    private static final ReferenceQueue<Class<?>> unloadedQueue = new ReferenceQueue<Class<?>>();
+
+    // 回收的方法ID,重新分配时下标不变、代数加一
+    private static final Deque<Integer> freeMethodIds = new ArrayDeque<Integer>();
+
+    // 下一个未分配过的下标
+    private static int nextIndex = 0;
+
+    /**
+     * 注册织入方法<br/>
+     * 仅在编织时调用
+     *
+     * @param clazz      方法所在的类
+     * @param methodName 方法名
+     * @param methodDesc 方法描述
+     * @return 方法ID
+     */
+    public static synchronized int register(Class<?> clazz, String methodName, String methodDesc) {
+
+        expungeUnloaded();
+
+        Map<String, Integer> methodIds = methodIdIndex.get(clazz);
+        if (null == methodIds) {
+            methodIdIndex.put(clazz, methodIds = new HashMap<String, Integer>());
+        }
+
+        final String key = methodName + methodDesc;
+        final Integer existMethodId = methodIds.get(key);
+        if (null != existMethodId) {
+            return existMethodId;
+        }
+
+        final int methodId;
+        if (!freeMethodIds.isEmpty()) {
+            final int freeMethodId = freeMethodIds.pop();
+            final int generation = ((freeMethodId >>> INDEX_BITS) + 1) & GENERATION_MASK;
+            methodId = (generation << INDEX_BITS) | (freeMethodId & INDEX_MASK);
+        } else if (nextIndex <= INDEX_MASK) {
+            methodId = nextIndex++;
+        } else {
+            throw new IllegalStateException("too many woven methods, limit=" + (INDEX_MASK + 1));
+        }
+
+        final int index = methodId & INDEX_MASK;
+        WovenMethod[] array = wovenMethods;
+        if (index >= array.length) {
+            final WovenMethod[] newArray = new WovenMethod[array.length * 2];
+            arraycopy(array, 0, newArray, 0, array.length);
+            array = newArray;
+        }
+        array[index] = new WovenMethod(methodId, clazz, methodName, methodDesc, unloadedQueue);
+        methodIds.put(key, methodId);
+
+        // volatile写,发布新注册的方法
+        wovenMethods = array;
+        return methodId;
+    }
+
+    /**
+     * 释放类上的所有织入方法<br/>
+     * 类恢复为原始字节码后调用,释放对方法对象的强引用并回收方法ID,连同方法内的调用点ID
+     *
+     * @param clazz 类
+     */
+    public static synchronized void release(Class<?> clazz) {
+        final Map<String, Integer> methodIds = methodIdIndex.remove(clazz);
+        if (null == methodIds) {
+            return;
+        }
+        final WovenMethod[] array = wovenMethods;
+        for (final int methodId : methodIds.values()) {
+            array[methodId & INDEX_MASK].release();
+            InvokeSiteRegistry.release(methodId);
+            freeMethodIds.push(methodId);
+        }
+    }
+
+    /*
+     * 回收已经被卸载的类上的方法ID
+     */
+    private static void expungeUnloaded() {
+        final WovenMethod[] array = wovenMethods;
+        Reference<? extends Class<?>> ref;
+        while (null != (ref = unloadedQueue.poll())) {
+            final int methodId = ((WovenMethod.ClassRef) ref).id;
+            final WovenMethod method = array[methodId & INDEX_MASK];
+
+            // 已经释放过的ID在释放时就已经回收了
+            if (null != method
+                    && method.getClassRef() == ref
+                    && !method.isReleased()) {
+                method.release();
+                InvokeSiteRegistry.release(methodId);
+                freeMethodIds.push(methodId);
+            }
+        }
+    }
+
+    /**
+     * 根据方法ID获取织入方法
+     *
+     * @param methodId 方法ID
+     * @return 织入方法,若ID不存在或者下标已经分配给了其他方法则返回null
+     */
+    public static WovenMethod get(int methodId) {
+        if (methodId < 0) {
+            return null;
+        }
+        final WovenMethod[] array = wovenMethods;
+        final int index = methodId & INDEX_MASK;
+        final WovenMethod method = index < array.length
+                ? array[index]
+                : null;
+        return null != method && method.getId() == methodId
+                ? method
+                : null;
+    }
+
+}
@@ -1,22 +1,15 @@
 package com.github.ompc.greys.core.advisor;
 
 import com.github.ompc.greys.core.Advice;
-import com.github.ompc.greys.core.util.GaCheckUtils;
-import com.github.ompc.greys.core.util.GaMethod;
 import com.github.ompc.greys.core.util.collection.GaStack;
 import com.github.ompc.greys.core.util.collection.ThreadUnsafeGaStack;
-import org.objectweb.asm.Type;
-
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Method;
 
 import static com.github.ompc.greys.core.Advice.*;
-import static com.github.ompc.greys.core.util.GaStringUtils.tranClassName;
 
 /**
  * 反射通知适配器<br/>
- * 通过反射拿到对应的Class/Method类，而不是原始的ClassName/MethodNam
- * 当然性能开销要比普通监听器高许多
+ * 通过织入方法拿到对应的Class/Method类，而不是原始的ClassName/MethodNam
+ * Class/Method在织入方法中有缓存，只有第一次才需要反射查找
  */
 public abstract class ReflectAdviceListenerAdapter<PC extends ProcessContext, IC extends InnerContext> implements AdviceListener {
 
@@ -34,107 +27,26 @@ public abstract class ReflectAdviceListenerAdapter<PC extends ProcessContext, IC
      */
     abstract protected IC newInnerContext();
 
+    /**
+     * 默认需要全部的通知能力,子类可以按需裁剪
+     *
+     * @return 通知能力
+     */
     @Override
-    public void create() {
-
+    public int getCapabilities() {
+        return CAPABILITY_ALL;
     }
 
     @Override
-    public void destroy() {
-
-    }
-
-    private ClassLoader toClassLoader(ClassLoader loader) {
-        return null != loader
-                ? loader
-                : AdviceListener.class.getClassLoader();
-    }
-
-    private Class<?> toClass(ClassLoader loader, String className) throws ClassNotFoundException {
-        return Class.forName(tranClassName(className), true, toClassLoader(loader));
-    }
-
-    private GaMethod toMethod(ClassLoader loader, Class<?> clazz, String methodName, String methodDesc)
-            throws ClassNotFoundException, NoSuchMethodException {
-        final org.objectweb.asm.Type asmType = org.objectweb.asm.Type.getMethodType(methodDesc);
-
-        // to arg types
-        final Class<?>[] argsClasses = new Class<?>[asmType.getArgumentTypes().length];
-        for (int index = 0; index < argsClasses.length; index++) {
-
-            // asm class descriptor to jvm class
-            final Class<?> argumentClass;
-            final Type argumentAsmType = asmType.getArgumentTypes()[index];
-            switch (argumentAsmType.getSort()) {
-                case Type.BOOLEAN: {
-                    argumentClass = boolean.class;
-                    break;
-                }
-                case Type.CHAR: {
-                    argumentClass = char.class;
-                    break;
-                }
-                case Type.BYTE: {
-                    argumentClass = byte.class;
-                    break;
-                }
-                case Type.SHORT: {
-                    argumentClass = short.class;
-                    break;
-                }
-                case Type.INT: {
-                    argumentClass = int.class;
-                    break;
-                }
-                case Type.FLOAT: {
-                    argumentClass = float.class;
-                    break;
-                }
-                case Type.LONG: {
-                    argumentClass = long.class;
-                    break;
-                }
-                case Type.DOUBLE: {
-                    argumentClass = double.class;
-                    break;
-                }
-                case Type.ARRAY: {
-                    argumentClass = toClass(loader, argumentAsmType.getInternalName());
-                    break;
-                }
-                case Type.VOID: {
-                    argumentClass = void.class;
-                    break;
-                }
-                case Type.OBJECT:
-                case Type.METHOD:
-                default: {
-                    argumentClass = toClass(loader, argumentAsmType.getClassName());
-                    break;
-                }
-            }
-
-            argsClasses[index] = argumentClass;
-        }
+    public void create() {
 
-        // to method or constructor
-        if (GaCheckUtils.isEquals(methodName, "<init>")) {
-            return GaMethod.newInit(toConstructor(clazz, argsClasses));
-        } else {
-            return GaMethod.newMethod(toMethod(clazz, methodName, argsClasses));
-        }
     }
 
+    @Override
+    public void destroy() {
 
-    private Method toMethod(Class<?> clazz, String methodName, Class<?>[] argClasses) throws NoSuchMethodException {
-        return clazz.getDeclaredMethod(methodName, argClasses);
-    }
-
-    private Constructor<?> toConstructor(Class<?> clazz, Class<?>[] argClasses) throws NoSuchMethodException {
-        return clazz.getDeclaredConstructor(argClasses);
     }
 
-
     /**
      * ProcessContext的内部封装
      */
@@ -167,28 +79,41 @@ public abstract class ReflectAdviceListenerAdapter<PC extends ProcessContext, IC
 
     @Override
     final public void before(
-            ClassLoader loader, String className, String methodName, String methodDesc,
-            Object target, Object[] args) throws Throwable {
-        final Class<?> clazz = toClass(loader, className);
+            WovenMethod method,
+            Object target, Arguments args) throws Throwable {
         final ProcessContextBound bound = processContextBoundRef.get();
         final PC processContext = bound.processContext;
         final IC innerContext = newInnerContext();
 
-        final GaStack<IC> innerContextGaStack = bound.innerContextGaStack;
-        innerContextGaStack.push(innerContext);
+        // 没有声明结束通知时不会有出栈的机会,所以也不能入栈
+        final boolean isFinishing = (getCapabilities() & CAPABILITY_AFTER_FINISHING) != 0;
+        if (isFinishing) {
+            bound.innerContextGaStack.push(innerContext);
+        }
 
-        before(
-                newForBefore(loader, clazz, toMethod(loader, clazz, methodName, methodDesc), target, args),
-                processContext,
-                innerContext
-        );
+        try {
+            before(
+                    newForBefore(method.getLoader(), method.getClazz(), method.getMethod(), target, args),
+                    processContext,
+                    innerContext
+            );
+        } finally {
+
+            // 没有结束通知,过程上下文需要在这里清除
+            if (!isFinishing
+                    && bound.isTop()) {
+                processContext.close();
+                processContextBoundRef.remove();
+            }
+
+        }
 
     }
 
     @Override
     final public void afterReturning(
-            ClassLoader loader, String className, String methodName, String methodDesc,
-            Object target, Object[] args, Object returnObject) throws Throwable {
+            WovenMethod method,
+            Object target, Arguments args, Object returnObject) throws Throwable {
 
         final ProcessContextBound bound = processContextBoundRef.get();
         final PC processContext = bound.processContext;
@@ -196,11 +121,10 @@ public abstract class ReflectAdviceListenerAdapter<PC extends ProcessContext, IC
         final IC innerContext = innerContextGaStack.pop();
         try {
 
-            // 关闭上下文
-            innerContext.close();
+            // 关闭上下文,耗时以编织者在方法边界上测量的为准
+            innerContext.close(AdviceWeaver.getCostNanos());
 
-            final Class<?> clazz = toClass(loader, className);
-            final Advice advice = newForAfterRetuning(loader, clazz, toMethod(loader, clazz, methodName, methodDesc), target, args, returnObject);
+            final Advice advice = newForAfterRetuning(method.getLoader(), method.getClazz(), method.getMethod(), target, args, returnObject);
             afterReturning(advice, processContext, innerContext);
             afterFinishing(advice, processContext, innerContext);
 
@@ -218,8 +142,8 @@ public abstract class ReflectAdviceListenerAdapter<PC extends ProcessContext, IC
 
     @Override
     final public void afterThrowing(
-            ClassLoader loader, String className, String methodName, String methodDesc,
-            Object target, Object[] args, Throwable throwable) throws Throwable {
+            WovenMethod method,
+            Object target, Arguments args, Throwable throwable) throws Throwable {
 
         final ProcessContextBound bound = processContextBoundRef.get();
         final PC processContext = bound.processContext;
@@ -228,11 +152,10 @@ public abstract class ReflectAdviceListenerAdapter<PC extends ProcessContext, IC
 
         try {
 
-            // 关闭上下文
-            innerContext.close();
+            // 关闭上下文,耗时以编织者在方法边界上测量的为准
+            innerContext.close(AdviceWeaver.getCostNanos());
 
-            final Class<?> clazz = toClass(loader, className);
-            final Advice advice = newForAfterThrowing(loader, clazz, toMethod(loader, clazz, methodName, methodDesc), target, args, throwable);
+            final Advice advice = newForAfterThrowing(method.getLoader(), method.getClazz(), method.getMethod(), target, args, throwable);
             afterThrowing(advice, processContext, innerContext);
             afterFinishing(advice, processContext, innerContext);
 
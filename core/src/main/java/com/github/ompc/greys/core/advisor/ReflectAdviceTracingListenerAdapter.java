@@ -21,8 +21,18 @@ public abstract class ReflectAdviceTracingListenerAdapter<PC extends ProcessCont
         }
     };
 
+    /**
+     * 默认跟踪所有的调用点,子类可以按需过滤
+     *
+     * @return 调用点过滤器
+     */
     @Override
-    final public void invokeBeforeTracing(String tracingClassName, String tracingMethodName, String tracingMethodDesc) throws Throwable {
+    public InvokeSiteFilter getInvokeSiteFilter() {
+        return InvokeSiteFilter.ALL;
+    }
+
+    @Override
+    final public void invokeBeforeTracing(InvokeSite site) throws Throwable {
         final ProcessContextBound bound = processContextBoundRef.get();
         final PC processContext = bound.processContext;
         final GaStack<IC> innerContextGaStack = bound.innerContextGaStack;
@@ -35,11 +45,11 @@ public abstract class ReflectAdviceTracingListenerAdapter<PC extends ProcessCont
         }
 
         final IC innerContext = innerContextGaStack.peek();
-        invokeBeforeTracing(tracingClassName, tracingMethodName, tracingMethodDesc, processContext, innerContext);
+        invokeBeforeTracing(site, processContext, innerContext);
     }
 
     @Override
-    final public void invokeAfterTracing(String tracingClassName, String tracingMethodName, String tracingMethodDesc) throws Throwable {
+    final public void invokeAfterTracing(InvokeSite site) throws Throwable {
 
         // 校验之前有多少步骤需要被跳过
         final AtomicInteger skipSuperInit = skipSuperInitRef.get();
@@ -52,18 +62,14 @@ public abstract class ReflectAdviceTracingListenerAdapter<PC extends ProcessCont
         final PC processContext = bound.processContext;
         final GaStack<IC> innerContextGaStack = bound.innerContextGaStack;
         final IC innerContext = innerContextGaStack.peek();
-        invokeAfterTracing(tracingClassName, tracingMethodName, tracingMethodDesc, processContext, innerContext);
+        invokeAfterTracing(site, processContext, innerContext);
     }
 
-    public void invokeBeforeTracing(
-            String tracingClassName, String tracingMethodName, String tracingMethodDesc,
-            PC processContext, IC innerContext) throws Throwable {
+    public void invokeBeforeTracing(InvokeSite site, PC processContext, IC innerContext) throws Throwable {
 
     }
 
-    public void invokeAfterTracing(
-            String tracingClassName, String tracingMethodName, String tracingMethodDesc,
-            PC processContext, IC innerContext) throws Throwable {
+    public void invokeAfterTracing(InvokeSite site, PC processContext, IC innerContext) throws Throwable {
 
     }
 
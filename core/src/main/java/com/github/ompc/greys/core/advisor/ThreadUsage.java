@@ -0,0 +1,280 @@
+package com.github.ompc.greys.core.advisor;
+
+import com.github.ompc.greys.core.util.LogUtil;
+import org.slf4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * 线程资源使用<br/>
+ * 记录当前线程在一段时间内消耗的CPU时间、分配的内存,以及阻塞和等待的时间,用于区分方法是CPU密集、内存密集还是在等锁<br/>
+ * <ul>
+ * <li>CPU时间:ThreadMXBean#getCurrentThreadCpuTime()</li>
+ * <li>分配内存:com.sun.management.ThreadMXBean#getThreadAllocatedBytes(),只有HotSpot支持,
+ * 需要开启线程内存分配统计</li>
+ * <li>阻塞/等待时间:ThreadInfo#getBlockedTime()/getWaitedTime(),需要开启线程竞争监控,
+ * 开启后所有线程的锁竞争都会多一点开销</li>
+ * </ul>
+ * 两项统计都只在有命令需要时开启,最后一个命令结束后恢复原来的设置;没有开启或不支持的项为-1<br/>
+ * 分配内存已经扣除了读取本身(例如ThreadInfo)的分配,但仍然包含Greys在业务线程上的其它分配,例如通知对象和嵌套调用的跟踪节点
+ * Created by oldmanpushcart@gmail.com on 15/11/29.
+ */
+public class ThreadUsage {
+
+    private static final Logger logger = LogUtil.getLogger();
+
+    /**
+     * CPU时间(纳秒)
+     */
+    public static final int CPU_NANOS = 0;
+
+    /**
+     * 分配内存(字节)
+     */
+    public static final int ALLOCATED_BYTES = 1;
+
+    /**
+     * 阻塞时间(毫秒)
+     */
+    public static final int BLOCKED_MILLIS = 2;
+
+    /**
+     * 等待时间(毫秒)
+     */
+    public static final int WAITED_MILLIS = 3;
+
+    /**
+     * 资源项个数
+     */
+    public static final int SIZE = 4;
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private static final boolean isCpuTimeSupported = threadMXBean.isCurrentThreadCpuTimeSupported();
+
+    private static final com.sun.management.ThreadMXBean allocatedMXBean = initAllocatedMXBean();
+
+    private static final boolean isContentionSupported = threadMXBean.isThreadContentionMonitoringSupported();
+
+    // 需要线程资源监控的命令个数
+    private static volatile int references = 0;
+
+    // 线程竞争监控开启前是否已经开启
+    private static boolean isContentionEnabledBefore;
+
+    // 线程内存分配统计开启前是否已经开启
+    private static boolean isAllocatedEnabledBefore;
+
+    // 一次读取自身分配的内存(字节),开启监控时测量
+    private static volatile long readAllocatedBytes = 0;
+
+    // 测量读取自身分配的次数
+    private static final int CALIBRATE_TIMES = 16;
+
+    private static com.sun.management.ThreadMXBean initAllocatedMXBean() {
+        try {
+            if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+                final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadMXBean;
+                if (bean.isThreadAllocatedMemorySupported()) {
+                    return bean;
+                }
+            }
+        } catch (Throwable t) {
+            logger.debug("thread allocated memory is not supported.", t);
+        }
+        return null;
+    }
+
+    /**
+     * 当前JVM是否支持资源项
+     *
+     * @param item 资源项,CPU_NANOS等
+     * @return true:支持 / false:不支持
+     */
+    public static boolean isSupported(int item) {
+        switch (item) {
+            case CPU_NANOS:
+                return isCpuTimeSupported;
+            case ALLOCATED_BYTES:
+                return null != allocatedMXBean;
+            default:
+                return isContentionSupported;
+        }
+    }
+
+    /**
+     * 申请线程资源监控<br/>
+     * 需要线程资源使用的命令在创建时申请,销毁时释放;第一个命令申请时开启线程竞争监控和线程内存分配统计
+     */
+    public static synchronized void acquireMonitoring() {
+        if (references++ > 0) {
+            return;
+        }
+        try {
+            if (isContentionSupported) {
+                isContentionEnabledBefore = threadMXBean.isThreadContentionMonitoringEnabled();
+                if (!isContentionEnabledBefore) {
+                    threadMXBean.setThreadContentionMonitoringEnabled(true);
+                }
+            }
+            if (null != allocatedMXBean) {
+                isAllocatedEnabledBefore = allocatedMXBean.isThreadAllocatedMemoryEnabled();
+                if (!isAllocatedEnabledBefore) {
+                    allocatedMXBean.setThreadAllocatedMemoryEnabled(true);
+                }
+            }
+        } catch (Throwable t) {
+            logger.warn("enable thread monitoring failed.", t);
+        }
+        readAllocatedBytes = calibrateReadAllocatedBytes();
+    }
+
+    /**
+     * 释放线程资源监控<br/>
+     * 最后一个命令释放时恢复原来的设置
+     */
+    public static synchronized void releaseMonitoring() {
+        if (references == 0
+                || --references > 0) {
+            return;
+        }
+        try {
+            if (isContentionSupported
+                    && !isContentionEnabledBefore) {
+                threadMXBean.setThreadContentionMonitoringEnabled(false);
+            }
+            if (null != allocatedMXBean
+                    && !isAllocatedEnabledBefore) {
+                allocatedMXBean.setThreadAllocatedMemoryEnabled(false);
+            }
+        } catch (Throwable t) {
+            logger.warn("restore thread monitoring failed.", t);
+        }
+    }
+
+    /*
+     * 测量一次读取自身分配的内存,取多次测量的最小值
+     */
+    private static long calibrateReadAllocatedBytes() {
+        if (null == allocatedMXBean) {
+            return 0;
+        }
+        final long[] values = new long[SIZE * 2];
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < CALIBRATE_TIMES; i++) {
+            read(values, 0);
+            read(values, SIZE);
+            final long b = values[ALLOCATED_BYTES];
+            final long e = values[SIZE + ALLOCATED_BYTES];
+            if (b >= 0 && e >= b) {
+                min = Math.min(min, e - b);
+            }
+        }
+        return min == Long.MAX_VALUE ? 0 : min;
+    }
+
+    /**
+     * 读取当前线程的资源使用<br/>
+     * CPU时间和分配内存的读取不会产生任何对象,阻塞/等待时间需要获取ThreadInfo;分配内存和阻塞/等待时间只在申请了线程资源监控时读取
+     *
+     * @param values 读取结果,按CPU_NANOS等下标存放
+     * @param offset 起始下标
+     */
+    public static void read(long[] values, int offset) {
+        values[offset + CPU_NANOS] = isCpuTimeSupported
+                ? threadMXBean.getCurrentThreadCpuTime()
+                : -1;
+        final long threadId = Thread.currentThread().getId();
+        final boolean isMonitoring = references > 0;
+        values[offset + ALLOCATED_BYTES] = isMonitoring && null != allocatedMXBean
+                ? allocatedMXBean.getThreadAllocatedBytes(threadId)
+                : -1;
+        final ThreadInfo threadInfo = isMonitoring && isContentionSupported
+                ? threadMXBean.getThreadInfo(threadId)
+                : null;
+        values[offset + BLOCKED_MILLIS] = null != threadInfo
+                ? threadInfo.getBlockedTime()
+                : -1;
+        values[offset + WAITED_MILLIS] = null != threadInfo
+                ? threadInfo.getWaitedTime()
+                : -1;
+    }
+
+    /**
+     * 把两次读取的差值写回到结束读取中<br/>
+     * 分配内存会扣除读取自身的分配
+     *
+     * @param begin       开始读取
+     * @param beginOffset 开始读取的起始下标
+     * @param end         结束读取,计算后为差值,任意一次不支持的项为-1
+     * @param endOffset   结束读取的起始下标
+     */
+    public static void delta(long[] begin, int beginOffset, long[] end, int endOffset) {
+        for (int index = 0; index < SIZE; index++) {
+            final long b = begin[beginOffset + index];
+            final long e = end[endOffset + index];
+            end[endOffset + index] = b < 0 || e < 0
+                    ? -1
+                    : Math.max(0, e - b - (index == ALLOCATED_BYTES ? readAllocatedBytes : 0));
+        }
+    }
+
+    // 开始时的读取,结束后为差值
+    private final long[] values = new long[SIZE];
+
+    // 结束时的读取,预先分配,避免计入分配内存
+    private final long[] endValues = new long[SIZE];
+
+    private ThreadUsage() {
+        read(values, 0);
+    }
+
+    /**
+     * 开始记录当前线程的资源使用
+     *
+     * @return 线程资源使用
+     */
+    public static ThreadUsage begin() {
+        return new ThreadUsage();
+    }
+
+    /**
+     * 结束记录,必须和begin()在同一个线程中调用
+     *
+     * @return this
+     */
+    public ThreadUsage end() {
+        read(endValues, 0);
+        delta(values, 0, endValues, 0);
+        System.arraycopy(endValues, 0, values, 0, SIZE);
+        return this;
+    }
+
+    public long getCpuNanos() {
+        return values[CPU_NANOS];
+    }
+
+    public long getAllocatedBytes() {
+        return values[ALLOCATED_BYTES];
+    }
+
+    public long getBlockedMillis() {
+        return values[BLOCKED_MILLIS];
+    }
+
+    public long getWaitedMillis() {
+        return values[WAITED_MILLIS];
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cpu=%s,alloc=%s,blocked=%s,waited=%s",
+                getCpuNanos() < 0 ? "-" : String.format("%.2fms", getCpuNanos() / 1000000d),
+                getAllocatedBytes() < 0 ? "-" : getAllocatedBytes() + "B",
+                getBlockedMillis() < 0 ? "-" : getBlockedMillis() + "ms",
+                getWaitedMillis() < 0 ? "-" : getWaitedMillis() + "ms");
+    }
+
+}
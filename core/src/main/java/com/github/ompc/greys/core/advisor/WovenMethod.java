@@ -0,0 +1,240 @@
+package com.github.ompc.greys.core.advisor;
+
+import com.github.ompc.greys.core.util.GaMethod;
+import org.objectweb.asm.Type;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+
+import static com.github.ompc.greys.core.util.GaCheckUtils.isEquals;
+import static com.github.ompc.greys.core.util.GaStringUtils.tranClassName;
+
+/**
+ * 被织入的方法<br/>
+ * 编织时由{@link MethodRegistry}分配方法ID,运行时通过ID直接找到方法的类和方法对象,
+ * 不需要在每次调用时做Class.forName()和getDeclaredMethod()<br/>
+ * 对类只持有弱引用;解析后的方法对象只持有软引用,探针长期空闲时可以被回收,
+ * 不会因为缓存而让类和它的类加载器一直无法卸载,被回收后下次使用时重新解析
+ * Created by oldmanpushcart@gmail.com on 15/11/15.
+ */
+public class WovenMethod {
+
+    private final int id;
+    private final ClassRef classRef;
+    private final String className;
+    private final String methodName;
+    private final String methodDesc;
+
+    // 参数类型,编织和参数装箱时都需要用到
+    private final Type[] argumentTypes;
+
+    // 方法对象缓存,GaMethod会强引用到目标类,所以只持有软引用,类恢复为原始字节码后释放
+    private volatile SoftReference<GaMethod> methodRef;
+
+    // 是否已经释放,释放后不再缓存方法对象
+    private volatile boolean isReleased;
+
+    WovenMethod(int id, Class<?> clazz, String methodName, String methodDesc, ReferenceQueue<Class<?>> queue) {
+        this.id = id;
+        this.classRef = new ClassRef(clazz, id, queue);
+        this.className = clazz.getName();
+        this.methodName = methodName;
+        this.methodDesc = methodDesc;
+        this.argumentTypes = Type.getArgumentTypes(methodDesc);
+    }
+
+    /**
+     * 获取方法ID
+     *
+     * @return 方法ID
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * 获取方法所在的类
+     *
+     * @return 方法所在的类,若类已经被卸载则为null
+     */
+    public Class<?> getClazz() {
+        return classRef.get();
+    }
+
+    /**
+     * 获取类加载器
+     *
+     * @return 方法所在类的类加载器
+     */
+    public ClassLoader getLoader() {
+        final Class<?> clazz = getClazz();
+        return null == clazz
+                ? null
+                : clazz.getClassLoader();
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public String getMethodDesc() {
+        return methodDesc;
+    }
+
+    public Type[] getArgumentTypes() {
+        return argumentTypes;
+    }
+
+    /**
+     * 获取方法对象<br/>
+     * 第一次获取(或缓存已经被回收、释放)时才会通过反射查找
+     *
+     * @return 方法对象
+     * @throws ClassNotFoundException 类已经被卸载或参数类型找不到
+     * @throws NoSuchMethodException  方法找不到
+     */
+    public GaMethod getMethod() throws ClassNotFoundException, NoSuchMethodException {
+        final SoftReference<GaMethod> methodRef = this.methodRef;
+        GaMethod method = null == methodRef
+                ? null
+                : methodRef.get();
+        if (null == method) {
+            method = toMethod();
+            this.methodRef = new SoftReference<GaMethod>(method);
+
+            // 和释放并发时不能留下对方法对象的缓存
+            if (isReleased) {
+                this.methodRef = null;
+            }
+        }
+        return method;
+    }
+
+    /*
+     * 释放方法对象,不再阻止类被卸载
+     */
+    void release() {
+        isReleased = true;
+        methodRef = null;
+    }
+
+    /*
+     * 是否已经释放
+     */
+    boolean isReleased() {
+        return isReleased;
+    }
+
+    private Class<?> toClass(ClassLoader loader, String className) throws ClassNotFoundException {
+        return Class.forName(tranClassName(className), false, null != loader ? loader : WovenMethod.class.getClassLoader());
+    }
+
+    private GaMethod toMethod() throws ClassNotFoundException, NoSuchMethodException {
+        final Class<?> clazz = getClazz();
+        if (null == clazz) {
+            throw new ClassNotFoundException(className);
+        }
+
+        final ClassLoader loader = clazz.getClassLoader();
+        final Type[] argumentAsmTypes = argumentTypes;
+
+        // to arg types
+        final Class<?>[] argsClasses = new Class<?>[argumentAsmTypes.length];
+        for (int index = 0; index < argsClasses.length; index++) {
+
+            // asm class descriptor to jvm class
+            final Class<?> argumentClass;
+            final Type argumentAsmType = argumentAsmTypes[index];
+            switch (argumentAsmType.getSort()) {
+                case Type.BOOLEAN: {
+                    argumentClass = boolean.class;
+                    break;
+                }
+                case Type.CHAR: {
+                    argumentClass = char.class;
+                    break;
+                }
+                case Type.BYTE: {
+                    argumentClass = byte.class;
+                    break;
+                }
+                case Type.SHORT: {
+                    argumentClass = short.class;
+                    break;
+                }
+                case Type.INT: {
+                    argumentClass = int.class;
+                    break;
+                }
+                case Type.FLOAT: {
+                    argumentClass = float.class;
+                    break;
+                }
+                case Type.LONG: {
+                    argumentClass = long.class;
+                    break;
+                }
+                case Type.DOUBLE: {
+                    argumentClass = double.class;
+                    break;
+                }
+                case Type.ARRAY: {
+                    argumentClass = toClass(loader, argumentAsmType.getInternalName());
+                    break;
+                }
+                case Type.VOID: {
+                    argumentClass = void.class;
+                    break;
+                }
+                case Type.OBJECT:
+                case Type.METHOD:
+                default: {
+                    argumentClass = toClass(loader, argumentAsmType.getClassName());
+                    break;
+                }
+            }
+
+            argsClasses[index] = argumentClass;
+        }
+
+        // to method or constructor
+        if (isEquals(methodName, "<init>")) {
+            return GaMethod.newInit(clazz.getDeclaredConstructor(argsClasses));
+        } else {
+            return GaMethod.newMethod(clazz.getDeclaredMethod(methodName, argsClasses));
+        }
+    }
+
+    /**
+     * 类的弱引用<br/>
+     * 类被卸载后进入引用队列,由{@link MethodRegistry}回收方法ID
+     */
+    static class ClassRef extends WeakReference<Class<?>> {
+
+        final int id;
+
+        private ClassRef(Class<?> clazz, int id, ReferenceQueue<Class<?>> queue) {
+            super(clazz, queue);
+            this.id = id;
+        }
+
+    }
+
+    /*
+     * 类的弱引用
+     */
+    ClassRef getClassRef() {
+        return classRef;
+    }
+
+    @Override
+    public String toString() {
+        return className + "#" + methodName + methodDesc;
+    }
+
+}
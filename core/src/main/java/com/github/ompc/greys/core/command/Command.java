@@ -1,6 +1,7 @@
 package com.github.ompc.greys.core.command;
 
 import com.github.ompc.greys.core.advisor.AdviceListener;
+import com.github.ompc.greys.core.advisor.AdviceSampler;
 import com.github.ompc.greys.core.server.Session;
 import com.github.ompc.greys.core.util.Matcher;
 import com.github.ompc.greys.core.util.affect.RowAffect;
@@ -77,7 +78,9 @@ public interface Command {
         Matcher getMethodNameMatcher();
 
         /**
-         * 获取监听器
+         * 获取监听器<br/>
+         * 监听器通过{@link AdviceListener#getCapabilities()}声明所需的通知能力,
+         * 没有声明的钩子和参数将不会被织入
          *
          * @return 返回监听器
          */
@@ -85,6 +88,37 @@ public interface Command {
 
     }
 
+    /**
+     * 可采样的类增强<br/>
+     * 高频调用的方法上只通知被采中的调用
+     */
+    interface GetSampledEnhancer extends GetEnhancer {
+
+        /**
+         * 获取采样器
+         *
+         * @return 采样器,不采样时为null
+         */
+        AdviceSampler getAdviceSampler();
+
+    }
+
+    /**
+     * 带条件的类增强<br/>
+     * 条件中只涉及参数和常量的比较会在编织时下沉到被增强的方法中,
+     * 不满足的调用在方法入口处就被过滤掉,不会进入采样和通知
+     */
+    interface GetConditionalEnhancer extends GetSampledEnhancer {
+
+        /**
+         * 获取条件表达式
+         *
+         * @return 条件表达式,没有条件时为null
+         */
+        String getConditionExpress();
+
+    }
+
 
     /**
      * 命令动作
@@ -2,30 +2,43 @@ package com.github.ompc.greys.core.command;
 
 
 import com.github.ompc.greys.core.Advice;
+import com.github.ompc.greys.core.MonitorHistory;
+import com.github.ompc.greys.core.advisor.AdviceWeaver;
 import com.github.ompc.greys.core.advisor.AdviceListener;
-import com.github.ompc.greys.core.advisor.InnerContext;
-import com.github.ompc.greys.core.advisor.ProcessContext;
+import com.github.ompc.greys.core.advisor.Arguments;
+import com.github.ompc.greys.core.advisor.InlineCounters;
 import com.github.ompc.greys.core.advisor.ReflectAdviceListenerAdapter.DefaultReflectAdviceListenerAdapter;
+import com.github.ompc.greys.core.advisor.ThreadUsage;
+import com.github.ompc.greys.core.advisor.WovenMethod;
 import com.github.ompc.greys.core.command.annotation.Cmd;
 import com.github.ompc.greys.core.command.annotation.IndexArg;
 import com.github.ompc.greys.core.command.annotation.NamedArg;
+import com.github.ompc.greys.core.exception.ExpressException;
+import com.github.ompc.greys.core.manager.MonitorHistoryManager;
+import com.github.ompc.greys.core.manager.ScheduleManager;
 import com.github.ompc.greys.core.server.Session;
-import com.github.ompc.greys.core.util.GaMethod;
+import com.github.ompc.greys.core.util.HeavyHitters;
+import com.github.ompc.greys.core.util.LatencyHistogram;
 import com.github.ompc.greys.core.util.Matcher;
 import com.github.ompc.greys.core.util.Matcher.PatternMatcher;
 import com.github.ompc.greys.core.util.SimpleDateFormatHolder;
+import com.github.ompc.greys.core.util.StripedAdder;
+import com.github.ompc.greys.core.util.StripedCounter;
 import com.github.ompc.greys.core.textui.TTable;
+import com.github.ompc.greys.core.util.affect.RowAffect;
+import org.apache.commons.lang3.StringUtils;
 
 import java.lang.instrument.Instrumentation;
 import java.text.DecimalFormat;
-import java.util.Date;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import static com.github.ompc.greys.core.util.GaCheckUtils.isEquals;
+import static com.github.ompc.greys.core.Advice.newForAfterRetuning;
+import static com.github.ompc.greys.core.Advice.newForAfterThrowing;
+import static com.github.ompc.greys.core.util.Express.ExpressFactory.newExpress;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 /**
  * 监控请求命令<br/>
@@ -78,71 +91,137 @@ import static com.github.ompc.greys.core.util.GaCheckUtils.isEquals;
         eg = {
                 "monitor -c 5 -E org\\.apache\\.commons\\.lang\\.StringUtils *",
                 "monitor -c 5 org.apache.commons.lang.StringUtils is*",
-                "monitor *StringUtils isBlank"
+                "monitor *StringUtils isBlank",
+                "monitor --fast -c 5 *StringUtils isBlank",
+                "monitor -c 500ms *StringUtils isBlank",
+                "monitor -g params[0] -c 5 *StringUtils isBlank",
+                "monitor --usage -c 5 *StringUtils isBlank",
+                "monitor --history",
+                "monitor --history -n 10 *StringUtils isBlank"
         })
 public class MonitorCommand implements Command {
 
-    @IndexArg(index = 0, name = "class-pattern", summary = "Path and classname of Pattern Matching")
+    // 监控历史管理
+    private static final MonitorHistoryManager monitorHistoryManager = MonitorHistoryManager.Factory.getInstance();
+
+    // 周期任务调度
+    private static final ScheduleManager scheduleManager = ScheduleManager.Factory.getInstance();
+
+    @IndexArg(index = 0, isRequired = false, name = "class-pattern", summary = "Path and classname of Pattern Matching")
     private String classPattern;
 
-    @IndexArg(index = 1, name = "method-pattern", summary = "Method of Pattern Matching")
+    @IndexArg(index = 1, isRequired = false, name = "method-pattern", summary = "Method of Pattern Matching")
     private String methodPattern;
 
-    @NamedArg(name = "c", hasValue = true, summary = "The cycle of monitor")
-    private int cycle = 120;
+    // 最小统计周期
+    private static final long MIN_CYCLE_MILLIS = 100;
+
+    @NamedArg(name = "c", hasValue = true, summary = "The cycle of monitor, in seconds or with a unit of ms/s, e.g. 500ms")
+    private String cycle = "120";
 
     @NamedArg(name = "E", summary = "Enable regular expression to match (wildcard matching by default)")
     private boolean isRegEx = false;
 
+    // 纳秒与毫秒的换算
+    private static final double NANOS_PER_MILLIS = 1000000d;
+
+    @NamedArg(name = "fast", summary = "Count invocations and cost inline in the woven code, MIN-RT, MAX-RT and percentiles are not available, the invocations already running when the command starts are not counted")
+    private boolean isFast = false;
+
+    @NamedArg(name = "g", hasValue = true,
+            summary = "Group the statistics by the value of OGNL express, like params[0].tenantId",
+            description = "" +
+                    "THE STRUCTURE" +
+                    "\n" +
+                    "          target : the object\n" +
+                    "           clazz : the object's class\n" +
+                    "          method : the constructor or method\n" +
+                    "    params[0..n] : the parameters of method\n" +
+                    "       returnObj : the returned object of method\n" +
+                    "        throwExp : the throw exception of method\n" +
+                    "        isReturn : the method ended by return\n" +
+                    "         isThrow : the method ended by throwing exception"
+    )
+    private String groupExpress;
+
+    @NamedArg(name = "group-limit", hasValue = true, summary = "Max groups of each method with -g (64 by default), the busiest groups are re-chosen every cycle and the rest are folded into \"other\", grouped rows are not kept for --history")
+    private int groupLimit = 64;
+
+    @NamedArg(name = "history", summary = "Display the kept cycles of monitored methods, they remain after the session ends")
+    private boolean isHistory = false;
+
+    @NamedArg(name = "n", hasValue = true, summary = "Number of the latest cycles to display with --history (all by default)")
+    private int limit = 0;
+
+    @NamedArg(name = "usage", summary = "Record thread CPU time, allocated bytes and blocked/waited time of each invocation, the allocated bytes include those made by greys itself on the invoking thread")
+    private boolean isUsage = false;
+
     /**
-     * 数据监控用的Key
-     *
-     * @author oldmanpushcart@gmail.com
+     * 线程内的开始帧栈<br/>
+     * 同一线程上被监控的方法可能嵌套调用,Before压入开始时的线程资源使用,Returning/Throwing弹出<br/>
+     * 每一帧占用width个long
      */
-    private static class Key {
-        private final String className;
-        private final String methodName;
+    private static class StartFrameStack {
 
-        private Key(Class<?> clazz, GaMethod method) {
-            this.className = clazz.getName();
-            this.methodName = method.getName();
-        }
+        private final int width;
+        private long[] elements;
+        private int depth;
 
-        @Override
-        public int hashCode() {
-            return className.hashCode() + methodName.hashCode();
+        // 结束时读取线程资源使用的缓冲
+        private final long[] usage = new long[ThreadUsage.SIZE];
+
+        StartFrameStack(int width) {
+            this.width = width;
+            this.elements = new long[16 * width];
         }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (null == obj
-                    || !(obj instanceof Key)) {
-                return false;
-            }
-            Key oKey = (Key) obj;
-            return isEquals(oKey.className, className)
-                    && isEquals(oKey.methodName, methodName);
+        /*
+         * 压入一帧,返回帧的起始下标
+         */
+        int push() {
+            final int offset = depth * width;
+            if (offset + width > elements.length) {
+                final long[] array = new long[elements.length << 1];
+                System.arraycopy(elements, 0, array, 0, offset);
+                elements = array;
+            }
+            depth++;
+            return offset;
         }
 
-    }
+        /*
+         * 弹出一帧,返回帧的起始下标,栈为空时返回-1
+         */
+        int pop() {
+            return depth > 0
+                    ? --depth * width
+                    : -1;
+        }
 
-    /**
-     * 数据监控用的value
-     *
-     * @author oldmanpushcart@gmail.com
-     */
-    private static class Data {
-        private int total;
-        private int success;
-        private int failed;
-        private long cost;
-        private Long maxCost;
-        private Long minCost;
     }
 
     @Override
     public Action getAction() {
 
+        if (isHistory) {
+            return doHistory();
+        }
+
+        if (isBlank(classPattern)) {
+            throw new IllegalArgumentException("Class-pattern is expected, please type the wildcard expression to match");
+        }
+        if (isBlank(methodPattern)) {
+            throw new IllegalArgumentException("Method-pattern is expected, please type the wildcard expression to match");
+        }
+        if (isFast && isGrouping()) {
+            throw new IllegalArgumentException("Group-express is not supported with --fast");
+        }
+        if (isFast && isUsage) {
+            throw new IllegalArgumentException("Thread usage is not supported with --fast");
+        }
+
+        final long cycleMillis = parseCycleMillis(cycle);
+
         final Matcher classNameMatcher = new PatternMatcher(isRegEx, classPattern);
         final Matcher methodNameMatcher = new PatternMatcher(isRegEx, methodPattern);
 
@@ -164,147 +243,11 @@ public class MonitorCommand implements Command {
                     @Override
                     public AdviceListener getAdviceListener() {
 
-                        return new DefaultReflectAdviceListenerAdapter() {
-
-                            /*
-                             * 输出定时任务
-                             */
-                            private Timer timer;
-
-                            /*
-                             * 监控数据
-                             */
-                            private final ConcurrentHashMap<Key, AtomicReference<Data>> monitorData
-                                    = new ConcurrentHashMap<Key, AtomicReference<Data>>();
-
-                            private double div(double a, double b) {
-                                if (b == 0) {
-                                    return 0;
-                                }
-                                return a / b;
-                            }
-
-                            @Override
-                            public void create() {
-                                timer = new Timer("Timer-for-greys-monitor-" + session.getSessionId(), true);
-                                timer.scheduleAtFixedRate(new TimerTask() {
-
-                                    @Override
-                                    public void run() {
-//                                        if (monitorData.isEmpty()) {
-//                                            return;
-//                                        }
-
-                                        final TTable tTable = new TTable(10)
-                                                .addRow(
-                                                        "TIMESTAMP",
-                                                        "CLASS",
-                                                        "METHOD",
-                                                        "TOTAL",
-                                                        "SUCCESS",
-                                                        "FAIL",
-                                                        "FAIL-RATE",
-                                                        "AVG-RT(ms)",
-                                                        "MIN-RT(ms)",
-                                                        "MAX-RT(ms)"
-                                                );
-
-                                        for (Map.Entry<Key, AtomicReference<Data>> entry : monitorData.entrySet()) {
-                                            final AtomicReference<Data> value = entry.getValue();
-
-                                            Data data;
-                                            while (true) {
-                                                data = value.get();
-                                                if (value.compareAndSet(data, new Data())) {
-                                                    break;
-                                                }
-                                            }
-
-                                            if (null != data) {
-
-                                                final DecimalFormat df = new DecimalFormat("0.00");
-
-                                                tTable.addRow(
-                                                        SimpleDateFormatHolder.getInstance().format(new Date()),
-                                                        entry.getKey().className,
-                                                        entry.getKey().methodName,
-                                                        data.total,
-                                                        data.success,
-                                                        data.failed,
-                                                        df.format(100.0d * div(data.failed, data.total)) + "%",
-                                                        df.format(div(data.cost, data.total)),
-                                                        data.minCost,
-                                                        data.maxCost
-                                                );
-
-                                            }
-                                        }
-
-                                        tTable.padding(1);
-
-                                        printer.println(tTable.rendering());
-                                    }
-
-                                }, 0, cycle * 1000);
-                            }
-
-                            @Override
-                            public void destroy() {
-                                if (null != timer) {
-                                    timer.cancel();
-                                }
-                            }
-
-                            @Override
-                            public void afterFinishing(Advice advice, ProcessContext processContext, InnerContext innerContext) throws Throwable {
-                                final Key key = new Key(advice.clazz, advice.method);
-                                final long cost = innerContext.getCost();
-
-                                while (true) {
-                                    final AtomicReference<Data> value = monitorData.get(key);
-                                    if (null == value) {
-                                        monitorData.putIfAbsent(key, new AtomicReference<Data>(new Data()));
-                                        // 这里不去判断返回值，用continue去强制获取一次
-                                        continue;
-                                    }
-
-                                    while (true) {
-                                        Data oData = value.get();
-                                        Data nData = new Data();
-                                        nData.cost = oData.cost + cost;
-                                        if (advice.isThrow) {
-                                            nData.failed = oData.failed + 1;
-                                            nData.success = oData.success;
-                                        } else {
-                                            nData.failed = oData.failed;
-                                            nData.success = oData.success + 1;
-                                        }
-                                        nData.total = oData.total + 1;
-
-                                        // set max-cost
-                                        if (null == oData.maxCost) {
-                                            nData.maxCost = cost;
-                                        } else {
-                                            nData.maxCost = Math.max(oData.maxCost, cost);
-                                        }
-
-                                        // set min-cost
-                                        if (null == oData.minCost) {
-                                            nData.minCost = cost;
-                                        } else {
-                                            nData.minCost = Math.min(oData.minCost, cost);
-                                        }
-
-
-                                        if (value.compareAndSet(oData, nData)) {
-                                            break;
-                                        }
-                                    }
-                                    break;
-                                }
-                            }
-
-                        };
+                        if (isFast) {
+                            return newInlineCountingListener(session, printer, cycleMillis);
+                        }
+
+                        return newStripedCountingListener(session, printer, cycleMillis);
                     }
                 };
             }
@@ -312,5 +255,761 @@ public class MonitorCommand implements Command {
         };
     }
 
+    /*
+     * 解析统计周期,没有单位时按秒计算
+     */
+    private static long parseCycleMillis(String cycle) {
+        final String value = StringUtils.trim(cycle);
+        final long millis;
+        try {
+            if (StringUtils.endsWithIgnoreCase(value, "ms")) {
+                millis = Long.parseLong(value.substring(0, value.length() - 2));
+            } else if (StringUtils.endsWithIgnoreCase(value, "s")) {
+                millis = Long.parseLong(value.substring(0, value.length() - 1)) * 1000;
+            } else {
+                millis = Long.parseLong(value) * 1000;
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Illegal cycle : " + cycle);
+        }
+        if (millis < MIN_CYCLE_MILLIS) {
+            throw new IllegalArgumentException("Cycle should not be less than " + MIN_CYCLE_MILLIS + "ms");
+        }
+        return millis;
+    }
+
+    /*
+     * 查询监控历史
+     */
+    private RowAction doHistory() {
+
+        final Matcher classNameMatcher = new PatternMatcher(isRegEx, isBlank(classPattern) ? "*" : classPattern);
+        final Matcher methodNameMatcher = new PatternMatcher(isRegEx, isBlank(methodPattern) ? "*" : methodPattern);
+
+        return new RowAction() {
+            @Override
+            public RowAffect action(Session session, Instrumentation inst, Printer printer) throws Throwable {
+
+                final ArrayList<MonitorHistory> monitorHistories = monitorHistoryManager.list(classNameMatcher, methodNameMatcher);
+                final Set<String> overloads = new HashSet<String>();
+                final Set<String> names = new HashSet<String>();
+                for (MonitorHistory monitorHistory : monitorHistories) {
+                    if (!names.add(monitorHistory.className + "." + monitorHistory.methodName)) {
+                        overloads.add(monitorHistory.className + "." + monitorHistory.methodName);
+                    }
+                }
+
+                // 只要有一个周期记录了线程资源使用,就输出线程资源使用
+                final List<long[][]> cyclesList = new ArrayList<long[][]>();
+                boolean isPrintUsage = false;
+                for (MonitorHistory monitorHistory : monitorHistories) {
+                    final long[][] cycles = monitorHistory.rows(limit);
+                    for (long[] row : cycles) {
+                        isPrintUsage |= hasUsage(row);
+                    }
+                    cyclesList.add(cycles);
+                }
+
+                final DecimalFormat df = new DecimalFormat("0.00");
+                final TTable rateTable = new TTable(6)
+                        .addRow("CLASS", "METHOD", "CYCLES", "RATE-1M(/s)", "RATE-5M(/s)", "RATE-15M(/s)");
+                final TTable cycleTable = newTable(isPrintUsage);
+                int rows = 0;
+                for (int index = 0; index < monitorHistories.size(); index++) {
+
+                    final MonitorHistory monitorHistory = monitorHistories.get(index);
+                    final String methodName = overloads.contains(monitorHistory.className + "." + monitorHistory.methodName)
+                            ? monitorHistory.methodName + monitorHistory.methodDesc
+                            : monitorHistory.methodName;
+                    final long[][] cycles = cyclesList.get(index);
+                    final double[] rates = monitorHistory.getEwmaRates();
+                    rateTable.addRow(
+                            monitorHistory.className,
+                            methodName,
+                            cycles.length,
+                            df.format(rates[0]),
+                            df.format(rates[1]),
+                            df.format(rates[2])
+                    );
+                    for (long[] row : cycles) {
+                        addRow(cycleTable, df, monitorHistory.className, methodName, row, isPrintUsage);
+                        rows++;
+                    }
+
+                }
+
+                rateTable.padding(1);
+                cycleTable.padding(1);
+                printer.println(rateTable.rendering()).print(cycleTable.rendering()).finish();
+                return new RowAffect(rows);
+            }
+        };
+
+    }
+
+    /**
+     * 方法的监控数据
+     */
+    private static class Metrics {
+
+        private final StripedCounter counter = new StripedCounter();
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        // 线程资源使用的累计值,不记录时为null
+        private final StripedAdder usage;
+
+        Metrics(boolean isUsage) {
+            this.usage = isUsage ? new StripedAdder(ThreadUsage.SIZE) : null;
+        }
+
+        /*
+         * 记录一次调用
+         * usage为本次调用的线程资源使用,不记录时为null
+         */
+        void record(boolean isThrowing, long cost, long[] usage) {
+            counter.record(isThrowing, cost);
+            histogram.record(cost);
+            if (null != this.usage
+                    && null != usage) {
+                for (int index = 0; index < ThreadUsage.SIZE; index++) {
+                    if (usage[index] > 0) {
+                        this.usage.add(index, usage[index]);
+                    }
+                }
+            }
+        }
+
+        /*
+         * 汇总一个周期,百分位取桶的上界,但不会超过周期内的最大耗时
+         */
+        long[] sumThenReset(long timestamp, long cycleMillis) {
+            final StripedCounter.Snapshot counts = counter.sumThenReset();
+            final LatencyHistogram.Snapshot latencies = histogram.sumThenReset();
+            final long[] row = newRow(timestamp, cycleMillis, counts.getSuccess(), counts.getFailed(), counts.getCost());
+            row[MonitorHistory.FIELD_MIN_COST] = counts.getMinCost();
+            row[MonitorHistory.FIELD_MAX_COST] = counts.getMaxCost();
+            row[MonitorHistory.FIELD_P50] = Math.min(latencies.getValueAtPercentile(50d), counts.getMaxCost());
+            row[MonitorHistory.FIELD_P90] = Math.min(latencies.getValueAtPercentile(90d), counts.getMaxCost());
+            row[MonitorHistory.FIELD_P99] = Math.min(latencies.getValueAtPercentile(99d), counts.getMaxCost());
+            row[MonitorHistory.FIELD_P999] = Math.min(latencies.getValueAtPercentile(99.9d), counts.getMaxCost());
+            if (null != usage) {
+                final long[] sums = usage.sumThenReset();
+                for (int index = 0; index < ThreadUsage.SIZE; index++) {
+                    row[MonitorHistory.FIELD_CPU_NANOS + index] = ThreadUsage.isSupported(index)
+                            ? sums[index]
+                            : -1L;
+                }
+            }
+            return row;
+        }
+
+    }
+
+    /*
+     * 构建一个周期的数据,耗时分布默认为没有采集
+     */
+    private static long[] newRow(long timestamp, long cycleMillis, long success, long failed, long cost) {
+        final long[] row = new long[MonitorHistory.FIELDS];
+        Arrays.fill(row, -1L);
+        row[MonitorHistory.FIELD_TIMESTAMP] = timestamp;
+        row[MonitorHistory.FIELD_CYCLE_MILLIS] = cycleMillis;
+        row[MonitorHistory.FIELD_TOTAL] = success + failed;
+        row[MonitorHistory.FIELD_SUCCESS] = success;
+        row[MonitorHistory.FIELD_FAILED] = failed;
+        row[MonitorHistory.FIELD_COST] = cost;
+        return row;
+    }
+
+    /**
+     * 监控周期任务<br/>
+     * 周期边界上在调度线程中汇总并写入历史,表格的渲染和输出交给渲染线程
+     */
+    private abstract static class MonitorJob implements ScheduleManager.Job {
+
+        private final Printer printer;
+
+        // 会话锁,用于汇总通知自身的开销
+        private final int lock;
+
+        // 是否输出线程资源使用
+        private final boolean isPrintUsage;
+
+        // 上一次汇总的时间,第一次汇总之前为-1
+        private long lastMillis = -1;
+
+        MonitorJob(Printer printer, int lock, boolean isPrintUsage) {
+            this.printer = printer;
+            this.lock = lock;
+            this.isPrintUsage = isPrintUsage;
+        }
+
+        /**
+         * 汇总一个周期
+         *
+         * @param timestamp   汇总时间
+         * @param cycleMillis 周期长度
+         * @return 周期数据
+         */
+        abstract List<Row> sumThenReset(long timestamp, long cycleMillis);
+
+        @Override
+        public Runnable tick(long timestamp) {
+
+            // 第一次汇总只是开始计时,不完整的周期既不计入历史也不输出
+            // 分组每个周期都可能变化,分组的行不计入历史,避免挤掉方法本身的历史
+            final long cycleMillis = lastMillis < 0 ? 0 : timestamp - lastMillis;
+            lastMillis = timestamp;
+            final List<Row> rows = sumThenReset(timestamp, cycleMillis);
+
+            // 通知自身的开销已经从耗时中扣除,单独输出
+            final long[] overhead = AdviceWeaver.sumOverheadThenReset(lock);
+
+            if (cycleMillis <= 0) {
+                return null;
+            }
+
+            for (Row row : rows) {
+                if (null != row.group) {
+                    continue;
+                }
+                final WovenMethod method = row.method;
+                monitorHistoryManager.append(
+                        method.getClassName(),
+                        method.getMethodName(),
+                        method.getMethodDesc(),
+                        row.data
+                );
+            }
+
+            return new Runnable() {
+                @Override
+                public void run() {
+                    printer.println(rendering(rows, overhead));
+                }
+            };
+        }
+
+        private String rendering(List<Row> rows, long[] overhead) {
+
+            // 同一个类中同名的方法需要带上方法描述才能区分
+            final Set<WovenMethod> methods = new HashSet<WovenMethod>();
+            final Set<String> names = new HashSet<String>();
+            final Set<String> overloads = new HashSet<String>();
+            for (Row row : rows) {
+                final String name = row.method.getClassName() + "." + row.method.getMethodName();
+                if (methods.add(row.method)
+                        && !names.add(name)) {
+                    overloads.add(name);
+                }
+            }
+
+            final TTable tTable = newTable(isPrintUsage);
+            final DecimalFormat df = new DecimalFormat("0.00");
+            final StringBuilder footnotes = new StringBuilder();
+            for (Row row : rows) {
+
+                final WovenMethod method = row.method;
+                final String methodName = (overloads.contains(method.getClassName() + "." + method.getMethodName())
+                        ? method.getMethodName() + method.getMethodDesc()
+                        : method.getMethodName())
+                        + (null == row.group ? "" : "[" + row.group + "]");
+
+                addRow(tTable, df, method.getClassName(), methodName, row.data, isPrintUsage);
+
+                if (null != row.heavyHitters
+                        && !row.heavyHitters.isEmpty()) {
+                    footnotes.append("top groups in ").append(method.getClassName()).append(".").append(methodName).append(" : ");
+                    for (Map.Entry<String, Long> entry : row.heavyHitters) {
+                        footnotes.append(entry.getKey()).append("(~").append(entry.getValue()).append(") ");
+                    }
+                    footnotes.append("\n");
+                }
+
+            }
+
+            if (null != overhead
+                    && overhead[0] > 0) {
+                footnotes.append("advice overhead : ")
+                        .append(overhead[0]).append(" calls, ")
+                        .append(df.format(div(overhead[1], overhead[0]) / 1000d)).append("us/call, excluded from RT\n");
+            }
+
+            if (isPrintUsage) {
+                footnotes.append("ALLOC-AVG includes the allocations of greys itself on the invoking thread\n");
+            }
+
+            tTable.padding(1);
+            return tTable.rendering() + footnotes;
+        }
+
+    }
+
+    /**
+     * 输出的一行
+     */
+    private static class Row {
+
+        private final WovenMethod method;
+
+        // 分组,不分组时为null
+        private final String group;
+
+        private final long[] data;
+
+        // 折叠到other分组中的高频分组,只有other分组才有
+        private final List<Map.Entry<String, Long>> heavyHitters;
+
+        private Row(WovenMethod method, String group, long[] data, List<Map.Entry<String, Long>> heavyHitters) {
+            this.method = method;
+            this.group = group;
+            this.data = data;
+            this.heavyHitters = heavyHitters;
+        }
+
+        private Row(WovenMethod method, long[] data) {
+            this(method, null, data, null);
+        }
+
+    }
+
+    /**
+     * 按分组的监控数据<br/>
+     * 分组的个数有上限,超出上限的分组都计入other分组,并由高频键估算找出other中调用最多的分组<br/>
+     * 每个周期边界上重新挑选跟踪的分组:周期内没有调用的分组不再跟踪也不输出,
+     * other中的高频分组在有空位时直接跟踪,没有空位时替换掉本周期调用比它少的分组;
+     * 不再跟踪的分组先移出跟踪表,下一个周期边界上再汇总一次,记录线程在移除前拿到的分组仍然会被计入
+     */
+    private static class GroupedMetrics {
+
+        private static final String OTHER = "other";
+
+        // 高频键估算的计数器个数
+        private static final int HEAVY_HITTERS_CAPACITY = 32;
+
+        // 输出的高频分组个数
+        private static final int HEAVY_HITTERS_TOP = 5;
+
+        private final int limit;
+        private final boolean isUsage;
+        private final ConcurrentHashMap<String, Metrics> groups = new ConcurrentHashMap<String, Metrics>();
+
+        // 已经移出跟踪表,等待下一个周期边界最后汇总一次的分组
+        private final ConcurrentHashMap<String, Metrics> retired = new ConcurrentHashMap<String, Metrics>();
+
+        private final AtomicInteger size = new AtomicInteger();
+        private final Metrics other;
+        private final HeavyHitters otherHeavyHitters = new HeavyHitters(HEAVY_HITTERS_CAPACITY);
+
+        GroupedMetrics(int limit, boolean isUsage) {
+            this.limit = limit;
+            this.isUsage = isUsage;
+            this.other = new Metrics(isUsage);
+        }
+
+        Metrics get(String group) {
+
+            final Metrics exist = groups.get(group);
+            if (null != exist) {
+                return exist;
+            }
+
+            final Metrics metrics = track(group);
+            if (null == metrics) {
+                otherHeavyHitters.offer(group);
+                return other;
+            }
+            return metrics;
+        }
+
+        /*
+         * 跟踪分组,分组个数已经达到上限时返回null
+         * 先占位再创建,保证分组个数不会超过上限;等待最后汇总的分组直接恢复跟踪
+         */
+        private Metrics track(String group) {
+
+            if (size.incrementAndGet() > limit) {
+                size.decrementAndGet();
+                return null;
+            }
+
+            final Metrics exist = retired.remove(group);
+            final Metrics metrics = null == exist
+                    ? new Metrics(isUsage)
+                    : exist;
+            final Metrics race = groups.putIfAbsent(group, metrics);
+            if (null != race) {
+                size.decrementAndGet();
+                return race;
+            }
+            return metrics;
+        }
+
+        /*
+         * 不再跟踪分组
+         * 先移出跟踪表,记录线程可能已经拿到了这个分组,等到下一个周期边界再最后汇总一次
+         */
+        private void untrack(String group, Metrics metrics) {
+            if (groups.remove(group, metrics)) {
+                size.decrementAndGet();
+                retired.put(group, metrics);
+            }
+        }
+
+        void sumThenReset(WovenMethod method, long timestamp, long cycleMillis, List<Row> rows) {
+
+            // 上个周期移除的分组最后汇总一次,只输出移除前后落进来的调用
+            for (Map.Entry<String, Metrics> entry : retired.entrySet()) {
+                if (!retired.remove(entry.getKey(), entry.getValue())) {
+                    continue;
+                }
+                final long[] data = entry.getValue().sumThenReset(timestamp, cycleMillis);
+                if (data[MonitorHistory.FIELD_TOTAL] > 0) {
+                    rows.add(new Row(method, entry.getKey(), data, null));
+                }
+            }
+
+            // 本周期有调用的分组,按调用次数从少到多排列,作为被替换的候选
+            final List<Map.Entry<String, Long>> actives = new ArrayList<Map.Entry<String, Long>>();
+            for (Map.Entry<String, Metrics> entry : groups.entrySet()) {
+                final long[] data = entry.getValue().sumThenReset(timestamp, cycleMillis);
+                final long total = data[MonitorHistory.FIELD_TOTAL];
+                if (total <= 0) {
+                    untrack(entry.getKey(), entry.getValue());
+                    continue;
+                }
+                rows.add(new Row(method, entry.getKey(), data, null));
+                actives.add(new AbstractMap.SimpleImmutableEntry<String, Long>(entry.getKey(), total));
+            }
+            Collections.sort(actives, new Comparator<Map.Entry<String, Long>>() {
+                @Override
+                public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+                    return o1.getValue().compareTo(o2.getValue());
+                }
+            });
+
+            final List<Map.Entry<String, Long>> heavyHitters = otherHeavyHitters.topThenReset(HEAVY_HITTERS_TOP);
+            if (heavyHitters.isEmpty()) {
+                return;
+            }
+            rows.add(new Row(method, OTHER, other.sumThenReset(timestamp, cycleMillis), heavyHitters));
+
+            // 提升other中的高频分组,有空位时直接跟踪,否则替换本周期调用次数少于其估算计数的分组
+            int victim = 0;
+            for (Map.Entry<String, Long> heavyHitter : heavyHitters) {
+                if (null != track(heavyHitter.getKey())) {
+                    continue;
+                }
+                if (victim >= actives.size()
+                        || actives.get(victim).getValue() >= heavyHitter.getValue()) {
+                    break;
+                }
+                final String victimGroup = actives.get(victim++).getKey();
+                final Metrics victimMetrics = groups.get(victimGroup);
+                if (null != victimMetrics) {
+                    untrack(victimGroup, victimMetrics);
+                }
+                track(heavyHitter.getKey());
+            }
+        }
+
+    }
+
+    private static double div(double a, double b) {
+        if (b == 0) {
+            return 0;
+        }
+        return a / b;
+    }
+
+    private static TTable newTable(boolean isPrintUsage) {
+        final List<String> titles = new ArrayList<String>(Arrays.asList(
+                        "TIMESTAMP",
+                        "CLASS",
+                        "METHOD",
+                        "TOTAL",
+                        "SUCCESS",
+                        "FAIL",
+                        "FAIL-RATE",
+                        "AVG-RT(ms)",
+                        "MIN-RT(ms)",
+                        "MAX-RT(ms)",
+                        "P50(ms)",
+                        "P90(ms)",
+                        "P99(ms)",
+                        "P99.9(ms)"
+        ));
+        if (isPrintUsage) {
+            titles.addAll(Arrays.asList("CPU-AVG(ms)", "ALLOC-AVG(B)", "BLOCKED-AVG(ms)", "WAITED-AVG(ms)"));
+        }
+        return new TTable(titles.size()).addRow(titles.toArray());
+    }
+
+    /*
+     * 周期是否记录了线程资源使用
+     */
+    private static boolean hasUsage(long[] row) {
+        for (int index = 0; index < ThreadUsage.SIZE; index++) {
+            if (row[MonitorHistory.FIELD_CPU_NANOS + index] >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * 输出一个周期
+     */
+    private static void addRow(TTable tTable, DecimalFormat df, String className, String methodName, long[] row, boolean isPrintUsage) {
+        final long total = row[MonitorHistory.FIELD_TOTAL];
+        final List<Object> columns = new ArrayList<Object>(Arrays.<Object>asList(
+                SimpleDateFormatHolder.getInstance().format(new Date(row[MonitorHistory.FIELD_TIMESTAMP])),
+                className,
+                methodName,
+                total,
+                row[MonitorHistory.FIELD_SUCCESS],
+                row[MonitorHistory.FIELD_FAILED],
+                df.format(100.0d * div(row[MonitorHistory.FIELD_FAILED], total)) + "%",
+                formatCost(div(row[MonitorHistory.FIELD_COST], total)),
+                formatCost(row[MonitorHistory.FIELD_MIN_COST]),
+                formatCost(row[MonitorHistory.FIELD_MAX_COST]),
+                formatCost(row[MonitorHistory.FIELD_P50]),
+                formatCost(row[MonitorHistory.FIELD_P90]),
+                formatCost(row[MonitorHistory.FIELD_P99]),
+                formatCost(row[MonitorHistory.FIELD_P999])
+        ));
+        if (isPrintUsage) {
+            columns.add(formatAverage(df, row[MonitorHistory.FIELD_CPU_NANOS], total, NANOS_PER_MILLIS));
+            columns.add(formatAverage(df, row[MonitorHistory.FIELD_ALLOCATED_BYTES], total, 1d));
+            columns.add(formatAverage(df, row[MonitorHistory.FIELD_BLOCKED_MILLIS], total, 1d));
+            columns.add(formatAverage(df, row[MonitorHistory.FIELD_WAITED_MILLIS], total, 1d));
+        }
+        tTable.addRow(columns.toArray());
+    }
+
+    /*
+     * 累计值的平均值,没有记录的累计值输出为-
+     */
+    private static String formatAverage(DecimalFormat df, long sum, long total, double unit) {
+        return sum < 0
+                ? "-"
+                : df.format(div(sum, total) / unit);
+    }
+
+    /*
+     * 耗时以毫秒输出,保留到微秒,没有采集到的耗时输出为-
+     */
+    private static String formatCost(double nanos) {
+        return nanos < 0
+                ? "-"
+                : String.format("%.3f", nanos / NANOS_PER_MILLIS);
+    }
+
+    private boolean isGrouping() {
+        return isNotBlank(groupExpress);
+    }
+
+    /*
+     * 计算调用所属的分组,表达式出错的调用都归入同一个分组
+     */
+    private String toGroup(Advice advice) {
+        try {
+            return String.valueOf(newExpress(advice).get(groupExpress));
+        } catch (ExpressException e) {
+            return "error";
+        }
+    }
+
+    /*
+     * 分条带计数的监听器<br/>
+     * 每个被织入的方法(区分重载)在第一次调用时分配一个计数器,之后的调用只是按方法查找并累加,
+     * 不会构建通知,也不会产生任何对象;只有分组时才需要构建通知来计算分组表达式
+     */
+    private AdviceListener newStripedCountingListener(final Session session, final Printer printer, final long cycleMillis) {
+        return new AdviceListener() {
+
+            /*
+             * 周期调度
+             */
+            private ScheduleManager.Schedule schedule;
+
+            /*
+             * 监控数据
+             */
+            private final ConcurrentHashMap<WovenMethod, Metrics> monitorData
+                    = new ConcurrentHashMap<WovenMethod, Metrics>();
+
+            /*
+             * 分组的监控数据
+             */
+            private final ConcurrentHashMap<WovenMethod, GroupedMetrics> groupedMonitorData
+                    = new ConcurrentHashMap<WovenMethod, GroupedMetrics>();
+
+            /*
+             * 线程内开始时的线程资源使用,耗时由编织者在方法边界上测量
+             */
+            private final ThreadLocal<StartFrameStack> startFrameStackRef = new ThreadLocal<StartFrameStack>() {
+                @Override
+                protected StartFrameStack initialValue() {
+                    return new StartFrameStack(ThreadUsage.SIZE);
+                }
+            };
+
+            @Override
+            public int getCapabilities() {
+                // 不分组时只统计调用次数和耗时,不需要通知中的任何值
+                return isGrouping()
+                        ? CAPABILITY_ALL
+                        : CAPABILITY_BEFORE | CAPABILITY_AFTER_FINISHING;
+            }
+
+            @Override
+            public void create() {
+                if (isUsage) {
+                    ThreadUsage.acquireMonitoring();
+                }
+                schedule = scheduleManager.scheduleAligned(cycleMillis, new MonitorJob(printer, session.getLock(), isUsage) {
+
+                    @Override
+                    List<Row> sumThenReset(long timestamp, long cycleMillis) {
+                        final List<Row> rows = new ArrayList<Row>();
+                        for (Map.Entry<WovenMethod, Metrics> entry : monitorData.entrySet()) {
+                            rows.add(new Row(entry.getKey(), entry.getValue().sumThenReset(timestamp, cycleMillis)));
+                        }
+                        for (Map.Entry<WovenMethod, GroupedMetrics> entry : groupedMonitorData.entrySet()) {
+                            entry.getValue().sumThenReset(entry.getKey(), timestamp, cycleMillis, rows);
+                        }
+                        return rows;
+                    }
+
+                });
+            }
+
+            @Override
+            public void destroy() {
+                if (null != schedule) {
+                    schedule.cancel();
+                }
+                if (isUsage) {
+                    ThreadUsage.releaseMonitoring();
+                }
+            }
+
+            @Override
+            public void before(WovenMethod method, Object target, Arguments args) throws Throwable {
+                if (isUsage) {
+                    final StartFrameStack stack = startFrameStackRef.get();
+                    ThreadUsage.read(stack.elements, stack.push());
+                }
+            }
+
+            @Override
+            public void afterReturning(WovenMethod method, Object target, Arguments args, Object returnObject) throws Throwable {
+                finishing(isGrouping()
+                        ? newForAfterRetuning(method.getLoader(), method.getClazz(), method.getMethod(), target, args, returnObject)
+                        : null, method, false);
+            }
+
+            @Override
+            public void afterThrowing(WovenMethod method, Object target, Arguments args, Throwable throwable) throws Throwable {
+                finishing(isGrouping()
+                        ? newForAfterThrowing(method.getLoader(), method.getClazz(), method.getMethod(), target, args, throwable)
+                        : null, method, true);
+            }
+
+            private void finishing(Advice advice, WovenMethod method, boolean isThrowing) {
+                long[] usage = null;
+                if (isUsage) {
+                    final StartFrameStack stack = startFrameStackRef.get();
+                    final int offset = stack.pop();
+                    if (offset < 0) {
+                        return;
+                    }
+                    ThreadUsage.read(stack.usage, 0);
+                    ThreadUsage.delta(stack.elements, offset, stack.usage, 0);
+                    usage = stack.usage;
+                }
+
+                final long cost = AdviceWeaver.getCostNanos();
+                if (cost < 0) {
+                    return;
+                }
+
+                if (null != advice) {
+                    GroupedMetrics groupedMetrics = groupedMonitorData.get(method);
+                    if (null == groupedMetrics) {
+                        final GroupedMetrics exist = groupedMonitorData.putIfAbsent(method, groupedMetrics = new GroupedMetrics(groupLimit, isUsage));
+                        if (null != exist) {
+                            groupedMetrics = exist;
+                        }
+                    }
+                    groupedMetrics.get(toGroup(advice)).record(isThrowing, cost, usage);
+                    return;
+                }
+
+                Metrics metrics = monitorData.get(method);
+                if (null == metrics) {
+                    final Metrics exist = monitorData.putIfAbsent(method, metrics = new Metrics(isUsage));
+                    if (null != exist) {
+                        metrics = exist;
+                    }
+                }
+                metrics.record(isThrowing, cost, usage);
+            }
+
+        };
+    }
+
+    /*
+     * 内联计数的监听器<br/>
+     * 织入的代码直接累加计数,监听器本身不会收到任何通知,只需要定时读取计数并输出两次读数之差
+     */
+    private AdviceListener newInlineCountingListener(final Session session, final Printer printer, final long cycleMillis) {
+        return new DefaultReflectAdviceListenerAdapter() {
+
+            /*
+             * 周期调度
+             */
+            private ScheduleManager.Schedule schedule;
+
+            /*
+             * 上一次读取的计数
+             */
+            private Map<WovenMethod, InlineCounters.Count> lastCounts;
+
+            @Override
+            public int getCapabilities() {
+                return CAPABILITY_INLINE_COUNTING;
+            }
+
+            @Override
+            public void create() {
+                final int lock = session.getLock();
+                lastCounts = InlineCounters.read(lock);
+                schedule = scheduleManager.scheduleAligned(cycleMillis, new MonitorJob(printer, session.getLock(), false) {
+
+                    @Override
+                    List<Row> sumThenReset(long timestamp, long cycleMillis) {
+                        final Map<WovenMethod, InlineCounters.Count> counts = InlineCounters.read(lock);
+                        final List<Row> rows = new ArrayList<Row>();
+                        for (Map.Entry<WovenMethod, InlineCounters.Count> entry : counts.entrySet()) {
+                            final InlineCounters.Count count = entry.getValue().minus(lastCounts.get(entry.getKey()));
+                            rows.add(new Row(entry.getKey(), newRow(timestamp, cycleMillis, count.getSuccess(), count.getFailed(), count.getCost())));
+                        }
+                        lastCounts = counts;
+                        return rows;
+                    }
+
+                });
+            }
+
+            @Override
+            public void destroy() {
+                if (null != schedule) {
+                    schedule.cancel();
+                }
+            }
+
+        };
+    }
 
 }
@@ -16,6 +16,7 @@ import com.github.ompc.greys.core.util.GaMethod;
 import com.github.ompc.greys.core.util.Matcher;
 import com.github.ompc.greys.core.util.Matcher.*;
 import com.github.ompc.greys.core.util.collection.ThreadUnsafeLRUHashMap;
+import com.github.ompc.greys.core.util.express.ExpressBudget;
 
 import java.lang.instrument.Instrumentation;
 import java.util.ArrayList;
@@ -78,7 +79,8 @@ public class PathTraceCommand implements Command {
                     "       returnObj : the returned object of method\n" +
                     "        throwExp : the throw exception of method\n" +
                     "        isReturn : the method ended by return\n" +
-                    "         isThrow : the method ended by throwing exception"
+                    "         isThrow : the method ended by throwing exception\n" +
+                    "            cost : the cost time of method (ms)"
     )
     private String conditionExpress;
 
@@ -162,6 +164,14 @@ public class PathTraceCommand implements Command {
                     public AdviceListener getAdviceListener() {
                         return new ReflectAdviceListenerAdapter<PathTraceProcessContext, InnerContext>() {
 
+                            @Override
+                            public int getCapabilities() {
+                                // 记录时间碎片或者有条件表达式时才会用到通知中的值
+                                return CAPABILITY_BEFORE
+                                        | CAPABILITY_AFTER_FINISHING
+                                        | (isTimeTunnel || !isBlank(conditionExpress) ? CAPABILITY_ALL_VALUES : 0);
+                            }
+
                             private volatile boolean isInit = false;
 
                             // 执行计数器
@@ -227,7 +237,7 @@ public class PathTraceCommand implements Command {
                                     return;
                                 }
 
-                                final long cost = innerContext.getCost();
+                                final double cost = innerContext.getCost();
 
                                 final Entity entity = processContext.getEntity();
                                 entity.deep--;
@@ -247,7 +257,8 @@ public class PathTraceCommand implements Command {
                                             advice,
                                             new Date(),
                                             cost,
-                                            getStack(STACK_DEEP)
+                                            getStack(STACK_DEEP),
+                                            null
                                     );
                                     entity.tfTable.add(timeFragment);
                                     entity.tTree.set(entity.tTree.get() + "; index=" + timeFragment.id + ";");
@@ -286,12 +297,23 @@ public class PathTraceCommand implements Command {
                             }
 
                             // 匹配过滤规则
-                            private boolean isInCondition(Advice advice, long cost) {
+                            // 表达式求值的耗时预算
+                            private final ExpressBudget budget = ExpressBudget.newInstance(new PrinterAlarm(printer));
+
+                            private boolean isInCondition(Advice advice, double cost) {
+                                if (isBlank(conditionExpress)) {
+                                    return true;
+                                }
+                                if (!budget.isAllowed()) {
+                                    return false;
+                                }
+                                final long beginNanos = System.nanoTime();
                                 try {
-                                    return isBlank(conditionExpress)
-                                            || newExpress(advice).bind("cost", cost).is(conditionExpress);
+                                    return newExpress(advice).bind("cost", cost).is(conditionExpress);
                                 } catch (ExpressException e) {
                                     return false;
+                                } finally {
+                                    budget.record(System.nanoTime() - beginNanos);
                                 }
                             }
 
@@ -0,0 +1,33 @@
+package com.github.ompc.greys.core.command;
+
+import com.github.ompc.greys.core.advisor.AsyncAdviceListener;
+import com.github.ompc.greys.core.command.Command.Printer;
+import com.github.ompc.greys.core.util.express.ExpressBudget;
+
+/**
+ * 将表达式求值超出预算、异步通知丢弃事件的告警输出到会话<br/>
+ * 需要停止时同时结束命令
+ * Created by oldmanpushcart@gmail.com on 15/12/2.
+ */
+public class PrinterAlarm implements ExpressBudget.Alarm, AsyncAdviceListener.Alarm {
+
+    private final Printer printer;
+
+    public PrinterAlarm(Printer printer) {
+        this.printer = printer;
+    }
+
+    @Override
+    public void alarm(String message, boolean isStopped) {
+        printer.println(message);
+        if (isStopped) {
+            printer.finish();
+        }
+    }
+
+    @Override
+    public void alarm(String message) {
+        printer.println(message);
+    }
+
+}
@@ -2,6 +2,7 @@ package com.github.ompc.greys.core.command;
 
 import com.github.ompc.greys.core.advisor.Enhancer;
 import com.github.ompc.greys.core.command.annotation.Cmd;
+import com.github.ompc.greys.core.command.annotation.NamedArg;
 import com.github.ompc.greys.core.server.Session;
 import com.github.ompc.greys.core.util.affect.EnhancerAffect;
 import com.github.ompc.greys.core.util.affect.RowAffect;
@@ -12,16 +13,21 @@ import static org.apache.commons.lang3.StringUtils.EMPTY;
 
 /**
  * 恢复所有增强类<br/>
+ * 指定-i时只移除空闲的探针,其他会话正在使用的探针不受影响
  * Created by oldmanpushcart@gmail.com on 15/5/29.
  */
 @Cmd(name = "reset", sort = 11, summary = "Reset all the enhanced classes",
         eg = {
                 "reset",
+                "reset -i",
                 "reset *List",
                 "reset -E .*List"
         })
 public class ResetCommand implements Command {
 
+    @NamedArg(name = "i", summary = "Only remove the idle probes, the probes still used by other sessions are kept")
+    private boolean isIdleOnly = false;
+
     @Override
     public Action getAction() {
 
@@ -33,7 +39,9 @@ public class ResetCommand implements Command {
                     Instrumentation inst,
                     Printer printer) throws Throwable {
 
-                final EnhancerAffect enhancerAffect = Enhancer.reset(inst);
+                final EnhancerAffect enhancerAffect = isIdleOnly
+                        ? Enhancer.shrink(inst, 0)
+                        : Enhancer.reset(inst);
                 printer.print(EMPTY).finish();
                 return new RowAffect(enhancerAffect.cCnt());
             }
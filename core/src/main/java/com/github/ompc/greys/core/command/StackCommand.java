@@ -2,6 +2,7 @@ package com.github.ompc.greys.core.command;
 
 import com.github.ompc.greys.core.Advice;
 import com.github.ompc.greys.core.advisor.AdviceListener;
+import com.github.ompc.greys.core.advisor.AdviceSampler;
 import com.github.ompc.greys.core.advisor.InnerContext;
 import com.github.ompc.greys.core.advisor.ProcessContext;
 import com.github.ompc.greys.core.advisor.ReflectAdviceListenerAdapter;
@@ -12,6 +13,7 @@ import com.github.ompc.greys.core.exception.ExpressException;
 import com.github.ompc.greys.core.server.Session;
 import com.github.ompc.greys.core.util.Matcher;
 import com.github.ompc.greys.core.util.Matcher.PatternMatcher;
+import com.github.ompc.greys.core.util.express.ExpressBudget;
 
 import java.lang.instrument.Instrumentation;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -71,6 +73,12 @@ public class StackCommand implements Command {
     @NamedArg(name = "n", hasValue = true, summary = "Threshold of execution times")
     private Integer threshold;
 
+    @NamedArg(name = "sample", hasValue = true, summary = "Sample one of every N invocations in each thread")
+    private Integer sample;
+
+    @NamedArg(name = "rate", hasValue = true, summary = "Max sampled invocations per second")
+    private Integer rate;
+
     @Override
     public Action getAction() {
 
@@ -81,7 +89,7 @@ public class StackCommand implements Command {
 
             @Override
             public GetEnhancer action(Session session, Instrumentation inst, final Printer printer) throws Throwable {
-                return new GetEnhancer() {
+                return new GetConditionalEnhancer() {
 
                     private final AtomicInteger times = new AtomicInteger();
 
@@ -98,10 +106,28 @@ public class StackCommand implements Command {
                         return methodNameMatcher;
                     }
 
+                    @Override
+                    public AdviceSampler getAdviceSampler() {
+                        return AdviceSampler.newInstance(sample, rate);
+                    }
+
+                    @Override
+                    public String getConditionExpress() {
+                        return conditionExpress;
+                    }
+
                     @Override
                     public AdviceListener getAdviceListener() {
                         return new ReflectAdviceListenerAdapter<ProcessContext, StackInnerContext>() {
 
+                            @Override
+                            public int getCapabilities() {
+                                // 只有条件表达式才会用到通知中的值
+                                return CAPABILITY_BEFORE
+                                        | CAPABILITY_AFTER_FINISHING
+                                        | (isBlank(conditionExpress) ? 0 : CAPABILITY_ALL_VALUES);
+                            }
+
                             @Override
                             protected ProcessContext newProcessContext() {
                                 return new ProcessContext();
@@ -117,12 +143,23 @@ public class StackCommand implements Command {
                                 innerContext.setStack(getStack(STACK_DEEP));
                             }
 
+                            // 表达式求值的耗时预算
+                            private final ExpressBudget budget = ExpressBudget.newInstance(new PrinterAlarm(printer));
+
                             private boolean isInCondition(Advice advice) {
+                                if (isBlank(conditionExpress)) {
+                                    return true;
+                                }
+                                if (!budget.isAllowed()) {
+                                    return false;
+                                }
+                                final long beginNanos = System.nanoTime();
                                 try {
-                                    return isBlank(conditionExpress)
-                                            || newExpress(advice).is(conditionExpress);
+                                    return newExpress(advice).is(conditionExpress);
                                 } catch (ExpressException e) {
                                     return false;
+                                } finally {
+                                    budget.record(System.nanoTime() - beginNanos);
                                 }
                             }
 
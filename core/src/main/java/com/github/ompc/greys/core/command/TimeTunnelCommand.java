@@ -3,9 +3,12 @@ package com.github.ompc.greys.core.command;
 import com.github.ompc.greys.core.Advice;
 import com.github.ompc.greys.core.TimeFragment;
 import com.github.ompc.greys.core.advisor.AdviceListener;
+import com.github.ompc.greys.core.advisor.AdviceSampler;
+import com.github.ompc.greys.core.advisor.Arguments;
 import com.github.ompc.greys.core.advisor.InnerContext;
 import com.github.ompc.greys.core.advisor.ProcessContext;
 import com.github.ompc.greys.core.advisor.ReflectAdviceListenerAdapter.DefaultReflectAdviceListenerAdapter;
+import com.github.ompc.greys.core.advisor.ThreadUsage;
 import com.github.ompc.greys.core.command.annotation.Cmd;
 import com.github.ompc.greys.core.command.annotation.IndexArg;
 import com.github.ompc.greys.core.command.annotation.NamedArg;
@@ -16,6 +19,7 @@ import com.github.ompc.greys.core.util.GaMethod;
 import com.github.ompc.greys.core.util.Matcher;
 import com.github.ompc.greys.core.util.Matcher.PatternMatcher;
 import com.github.ompc.greys.core.util.affect.RowAffect;
+import com.github.ompc.greys.core.util.express.ExpressBudget;
 import com.github.ompc.greys.core.textui.ext.TObject;
 import com.github.ompc.greys.core.textui.TTable;
 import com.github.ompc.greys.core.textui.ext.TTimeFragmentDetail;
@@ -45,6 +49,7 @@ import static org.apache.commons.lang3.StringUtils.*;
         eg = {
                 "tt -t *StringUtils isEmpty",
                 "tt -t *StringUtils isEmpty params[0].length==1",
+                "tt -t --usage *StringUtils isEmpty",
                 "tt -l",
                 "tt -D",
                 "tt -i 1000 -w params[0]",
@@ -175,6 +180,15 @@ public class TimeTunnelCommand implements Command {
     @NamedArg(name = "n", hasValue = true, summary = "Threshold of execution times")
     private Integer threshold;
 
+    @NamedArg(name = "sample", hasValue = true, summary = "Sample one of every N invocations in each thread")
+    private Integer sample;
+
+    @NamedArg(name = "rate", hasValue = true, summary = "Max sampled invocations per second")
+    private Integer rate;
+
+    @NamedArg(name = "usage", summary = "Record thread CPU time, allocated bytes and blocked/waited time of each invocation, the allocated bytes include those made by greys itself on the invoking thread")
+    private boolean isUsage = false;
+
     // 针对tt命令调整
     private static final int STACK_DEEP = 11;
 
@@ -225,7 +239,7 @@ public class TimeTunnelCommand implements Command {
         return new GetEnhancerAction() {
             @Override
             public GetEnhancer action(Session session, Instrumentation inst, final Printer printer) throws Throwable {
-                return new GetEnhancer() {
+                return new GetConditionalEnhancer() {
 
                     private final AtomicInteger timesRef = new AtomicInteger();
 
@@ -239,6 +253,16 @@ public class TimeTunnelCommand implements Command {
                         return methodNameMatcher;
                     }
 
+                    @Override
+                    public AdviceSampler getAdviceSampler() {
+                        return AdviceSampler.newInstance(sample, rate);
+                    }
+
+                    @Override
+                    public String getConditionExpress() {
+                        return conditionExpress;
+                    }
+
                     @Override
                     public AdviceListener getAdviceListener() {
 
@@ -249,17 +273,51 @@ public class TimeTunnelCommand implements Command {
                              */
                             private volatile boolean isFirst = true;
 
+                            @Override
+                            public void create() {
+                                if (isUsage) {
+                                    ThreadUsage.acquireMonitoring();
+                                }
+                            }
+
+                            @Override
+                            public void destroy() {
+                                if (isUsage) {
+                                    ThreadUsage.releaseMonitoring();
+                                }
+                            }
+
+                            @Override
+                            protected InnerContext newInnerContext() {
+                                final InnerContext innerContext = super.newInnerContext();
+                                if (isUsage) {
+                                    innerContext.markThreadUsage();
+                                }
+                                return innerContext;
+                            }
+
                             private boolean isOverThreshold(int currentTimes) {
                                 return null != threshold
                                         && currentTimes >= threshold;
                             }
 
+                            // 表达式求值的耗时预算
+                            private final ExpressBudget budget = ExpressBudget.newInstance(new PrinterAlarm(printer));
+
                             private boolean isInCondition(final Advice advice) {
+                                if (isBlank(conditionExpress)) {
+                                    return true;
+                                }
+                                if (!budget.isAllowed()) {
+                                    return false;
+                                }
+                                final long beginNanos = System.nanoTime();
                                 try {
-                                    return isBlank(conditionExpress)
-                                            || newExpress(advice).is(conditionExpress);
+                                    return newExpress(advice).is(conditionExpress);
                                 } catch (ExpressException e) {
                                     return false;
+                                } finally {
+                                    budget.record(System.nanoTime() - beginNanos);
                                 }
                             }
 
@@ -275,10 +333,11 @@ public class TimeTunnelCommand implements Command {
                                         advice,
                                         new Date(),
                                         innerContext.getCost(),
-                                        getStack(STACK_DEEP)
+                                        getStack(STACK_DEEP),
+                                        innerContext.getThreadUsage()
                                 );
 
-                                final TTimeFragmentTable view = new TTimeFragmentTable(isFirst)
+                                final TTimeFragmentTable view = new TTimeFragmentTable(isFirst, isUsage)
                                         .turnOffBottom()    // 表格控件不输出表格上边框,这样两个表格就能拼凑在一起
                                         .add(timeFragment)  // 填充表格内容
                                         ;
@@ -439,8 +498,8 @@ public class TimeTunnelCommand implements Command {
                 final GaMethod method = advice.method;
                 final boolean accessible = advice.method.isAccessible();
 
-                final long beginTimestamp = System.currentTimeMillis();
-                final long cost;
+                final long beginNanos = System.nanoTime();
+                final double cost;
                 Advice reAdvice = null;
 
                 // 注入时间片段id
@@ -448,13 +507,13 @@ public class TimeTunnelCommand implements Command {
 
                 try {
                     method.setAccessible(true);
-                    final Object returnObj = method.invoke(advice.target, advice.params);
+                    final Object returnObj = method.invoke(advice.target, advice.getParams());
                     reAdvice = newForAfterRetuning(
                             advice.loader,
                             advice.clazz,
                             advice.method,
                             advice.target,
-                            advice.params,
+                            Arguments.wrap(advice.getParams()),
                             returnObj
                     );
                 } catch (Throwable t) {
@@ -472,13 +531,13 @@ public class TimeTunnelCommand implements Command {
                             advice.clazz,
                             advice.method,
                             advice.target,
-                            advice.params,
+                            Arguments.wrap(advice.getParams()),
                             cause
                     );
 
                 } finally {
                     method.setAccessible(accessible);
-                    cost = System.currentTimeMillis() - beginTimestamp;
+                    cost = (System.nanoTime() - beginNanos) / 1000000d;
 
                     // 清除时间片段id
                     // PlayIndexHolder.getInstance().remove();
@@ -490,7 +549,8 @@ public class TimeTunnelCommand implements Command {
                         reAdvice,
                         timeFragment.gmtCreate,
                         cost,
-                        getStack(2)
+                        getStack(2),
+                        null
                 );
 
 
@@ -526,7 +586,12 @@ public class TimeTunnelCommand implements Command {
      * 绘制TimeTunnel表格
      */
     private String drawTimeTunnelTable(final ArrayList<TimeFragment> timeFragments) {
-        final TTimeFragmentTable view = new TTimeFragmentTable(true);
+        // 只要有一个片段记录了线程资源使用,就输出线程资源使用
+        boolean isPrintUsage = false;
+        for (TimeFragment timeFragment : timeFragments) {
+            isPrintUsage |= null != timeFragment.threadUsage;
+        }
+        final TTimeFragmentTable view = new TTimeFragmentTable(true, isPrintUsage);
         for (TimeFragment timeFragment : timeFragments) {
             view.add(timeFragment);
         }
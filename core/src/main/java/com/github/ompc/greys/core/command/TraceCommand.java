@@ -9,6 +9,7 @@ import com.github.ompc.greys.core.exception.ExpressException;
 import com.github.ompc.greys.core.server.Session;
 import com.github.ompc.greys.core.util.Matcher;
 import com.github.ompc.greys.core.util.Matcher.PatternMatcher;
+import com.github.ompc.greys.core.util.express.ExpressBudget;
 import com.github.ompc.greys.core.textui.TTree;
 
 import java.lang.instrument.Instrumentation;
@@ -16,7 +17,6 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.github.ompc.greys.core.util.Express.ExpressFactory.newExpress;
 import static com.github.ompc.greys.core.util.GaStringUtils.getThreadInfo;
-import static com.github.ompc.greys.core.util.GaStringUtils.tranClassName;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 
 /**
@@ -28,7 +28,12 @@ import static org.apache.commons.lang3.StringUtils.isBlank;
                 "trace -E org\\.apache\\.commons\\.lang\\.StringUtils isBlank",
                 "trace org.apache.commons.lang.StringUtils isBlank",
                 "trace *StringUtils isBlank",
-                "trace *StringUtils isBlank params[0].length==1"
+                "trace *StringUtils isBlank params[0].length==1",
+                "trace -rate 5 *StringUtils isBlank",
+                "trace -j -g *StringUtils isBlank",
+                "trace -o org.apache.commons.lang.* *StringUtils isBlank",
+                "trace --display-depth 1 *StringUtils isBlank",
+                "trace --usage *StringUtils isBlank"
         })
 public class TraceCommand implements Command {
 
@@ -58,7 +63,8 @@ public class TraceCommand implements Command {
                     "       returnObj : the returned object of method\n" +
                     "        throwExp : the throw exception of method\n" +
                     "        isReturn : the method ended by return\n" +
-                    "         isThrow : the method ended by throwing exception"
+                    "         isThrow : the method ended by throwing exception\n" +
+                    "            cost : the cost time of method (ms)"
     )
     private String conditionExpress;
 
@@ -68,17 +74,43 @@ public class TraceCommand implements Command {
     @NamedArg(name = "n", hasValue = true, summary = "Threshold of execution times")
     private Integer threshold;
 
+    @NamedArg(name = "sample", hasValue = true, summary = "Sample one of every N invocations in each thread")
+    private Integer sample;
+
+    @NamedArg(name = "rate", hasValue = true, summary = "Max sampled invocations per second")
+    private Integer rate;
+
+    @NamedArg(name = "usage", summary = "Record thread CPU time, allocated bytes and blocked/waited time of the traced method, the allocated bytes include those made by greys itself on the invoking thread, such as the nodes of nested calls")
+    private boolean isUsage = false;
+
+    @NamedArg(name = "o", hasValue = true, summary = "Only trace the invocations whose owner class matches the pattern")
+    private String ownerPattern;
+
+    @NamedArg(name = "j", summary = "Skip the invocations of JDK classes")
+    private boolean isSkipJdk = false;
+
+    @NamedArg(name = "g", summary = "Skip the invocations of getter/setter")
+    private boolean isSkipGetter = false;
+
+    @NamedArg(name = "display-depth", hasValue = true, summary = "Max depth of nested traced methods to display, the deeper ones are still traced but not displayed")
+    private Integer maxDisplayDepth;
+
     @Override
     public Action getAction() {
 
         final Matcher classNameMatcher = new PatternMatcher(isRegEx, classPattern);
         final Matcher methodNameMatcher = new PatternMatcher(isRegEx, methodPattern);
+        final InvokeSiteFilter invokeSiteFilter = new InvokeSiteFilter(
+                isBlank(ownerPattern) ? null : new PatternMatcher(isRegEx, ownerPattern),
+                isSkipJdk,
+                isSkipGetter
+        );
 
         return new GetEnhancerAction() {
 
             @Override
             public GetEnhancer action(Session session, Instrumentation inst, final Printer printer) throws Throwable {
-                return new GetEnhancer() {
+                return new GetSampledEnhancer() {
 
                     @Override
                     public Matcher getClassNameMatcher() {
@@ -90,39 +122,61 @@ public class TraceCommand implements Command {
                         return methodNameMatcher;
                     }
 
+                    @Override
+                    public AdviceSampler getAdviceSampler() {
+                        return AdviceSampler.newInstance(sample, rate);
+                    }
+
                     // 访问计数器
                     private final AtomicInteger timesRef = new AtomicInteger();
 
                     @Override
                     public AdviceListener getAdviceListener() {
-                        return new ReflectAdviceTracingListenerAdapter<ProcessContext, TraceInnerContext>() {
+                        return new ReflectAdviceTracingListenerAdapter<TraceProcessContext, TraceInnerContext>() {
+
+                            @Override
+                            public int getCapabilities() {
+                                // 只有条件表达式才会用到通知中的值
+                                return CAPABILITY_BEFORE
+                                        | CAPABILITY_AFTER_FINISHING
+                                        | (isBlank(conditionExpress) ? 0 : CAPABILITY_ALL_VALUES);
+                            }
+
+                            @Override
+                            public InvokeSiteFilter getInvokeSiteFilter() {
+                                return invokeSiteFilter;
+                            }
 
                             @Override
                             public void invokeBeforeTracing(
-                                    String tracingClassName,
-                                    String tracingMethodName,
-                                    String tracingMethodDesc,
-                                    ProcessContext processContext,
+                                    InvokeSite site,
+                                    TraceProcessContext processContext,
                                     TraceInnerContext innerContext) throws Throwable {
                                 final Entity entity = innerContext.getEntity();
-                                entity.tTree.begin(tranClassName(tracingClassName) + ":" + tracingMethodName + "()");
+                                if (entity.isSkip) {
+                                    return;
+                                }
+                                // 调用点本身作为节点,输出时才拼接节点名称
+                                // 类恢复后调用点ID可能已被重新分配,此时取不到调用点
+                                entity.tTree.begin(null == site ? "<unknown>" : site);
                                 entity.tracingDeep++;
                             }
 
                             @Override
                             public void invokeAfterTracing(
-                                    String tracingClassName,
-                                    String tracingMethodName,
-                                    String tracingMethodDesc,
-                                    ProcessContext processContext,
+                                    InvokeSite site,
+                                    TraceProcessContext processContext,
                                     TraceInnerContext innerContext) throws Throwable {
                                 final Entity entity = innerContext.getEntity();
+                                if (entity.isSkip) {
+                                    return;
+                                }
                                 entity.tTree.end();
                                 entity.tracingDeep--;
                             }
 
                             @Override
-                            public void before(Advice advice, ProcessContext processContext, TraceInnerContext innerContext) throws Throwable {
+                            public void before(Advice advice, TraceProcessContext processContext, TraceInnerContext innerContext) throws Throwable {
 
                                 final Entity entity = innerContext.getEntity(new InitCallback<Entity>() {
                                     @Override
@@ -131,31 +185,76 @@ public class TraceCommand implements Command {
                                     }
                                 });
 
+                                // 超出最大深度的嵌套方法不再输出
+                                // 嵌套深度只有运行时才知道,无法在编织时过滤,这些方法仍然会被跟踪
+                                final int deep = ++processContext.deep;
+                                entity.isSkip = null != maxDisplayDepth
+                                        && deep > maxDisplayDepth;
+                                if (entity.isSkip) {
+                                    return;
+                                }
+
                                 entity.tTree = new TTree(true, "Tracing for : " + getThreadInfo())
                                         .begin(advice.clazz.getName() + ":" + advice.method.getName() + "()");
 
                             }
 
                             @Override
-                            protected ProcessContext newProcessContext() {
-                                return new ProcessContext();
+                            protected TraceProcessContext newProcessContext() {
+                                return new TraceProcessContext();
                             }
 
                             @Override
                             protected TraceInnerContext newInnerContext() {
-                                return new TraceInnerContext();
+                                final TraceInnerContext innerContext = new TraceInnerContext();
+                                if (isUsage) {
+                                    innerContext.markThreadUsage();
+                                }
+                                return innerContext;
+                            }
+
+                            @Override
+                            public void create() {
+                                if (isUsage) {
+                                    ThreadUsage.acquireMonitoring();
+                                }
                             }
 
                             @Override
-                            public void afterReturning(Advice advice, ProcessContext processContext, TraceInnerContext innerContext) throws Throwable {
+                            public void destroy() {
+                                if (isUsage) {
+                                    ThreadUsage.releaseMonitoring();
+                                }
+                            }
+
+                            /*
+                             * 线程资源使用输出在方法节点后面
+                             */
+                            private String usageSuffix(TraceInnerContext innerContext) {
+                                return null == innerContext.getThreadUsage()
+                                        ? ""
+                                        : " [" + innerContext.getThreadUsage() + "]";
+                            }
+
+                            @Override
+                            public void afterReturning(Advice advice, TraceProcessContext processContext, TraceInnerContext innerContext) throws Throwable {
                                 final Entity entity = innerContext.getEntity();
+                                if (entity.isSkip) {
+                                    return;
+                                }
+                                if (isUsage) {
+                                    entity.tTree.set(entity.tTree.get() + usageSuffix(innerContext));
+                                }
                                 entity.tTree.end();
                             }
 
                             @Override
-                            public void afterThrowing(Advice advice, ProcessContext processContext, TraceInnerContext innerContext) throws Throwable {
+                            public void afterThrowing(Advice advice, TraceProcessContext processContext, TraceInnerContext innerContext) throws Throwable {
                                 final Entity entity = innerContext.getEntity();
-                                entity.tTree.begin("throw:" + advice.throwExp.getClass().getName() + "()").end();
+                                if (entity.isSkip) {
+                                    return;
+                                }
+                                entity.tTree.begin("throw:" + advice.throwExp.getClass().getName() + "()" + usageSuffix(innerContext)).end();
 
                                 // 这里将堆栈的end全部补上
                                 while (entity.tracingDeep-- >= 0) {
@@ -164,12 +263,23 @@ public class TraceCommand implements Command {
 
                             }
 
-                            private boolean isInCondition(Advice advice, long cost) {
+                            // 表达式求值的耗时预算
+                            private final ExpressBudget budget = ExpressBudget.newInstance(new PrinterAlarm(printer));
+
+                            private boolean isInCondition(Advice advice, double cost) {
+                                if (isBlank(conditionExpress)) {
+                                    return true;
+                                }
+                                if (!budget.isAllowed()) {
+                                    return false;
+                                }
+                                final long beginNanos = System.nanoTime();
                                 try {
-                                    return isBlank(conditionExpress)
-                                            || newExpress(advice).bind("cost", cost).is(conditionExpress);
+                                    return newExpress(advice).bind("cost", cost).is(conditionExpress);
                                 } catch (ExpressException e) {
                                     return false;
+                                } finally {
+                                    budget.record(System.nanoTime() - beginNanos);
                                 }
                             }
 
@@ -179,8 +289,12 @@ public class TraceCommand implements Command {
                             }
 
                             @Override
-                            public void afterFinishing(Advice advice, ProcessContext processContext, TraceInnerContext innerContext) throws Throwable {
-                                final long cost = innerContext.getCost();
+                            public void afterFinishing(Advice advice, TraceProcessContext processContext, TraceInnerContext innerContext) throws Throwable {
+                                processContext.deep--;
+                                if (innerContext.getEntity().isSkip) {
+                                    return;
+                                }
+                                final double cost = innerContext.getCost();
                                 if (isInCondition(advice, cost)) {
                                     final Entity entity = innerContext.getEntity();
                                     printer.println(entity.tTree.rendering());
@@ -205,6 +319,16 @@ public class TraceCommand implements Command {
 
         // 跟踪深度
         int tracingDeep = 0;
+
+        // 超出最大深度,不再跟踪
+        boolean isSkip;
+    }
+
+    private class TraceProcessContext extends ProcessContext {
+
+        // 被跟踪方法的嵌套深度
+        int deep;
+
     }
 
     private class TraceInnerContext extends InnerContext {
@@ -1,7 +1,10 @@
 package com.github.ompc.greys.core.command;
 
 import com.github.ompc.greys.core.Advice;
+import com.github.ompc.greys.core.GlobalOptions;
 import com.github.ompc.greys.core.advisor.AdviceListener;
+import com.github.ompc.greys.core.advisor.AdviceSampler;
+import com.github.ompc.greys.core.advisor.AsyncAdviceListener;
 import com.github.ompc.greys.core.advisor.InnerContext;
 import com.github.ompc.greys.core.advisor.ProcessContext;
 import com.github.ompc.greys.core.advisor.ReflectAdviceListenerAdapter.DefaultReflectAdviceListenerAdapter;
@@ -14,6 +17,7 @@ import com.github.ompc.greys.core.textui.ext.TObject;
 import com.github.ompc.greys.core.util.LogUtil;
 import com.github.ompc.greys.core.util.Matcher;
 import com.github.ompc.greys.core.util.Matcher.PatternMatcher;
+import com.github.ompc.greys.core.util.express.ExpressBudget;
 import org.slf4j.Logger;
 
 import java.lang.instrument.Instrumentation;
@@ -30,7 +34,9 @@ import static org.apache.commons.lang3.StringUtils.isBlank;
                 "watch -f org.apache.commons.lang.StringUtils isBlank returnObj",
                 "watch -bf *StringUtils isBlank params[0]",
                 "watch *StringUtils isBlank params[0]",
-                "watch *StringUtils isBlank params[0] params[0].length==1"
+                "watch *StringUtils isBlank params[0] params[0].length==1",
+                "watch -sample 100 -rate 10 *StringUtils isBlank params[0]",
+                "watch --async *StringUtils isBlank params[0]"
         })
 public class WatchCommand implements Command {
 
@@ -112,6 +118,15 @@ public class WatchCommand implements Command {
     @NamedArg(name = "n", hasValue = true, summary = "Threshold of execution times")
     private Integer threshold;
 
+    @NamedArg(name = "sample", hasValue = true, summary = "Sample one of every N invocations in each thread")
+    private Integer sample;
+
+    @NamedArg(name = "rate", hasValue = true, summary = "Max sampled invocations per second")
+    private Integer rate;
+
+    @NamedArg(name = "async", summary = "Evaluate and print in the session worker thread, the invoking thread only enqueues the advice")
+    private boolean isAsync = false;
+
     @Override
     public Action getAction() {
 
@@ -130,8 +145,8 @@ public class WatchCommand implements Command {
         return new GetEnhancerAction() {
 
             @Override
-            public GetEnhancer action(Session session, Instrumentation inst, final Printer printer) throws Throwable {
-                return new GetEnhancer() {
+            public GetEnhancer action(final Session session, Instrumentation inst, final Printer printer) throws Throwable {
+                return new GetConditionalEnhancer() {
 
                     private final AtomicInteger timesRef = new AtomicInteger();
 
@@ -145,10 +160,35 @@ public class WatchCommand implements Command {
                         return methodNameMatcher;
                     }
 
+                    @Override
+                    public AdviceSampler getAdviceSampler() {
+                        return AdviceSampler.newInstance(sample, rate);
+                    }
+
+                    @Override
+                    public String getConditionExpress() {
+                        return conditionExpress;
+                    }
+
                     @Override
                     public AdviceListener getAdviceListener() {
 
-                        return new DefaultReflectAdviceListenerAdapter() {
+                        final AdviceListener listener = new DefaultReflectAdviceListenerAdapter() {
+
+                            @Override
+                            public int getCapabilities() {
+                                int capabilities = CAPABILITY_TARGET | CAPABILITY_PARAMS;
+                                if (isBefore) {
+                                    capabilities |= CAPABILITY_BEFORE;
+                                }
+                                if (isSuccess || isException || isFinish) {
+                                    capabilities |= CAPABILITY_AFTER_FINISHING;
+                                }
+                                if (isSuccess || isFinish) {
+                                    capabilities |= CAPABILITY_RETURN_OBJECT;
+                                }
+                                return capabilities;
+                            }
 
                             @Override
                             public void before(Advice advice, ProcessContext processContext, InnerContext innerContext) throws Throwable {
@@ -192,7 +232,18 @@ public class WatchCommand implements Command {
                                 }
                             }
 
+                            // 表达式求值的耗时预算,异步时不在业务线程上求值,无需限制
+                            private final ExpressBudget budget = isAsync
+                                    ? new ExpressBudget(0, false, new PrinterAlarm(printer))
+                                    : ExpressBudget.newInstance(new PrinterAlarm(printer));
+
                             private void watching(Advice advice) {
+
+                                if (!budget.isAllowed()) {
+                                    return;
+                                }
+
+                                final long beginNanos = System.nanoTime();
                                 try {
 
                                     if (isInCondition(advice)) {
@@ -205,11 +256,16 @@ public class WatchCommand implements Command {
                                 } catch (Exception e) {
                                     logger.warn("watch failed.", e);
                                     printer.println(getCauseMessage(e));
+                                } finally {
+                                    budget.record(System.nanoTime() - beginNanos);
                                 }
                             }
 
                         };
 
+                        return isAsync
+                                ? new AsyncAdviceListener(listener, Math.max(1, GlobalOptions.asyncAdviceCapacity), session.getAsyncAdviceWorker(), new PrinterAlarm(printer))
+                                : listener;
                     }
                 };
             }
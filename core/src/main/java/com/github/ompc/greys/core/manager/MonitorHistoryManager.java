@@ -0,0 +1,56 @@
+package com.github.ompc.greys.core.manager;
+
+import com.github.ompc.greys.core.MonitorHistory;
+import com.github.ompc.greys.core.manager.impl.DefaultMonitorHistoryManager;
+import com.github.ompc.greys.core.util.Matcher;
+
+import java.util.ArrayList;
+
+/**
+ * 监控历史管理<br/>
+ * 历史不属于任何会话,会话结束或断开后仍然可以查询
+ * Created by oldmanpushcart@gmail.com on 15/11/27.
+ */
+public interface MonitorHistoryManager {
+
+    /**
+     * 追加一个周期
+     *
+     * @param className  类名
+     * @param methodName 方法名
+     * @param methodDesc 方法描述
+     * @param row        周期数据,按MonitorHistory.FIELD_*排列
+     */
+    void append(String className, String methodName, String methodDesc, long[] row);
+
+    /**
+     * 列出匹配的监控历史
+     *
+     * @param classNameMatcher  类名匹配
+     * @param methodNameMatcher 方法名匹配
+     * @return 监控历史列表
+     */
+    ArrayList<MonitorHistory> list(Matcher classNameMatcher, Matcher methodNameMatcher);
+
+    /**
+     * 工厂
+     */
+    class Factory {
+
+        private static volatile MonitorHistoryManager instance = null;
+
+        public static MonitorHistoryManager getInstance() {
+            if (null == instance) {
+                synchronized (MonitorHistoryManager.class) {
+                    if (instance == null) {
+                        instance = new DefaultMonitorHistoryManager();
+                    }
+                }
+            }
+
+            return instance;
+        }
+
+    }
+
+}
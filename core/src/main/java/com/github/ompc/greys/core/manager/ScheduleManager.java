@@ -0,0 +1,75 @@
+package com.github.ompc.greys.core.manager;
+
+import com.github.ompc.greys.core.manager.impl.DefaultScheduleManager;
+
+/**
+ * 周期任务调度<br/>
+ * 整个Agent共用一个调度线程,所有周期性命令的周期都对齐到墙钟的整数倍上,
+ * 同一时刻开始的周期在同一时刻结束,不同会话的输出也能对得上<br/>
+ * 每个周期分为两步:调度线程在周期边界上执行{@link Job#tick(long)}做快速的汇总,
+ * 汇总返回的渲染任务再交给独立的渲染线程执行,渲染和输出再慢也不会拖延其他任务的周期边界
+ * Created by oldmanpushcart@gmail.com on 15/11/30.
+ */
+public interface ScheduleManager {
+
+    /**
+     * 周期任务
+     */
+    interface Job {
+
+        /**
+         * 周期边界到达<br/>
+         * 运行在调度线程中,只应做快速的汇总
+         *
+         * @param timestamp 周期边界的时间戳
+         * @return 渲染任务,为null时本周期无需渲染
+         */
+        Runnable tick(long timestamp);
+
+    }
+
+    /**
+     * 调度句柄
+     */
+    interface Schedule {
+
+        /**
+         * 取消调度<br/>
+         * 已经开始的汇总和渲染会执行完,之后不再触发
+         */
+        void cancel();
+
+    }
+
+    /**
+     * 按墙钟对齐周期执行任务<br/>
+     * 任务在每个周期边界(时间戳为周期的整数倍)上触发,支持小于一秒的周期
+     *
+     * @param periodMillis 周期(毫秒)
+     * @param job          周期任务
+     * @return 调度句柄
+     */
+    Schedule scheduleAligned(long periodMillis, Job job);
+
+    /**
+     * 工厂
+     */
+    class Factory {
+
+        private static volatile ScheduleManager instance = null;
+
+        public static ScheduleManager getInstance() {
+            if (null == instance) {
+                synchronized (ScheduleManager.class) {
+                    if (instance == null) {
+                        instance = new DefaultScheduleManager();
+                    }
+                }
+            }
+
+            return instance;
+        }
+
+    }
+
+}
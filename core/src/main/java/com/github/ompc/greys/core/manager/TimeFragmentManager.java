@@ -2,6 +2,7 @@ package com.github.ompc.greys.core.manager;
 
 import com.github.ompc.greys.core.Advice;
 import com.github.ompc.greys.core.TimeFragment;
+import com.github.ompc.greys.core.advisor.ThreadUsage;
 import com.github.ompc.greys.core.manager.impl.DefaultTimeFragmentManager;
 
 import java.util.ArrayList;
@@ -27,11 +28,12 @@ public interface TimeFragmentManager {
      * @param processId 过程ID
      * @param advice    通知数据
      * @param gmtCreate 记录时间戳
-     * @param cost      片段耗时
+     * @param cost      片段耗时(毫秒)
      * @param stack     片段堆栈
+     * @param threadUsage 片段的线程资源使用,没有记录时为null
      * @return 时间片段
      */
-    TimeFragment append(int processId, Advice advice, Date gmtCreate, long cost, String stack);
+    TimeFragment append(int processId, Advice advice, Date gmtCreate, double cost, String stack, ThreadUsage threadUsage);
 
     /**
      * 列出所有时间碎片
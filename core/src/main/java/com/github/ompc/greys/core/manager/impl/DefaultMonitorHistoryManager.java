@@ -0,0 +1,59 @@
+package com.github.ompc.greys.core.manager.impl;
+
+import com.github.ompc.greys.core.GlobalOptions;
+import com.github.ompc.greys.core.MonitorHistory;
+import com.github.ompc.greys.core.manager.MonitorHistoryManager;
+import com.github.ompc.greys.core.util.Matcher;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 默认监控历史实现<br/>
+ * 最多保留{@link #MAX_METHODS}个方法的历史,超出后移除最久没有更新的方法
+ * Created by oldmanpushcart@gmail.com on 15/11/27.
+ */
+public class DefaultMonitorHistoryManager implements MonitorHistoryManager {
+
+    // 最多保留历史的方法个数
+    private static final int MAX_METHODS = 1024;
+
+    // 监控历史存储,按更新顺序排列
+    private final Map<String, MonitorHistory> monitorHistoryStore
+            = new LinkedHashMap<String, MonitorHistory>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MonitorHistory> eldest) {
+            return size() > MAX_METHODS;
+        }
+    };
+
+    @Override
+    public void append(String className, String methodName, String methodDesc, long[] row) {
+        final String key = className + "." + methodName + methodDesc;
+        MonitorHistory monitorHistory;
+        synchronized (monitorHistoryStore) {
+            monitorHistory = monitorHistoryStore.get(key);
+            if (null == monitorHistory) {
+                monitorHistory = new MonitorHistory(className, methodName, methodDesc, GlobalOptions.monitorHistoryCapacity);
+                monitorHistoryStore.put(key, monitorHistory);
+            }
+        }
+        monitorHistory.append(row);
+    }
+
+    @Override
+    public ArrayList<MonitorHistory> list(Matcher classNameMatcher, Matcher methodNameMatcher) {
+        final ArrayList<MonitorHistory> monitorHistories = new ArrayList<MonitorHistory>();
+        synchronized (monitorHistoryStore) {
+            for (MonitorHistory monitorHistory : monitorHistoryStore.values()) {
+                if (classNameMatcher.matching(monitorHistory.className)
+                        && methodNameMatcher.matching(monitorHistory.methodName)) {
+                    monitorHistories.add(monitorHistory);
+                }
+            }
+        }
+        return monitorHistories;
+    }
+
+}
@@ -0,0 +1,160 @@
+package com.github.ompc.greys.core.manager.impl;
+
+import com.github.ompc.greys.core.manager.ScheduleManager;
+import com.github.ompc.greys.core.util.LogUtil;
+import org.slf4j.Logger;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * 默认周期任务调度实现<br/>
+ * 每个任务触发后都按当前时间重新计算下一个周期边界,不会因为执行耗时或时钟调整而逐渐偏离墙钟;
+ * 错过的边界直接跳过,不会补发。同一个任务上一次的渲染还没结束时,本周期的渲染会被丢弃
+ * Created by oldmanpushcart@gmail.com on 15/11/30.
+ */
+public class DefaultScheduleManager implements ScheduleManager {
+
+    private final Logger logger = LogUtil.getLogger();
+
+    // 最小周期
+    private static final long MIN_PERIOD_MILLIS = 10;
+
+    // 调度线程,只做周期边界上的汇总
+    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "ga-schedule-daemon");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // 渲染线程,汇总结果的渲染和输出
+    private final ThreadPoolExecutor renderer = new ThreadPoolExecutor(
+            1, 1,
+            60, SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread t = new Thread(r, "ga-schedule-render-daemon");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }
+    );
+
+    public DefaultScheduleManager() {
+        // 没有任务时不保留线程
+        scheduler.setKeepAliveTime(60, SECONDS);
+        scheduler.allowCoreThreadTimeOut(true);
+        renderer.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public Schedule scheduleAligned(long periodMillis, Job job) {
+        final AlignedSchedule schedule = new AlignedSchedule(Math.max(MIN_PERIOD_MILLIS, periodMillis), job);
+        schedule.next();
+        return schedule;
+    }
+
+    /**
+     * 对齐墙钟的调度
+     */
+    private class AlignedSchedule implements Schedule, Runnable {
+
+        private final long periodMillis;
+        private final Job job;
+
+        // 本次触发的周期边界
+        private volatile long boundary;
+
+        // 等待触发的调度
+        private volatile Future<?> future;
+
+        private volatile boolean isCanceled = false;
+
+        // 是否有渲染任务在执行或排队
+        private final AtomicBoolean isRenderingRef = new AtomicBoolean(false);
+
+        private AlignedSchedule(long periodMillis, Job job) {
+            this.periodMillis = periodMillis;
+            this.job = job;
+        }
+
+        /*
+         * 调度到下一个周期边界
+         */
+        private void next() {
+            final long now = System.currentTimeMillis();
+            boundary = (now / periodMillis + 1) * periodMillis;
+            future = scheduler.schedule(this, boundary - now, MILLISECONDS);
+            if (isCanceled) {
+                future.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (isCanceled) {
+                return;
+            }
+            try {
+                final Runnable rendering = job.tick(boundary);
+                if (null != rendering) {
+                    render(rendering);
+                }
+            } catch (Throwable t) {
+                logger.warn("schedule tick failed.", t);
+            } finally {
+                if (!isCanceled) {
+                    next();
+                }
+            }
+        }
+
+        /*
+         * 交给渲染线程,上一次渲染还没结束时丢弃本次渲染
+         */
+        private void render(final Runnable rendering) {
+            if (!isRenderingRef.compareAndSet(false, true)) {
+                logger.info("schedule rendering is too slow, drop this cycle.");
+                return;
+            }
+            try {
+                renderer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (!isCanceled) {
+                                rendering.run();
+                            }
+                        } catch (Throwable t) {
+                            logger.warn("schedule rendering failed.", t);
+                        } finally {
+                            isRenderingRef.set(false);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                isRenderingRef.set(false);
+                throw e;
+            }
+        }
+
+        @Override
+        public void cancel() {
+            isCanceled = true;
+            final Future<?> current = future;
+            if (null != current) {
+                current.cancel(false);
+            }
+        }
+
+    }
+
+}
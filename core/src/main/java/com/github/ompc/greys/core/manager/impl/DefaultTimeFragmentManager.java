@@ -2,6 +2,7 @@ package com.github.ompc.greys.core.manager.impl;
 
 import com.github.ompc.greys.core.Advice;
 import com.github.ompc.greys.core.TimeFragment;
+import com.github.ompc.greys.core.advisor.ThreadUsage;
 import com.github.ompc.greys.core.exception.ExpressException;
 import com.github.ompc.greys.core.manager.TimeFragmentManager;
 import com.github.ompc.greys.core.util.Express;
@@ -42,7 +43,11 @@ public class DefaultTimeFragmentManager implements TimeFragmentManager {
     }
 
     @Override
-    public TimeFragment append(int processId, Advice advice, Date gmtCreate, long cost, String stack) {
+    public TimeFragment append(int processId, Advice advice, Date gmtCreate, double cost, String stack, ThreadUsage threadUsage) {
+
+        // 参数槽位在通知结束后会被复用,保存之前先完成参数装箱
+        advice.getParams();
+
         final int id = nextSequence();
         final TimeFragment timeFragment = new TimeFragment(
                 id,
@@ -50,7 +55,8 @@ public class DefaultTimeFragmentManager implements TimeFragmentManager {
                 advice,
                 gmtCreate,
                 cost,
-                stack
+                stack,
+                threadUsage
         );
         timeFragmentStore.put(id, timeFragment);
         return timeFragment;
@@ -1,12 +1,17 @@
 package com.github.ompc.greys.core.server;
 
+import com.github.ompc.greys.core.GlobalOptions;
 import com.github.ompc.greys.core.advisor.AdviceListener;
+import com.github.ompc.greys.core.advisor.AdviceSampler;
 import com.github.ompc.greys.core.advisor.AdviceWeaver;
 import com.github.ompc.greys.core.advisor.Enhancer;
 import com.github.ompc.greys.core.advisor.InvokeTraceable;
+import com.github.ompc.greys.core.advisor.LoweredCondition;
 import com.github.ompc.greys.core.command.Command;
 import com.github.ompc.greys.core.command.Command.Action;
+import com.github.ompc.greys.core.command.Command.GetConditionalEnhancer;
 import com.github.ompc.greys.core.command.Command.GetEnhancerAction;
+import com.github.ompc.greys.core.command.Command.GetSampledEnhancer;
 import com.github.ompc.greys.core.command.Command.Printer;
 import com.github.ompc.greys.core.command.Commands;
 import com.github.ompc.greys.core.command.QuitCommand;
@@ -223,7 +228,13 @@ public class DefaultCommandHandler implements CommandHandler {
                 final EnhancerAffect enhancerAffect = Enhancer.enhance(
                         inst,
                         lock,
-                        listener instanceof InvokeTraceable,
+                        listener instanceof InvokeTraceable
+                                ? ((InvokeTraceable) listener).getInvokeSiteFilter()
+                                : null,
+                        GlobalOptions.isConditionLowering && getEnhancer instanceof GetConditionalEnhancer
+                                ? LoweredCondition.lower(((GetConditionalEnhancer) getEnhancer).getConditionExpress())
+                                : null,
+                        listener.getCapabilities(),
                         getEnhancer.getClassNameMatcher(),
                         getEnhancer.getMethodNameMatcher()
                 );
@@ -231,12 +242,18 @@ public class DefaultCommandHandler implements CommandHandler {
                 // 这里做个补偿,如果在enhance期间,unLock被调用了,则补偿性放弃
                 if (session.getLock() == lock) {
                     // 注册通知监听器
-                    AdviceWeaver.reg(lock, listener);
+                    final AdviceSampler sampler = getEnhancer instanceof GetSampledEnhancer
+                            ? ((GetSampledEnhancer) getEnhancer).getAdviceSampler()
+                            : null;
+                    AdviceWeaver.reg(lock, listener, sampler);
                     printer.println(ABORT_MSG);
 
                     ((EnhancerAffect) affect).cCnt(enhancerAffect.cCnt());
                     ((EnhancerAffect) affect).mCnt(enhancerAffect.mCnt());
                     ((EnhancerAffect) affect).getClassDumpFiles().addAll(enhancerAffect.getClassDumpFiles());
+                } else {
+                    // 释放enhance期间绑定的探针
+                    AdviceWeaver.unReg(lock);
                 }
             }
 
@@ -256,8 +273,26 @@ public class DefaultCommandHandler implements CommandHandler {
         }
 
         // 跑任务
-        jobRunning(session, isFinishRef);
+        try {
+            jobRunning(session, isFinishRef);
+        }
+
+        // 会话写出失败时同样需要回收超出保留个数的空闲探针
+        finally {
+            shrinkProbes();
+        }
+
+    }
 
+    /*
+     * 命令结束后探针进入空闲状态,只保留最近使用过的若干个以便复用
+     */
+    private void shrinkProbes() {
+        try {
+            Enhancer.shrink(inst, GlobalOptions.warmProbeCapacity);
+        } catch (Throwable t) {
+            logger.warn("shrink probes failed.", t);
+        }
     }
 
     private void jobRunning(Session session, AtomicBoolean isFinishRef) throws IOException, GaExecuteException {
@@ -2,6 +2,7 @@ package com.github.ompc.greys.core.server;
 
 import com.github.ompc.greys.core.GlobalOptions;
 import com.github.ompc.greys.core.advisor.AdviceWeaver;
+import com.github.ompc.greys.core.advisor.AsyncAdviceWorker;
 import com.github.ompc.greys.core.util.LogUtil;
 import org.slf4j.Logger;
 
@@ -53,6 +54,9 @@ public class Session {
     // 会话输出阻塞队列
     private final BlockingQueue<String> writeQueue = new LinkedBlockingQueue<String>(GlobalOptions.sessionWriteQueueCapacity);
 
+    // 异步通知的工作线程,会话中的异步命令共用
+    private final AsyncAdviceWorker asyncAdviceWorker;
+
     /**
      * 构建Session
      *
@@ -69,6 +73,7 @@ public class Session {
         this.socketChannel = socketChannel;
         this.charset = charset;
         this.gmtLastTouch = currentTimeMillis();
+        this.asyncAdviceWorker = new AsyncAdviceWorker("ga-advice-async-daemon-" + sessionId);
     }
 
     /**
@@ -78,6 +83,7 @@ public class Session {
 
         isDestroy = true;
         closeQuietly(socketChannel);
+        asyncAdviceWorker.shutdown();
 
         logger.info("session[{}] destroyed.", sessionId);
 
@@ -193,6 +199,10 @@ public class Session {
         return writeQueue;
     }
 
+    public AsyncAdviceWorker getAsyncAdviceWorker() {
+        return asyncAdviceWorker;
+    }
+
     public int getSessionId() {
         return sessionId;
     }
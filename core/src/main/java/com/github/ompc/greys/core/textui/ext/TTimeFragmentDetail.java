@@ -52,7 +52,8 @@ public class TTimeFragmentDetail implements TComponent {
                 .addRow("INDEX", timeFragment.id)
                 .addRow("PROCESS-ID", timeFragment.processId)
                 .addRow("GMT-CREATE", SimpleDateFormatHolder.getInstance().format(timeFragment.gmtCreate))
-                .addRow("COST(ms)", timeFragment.cost)
+                .addRow("COST(ms)", String.format("%.3f", timeFragment.cost))
+                .addRow("THREAD-USAGE", null == timeFragment.threadUsage ? "-" : timeFragment.threadUsage)
                 .addRow("OBJECT", GaStringUtils.hashCodeToHexString(advice.target))
                 .addRow("CLASS", className)
                 .addRow("METHOD", methodName)
@@ -60,10 +61,11 @@ public class TTimeFragmentDetail implements TComponent {
                 .addRow("IS-EXCEPTION", advice.isThrow);
 
         // fill the parameters
-        if (null != advice.params) {
+        final Object[] params = advice.getParams();
+        if (null != params) {
 
             int paramIndex = 0;
-            for (Object param : advice.params) {
+            for (Object param : params) {
                 tTable.addRow("PARAMETERS[" + paramIndex++ + "]", new TObject(param, expend).rendering());
             }
 
@@ -2,6 +2,7 @@ package com.github.ompc.greys.core.textui.ext;
 
 import com.github.ompc.greys.core.Advice;
 import com.github.ompc.greys.core.TimeFragment;
+import com.github.ompc.greys.core.advisor.ThreadUsage;
 import com.github.ompc.greys.core.textui.TComponent;
 import com.github.ompc.greys.core.textui.TTable;
 import com.github.ompc.greys.core.util.SimpleDateFormatHolder;
@@ -28,6 +29,10 @@ public class TTimeFragmentTable implements TComponent {
             15, // object address
             30, // class
             30, // method
+            10, // cpu(ms)
+            12, // alloc(B)
+            12, // blocked(ms)
+            12, // waited(ms)
     };
 
     /*
@@ -42,26 +47,36 @@ public class TTimeFragmentTable implements TComponent {
             "IS-EXP",
             "OBJECT",
             "CLASS",
-            "METHOD"
-
+            "METHOD",
+            "CPU(ms)",
+            "ALLOC(B)",
+            "BLOCKED(ms)",
+            "WAITED(ms)"
     };
 
+    // 不输出线程资源使用时的列数
+    private static final int BASE_COL_COUNT = 9;
+
+    private final boolean isPrintUsage;
+
     private final TTable tTable;
 
     public TTimeFragmentTable(boolean isPrintTitle) {
-        this.tTable = new TTable(
-                new TTable.ColumnDefine[]{
-                        new TTable.ColumnDefine(TABLE_COL_WIDTH[0], false, TTable.Align.RIGHT),
-                        new TTable.ColumnDefine(TABLE_COL_WIDTH[1], false, TTable.Align.RIGHT),
-                        new TTable.ColumnDefine(TABLE_COL_WIDTH[2], false, TTable.Align.RIGHT),
-                        new TTable.ColumnDefine(TABLE_COL_WIDTH[3], false, TTable.Align.RIGHT),
-                        new TTable.ColumnDefine(TABLE_COL_WIDTH[4], false, TTable.Align.RIGHT),
-                        new TTable.ColumnDefine(TABLE_COL_WIDTH[5], false, TTable.Align.RIGHT),
-                        new TTable.ColumnDefine(TABLE_COL_WIDTH[6], false, TTable.Align.RIGHT),
-                        new TTable.ColumnDefine(TABLE_COL_WIDTH[7], false, TTable.Align.RIGHT),
-                        new TTable.ColumnDefine(TABLE_COL_WIDTH[8], false, TTable.Align.RIGHT)
-                }
-        ).padding(1);
+        this(isPrintTitle, false);
+    }
+
+    /**
+     * @param isPrintTitle 是否输出标题
+     * @param isPrintUsage 是否输出线程资源使用
+     */
+    public TTimeFragmentTable(boolean isPrintTitle, boolean isPrintUsage) {
+        this.isPrintUsage = isPrintUsage;
+        final TTable.ColumnDefine[] columnDefines
+                = new TTable.ColumnDefine[isPrintUsage ? TABLE_COL_WIDTH.length : BASE_COL_COUNT];
+        for (int index = 0; index < columnDefines.length; index++) {
+            columnDefines[index] = new TTable.ColumnDefine(TABLE_COL_WIDTH[index], false, TTable.Align.RIGHT);
+        }
+        this.tTable = new TTable(columnDefines).padding(1);
 
         if (isPrintTitle) {
             fillTableTitle();
@@ -73,17 +88,9 @@ public class TTimeFragmentTable implements TComponent {
      * 添加标题
      */
     private void fillTableTitle() {
-        this.tTable.addRow(
-                TABLE_COL_TITLE[0],
-                TABLE_COL_TITLE[1],
-                TABLE_COL_TITLE[2],
-                TABLE_COL_TITLE[3],
-                TABLE_COL_TITLE[4],
-                TABLE_COL_TITLE[5],
-                TABLE_COL_TITLE[6],
-                TABLE_COL_TITLE[7],
-                TABLE_COL_TITLE[8]
-        );
+        final Object[] titles = new Object[isPrintUsage ? TABLE_COL_TITLE.length : BASE_COL_COUNT];
+        System.arraycopy(TABLE_COL_TITLE, 0, titles, 0, titles.length);
+        this.tTable.addRow(titles);
     }
 
     /*
@@ -91,11 +98,30 @@ public class TTimeFragmentTable implements TComponent {
      */
     public TTimeFragmentTable add(TimeFragment timeFragment) {
         final Advice advice = timeFragment.advice;
+        if (isPrintUsage) {
+            final ThreadUsage threadUsage = timeFragment.threadUsage;
+            tTable.addRow(
+                    timeFragment.id,
+                    timeFragment.processId,
+                    SimpleDateFormatHolder.getInstance().format(timeFragment.gmtCreate),
+                    String.format("%.3f", timeFragment.cost),
+                    advice.isReturn,
+                    advice.isThrow,
+                    hashCodeToHexString(advice.target),
+                    substringAfterLast("." + advice.clazz.getName(), "."),
+                    advice.method.getName(),
+                    null == threadUsage || threadUsage.getCpuNanos() < 0 ? "-" : String.format("%.2f", threadUsage.getCpuNanos() / 1000000d),
+                    null == threadUsage ? "-" : formatUsage(threadUsage.getAllocatedBytes()),
+                    null == threadUsage ? "-" : formatUsage(threadUsage.getBlockedMillis()),
+                    null == threadUsage ? "-" : formatUsage(threadUsage.getWaitedMillis())
+            );
+            return this;
+        }
         tTable.addRow(
                 timeFragment.id,
                 timeFragment.processId,
                 SimpleDateFormatHolder.getInstance().format(timeFragment.gmtCreate),
-                timeFragment.cost,
+                String.format("%.3f", timeFragment.cost),
                 advice.isReturn,
                 advice.isThrow,
                 hashCodeToHexString(advice.target),
@@ -105,6 +131,13 @@ public class TTimeFragmentTable implements TComponent {
         return this;
     }
 
+    /*
+     * 不支持的资源项输出为-
+     */
+    private static Object formatUsage(long value) {
+        return value < 0 ? "-" : value;
+    }
+
     /**
      * 关闭下边框
      */
@@ -1,15 +1,15 @@
 package com.github.ompc.greys.core.util;
 
 import com.github.ompc.greys.core.Advice;
+import com.github.ompc.greys.core.GlobalOptions;
 import com.github.ompc.greys.core.exception.ExpressException;
-import ognl.DefaultMemberAccess;
-import ognl.Ognl;
-import ognl.OgnlContext;
+import com.github.ompc.greys.core.util.express.AdviceRoot;
+import com.github.ompc.greys.core.util.express.CompiledPredicate;
+import com.github.ompc.greys.core.util.express.CompiledSupport;
+import com.github.ompc.greys.core.util.express.ExpressCompiler;
+import ognl.*;
 
-import java.lang.reflect.Field;
-
-import static com.github.ompc.greys.core.util.UnsafeHolder.unsafe;
-import static org.apache.commons.lang3.reflect.FieldUtils.readDeclaredField;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 表达式
@@ -86,88 +86,79 @@ public interface Express {
     }
 
 
-    abstract class UnsafeBindSupport implements Express {
-
-        // -- unsafe offset : Advice --
-
-        private static final long OFFSET_OF_ADVICE_LOADER;
-        private static final long OFFSET_OF_ADVICE_CLAZZ;
-        private static final long OFFSET_OF_ADVICE_METHOD;
-        private static final long OFFSET_OF_ADVICE_TARGET;
-        private static final long OFFSET_OF_ADVICE_PARAMS;
-        private static final long OFFSET_OF_ADVICE_RETURN_OBJ;
-        private static final long OFFSET_OF_ADVICE_THROW_EXP;
-        private static final long OFFSET_OF_ADVICE_IS_BEFORE;
-        private static final long OFFSET_OF_ADVICE_IS_THROW;
-        private static final long OFFSET_OF_ADVICE_IS_RETURN;
-        //private static final long OFFSET_OF_PLAY_INDEX;
+    /**
+     * OGNL实现的表达式<br/>
+     * 表达式只解析一次,解析后的语法树按表达式文本缓存,所有线程共享;
+     * 绑定通知点时以{@link AdviceRoot}作为根对象,求值前后都不需要读写上下文中的变量
+     */
+    class OgnlExpress implements Express {
 
-        // init advice offset
+        // 所有表达式共用的成员访问策略
+        private static final MemberAccess MEMBER_ACCESS = new DefaultMemberAccess(true);
 
         static {
-            try {
-                OFFSET_OF_ADVICE_LOADER = unsafe.objectFieldOffset(Advice.class.getDeclaredField("loader"));
-                OFFSET_OF_ADVICE_CLAZZ = unsafe.objectFieldOffset(Advice.class.getDeclaredField("clazz"));
-                OFFSET_OF_ADVICE_METHOD = unsafe.objectFieldOffset(Advice.class.getDeclaredField("method"));
-                OFFSET_OF_ADVICE_TARGET = unsafe.objectFieldOffset(Advice.class.getDeclaredField("target"));
-                OFFSET_OF_ADVICE_PARAMS = unsafe.objectFieldOffset(Advice.class.getDeclaredField("params"));
-                OFFSET_OF_ADVICE_RETURN_OBJ = unsafe.objectFieldOffset(Advice.class.getDeclaredField("returnObj"));
-                OFFSET_OF_ADVICE_THROW_EXP = unsafe.objectFieldOffset(Advice.class.getDeclaredField("throwExp"));
-                OFFSET_OF_ADVICE_IS_BEFORE = unsafe.objectFieldOffset(Advice.class.getDeclaredField("isBefore"));
-                OFFSET_OF_ADVICE_IS_THROW = unsafe.objectFieldOffset(Advice.class.getDeclaredField("isThrow"));
-                OFFSET_OF_ADVICE_IS_RETURN = unsafe.objectFieldOffset(Advice.class.getDeclaredField("isReturn"));
-                //OFFSET_OF_PLAY_INDEX = unsafe.objectFieldOffset(Advice.class.getDeclaredField("playIndex"));
-            } catch (Throwable e) {
-                throw new Error(e);
-            }
+            final AdviceRoot.Accessor accessor = new AdviceRoot.Accessor();
+            OgnlRuntime.setPropertyAccessor(AdviceRoot.class, accessor);
+            OgnlRuntime.setMethodAccessor(AdviceRoot.class, accessor);
         }
 
-        private Express bind(Advice a) {
-            return bind("loader", unsafe.getObject(a, OFFSET_OF_ADVICE_LOADER))
-                    .bind("clazz", unsafe.getObject(a, OFFSET_OF_ADVICE_CLAZZ))
-                    .bind("method", unsafe.getObject(a, OFFSET_OF_ADVICE_METHOD))
-                    .bind("target", unsafe.getObject(a, OFFSET_OF_ADVICE_TARGET))
-                    .bind("params", unsafe.getObject(a, OFFSET_OF_ADVICE_PARAMS))
-                    .bind("returnObj", unsafe.getObject(a, OFFSET_OF_ADVICE_RETURN_OBJ))
-                    .bind("throwExp", unsafe.getObject(a, OFFSET_OF_ADVICE_THROW_EXP))
-                    .bind("isBefore", unsafe.getBoolean(a, OFFSET_OF_ADVICE_IS_BEFORE))
-                    .bind("isThrow", unsafe.getBoolean(a, OFFSET_OF_ADVICE_IS_THROW))
-                    .bind("isReturn", unsafe.getBoolean(a, OFFSET_OF_ADVICE_IS_RETURN))
-                    //.bind("playIndex", unsafe.getObject(a, OFFSET_OF_PLAY_INDEX))
-                    ;
-        }
+        // 缓存的表达式个数上限
+        private static final int CACHE_CAPACITY = 512;
 
-        @Override
-        public Express bind(Object object) {
+        // 表达式文本 -> 解析后的语法树
+        private static final ConcurrentHashMap<String, Object> parsedCache
+                = new ConcurrentHashMap<String, Object>();
 
-            if (object instanceof Advice) {
-                bind((Advice) object);
-            } else {
-                for (Field field : object.getClass().getDeclaredFields()) {
-                    try {
-                        bind(field.getName(), readDeclaredField(object, field.getName(), true));
-                    } catch (IllegalAccessException e) {
-                        // ignore
-                    }
-                }
-            }
+        // 编译不了的表达式在缓存中的标记
+        private static final Object NOT_COMPILABLE = new Object();
 
-            return this;
-        }
-
-    }
+        // 表达式文本 -> 编译后的条件表达式
+        private static final ConcurrentHashMap<String, Object> compiledCache
+                = new ConcurrentHashMap<String, Object>();
 
+        private Object bindObject;
+        private final AdviceRoot root = new AdviceRoot();
+        private final OgnlContext context = new OgnlContext(null, null, MEMBER_ACCESS, root.getVariables());
 
-    class OgnlExpress implements Express {
+        /*
+         * 获取解析后的语法树<br/>
+         * 缓存满了之后整体清空,表达式一般只有几个,清空只会在表达式被大量动态拼接时发生
+         */
+        private static Object parse(String express) throws OgnlException {
+            final Object exist = parsedCache.get(express);
+            if (null != exist) {
+                return exist;
+            }
+            final Object tree = Ognl.parseExpression(express);
+            if (parsedCache.size() >= CACHE_CAPACITY) {
+                parsedCache.clear();
+            }
+            parsedCache.put(express, tree);
+            return tree;
+        }
 
-        private Object bindObject;
-        private final OgnlContext context = new OgnlContext();
+        /*
+         * 获取编译后的条件表达式,编译不了时返回null
+         */
+        private static CompiledPredicate compile(String express) {
+            Object compiled = compiledCache.get(express);
+            if (null == compiled) {
+                final CompiledPredicate predicate = ExpressCompiler.compile(express);
+                compiled = null == predicate ? NOT_COMPILABLE : predicate;
+                if (compiledCache.size() >= CACHE_CAPACITY) {
+                    compiledCache.clear();
+                }
+                compiledCache.put(express, compiled);
+            }
+            return compiled == NOT_COMPILABLE
+                    ? null
+                    : (CompiledPredicate) compiled;
+        }
 
         @Override
         public Object get(String express) throws ExpressException {
             try {
-                context.setMemberAccess(new DefaultMemberAccess(true));
-                return Ognl.getValue(express, context, bindObject);
+                return Ognl.getValue(parse(express), context, bindObject);
             } catch (Exception e) {
                 throw new ExpressException(express, e);
             }
@@ -175,6 +166,22 @@ public interface Express {
 
         @Override
         public boolean is(String express) throws ExpressException {
+
+            // 能编译的条件表达式直接执行字节码,遇到编译时无法确定的类型再交还给OGNL
+            if (GlobalOptions.isExpressCompile
+                    && bindObject == root) {
+                final CompiledPredicate predicate = compile(express);
+                if (null != predicate) {
+                    try {
+                        return predicate.is(root.getAdvice(), root.getVariables());
+                    } catch (CompiledSupport.FallbackException e) {
+                        // fallback to ognl
+                    } catch (Throwable t) {
+                        return false;
+                    }
+                }
+            }
+
             try {
                 final Object ret = get(express);
                 return null != ret
@@ -187,19 +194,28 @@ public interface Express {
 
         @Override
         public Express bind(Object object) {
-            this.bindObject = object;
+            this.bindObject = object instanceof Advice
+                    ? root.setAdvice((Advice) object)
+                    : object;
             return this;
         }
 
         @Override
         public Express bind(String name, Object value) {
-            context.put(name, value);
+            if (!root.bind(name, value)) {
+                context.put(name, value);
+            }
             return this;
         }
 
+        /*
+         * 上下文本身不清空,只清空根对象和变量;
+         * 清空上下文会把成员访问策略等设置一并恢复成默认值
+         */
         @Override
         public Express reset() {
-            context.clear();
+            root.reset();
+            bindObject = null;
             return this;
         }
     }
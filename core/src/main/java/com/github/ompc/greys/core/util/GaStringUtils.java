@@ -32,6 +32,11 @@ public class GaStringUtils {
      */
     public static final String SPY_CLASSNAME = "com.github.ompc.greys.agent.Spy";
 
+    /**
+     * Spy链接器类名
+     */
+    public static final String SPY_LINKER_CLASSNAME = "com.github.ompc.greys.agent.SpyLinker";
+
     /**
      * 解析状态
      */
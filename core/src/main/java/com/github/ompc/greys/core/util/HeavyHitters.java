@@ -0,0 +1,150 @@
+package com.github.ompc.greys.core.util;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 高频键估算<br/>
+ * Space-Saving算法:只保留固定个数的计数器,键不在计数器中且计数器已满时,
+ * 替换掉计数最小的键,新键的计数从被替换键的计数开始累加,所以估算计数只会偏高不会偏低。
+ * 出现次数超过总数1/capacity的键一定会被保留下来,内存与键的基数无关<br/>
+ * 线程安全:和{@link StripedCounter}一样,线程按线程ID落到不同的条带上,每个条带一份独立的估算,
+ * 读取时再把所有条带的估算计数累加到一起。记录时从不阻塞,条带正被其他线程占用时直接放弃本次记录
+ * Created by oldmanpushcart@gmail.com on 15/11/28.
+ */
+public class HeavyHitters {
+
+    // 条带数,不小于CPU个数的2的幂
+    private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+    private static final int STRIPE_MASK = STRIPES - 1;
+
+    private final Sketch[] sketches = new Sketch[STRIPES];
+
+    public HeavyHitters(int capacity) {
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            sketches[stripe] = new Sketch(Math.max(1, capacity));
+        }
+    }
+
+    private static int stripes(int processors) {
+        int stripes = 4;
+        while (stripes < processors
+                && stripes < 64) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    /**
+     * 记录一次键<br/>
+     * 所在条带正被其他线程占用时放弃本次记录,估算计数可能因此略微偏低
+     *
+     * @param key 键
+     */
+    public void offer(String key) {
+        final Sketch sketch = sketches[(int) Thread.currentThread().getId() & STRIPE_MASK];
+        if (!sketch.busy.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            sketch.offer(key);
+        } finally {
+            sketch.busy.set(false);
+        }
+    }
+
+    /**
+     * 获取计数最高的若干个键,并清空所有计数
+     *
+     * @param top 最多返回的键个数
+     * @return 按估算计数从高到低排列的键和估算计数
+     */
+    public List<Map.Entry<String, Long>> topThenReset(int top) {
+
+        // 合并所有条带的估算计数
+        final Map<String, Long> merged = new HashMap<String, Long>();
+        for (final Sketch sketch : sketches) {
+
+            // 记录只占用条带很短的时间,读取方等待即可
+            while (!sketch.busy.compareAndSet(false, true)) {
+                Thread.yield();
+            }
+            try {
+                for (Map.Entry<String, long[]> entry : sketch.counters.entrySet()) {
+                    final Long exist = merged.get(entry.getKey());
+                    merged.put(entry.getKey(), null == exist
+                            ? entry.getValue()[0]
+                            : exist + entry.getValue()[0]);
+                }
+                sketch.counters.clear();
+            } finally {
+                sketch.busy.set(false);
+            }
+        }
+
+        final List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>();
+        for (Map.Entry<String, Long> entry : merged.entrySet()) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<String, Long>(entry.getKey(), entry.getValue()));
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        return entries.size() > top
+                ? new ArrayList<Map.Entry<String, Long>>(entries.subList(0, top))
+                : entries;
+    }
+
+    /**
+     * 单个条带的估算,只在占用条带后访问
+     */
+    private static class Sketch {
+
+        // 计数器个数
+        private final int capacity;
+
+        // 键 -> 估算计数
+        private final Map<String, long[]> counters;
+
+        // 条带是否正被占用
+        private final AtomicBoolean busy = new AtomicBoolean();
+
+        Sketch(int capacity) {
+            this.capacity = capacity;
+            this.counters = new HashMap<String, long[]>(capacity * 2);
+        }
+
+        void offer(String key) {
+
+            final long[] exist = counters.get(key);
+            if (null != exist) {
+                exist[0]++;
+                return;
+            }
+
+            if (counters.size() < capacity) {
+                counters.put(key, new long[]{1});
+                return;
+            }
+
+            // 替换计数最小的键
+            String minKey = null;
+            long[] min = null;
+            for (Map.Entry<String, long[]> entry : counters.entrySet()) {
+                if (null == min
+                        || entry.getValue()[0] < min[0]) {
+                    minKey = entry.getKey();
+                    min = entry.getValue();
+                }
+            }
+            counters.remove(minKey);
+            min[0]++;
+            counters.put(key, min);
+        }
+
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.github.ompc.greys.core.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 对数分桶的耗时直方图<br/>
+ * 参考HdrHistogram的分桶方式:小于{@link #SUB_BUCKETS}纳秒的耗时每纳秒一个桶,
+ * 之后每翻一倍再细分为{@link #SUB_BUCKETS}/2个桶,相对误差不超过1/16;超过{@link #MAX_TRACKABLE}的耗时计入最后一个桶<br/>
+ * 桶按线程ID分成若干条带,每个键占用的内存是固定的,记录一次耗时只是一次原子自增,不会产生任何对象
+ * Created by oldmanpushcart@gmail.com on 15/11/26.
+ */
+public class LatencyHistogram {
+
+    // 每个数量级内的精度位数
+    private static final int SUB_BITS = 5;
+
+    /**
+     * 第一个数量级内的桶数
+     */
+    public static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    // 之后每个数量级的桶数
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS >> 1;
+
+    // 能精确记录的最高位
+    private static final int MAX_BIT = 36;
+
+    /**
+     * 能精确记录的最大耗时(纳秒),约68秒
+     */
+    public static final long MAX_TRACKABLE = (1L << (MAX_BIT + 1)) - 1;
+
+    // 每个条带的桶数
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_BIT - SUB_BITS + 1) * HALF_SUB_BUCKETS;
+
+    // 条带数,直方图的桶比较多,条带数要比计数器少
+    private static final int STRIPES = 4;
+
+    private static final int STRIPE_MASK = STRIPES - 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(STRIPES * BUCKETS);
+
+    /*
+     * 耗时所在的桶
+     */
+    static int indexOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return nanos < 0 ? 0 : (int) nanos;
+        }
+        if (nanos > MAX_TRACKABLE) {
+            return BUCKETS - 1;
+        }
+        final int shift = (63 - Long.numberOfLeadingZeros(nanos)) - SUB_BITS + 1;
+        return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + (int) (nanos >>> shift) - HALF_SUB_BUCKETS;
+    }
+
+    /*
+     * 桶内的最大耗时
+     */
+    static long highestOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+        final long mantissa = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * 记录一次耗时
+     *
+     * @param nanos 耗时(纳秒)
+     */
+    public void record(long nanos) {
+        final int stripe = (int) Thread.currentThread().getId() & STRIPE_MASK;
+        buckets.incrementAndGet(stripe * BUCKETS + indexOf(nanos));
+    }
+
+    /**
+     * 汇总所有条带,并将直方图清零
+     *
+     * @return 汇总结果
+     */
+    public Snapshot sumThenReset() {
+        final long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            final int base = stripe * BUCKETS;
+            for (int index = 0; index < BUCKETS; index++) {
+                if (buckets.get(base + index) != 0) {
+                    final long count = buckets.getAndSet(base + index, 0);
+                    counts[index] += count;
+                    total += count;
+                }
+            }
+        }
+        return new Snapshot(counts, total);
+    }
+
+    /**
+     * 汇总结果
+     */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long total;
+
+        private Snapshot(long[] counts, long total) {
+            this.counts = counts;
+            this.total = total;
+        }
+
+        /**
+         * 记录的总次数
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * 计算百分位耗时<br/>
+         * 返回百分位所在桶的上界,没有任何记录时返回0
+         *
+         * @param percentile 百分位,如99.9
+         * @return 耗时(纳秒)
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1L, (long) Math.ceil(total * Math.min(percentile, 100d) / 100d));
+            long accumulated = 0;
+            for (int index = 0; index < counts.length; index++) {
+                accumulated += counts[index];
+                if (accumulated >= rank) {
+                    return highestOf(index);
+                }
+            }
+            return highestOf(counts.length - 1);
+        }
+
+    }
+
+}
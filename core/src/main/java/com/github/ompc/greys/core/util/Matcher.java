@@ -7,7 +7,8 @@ import java.util.Map;
 import static com.github.ompc.greys.core.util.GaCheckUtils.isEquals;
 
 /**
- * 匹配器
+ * 匹配器<br/>
+ * 实现类需要按匹配条件实现equals()/hashCode(),相同条件的增强才能复用已经织入的探针
  * Created by oldmanpushcart@gmail.com on 15/5/17.
  */
 public interface Matcher {
@@ -76,6 +77,19 @@ public interface Matcher {
             return false;
 
         }
+
+        @Override
+        public boolean equals(Object obj) {
+            return null != obj
+                    && getClass() == obj.getClass()
+                    && relation == ((RelationMatcher) obj).relation
+                    && matcherList.equals(((RelationMatcher) obj).matcherList);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * relation.hashCode() + matcherList.hashCode();
+        }
     }
 
     /**
@@ -105,6 +119,16 @@ public interface Matcher {
         public boolean matching(String target) {
             return true;
         }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof TrueMatcher;
+        }
+
+        @Override
+        public int hashCode() {
+            return TrueMatcher.class.hashCode();
+        }
     }
 
     /**
@@ -134,6 +158,20 @@ public interface Matcher {
 
         }
 
+        /*
+         * 缓存不影响匹配结果,所以只比较被缓存的匹配器
+         */
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof CacheMatcher
+                    && matcher.equals(((CacheMatcher) obj).matcher);
+        }
+
+        @Override
+        public int hashCode() {
+            return matcher.hashCode();
+        }
+
     }
 
 
@@ -152,6 +190,17 @@ public interface Matcher {
         public boolean matching(String target) {
             return isEquals(target, pattern);
         }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof EqualsMatcher
+                    && isEquals(pattern, ((EqualsMatcher) obj).pattern);
+        }
+
+        @Override
+        public int hashCode() {
+            return null == pattern ? 0 : pattern.hashCode();
+        }
     }
 
 
@@ -172,6 +221,17 @@ public interface Matcher {
         public boolean matching(String target) {
             return matcher.matching(target);
         }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof PatternMatcher
+                    && matcher.equals(((PatternMatcher) obj).matcher);
+        }
+
+        @Override
+        public int hashCode() {
+            return matcher.hashCode();
+        }
     }
 
     /**
@@ -191,6 +251,17 @@ public interface Matcher {
                     && null != pattern
                     && target.matches(pattern);
         }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof RegexMatcher
+                    && isEquals(pattern, ((RegexMatcher) obj).pattern);
+        }
+
+        @Override
+        public int hashCode() {
+            return null == pattern ? 0 : pattern.hashCode();
+        }
     }
 
 
@@ -211,6 +282,17 @@ public interface Matcher {
             return match(target, pattern, 0, 0);
         }
 
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof WildcardMatcher
+                    && isEquals(pattern, ((WildcardMatcher) obj).pattern);
+        }
+
+        @Override
+        public int hashCode() {
+            return null == pattern ? 0 : pattern.hashCode();
+        }
+
         /**
          * Internal matching recursive function.
          */
@@ -0,0 +1,62 @@
+package com.github.ompc.greys.core.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 分条带的累加器<br/>
+ * 同时累加若干个值,和{@link StripedCounter}一样按线程ID分散到多个条带中,每个条带按缓存行对齐,
+ * 累加时不会产生任何对象,读取时才汇总
+ * Created by oldmanpushcart@gmail.com on 15/11/29.
+ */
+public class StripedAdder {
+
+    // 条带数
+    private static final int STRIPES = 8;
+
+    private static final int STRIPE_MASK = STRIPES - 1;
+
+    // 累加的值个数
+    private final int width;
+
+    // 每个条带占用的long个数,按8个long(一个缓存行)对齐
+    private final int stripeSize;
+
+    private final AtomicLongArray cells;
+
+    /**
+     * @param width 累加的值个数
+     */
+    public StripedAdder(int width) {
+        this.width = width;
+        this.stripeSize = (width + 7) & ~7;
+        this.cells = new AtomicLongArray(STRIPES * stripeSize);
+    }
+
+    /**
+     * 累加
+     *
+     * @param index 值的下标
+     * @param delta 增量
+     */
+    public void add(int index, long delta) {
+        final int base = ((int) Thread.currentThread().getId() & STRIPE_MASK) * stripeSize;
+        cells.addAndGet(base + index, delta);
+    }
+
+    /**
+     * 汇总所有条带,并将累加器清零
+     *
+     * @return 各个值的累加结果
+     */
+    public long[] sumThenReset() {
+        final long[] sums = new long[width];
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            final int base = stripe * stripeSize;
+            for (int index = 0; index < width; index++) {
+                sums[index] += cells.getAndSet(base + index, 0);
+            }
+        }
+        return sums;
+    }
+
+}
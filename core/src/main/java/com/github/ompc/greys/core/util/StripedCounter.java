@@ -0,0 +1,145 @@
+package com.github.ompc.greys.core.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 分条带的调用计数器<br/>
+ * 参考JDK8的LongAdder,把成功次数、失败次数、累计耗时、最小耗时和最大耗时分散到多个条带中,
+ * 线程按线程ID落到不同的条带上,只和落在同一条带上的线程竞争;每个条带独占一个缓存行,避免伪共享<br/>
+ * 记录一次调用不会产生任何对象,读取时才把所有条带汇总到一起
+ * Created by oldmanpushcart@gmail.com on 15/11/25.
+ */
+public class StripedCounter {
+
+    // 每个条带占用的long个数,8个long刚好一个缓存行
+    private static final int STRIPE_SHIFT = 3;
+
+    // 条带内各个值的下标
+    private static final int SUCCESS = 0;
+    private static final int FAILED = 1;
+    private static final int COST = 2;
+    private static final int MIN_COST = 3;
+    private static final int MAX_COST = 4;
+
+    // 条带数,不小于CPU个数的2的幂
+    private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+    private static final int STRIPE_MASK = STRIPES - 1;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES << STRIPE_SHIFT);
+
+    public StripedCounter() {
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            resetMinMax(stripe << STRIPE_SHIFT);
+        }
+    }
+
+    private static int stripes(int processors) {
+        int stripes = 4;
+        while (stripes < processors
+                && stripes < 64) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    private void resetMinMax(int base) {
+        cells.set(base + MIN_COST, Long.MAX_VALUE);
+        cells.set(base + MAX_COST, Long.MIN_VALUE);
+    }
+
+    /**
+     * 记录一次调用
+     *
+     * @param isFailed 是否以抛出异常结束
+     * @param cost     耗时
+     */
+    public void record(boolean isFailed, long cost) {
+
+        final int base = ((int) Thread.currentThread().getId() & STRIPE_MASK) << STRIPE_SHIFT;
+        cells.incrementAndGet(base + (isFailed ? FAILED : SUCCESS));
+        cells.addAndGet(base + COST, cost);
+
+        // 最小值和最大值只在需要更新时才CAS,稳定之后基本上只有读
+        long current;
+        while (cost < (current = cells.get(base + MIN_COST))) {
+            if (cells.compareAndSet(base + MIN_COST, current, cost)) {
+                break;
+            }
+        }
+        while (cost > (current = cells.get(base + MAX_COST))) {
+            if (cells.compareAndSet(base + MAX_COST, current, cost)) {
+                break;
+            }
+        }
+
+    }
+
+    /**
+     * 汇总所有条带,并将计数器清零<br/>
+     * 与LongAdder.sumThenReset()一样,汇总期间并发记录的调用可能会被计入下一个周期
+     *
+     * @return 汇总结果
+     */
+    public Snapshot sumThenReset() {
+        long success = 0, failed = 0, cost = 0;
+        long minCost = Long.MAX_VALUE, maxCost = Long.MIN_VALUE;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            final int base = stripe << STRIPE_SHIFT;
+            success += cells.getAndSet(base + SUCCESS, 0);
+            failed += cells.getAndSet(base + FAILED, 0);
+            cost += cells.getAndSet(base + COST, 0);
+            minCost = Math.min(minCost, cells.getAndSet(base + MIN_COST, Long.MAX_VALUE));
+            maxCost = Math.max(maxCost, cells.getAndSet(base + MAX_COST, Long.MIN_VALUE));
+        }
+        return success + failed == 0
+                ? new Snapshot(0, 0, 0, 0, 0)
+                : new Snapshot(success, failed, cost, minCost, maxCost);
+    }
+
+    /**
+     * 汇总结果
+     */
+    public static class Snapshot {
+
+        private final long success;
+        private final long failed;
+        private final long cost;
+        private final long minCost;
+        private final long maxCost;
+
+        public Snapshot(long success, long failed, long cost, long minCost, long maxCost) {
+            this.success = success;
+            this.failed = failed;
+            this.cost = cost;
+            this.minCost = minCost;
+            this.maxCost = maxCost;
+        }
+
+        public long getTotal() {
+            return success + failed;
+        }
+
+        public long getSuccess() {
+            return success;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getCost() {
+            return cost;
+        }
+
+        public long getMinCost() {
+            return minCost;
+        }
+
+        public long getMaxCost() {
+            return maxCost;
+        }
+
+    }
+
+}
@@ -0,0 +1,136 @@
+package com.github.ompc.greys.core.util.collection;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 有界无锁环形队列,多生产者单消费者<br/>
+ * 生产者通过CAS抢占写入位置,队列满时直接放弃,不会阻塞也不会自旋等待消费者;
+ * 消费者只能有一个线程,读取后清空槽位再推进读取位置,生产者看到读取位置推进时槽位一定已经清空
+ * Created by oldmanpushcart@gmail.com on 15/12/3.
+ */
+public class MpscRingBuffer<E> {
+
+    private final AtomicReferenceArray<E> buffer;
+    private final int mask;
+
+    // 下一个写入位置,由生产者抢占
+    private final AtomicLong tail = new AtomicLong();
+
+    // 下一个读取位置,只由消费者推进
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * 构建环形队列
+     *
+     * @param capacity 容量,会向上取整到2的幂
+     */
+    public MpscRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive, but was " + capacity);
+        }
+        final int size = capacity > (1 << 30)
+                ? 1 << 30
+                : Integer.highestOneBit(capacity - 1) << 1;
+        this.buffer = new AtomicReferenceArray<E>(Math.max(size, 1));
+        this.mask = buffer.length() - 1;
+    }
+
+    /**
+     * 获取容量
+     *
+     * @return 容量
+     */
+    public int capacity() {
+        return buffer.length();
+    }
+
+    /**
+     * 写入元素,可以在多个线程中同时调用
+     *
+     * @param e 元素,不能为null
+     * @return true:写入成功 / false:队列已满
+     */
+    public boolean offer(E e) {
+        return offerAndGetAhead(e) >= 0;
+    }
+
+    /**
+     * 写入元素,可以在多个线程中同时调用<br/>
+     * 同时返回排在前面还没有被读取的元素个数,为0时说明队列由空变为非空,休眠的消费者需要唤醒
+     *
+     * @param e 元素,不能为null
+     * @return 排在前面的元素个数,队列已满时为-1
+     */
+    public int offerAndGetAhead(E e) {
+        if (null == e) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            final long current = tail.get();
+            if (current - head.get() >= buffer.length()) {
+                return -1;
+            }
+            if (tail.compareAndSet(current, current + 1)) {
+                buffer.lazySet((int) current & mask, e);
+
+                // 占位之后再读取位置,和消费者的isEmpty()成对,不会两边都认为对方还在
+                return (int) Math.max(0, current - head.get());
+            }
+        }
+    }
+
+    /**
+     * 读取元素,只能在消费者线程中调用<br/>
+     * 生产者已经抢占了位置但还没写入时同样返回null,稍后重试即可
+     *
+     * @return 元素,队列为空时为null
+     */
+    public E poll() {
+        final long current = head.get();
+        final int index = (int) current & mask;
+        final E e = buffer.get(index);
+        if (null == e) {
+            return null;
+        }
+        buffer.lazySet(index, null);
+        head.lazySet(current + 1);
+        return e;
+    }
+
+    /**
+     * 队列是否为空,只能在消费者线程中调用<br/>
+     * 消费者休眠前用它判断:读取位置先以volatile写重新发布再读取写入位置,
+     * 判断为空之后才占位的生产者一定能看到最新的读取位置,从而知道队列由空变为非空
+     *
+     * @return true:为空 / false:有元素,或者有生产者已经占位但还没写入
+     */
+    public boolean isEmpty() {
+        final long current = head.get();
+        head.set(current);
+        return tail.get() == current;
+    }
+
+    /**
+     * 清空队列,只能在消费者线程中调用
+     *
+     * @return 清除的元素个数
+     */
+    public int clear() {
+        int count = 0;
+        while (null != poll()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 队列中的元素个数,只是一个估计值
+     *
+     * @return 元素个数
+     */
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+}
@@ -0,0 +1,238 @@
+package com.github.ompc.greys.core.util.express;
+
+import com.github.ompc.greys.core.Advice;
+import ognl.*;
+import ognl.enhance.UnsupportedCompilationException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 通知点表达式的根对象<br/>
+ * 表达式中的params、returnObj、target、cost、index等属性都由{@link Accessor}直接从字段中读取,
+ * 求值前不需要往OGNL上下文中写入任何变量。每个线程的表达式持有一个根对象,每次求值前重新填充
+ * Created by oldmanpushcart@gmail.com on 15/12/1.
+ */
+public final class AdviceRoot {
+
+    // 根对象上的变量,表达式中可以直接访问,也可以通过#name访问
+    private static final String VARIABLE_PROCESS_ID = "processId";
+    private static final String VARIABLE_INDEX = "index";
+    private static final String VARIABLE_COST = "cost";
+
+    private static final int BOUND_PROCESS_ID = 1;
+    private static final int BOUND_INDEX = 1 << 1;
+    private static final int BOUND_COST = 1 << 2;
+
+    private Advice advice;
+
+    private Object processId;
+    private Object index;
+    private Object cost;
+
+    // 已经绑定的变量
+    private int bound;
+
+    // 表达式上下文中的变量
+    private final Variables variables = new Variables();
+
+    /**
+     * 获取通知点
+     *
+     * @return 通知点
+     */
+    public Advice getAdvice() {
+        return advice;
+    }
+
+    /**
+     * 填充通知点
+     *
+     * @param advice 通知点
+     * @return this
+     */
+    public AdviceRoot setAdvice(Advice advice) {
+        this.advice = advice;
+        return this;
+    }
+
+    /**
+     * 获取表达式上下文中的变量<br/>
+     * 根对象上的变量直接从字段中读取,其他变量和普通的Map一样
+     *
+     * @return 变量
+     */
+    public Map<String, Object> getVariables() {
+        return variables;
+    }
+
+    /**
+     * 绑定根对象上的变量
+     *
+     * @param name  变量名
+     * @param value 变量值
+     * @return true:绑定成功 / false:不是根对象上的变量
+     */
+    public boolean bind(String name, Object value) {
+        if (VARIABLE_PROCESS_ID.equals(name)) {
+            processId = value;
+            bound |= BOUND_PROCESS_ID;
+        } else if (VARIABLE_INDEX.equals(name)) {
+            index = value;
+            bound |= BOUND_INDEX;
+        } else if (VARIABLE_COST.equals(name)) {
+            cost = value;
+            bound |= BOUND_COST;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 重置根对象,不再引用上一次求值的对象
+     *
+     * @return this
+     */
+    public AdviceRoot reset() {
+        advice = null;
+        processId = null;
+        index = null;
+        cost = null;
+        bound = 0;
+        if (!variables.isEmpty()) {
+            variables.clear();
+        }
+        return this;
+    }
+
+    /*
+     * 根对象上的变量是否已经绑定
+     */
+    private boolean isBound(Object name) {
+        if (VARIABLE_PROCESS_ID.equals(name)) {
+            return (bound & BOUND_PROCESS_ID) != 0;
+        } else if (VARIABLE_INDEX.equals(name)) {
+            return (bound & BOUND_INDEX) != 0;
+        } else if (VARIABLE_COST.equals(name)) {
+            return (bound & BOUND_COST) != 0;
+        } else {
+            return false;
+        }
+    }
+
+    /*
+     * 读取根对象上已经绑定的变量
+     */
+    private Object getBound(Object name) {
+        if (VARIABLE_PROCESS_ID.equals(name)) {
+            return processId;
+        } else if (VARIABLE_INDEX.equals(name)) {
+            return index;
+        } else {
+            return cost;
+        }
+    }
+
+    /*
+     * 读取属性,先找通知点的字段,再找根对象上的变量
+     */
+    private Object getProperty(String name) throws NoSuchPropertyException {
+
+        if (null != advice) {
+            if ("params".equals(name)) {
+                return advice.getParams();
+            } else if ("returnObj".equals(name)) {
+                return advice.returnObj;
+            } else if ("target".equals(name)) {
+                return advice.target;
+            } else if ("throwExp".equals(name)) {
+                return advice.throwExp;
+            } else if ("clazz".equals(name)) {
+                return advice.clazz;
+            } else if ("method".equals(name)) {
+                return advice.method;
+            } else if ("loader".equals(name)) {
+                return advice.loader;
+            } else if ("isBefore".equals(name)) {
+                return advice.isBefore;
+            } else if ("isReturn".equals(name)) {
+                return advice.isReturn;
+            } else if ("isThrow".equals(name)) {
+                return advice.isThrow;
+            }
+        }
+
+        if (isBound(name)) {
+            return getBound(name);
+        }
+
+        throw new NoSuchPropertyException(advice, name);
+    }
+
+    /**
+     * 表达式上下文中的变量<br/>
+     * 根对象上的变量不写入Map,读取时直接从根对象的字段中获取
+     */
+    private class Variables extends HashMap<String, Object> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Object get(Object key) {
+            return isBound(key)
+                    ? getBound(key)
+                    : super.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return isBound(key)
+                    || super.containsKey(key);
+        }
+
+    }
+
+    /**
+     * 根对象的OGNL访问器<br/>
+     * 属性直接从根对象中读取,方法调用转交给通知点,和以通知点作为根对象时一致<br/>
+     * OGNL的访问器接口声明的是原始类型,实现时只能沿用;根对象不支持OGNL的表达式编译,交还给OGNL解释执行
+     */
+    @SuppressWarnings("rawtypes")
+    public static class Accessor implements PropertyAccessor, MethodAccessor {
+
+        private final MethodAccessor delegate = new ObjectMethodAccessor();
+
+        @Override
+        public Object getProperty(Map context, Object target, Object name) throws OgnlException {
+            return ((AdviceRoot) target).getProperty(String.valueOf(name));
+        }
+
+        @Override
+        public void setProperty(Map context, Object target, Object name, Object value) throws OgnlException {
+            throw new NoSuchPropertyException(target, name);
+        }
+
+        @Override
+        public String getSourceAccessor(OgnlContext context, Object target, Object index) {
+            throw new UnsupportedCompilationException("AdviceRoot does not support ognl compilation.");
+        }
+
+        @Override
+        public String getSourceSetter(OgnlContext context, Object target, Object index) {
+            throw new UnsupportedCompilationException("AdviceRoot does not support ognl compilation.");
+        }
+
+        @Override
+        public Object callStaticMethod(Map context, Class targetClass, String methodName, Object[] args) throws MethodFailedException {
+            return delegate.callStaticMethod(context, targetClass, methodName, args);
+        }
+
+        @Override
+        public Object callMethod(Map context, Object target, String methodName, Object[] args) throws MethodFailedException {
+            return delegate.callMethod(context, ((AdviceRoot) target).getAdvice(), methodName, args);
+        }
+
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.github.ompc.greys.core.util.express;
+
+import com.github.ompc.greys.core.Advice;
+
+import java.util.Map;
+
+/**
+ * 编译后的条件表达式<br/>
+ * 由{@link ExpressCompiler}为每个表达式生成一个子类,表达式的求值直接翻译成字节码,
+ * 不再经过OGNL的语法树解释执行。子类定义在独立的类加载器中,只能访问这里的受保护成员和公开的类
+ * Created by oldmanpushcart@gmail.com on 15/11/30.
+ */
+public abstract class CompiledPredicate {
+
+    /**
+     * 表达式
+     */
+    protected final String express;
+
+    /**
+     * 表达式中的常量
+     */
+    protected final Object[] constants;
+
+    /**
+     * 表达式中的属性访问点
+     */
+    protected final CompiledSupport.PropertySite[] sites;
+
+    protected CompiledPredicate(String express, Object[] constants, CompiledSupport.PropertySite[] sites) {
+        this.express = express;
+        this.constants = constants;
+        this.sites = sites;
+    }
+
+    /**
+     * 判断通知是否满足条件<br/>
+     * 和OGNL一样,只有表达式的值为Boolean.TRUE时才满足条件
+     *
+     * @param advice    通知点
+     * @param variables 绑定的变量,表达式中通过#name访问
+     * @return true:满足 / false:不满足
+     * @throws CompiledSupport.FallbackException 遇到编译时无法确定的类型,需要交还给OGNL求值
+     */
+    public abstract boolean is(Advice advice, Map<String, Object> variables);
+
+    @Override
+    public String toString() {
+        return express;
+    }
+
+}
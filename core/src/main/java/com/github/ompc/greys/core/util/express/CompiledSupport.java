@@ -0,0 +1,271 @@
+package com.github.ompc.greys.core.util.express;
+
+import ognl.OgnlOps;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 编译后的条件表达式所用的运行时支持<br/>
+ * 比较和布尔运算的语义都委托给{@link OgnlOps},保证和OGNL求值的结果一致;
+ * 只在两边都是整数时走不装箱的快速路径。生成的字节码会直接调用这里的静态方法,所以必须是public的
+ * Created by oldmanpushcart@gmail.com on 15/11/30.
+ */
+public final class CompiledSupport {
+
+    private CompiledSupport() {
+    }
+
+    /**
+     * 交还给OGNL求值<br/>
+     * 遇到编译时无法确定的类型(Map、集合等OGNL有特殊访问规则的类型)时抛出,调用方需要改用OGNL重新求值。
+     * 不记录堆栈,抛出时没有额外开销
+     */
+    public static final class FallbackException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final FallbackException INSTANCE = new FallbackException();
+
+        private FallbackException() {
+            super("fallback to ognl");
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+
+    }
+
+    public static boolean isTrue(Object value) {
+        return OgnlOps.booleanValue(value);
+    }
+
+    public static Boolean not(Object value) {
+        return OgnlOps.booleanValue(value) ? Boolean.FALSE : Boolean.TRUE;
+    }
+
+    /**
+     * 表达式的最终结果,只有Boolean.TRUE才算满足
+     */
+    public static boolean isBooleanTrue(Object value) {
+        return value instanceof Boolean
+                && (Boolean) value;
+    }
+
+    /*
+     * 是否可以按long直接比较
+     */
+    private static boolean isIntegral(Object value) {
+        return value instanceof Integer
+                || value instanceof Long
+                || value instanceof Short
+                || value instanceof Byte;
+    }
+
+    public static Boolean equal(Object a, Object b) {
+        if (isIntegral(a) && isIntegral(b)) {
+            return ((Number) a).longValue() == ((Number) b).longValue();
+        }
+        return OgnlOps.equal(a, b);
+    }
+
+    public static Boolean notEqual(Object a, Object b) {
+        return equal(a, b) ? Boolean.FALSE : Boolean.TRUE;
+    }
+
+    public static Boolean less(Object a, Object b) {
+        if (isIntegral(a) && isIntegral(b)) {
+            return ((Number) a).longValue() < ((Number) b).longValue();
+        }
+        return OgnlOps.less(a, b);
+    }
+
+    public static Boolean greater(Object a, Object b) {
+        if (isIntegral(a) && isIntegral(b)) {
+            return ((Number) a).longValue() > ((Number) b).longValue();
+        }
+        return OgnlOps.greater(a, b);
+    }
+
+    // 和OGNL一样,<=是>的取反
+    public static Boolean lessOrEqual(Object a, Object b) {
+        return greater(a, b) ? Boolean.FALSE : Boolean.TRUE;
+    }
+
+    // 和OGNL一样,>=是<的取反
+    public static Boolean greaterOrEqual(Object a, Object b) {
+        return less(a, b) ? Boolean.FALSE : Boolean.TRUE;
+    }
+
+    /**
+     * 读取根对象上的变量<br/>
+     * 变量没有绑定时OGNL会报找不到属性,交还给OGNL保持一致
+     */
+    public static Object variable(Map<String, Object> variables, String name) {
+        if (!variables.containsKey(name)) {
+            throw FallbackException.INSTANCE;
+        }
+        return variables.get(name);
+    }
+
+    /**
+     * 下标访问,只支持数组和List
+     */
+    public static Object index(Object target, int index) {
+        if (null == target) {
+            throw new NullPointerException("target is null for index " + index);
+        }
+        if (target.getClass().isArray()) {
+            return Array.get(target, index);
+        }
+        if (target instanceof List) {
+            return ((List<?>) target).get(index);
+        }
+        throw FallbackException.INSTANCE;
+    }
+
+    /**
+     * 属性访问点<br/>
+     * 按OGNL的规则先找get方法、再找is方法、最后找字段;每个类只反射查找一次,
+     * 最近一次访问的类命中时不需要查表,多态的接收者按类缓存
+     */
+    public static final class PropertySite {
+
+        private final String name;
+
+        // 最近一次访问的类
+        private volatile Accessor cached;
+
+        // 类 -> 属性访问
+        private final ConcurrentHashMap<Class<?>, Accessor> accessors = new ConcurrentHashMap<Class<?>, Accessor>();
+
+        public PropertySite(String name) {
+            this.name = name;
+        }
+
+        public Object get(Object target) {
+            if (null == target) {
+                throw new NullPointerException("target is null for property " + name);
+            }
+
+            final Class<?> clazz = target.getClass();
+            if (clazz.isArray()) {
+                if ("length".equals(name)) {
+                    return Array.getLength(target);
+                }
+                throw FallbackException.INSTANCE;
+            }
+
+            Accessor accessor = cached;
+            if (null == accessor
+                    || accessor.clazz != clazz) {
+                accessor = accessors.get(clazz);
+                if (null == accessor) {
+                    final Accessor exist = accessors.putIfAbsent(clazz, accessor = new Accessor(clazz, name));
+                    if (null != exist) {
+                        accessor = exist;
+                    }
+                }
+                cached = accessor;
+            }
+            return accessor.get(target);
+        }
+
+    }
+
+    /*
+     * 某个类上的属性访问
+     */
+    private static final class Accessor {
+
+        private final Class<?> clazz;
+        private final Method getter;
+        private final Field field;
+
+        Accessor(Class<?> clazz, String name) {
+            this.clazz = clazz;
+
+            // OGNL对这些类型有专门的访问规则
+            if (Map.class.isAssignableFrom(clazz)
+                    || Collection.class.isAssignableFrom(clazz)
+                    || Iterator.class.isAssignableFrom(clazz)
+                    || Enumeration.class.isAssignableFrom(clazz)) {
+                this.getter = null;
+                this.field = null;
+                return;
+            }
+
+            Method getter = null;
+            Field field = null;
+            try {
+                getter = findGetter(clazz, name);
+                field = null == getter ? findField(clazz, name) : null;
+            } catch (RuntimeException e) {
+                // 无法访问的成员交还给OGNL处理
+            }
+            this.getter = getter;
+            this.field = field;
+        }
+
+        Object get(Object target) {
+            try {
+                if (null != getter) {
+                    return getter.invoke(target);
+                }
+                if (null != field) {
+                    return field.get(target);
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            throw FallbackException.INSTANCE;
+        }
+
+        /*
+         * 查找getter,先找getX再找isX,不依赖getDeclaredMethods()返回的顺序
+         */
+        private static Method findGetter(Class<?> clazz, String name) {
+            final String suffix = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+            final Method getter = findMethod(clazz, "get" + suffix);
+            return null != getter
+                    ? getter
+                    : findMethod(clazz, "is" + suffix);
+        }
+
+        private static Method findMethod(Class<?> clazz, String methodName) {
+            for (Class<?> current = clazz; null != current; current = current.getSuperclass()) {
+                for (Method method : current.getDeclaredMethods()) {
+                    if (method.getParameterTypes().length == 0
+                            && !Modifier.isStatic(method.getModifiers())
+                            && method.getReturnType() != void.class
+                            && method.getName().equals(methodName)) {
+                        method.setAccessible(true);
+                        return method;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private static Field findField(Class<?> clazz, String name) {
+            for (Class<?> current = clazz; null != current; current = current.getSuperclass()) {
+                for (Field field : current.getDeclaredFields()) {
+                    if (field.getName().equals(name)
+                            && !Modifier.isStatic(field.getModifiers())) {
+                        field.setAccessible(true);
+                        return field;
+                    }
+                }
+            }
+            return null;
+        }
+
+    }
+
+}
@@ -0,0 +1,175 @@
+package com.github.ompc.greys.core.util.express;
+
+import com.github.ompc.greys.core.GlobalOptions;
+import com.github.ompc.greys.core.util.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+
+/**
+ * 表达式求值的耗时预算<br/>
+ * 命令在业务线程上同步求值表达式,这里统计每次求值的耗时,每{@link #WINDOW}次求值计算一次P99:
+ * <ul>
+ * <li>P99超过预算时,改为每{@link #SAMPLE_RATE}次调用只求值一次,被拖慢的调用不到1%,不会影响业务的P99;
+ * 若配置为超出即停止,则直接停止命令</li>
+ * <li>单次求值的耗时超过预算的{@link #SAMPLE_RATE}倍时,采样分摊后的耗时也超出了预算,直接停止命令</li>
+ * </ul>
+ * 降级和停止都只会发生一次,并通过{@link Alarm}告知会话
+ * Created by oldmanpushcart@gmail.com on 15/12/2.
+ */
+public class ExpressBudget {
+
+    /**
+     * 超出预算的告警
+     */
+    public interface Alarm {
+
+        /**
+         * 超出预算<br/>
+         * 在触发降级或停止的业务线程中回调,只应做快速的输出
+         *
+         * @param message   原因
+         * @param isStopped 是否需要停止命令
+         */
+        void alarm(String message, boolean isStopped);
+
+    }
+
+    /**
+     * 降级后的采样间隔
+     */
+    public static final int SAMPLE_RATE = 128;
+
+    /**
+     * 计算P99的窗口(求值次数)
+     */
+    public static final int WINDOW = 128;
+
+    private static final double PERCENTILE = 99d;
+
+    private static final int STATE_NORMAL = 0;
+    private static final int STATE_SAMPLED = 1;
+    private static final int STATE_STOPPED = 2;
+
+    // 预算(纳秒),不大于0时不限制
+    private final long budgetNanos;
+
+    // 超出预算时是否直接停止
+    private final boolean isStopOnExceeded;
+
+    private final Alarm alarm;
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final AtomicInteger stateRef = new AtomicInteger(STATE_NORMAL);
+
+    // 当前窗口内的求值次数
+    private final AtomicInteger windowCounter = new AtomicInteger();
+
+    // 降级后的调用序号
+    private final AtomicLong sampleSequence = new AtomicLong();
+
+    /**
+     * 构建耗时预算
+     *
+     * @param budgetNanos      预算(纳秒),不大于0时不限制
+     * @param isStopOnExceeded 超出预算时是否直接停止
+     * @param alarm            超出预算的告警
+     */
+    public ExpressBudget(long budgetNanos, boolean isStopOnExceeded, Alarm alarm) {
+        this.budgetNanos = budgetNanos;
+        this.isStopOnExceeded = isStopOnExceeded;
+        this.alarm = alarm;
+    }
+
+    /**
+     * 按全局选项构建耗时预算
+     *
+     * @param alarm 超出预算的告警
+     * @return 耗时预算
+     */
+    public static ExpressBudget newInstance(Alarm alarm) {
+        return new ExpressBudget(
+                GlobalOptions.expressBudgetMicros * 1000L,
+                GlobalOptions.isExpressBudgetStop,
+                alarm
+        );
+    }
+
+    /**
+     * 本次调用是否需要求值
+     *
+     * @return true:求值 / false:跳过
+     */
+    public boolean isAllowed() {
+        switch (stateRef.get()) {
+            case STATE_NORMAL:
+                return true;
+            case STATE_SAMPLED:
+                return sampleSequence.incrementAndGet() % SAMPLE_RATE == 0;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 记录一次求值的耗时
+     *
+     * @param nanos 耗时(纳秒)
+     */
+    public void record(long nanos) {
+
+        if (budgetNanos <= 0) {
+            return;
+        }
+
+        // 采样也分摊不了的耗时
+        if (nanos > budgetNanos * SAMPLE_RATE) {
+            stop(format("Express evaluation took %.3fms, more than %d times the budget %.3fms.",
+                    nanos / 1000000d, SAMPLE_RATE, budgetNanos / 1000000d));
+            return;
+        }
+
+        // 降级之后只看单次的耗时
+        if (stateRef.get() != STATE_NORMAL) {
+            return;
+        }
+
+        histogram.record(nanos);
+        if (windowCounter.incrementAndGet() % WINDOW != 0) {
+            return;
+        }
+
+        final long p99 = histogram.sumThenReset().getValueAtPercentile(PERCENTILE);
+        if (p99 <= budgetNanos) {
+            return;
+        }
+
+        final String message = format("Express evaluation p99 %.3fms is over the budget %.3fms",
+                p99 / 1000000d, budgetNanos / 1000000d);
+        if (isStopOnExceeded) {
+            stop(message + ".");
+        } else if (stateRef.compareAndSet(STATE_NORMAL, STATE_SAMPLED)) {
+            alarm.alarm(format("%s, only 1 of every %d invocations is evaluated from now on.", message, SAMPLE_RATE), false);
+        }
+
+    }
+
+    /*
+     * 停止求值,只告警一次
+     */
+    private void stop(String message) {
+        while (true) {
+            final int state = stateRef.get();
+            if (state == STATE_STOPPED) {
+                return;
+            }
+            if (stateRef.compareAndSet(state, STATE_STOPPED)) {
+                alarm.alarm(message + " Command stopped.", true);
+                return;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,553 @@
+package com.github.ompc.greys.core.util.express;
+
+import com.github.ompc.greys.core.Advice;
+import com.github.ompc.greys.core.util.LogUtil;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 条件表达式编译器<br/>
+ * 把OGNL中最常用的一小部分语法直接翻译成字节码,生成{@link CompiledPredicate}的子类:
+ * <pre>
+ * 表达式 : 或
+ * 或     : 且 ( || 且 )*
+ * 且     : 相等 ( &amp;&amp; 相等 )*
+ * 相等   : 比较 ( (== | !=) 比较 )*
+ * 比较   : 一元 ( (&lt; | &lt;= | &gt; | &gt;=) 一元 )*
+ * 一元   : ! 一元 | 基本
+ * 基本   : 常量 | ( 表达式 ) | 路径
+ * 路径   : (通知属性 | #变量) ( [整数] | .属性 )*
+ * 常量   : 整数 | 长整数(L) | 小数 | 字符串 | 字符 | true | false | null
+ * </pre>
+ * 通知属性包括params、returnObj、target、throwExp、clazz、method、loader、isBefore、isReturn、isThrow,
+ * 直接读取{@link Advice}的字段。超出这个范围的表达式(算术、方法调用、投影等)编译失败,仍然交给OGNL解释执行
+ * Created by oldmanpushcart@gmail.com on 15/11/30.
+ */
+public final class ExpressCompiler implements Opcodes {
+
+    private static final Logger logger = LogUtil.getLogger();
+
+    private static final String PREDICATE = Type.getInternalName(CompiledPredicate.class);
+    private static final String SUPPORT = Type.getInternalName(CompiledSupport.class);
+    private static final String SITE = Type.getInternalName(CompiledSupport.PropertySite.class);
+    private static final String ADVICE = Type.getInternalName(Advice.class);
+    private static final String OBJECT_DESC = "Ljava/lang/Object;";
+    private static final String COMPARE_DESC = "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Boolean;";
+
+    private static final AtomicInteger sequence = new AtomicInteger();
+
+    /**
+     * 编译失败,表达式超出了支持的语法
+     */
+    private static class UnsupportedException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedException(String message) {
+            super(message);
+        }
+
+    }
+
+    /**
+     * 编译表达式
+     *
+     * @param express 表达式
+     * @return 编译后的条件表达式,超出支持的语法时返回null
+     */
+    public static CompiledPredicate compile(String express) {
+        try {
+            return new ExpressCompiler(express).compile();
+        } catch (UnsupportedException e) {
+            logger.debug("express[{}] is not compilable, {}", express, e.getMessage());
+            return null;
+        } catch (Throwable t) {
+            logger.warn("compile express[{}] failed.", express, t);
+            return null;
+        }
+    }
+
+
+    // -- 词法 --
+
+    private static final int T_END = 0;
+    private static final int T_IDENT = 1;
+    private static final int T_CONST = 2;
+    private static final int T_OP = 3;
+
+    private final String express;
+    private int position;
+    private int tokenType;
+    private String tokenText;
+    private Object tokenValue;
+
+    // -- 代码生成 --
+
+    private final List<Object> constants = new ArrayList<Object>();
+    private final List<String> sites = new ArrayList<String>();
+    private MethodVisitor mv;
+
+    private ExpressCompiler(String express) {
+        this.express = express;
+    }
+
+    private CompiledPredicate compile() throws Exception {
+
+        final String className = PREDICATE + "$$Compiled$$" + sequence.incrementAndGet();
+        final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_5, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className, null, PREDICATE, null);
+
+        final String constructorDesc = "(Ljava/lang/String;[Ljava/lang/Object;[L" + SITE + ";)V";
+        final MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", constructorDesc, null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitVarInsn(ALOAD, 1);
+        init.visitVarInsn(ALOAD, 2);
+        init.visitVarInsn(ALOAD, 3);
+        init.visitMethodInsn(INVOKESPECIAL, PREDICATE, "<init>", constructorDesc, false);
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        // boolean is(Advice advice, Map variables)
+        mv = cw.visitMethod(ACC_PUBLIC, "is", "(L" + ADVICE + ";Ljava/util/Map;)Z", null, null);
+        mv.visitCode();
+        next();
+        parseOr();
+        if (tokenType != T_END) {
+            throw new UnsupportedException("unexpected " + tokenText);
+        }
+        mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "isBooleanTrue", "(Ljava/lang/Object;)Z", false);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+
+        final CompiledSupport.PropertySite[] siteArray = new CompiledSupport.PropertySite[sites.size()];
+        for (int index = 0; index < siteArray.length; index++) {
+            siteArray[index] = new CompiledSupport.PropertySite(sites.get(index));
+        }
+
+        final Class<?> clazz = new PredicateClassLoader().define(className.replace('/', '.'), cw.toByteArray());
+        return (CompiledPredicate) clazz
+                .getConstructor(String.class, Object[].class, CompiledSupport.PropertySite[].class)
+                .newInstance(express, constants.toArray(), siteArray);
+    }
+
+    /**
+     * 每个编译后的表达式一个类加载器,表达式缓存淘汰后可以连同类一起回收
+     */
+    private static class PredicateClassLoader extends ClassLoader {
+
+        PredicateClassLoader() {
+            super(ExpressCompiler.class.getClassLoader());
+        }
+
+        Class<?> define(String className, byte[] bytes) {
+            return defineClass(className, bytes, 0, bytes.length);
+        }
+
+    }
+
+
+    // -- 语法分析,边分析边生成代码,每个产生式执行后在栈顶留下一个Object --
+
+    private void parseOr() throws UnsupportedException {
+        parseAnd();
+        if (!isOp("||")) {
+            return;
+        }
+        final Label end = new Label();
+        while (isOp("||")) {
+            next();
+            // 和OGNL一样,结果是第一个为真的操作数
+            mv.visitInsn(DUP);
+            mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "isTrue", "(Ljava/lang/Object;)Z", false);
+            mv.visitJumpInsn(IFNE, end);
+            mv.visitInsn(POP);
+            parseAnd();
+        }
+        mv.visitLabel(end);
+    }
+
+    private void parseAnd() throws UnsupportedException {
+        parseEquality();
+        if (!isOp("&&")) {
+            return;
+        }
+        final Label end = new Label();
+        while (isOp("&&")) {
+            next();
+            // 和OGNL一样,结果是第一个为假的操作数
+            mv.visitInsn(DUP);
+            mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "isTrue", "(Ljava/lang/Object;)Z", false);
+            mv.visitJumpInsn(IFEQ, end);
+            mv.visitInsn(POP);
+            parseEquality();
+        }
+        mv.visitLabel(end);
+    }
+
+    private void parseEquality() throws UnsupportedException {
+        parseRelational();
+        while (isOp("==") || isOp("!=")) {
+            final String method = isOp("==") ? "equal" : "notEqual";
+            next();
+            parseRelational();
+            mv.visitMethodInsn(INVOKESTATIC, SUPPORT, method, COMPARE_DESC, false);
+        }
+    }
+
+    private void parseRelational() throws UnsupportedException {
+        parseUnary();
+        while (isOp("<") || isOp("<=") || isOp(">") || isOp(">=")) {
+            final String method;
+            if (isOp("<")) {
+                method = "less";
+            } else if (isOp("<=")) {
+                method = "lessOrEqual";
+            } else if (isOp(">")) {
+                method = "greater";
+            } else {
+                method = "greaterOrEqual";
+            }
+            next();
+            parseUnary();
+            mv.visitMethodInsn(INVOKESTATIC, SUPPORT, method, COMPARE_DESC, false);
+        }
+    }
+
+    private void parseUnary() throws UnsupportedException {
+        if (isOp("!")) {
+            next();
+            parseUnary();
+            mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "not", "(Ljava/lang/Object;)Ljava/lang/Boolean;", false);
+            return;
+        }
+        parsePrimary();
+    }
+
+    private void parsePrimary() throws UnsupportedException {
+
+        if (isOp("(")) {
+            next();
+            parseOr();
+            expectOp(")");
+            return;
+        }
+
+        if (tokenType == T_CONST) {
+            pushConstant(tokenValue);
+            next();
+            return;
+        }
+
+        if (isOp("#")) {
+            next();
+            if (tokenType != T_IDENT) {
+                throw new UnsupportedException("variable name is expected");
+            }
+            if ("this".equals(tokenText)
+                    || "root".equals(tokenText)
+                    || "context".equals(tokenText)) {
+                throw new UnsupportedException("#" + tokenText);
+            }
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitLdcInsn(tokenText);
+            mv.visitMethodInsn(INVOKEINTERFACE, "java/util/Map", "get", "(Ljava/lang/Object;)Ljava/lang/Object;", true);
+            next();
+        } else if (tokenType == T_IDENT) {
+            pushAdviceProperty(tokenText);
+            next();
+        } else {
+            throw new UnsupportedException("unexpected " + tokenText);
+        }
+
+        // 下标和属性
+        while (true) {
+            if (isOp("[")) {
+                next();
+                if (tokenType != T_CONST
+                        || !(tokenValue instanceof Integer)) {
+                    throw new UnsupportedException("only constant integer index is supported");
+                }
+                pushInt((Integer) tokenValue);
+                next();
+                expectOp("]");
+                mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "index", "(Ljava/lang/Object;I)Ljava/lang/Object;", false);
+            } else if (isOp(".")) {
+                next();
+                if (tokenType != T_IDENT) {
+                    throw new UnsupportedException("property name is expected");
+                }
+                final String name = tokenText;
+                next();
+                if (isOp("(")) {
+                    throw new UnsupportedException("method call");
+                }
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETFIELD, PREDICATE, "sites", "[L" + SITE + ";");
+                pushInt(sites.size());
+                mv.visitInsn(AALOAD);
+                mv.visitInsn(SWAP);
+                mv.visitMethodInsn(INVOKEVIRTUAL, SITE, "get", "(Ljava/lang/Object;)Ljava/lang/Object;", false);
+                sites.add(name);
+            } else {
+                return;
+            }
+        }
+
+    }
+
+    /*
+     * 通知的属性,直接读取字段;根对象上的变量从变量表中读取
+     */
+    private void pushAdviceProperty(String name) throws UnsupportedException {
+        if ("cost".equals(name)
+                || "index".equals(name)
+                || "processId".equals(name)) {
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitLdcInsn(name);
+            mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "variable", "(Ljava/util/Map;Ljava/lang/String;)Ljava/lang/Object;", false);
+            return;
+        }
+        mv.visitVarInsn(ALOAD, 1);
+        if ("params".equals(name)) {
+            mv.visitMethodInsn(INVOKEVIRTUAL, ADVICE, "getParams", "()[Ljava/lang/Object;", false);
+        } else if ("returnObj".equals(name)
+                || "target".equals(name)) {
+            mv.visitFieldInsn(GETFIELD, ADVICE, name, OBJECT_DESC);
+        } else if ("throwExp".equals(name)) {
+            mv.visitFieldInsn(GETFIELD, ADVICE, name, "Ljava/lang/Throwable;");
+        } else if ("clazz".equals(name)) {
+            mv.visitFieldInsn(GETFIELD, ADVICE, name, "Ljava/lang/Class;");
+        } else if ("loader".equals(name)) {
+            mv.visitFieldInsn(GETFIELD, ADVICE, name, "Ljava/lang/ClassLoader;");
+        } else if ("method".equals(name)) {
+            mv.visitFieldInsn(GETFIELD, ADVICE, name, "Lcom/github/ompc/greys/core/util/GaMethod;");
+        } else if ("isBefore".equals(name)
+                || "isReturn".equals(name)
+                || "isThrow".equals(name)) {
+            mv.visitFieldInsn(GETFIELD, ADVICE, name, "Z");
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;", false);
+        } else {
+            throw new UnsupportedException("unknown property " + name);
+        }
+    }
+
+    private void pushConstant(Object value) {
+        if (null == value) {
+            mv.visitInsn(ACONST_NULL);
+        } else if (value instanceof Boolean) {
+            mv.visitFieldInsn(GETSTATIC, "java/lang/Boolean", (Boolean) value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+        } else {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, PREDICATE, "constants", "[Ljava/lang/Object;");
+            pushInt(constants.size());
+            mv.visitInsn(AALOAD);
+            constants.add(value);
+        }
+    }
+
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+
+    private boolean isOp(String op) {
+        return tokenType == T_OP && op.equals(tokenText);
+    }
+
+    private void expectOp(String op) throws UnsupportedException {
+        if (!isOp(op)) {
+            throw new UnsupportedException(op + " is expected");
+        }
+        next();
+    }
+
+
+    // -- 词法分析 --
+
+    private static final String[] OPERATORS = {"==", "!=", "<=", ">=", "&&", "||", "<", ">", "!", "(", ")", "[", "]", ".", "#"};
+
+    private void next() throws UnsupportedException {
+
+        while (position < express.length()
+                && Character.isWhitespace(express.charAt(position))) {
+            position++;
+        }
+
+        tokenValue = null;
+        if (position >= express.length()) {
+            tokenType = T_END;
+            tokenText = "<end>";
+            return;
+        }
+
+        final char c = express.charAt(position);
+        if (Character.isJavaIdentifierStart(c)) {
+            final int begin = position;
+            while (position < express.length()
+                    && Character.isJavaIdentifierPart(express.charAt(position))) {
+                position++;
+            }
+            tokenText = express.substring(begin, position);
+            if ("true".equals(tokenText) || "false".equals(tokenText)) {
+                tokenType = T_CONST;
+                tokenValue = Boolean.valueOf(tokenText);
+            } else if ("null".equals(tokenText)) {
+                tokenType = T_CONST;
+            } else if (isKeyword(tokenText)) {
+                throw new UnsupportedException("keyword " + tokenText);
+            } else {
+                tokenType = T_IDENT;
+            }
+            return;
+        }
+
+        if (Character.isDigit(c)
+                || (c == '-' && position + 1 < express.length() && Character.isDigit(express.charAt(position + 1)))) {
+            scanNumber();
+            return;
+        }
+
+        if (c == '"' || c == '\'') {
+            scanString(c);
+            return;
+        }
+
+        for (String op : OPERATORS) {
+            if (express.startsWith(op, position)) {
+                position += op.length();
+                tokenType = T_OP;
+                tokenText = op;
+                return;
+            }
+        }
+
+        throw new UnsupportedException("unexpected character " + c);
+    }
+
+    /*
+     * OGNL中以单词形式出现的运算符,不在支持的语法内
+     */
+    private static boolean isKeyword(String word) {
+        return "and".equals(word) || "or".equals(word) || "not".equals(word)
+                || "eq".equals(word) || "neq".equals(word)
+                || "lt".equals(word) || "lte".equals(word) || "gt".equals(word) || "gte".equals(word)
+                || "in".equals(word) || "instanceof".equals(word) || "new".equals(word)
+                || "bor".equals(word) || "band".equals(word) || "xor".equals(word)
+                || "shl".equals(word) || "shr".equals(word) || "ushr".equals(word);
+    }
+
+    private void scanNumber() throws UnsupportedException {
+        final int begin = position;
+        if (express.charAt(position) == '-') {
+            // 负数只允许出现在运算符之后,例如 a == -1;a-1 这样的算术不支持
+            if (tokenType == T_CONST || tokenType == T_IDENT || isOp(")") || isOp("]")) {
+                throw new UnsupportedException("arithmetic");
+            }
+            position++;
+        }
+        boolean isDecimal = false;
+        while (position < express.length()) {
+            final char c = express.charAt(position);
+            if (Character.isDigit(c)) {
+                position++;
+            } else if (c == '.'
+                    && !isDecimal
+                    && position + 1 < express.length()
+                    && Character.isDigit(express.charAt(position + 1))) {
+                isDecimal = true;
+                position++;
+            } else {
+                break;
+            }
+        }
+        final String number = express.substring(begin, position);
+        tokenType = T_CONST;
+        tokenText = number;
+        try {
+            if (position < express.length()
+                    && (express.charAt(position) == 'L' || express.charAt(position) == 'l')
+                    && !isDecimal) {
+                position++;
+                tokenValue = Long.valueOf(number);
+            } else if (isDecimal) {
+                tokenValue = Double.valueOf(number);
+            } else {
+                tokenValue = Integer.valueOf(number);
+            }
+        } catch (NumberFormatException e) {
+            throw new UnsupportedException("number " + number);
+        }
+        if (position < express.length()
+                && Character.isJavaIdentifierPart(express.charAt(position))) {
+            throw new UnsupportedException("number suffix " + express.charAt(position));
+        }
+    }
+
+    private void scanString(char quote) throws UnsupportedException {
+        final StringBuilder value = new StringBuilder();
+        position++;
+        while (true) {
+            if (position >= express.length()) {
+                throw new UnsupportedException("unclosed string");
+            }
+            final char c = express.charAt(position++);
+            if (c == quote) {
+                break;
+            }
+            if (c == '\\') {
+                if (position >= express.length()) {
+                    throw new UnsupportedException("unclosed string");
+                }
+                final char escaped = express.charAt(position++);
+                switch (escaped) {
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case '\\':
+                    case '\'':
+                    case '"':
+                        value.append(escaped);
+                        break;
+                    default:
+                        throw new UnsupportedException("escape \\" + escaped);
+                }
+            } else {
+                value.append(c);
+            }
+        }
+        tokenType = T_CONST;
+        tokenText = value.toString();
+
+        // 和OGNL一样,单引号中只有一个字符时是字符常量
+        tokenValue = quote == '\'' && value.length() == 1
+                ? (Object) value.charAt(0)
+                : value.toString();
+    }
+
+}
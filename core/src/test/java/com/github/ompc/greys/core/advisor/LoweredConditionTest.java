@@ -0,0 +1,286 @@
+package com.github.ompc.greys.core.advisor;
+
+import com.github.ompc.greys.core.Advice;
+import com.github.ompc.greys.core.util.Express;
+import com.github.ompc.greys.core.util.GaMethod;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.GeneratorAdapter;
+import org.objectweb.asm.commons.Method;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 下沉条件的解析和编织
+ * Created by oldmanpushcart@gmail.com on 15/12/3.
+ */
+public class LoweredConditionTest {
+
+    private static String lower(String express) {
+        final LoweredCondition condition = LoweredCondition.lower(express);
+        return null == condition
+                ? null
+                : condition.toString();
+    }
+
+    @Test
+    public void test_split_conjuncts() {
+        assertEquals("[params[0]==1, params[1]>2]", lower("params[0]==1 && params[1]>2"));
+        assertEquals("[params[0]==1, params[1]>2]", lower("(params[0]==1 && (params[1]>2))"));
+        assertEquals("[params[0]==1]", lower("params[0]==1 && #cost>10"));
+
+        // 顶层有优先级更低的运算符时整体无法拆分
+        assertNull(lower("params[0]==1 || params[1]>2"));
+        assertNull(lower("params[0]==1 and params[1]>2"));
+        assertNull(lower("params[0]==1 or params[1]>2"));
+        assertNull(lower("params[0]==1 ? true : params[1]>2"));
+        assertNull(lower("params[0]=1"));
+        assertNull(lower("params[0]==1, params[1]>2"));
+
+        // 括号里的||不影响顶层的拆分
+        assertEquals("[params[0]==1]", lower("params[0]==1 && (params[1]>2 || params[1]<0)"));
+
+        // 引号中的&&和||不是运算符
+        assertEquals("[params[0]==1]", lower("params[1]=='a&&b' && params[0]==1"));
+        assertEquals("[params[0]==1]", lower("params[1]==\"a||b\" && params[0]==1"));
+
+        // 没有闭合的括号和引号
+        assertNull(lower("(params[0]==1"));
+        assertNull(lower("params[0]==1 && params[1]=='a"));
+    }
+
+    @Test
+    public void test_parse_compare() {
+        assertEquals("[params[0]>=5]", lower("params[0] >= 5"));
+        assertEquals("[params[2].length<3]", lower("params[2].length<3"));
+        assertEquals("[params[2].length()!=0]", lower("params[2] . length ( ) != 0"));
+        assertEquals("[params[0]==null]", lower("params[0]==null"));
+        assertEquals("[params[0]!=true]", lower("params[0]!=true"));
+
+        // 常量在左边时交换比较的方向
+        assertEquals("[params[0]>5]", lower("5 < params[0]"));
+        assertEquals("[params[0]<=-1]", lower("-1 >= params[0]"));
+        assertEquals("[params[0].length>=2]", lower("2 <= params[0].length"));
+        assertEquals("[params[0]==7]", lower("7 == params[0]"));
+
+        // 两边都被括号包住时不是一个整体
+        assertNull(lower("(params[0])==(1)"));
+
+        // 不带L后缀的整数常量只能是int
+        assertNull(lower("params[0]==2147483648"));
+        assertNull(lower("params[0]==-2147483649"));
+        assertEquals("[params[0]==-2147483648]", lower("params[0]==-2147483648"));
+        assertEquals("[params[0]==2147483648]", lower("params[0]==2147483648L"));
+        assertNull(lower("params[0]==99999999999999999999L"));
+
+        // 只有整数才有大小之分,长度只能和整数比较
+        assertNull(lower("params[0]<true"));
+        assertNull(lower("params[0]>null"));
+        assertNull(lower("params[0].length==null"));
+
+        // 不支持的比较
+        assertNull(lower("params[0]==1.5"));
+        assertNull(lower("params[0]=='a'"));
+        assertNull(lower("params[0]==params[1]"));
+        assertNull(lower("params[0].id==1"));
+        assertNull(lower(null));
+    }
+
+    // 编织用的方法签名,覆盖各种参数类型,long占两个槽位
+    private static final Type[] ARGUMENT_TYPES = {
+            Type.INT_TYPE,
+            Type.LONG_TYPE,
+            Type.BOOLEAN_TYPE,
+            Type.getType(int[].class),
+            Type.getType(String.class),
+            Type.SHORT_TYPE,
+            Type.BYTE_TYPE,
+            Type.getType(Object.class)
+    };
+
+    private static final Method TEST_METHOD = new Method("test", Type.BOOLEAN_TYPE, ARGUMENT_TYPES);
+
+    private static class DefineClassLoader extends ClassLoader {
+
+        DefineClassLoader() {
+            super(LoweredConditionTest.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+
+    }
+
+    /*
+     * 生成一个类,静态方法和实例方法都织入下沉的条件:条件满足返回true,不满足返回false
+     */
+    private static Class<?> weave(LoweredCondition condition, int sequence) {
+        final String className = "LoweredConditionTest$Woven" + sequence;
+        final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, className, null, "java/lang/Object", null);
+
+        final Method init = Method.getMethod("void <init>()");
+        final GeneratorAdapter constructor = new GeneratorAdapter(Opcodes.ACC_PUBLIC, init, null, null, cw);
+        constructor.loadThis();
+        constructor.invokeConstructor(Type.getType(Object.class), init);
+        constructor.returnValue();
+        constructor.endMethod();
+
+        for (int access : new int[]{Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, Opcodes.ACC_PUBLIC}) {
+            final String name = (access & Opcodes.ACC_STATIC) != 0 ? "testStatic" : "test";
+            final GeneratorAdapter mv = new GeneratorAdapter(access, new Method(name, TEST_METHOD.getDescriptor()), null, null, cw);
+            final Label falseLabel = new Label();
+            condition.weave(mv, ARGUMENT_TYPES, falseLabel);
+            mv.push(true);
+            mv.returnValue();
+            mv.mark(falseLabel);
+            mv.push(false);
+            mv.returnValue();
+            mv.endMethod();
+        }
+
+        cw.visitEnd();
+        return new DefineClassLoader().define(className, cw.toByteArray());
+    }
+
+    /*
+     * 参数的所有组合
+     */
+    private static List<Object[]> newArgumentsList() {
+        final Object[][] values = {
+                {-3, 5, 6},
+                {7L, 3000000000L},
+                {true, false},
+                {null, new int[1], new int[3]},
+                {null, "abc", "abcd"},
+                {(short) 9, (short) 10},
+                {(byte) 1, (byte) 2},
+                {null, "x"}
+        };
+        final List<Object[]> argumentsList = new ArrayList<Object[]>();
+        argumentsList.add(new Object[values.length]);
+        for (int index = 0; index < values.length; index++) {
+            final List<Object[]> expanded = new ArrayList<Object[]>();
+            for (Object[] arguments : argumentsList) {
+                for (Object value : values[index]) {
+                    final Object[] copy = arguments.clone();
+                    copy[index] = value;
+                    expanded.add(copy);
+                }
+            }
+            argumentsList.clear();
+            argumentsList.addAll(expanded);
+        }
+        return argumentsList;
+    }
+
+    private static boolean isByOgnl(String express, Object[] arguments, double cost) throws Exception {
+        final Advice advice = Advice.newForBefore(
+                null,
+                LoweredConditionTest.class,
+                GaMethod.newMethod(Object.class.getMethod("hashCode")),
+                null,
+                Arguments.wrap(arguments)
+        );
+        return Express.ExpressFactory.newExpress(advice).bind("cost", cost).is(express);
+    }
+
+    /*
+     * 织入的条件只是必要条件:完整条件满足时一定满足,但满足时完整条件未必满足;
+     * 静态方法和实例方法的参数槽位不同,结果必须一致
+     */
+    private static void assertNecessary(String compare, int sequence) throws Exception {
+        final String express = compare + " && #cost > 10";
+        final LoweredCondition condition = LoweredCondition.lower(express);
+        assertNotNull(express, condition);
+
+        final Class<?> clazz = weave(condition, sequence);
+        final java.lang.reflect.Method testStatic = clazz.getMethod("testStatic", int.class, long.class, boolean.class, int[].class, String.class, short.class, byte.class, Object.class);
+        final java.lang.reflect.Method test = clazz.getMethod("test", int.class, long.class, boolean.class, int[].class, String.class, short.class, byte.class, Object.class);
+        final Object target = clazz.newInstance();
+
+        boolean isNotSufficient = false;
+        for (Object[] arguments : newArgumentsList()) {
+            final boolean isWovenTrue = (Boolean) testStatic.invoke(null, arguments);
+            assertEquals(express, isWovenTrue, test.invoke(target, arguments));
+
+            // 织入的条件和表达式中的比较本身一致
+            assertEquals(compare, isByOgnl(compare, arguments, 0), isWovenTrue);
+
+            if (isByOgnl(express, arguments, 100)) {
+                assertTrue(express, isWovenTrue);
+            }
+            if (isWovenTrue
+                    && !isByOgnl(express, arguments, 0)) {
+                isNotSufficient = true;
+            }
+        }
+        assertTrue(express + " is sufficient", isNotSufficient);
+    }
+
+    @Test
+    public void test_weave_int() throws Exception {
+        assertNecessary("params[0] > 5", 0);
+        assertNecessary("params[0] == -3", 1);
+        assertNecessary("params[0] <= 5", 2);
+        assertNecessary("5 < params[0]", 3);
+    }
+
+    @Test
+    public void test_weave_long() throws Exception {
+        assertNecessary("params[1] >= 3000000000L", 10);
+        assertNecessary("params[1] != 7", 11);
+        assertNecessary("params[1] < 8", 12);
+    }
+
+    @Test
+    public void test_weave_short_byte() throws Exception {
+        assertNecessary("params[5] < 10", 20);
+        assertNecessary("params[6] == 1", 21);
+    }
+
+    @Test
+    public void test_weave_boolean() throws Exception {
+        assertNecessary("params[2] == true", 30);
+        assertNecessary("params[2] != true", 31);
+        assertNecessary("params[2] == false", 32);
+    }
+
+    @Test
+    public void test_weave_null() throws Exception {
+        assertNecessary("params[4] == null", 40);
+        assertNecessary("params[7] != null", 41);
+        assertNecessary("params[3] == null", 42);
+    }
+
+    @Test
+    public void test_weave_array_length() throws Exception {
+        assertNecessary("params[3].length < 2", 50);
+        assertNecessary("params[3].length == 3", 51);
+    }
+
+    @Test
+    public void test_weave_string_length() throws Exception {
+        assertNecessary("params[4].length() == 3", 60);
+        assertNecessary("params[4].length() > 3", 61);
+    }
+
+    @Test
+    public void test_weave_not_applicable() throws Exception {
+
+        // 和参数类型对不上的比较不织入,任何调用都满足
+        final Class<?> clazz = weave(LoweredCondition.lower("params[2] > 1 && params[0].length == 1 && params[9] == null"), 70);
+        final java.lang.reflect.Method testStatic = clazz.getMethod("testStatic", int.class, long.class, boolean.class, int[].class, String.class, short.class, byte.class, Object.class);
+        for (Object[] arguments : newArgumentsList()) {
+            assertTrue((Boolean) testStatic.invoke(null, arguments));
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+package com.github.ompc.greys.core.util.express;
+
+import com.github.ompc.greys.core.Advice;
+import com.github.ompc.greys.core.advisor.Arguments;
+import com.github.ompc.greys.core.util.GaMethod;
+import ognl.DefaultMemberAccess;
+import ognl.Ognl;
+import ognl.OgnlContext;
+import ognl.OgnlRuntime;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * 编译后的条件表达式必须和OGNL的求值结果一致
+ * Created by oldmanpushcart@gmail.com on 15/12/3.
+ */
+public class ExpressCompilerTest {
+
+    public static class Bean {
+        private int id;
+
+        public Bean(int id) {
+            this.id = id;
+        }
+    }
+
+    public static class OtherBean {
+
+        public long getId() {
+            return 42L;
+        }
+
+        public boolean isId() {
+            return false;
+        }
+
+    }
+
+    @BeforeClass
+    public static void setUp() {
+        final AdviceRoot.Accessor accessor = new AdviceRoot.Accessor();
+        OgnlRuntime.setPropertyAccessor(AdviceRoot.class, accessor);
+        OgnlRuntime.setMethodAccessor(AdviceRoot.class, accessor);
+    }
+
+    private static Advice newAdvice(Object returnObj, Object... params) throws Exception {
+        return Advice.newForAfterRetuning(
+                null,
+                String.class,
+                GaMethod.newMethod(String.class.getMethod("length")),
+                null,
+                Arguments.wrap(params),
+                returnObj
+        );
+    }
+
+    /*
+     * OGNL求值,和Express.is()一样,求值出错时视为不满足
+     */
+    private static boolean isByOgnl(String express, AdviceRoot root) {
+        final OgnlContext context = new OgnlContext(null, null, new DefaultMemberAccess(true), root.getVariables());
+        try {
+            return Boolean.TRUE.equals(Ognl.getValue(Ognl.parseExpression(express), context, root));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /*
+     * 编译后求值,不允许交还给OGNL
+     */
+    private static boolean isByCompiled(String express, AdviceRoot root) {
+        final CompiledPredicate predicate = ExpressCompiler.compile(express);
+        assertNotNull(express + " is not compilable", predicate);
+        try {
+            return predicate.is(root.getAdvice(), root.getVariables());
+        } catch (CompiledSupport.FallbackException e) {
+            throw new AssertionError(express + " fallback to ognl");
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /*
+     * 编译后求值和OGNL求值,结果必须一致
+     */
+    private static void assertSameAsOgnl(String express, Advice advice, Object cost, boolean expect) {
+        final AdviceRoot root = new AdviceRoot().setAdvice(advice);
+        if (null != cost) {
+            root.bind("cost", cost);
+        }
+        assertEquals(express + " by ognl", expect, isByOgnl(express, root));
+        assertEquals(express + " by compiled", expect, isByCompiled(express, root));
+    }
+
+    @Test
+    public void test_array_length() throws Exception {
+        assertSameAsOgnl("params[0].length==1", newAdvice(null, new int[1]), null, true);
+        assertSameAsOgnl("params[0].length==1", newAdvice(null, (Object) new String[2]), null, false);
+    }
+
+    @Test
+    public void test_cost() throws Exception {
+        final Advice advice = newAdvice(null);
+        assertSameAsOgnl("cost>100", advice, 150.5d, true);
+        assertSameAsOgnl("cost>100", advice, 100L, false);
+        assertSameAsOgnl("cost>100", advice, 101, true);
+        assertSameAsOgnl("#cost>100", advice, 99.9f, false);
+    }
+
+    @Test
+    public void test_return_null() throws Exception {
+        assertSameAsOgnl("returnObj==null", newAdvice(null), null, true);
+        assertSameAsOgnl("returnObj==null", newAdvice("abc"), null, false);
+    }
+
+    @Test
+    public void test_property() throws Exception {
+        assertSameAsOgnl("params[1].id==42", newAdvice(null, null, new Bean(42)), null, true);
+        assertSameAsOgnl("params[1].id==42", newAdvice(null, null, new Bean(7)), null, false);
+
+        // 同时有getId()和isId()时以getId()为准
+        assertSameAsOgnl("params[1].id==42", newAdvice(null, null, new OtherBean()), null, true);
+        assertSameAsOgnl("params[1].id==42", newAdvice(null, null, new Bean(42)), null, true);
+    }
+
+    @Test
+    public void test_char() throws Exception {
+        final Advice advice = newAdvice(null);
+        assertSameAsOgnl("'a'=='a'", advice, null, true);
+        assertSameAsOgnl("'a'=='b'", advice, null, false);
+        assertSameAsOgnl("params[0]=='a'", newAdvice(null, 'a'), null, true);
+
+        // 字符和字符串比较时OGNL会按数字转换而出错
+        assertSameAsOgnl("params[0]=='a'", newAdvice(null, "a"), null, false);
+    }
+
+    @Test
+    public void test_mixed_numbers() throws Exception {
+        final Object[] values = {12345, 12345L, 12345.0d, 12345.5d, (short) 7};
+        final String[] expresses = {
+                "params[0]==12345",
+                "params[0]==12345L",
+                "params[0]==12345.0",
+                "params[0]>12345",
+                "params[0]>=12345L",
+                "params[0]<12345.5",
+                "params[0]!=7",
+        };
+        for (Object value : values) {
+            final Advice advice = newAdvice(null, value);
+            for (String express : expresses) {
+                final AdviceRoot root = new AdviceRoot().setAdvice(advice);
+                assertEquals(express + " with " + value, isByOgnl(express, root), isByCompiled(express, root));
+            }
+        }
+    }
+
+}